@@ -0,0 +1,187 @@
+package sb2benchmarks;
+
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.RealParameter;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+import starbeast2.AIMIntegrator;
+import starbeast2.AllEqual;
+import starbeast2.ConstantWithGeneFlow;
+import starbeast2.DormandPrinceAIM;
+import starbeast2.Euler2ndOrderAIM;
+import starbeast2.GeneTreeWithMigration;
+import starbeast2.HybridAIM;
+import starbeast2.SpeciesTreeParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the fixed second order Euler scheme, the adaptive Dormand-Prince
+ * solver and the hybrid exact/Dormand-Prince solver, both on a single interval
+ * of lineage state probabilities (counting derivative evaluations) and on whole
+ * AIM gene tree likelihoods. Every gene tree invocation changes the population
+ * sizes, so each evaluation starts from the tips. Half of the migration routes
+ * are switched off, so some intervals are linear.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+public class AIMIntegratorBenchmark {
+    @Param({"euler", "dormand-prince", "hybrid"})
+    public String integrator;
+
+    @Param({"4", "8"})
+    public int species;
+
+    @Param({"10"})
+    public int loci;
+
+    @Param({"2", "4"})
+    public int tipsPerSpecies;
+
+    @Param({"127"})
+    public long seed;
+
+    private final static double POP_SIZE = 0.1;
+    private final static double PLOIDY = 2.0;
+    private final static double MIGRATION_RATE = 1.0;
+    private final static double DURATION = 0.5;
+    private final static double TOLERANCE = 1e-3;
+    private final static int EXPONENTIAL_THRESHOLD = 64;
+
+    // derivative evaluations per operation, reported next to the throughput
+    @org.openjdk.jmh.annotations.State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long evaluations;
+    }
+
+    private AIMIntegrator intervalIntegrator;
+    private int[] multiplicator;
+    private double[][] migrationRates;
+    private double[] coalescentRates;
+    private double[] initialProbs;
+    private double[] probs;
+    private int lineages;
+
+    private List<GeneTreeWithMigration> geneTrees;
+    private ConstantWithGeneFlow popModel;
+    private RealParameter popSizesParameter;
+    private boolean flip;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        setupInterval();
+        setupGeneTrees();
+    }
+
+    private void setupInterval() {
+        final Random random = new Random(seed);
+        final int states = species;
+        lineages = species * tipsPerSpecies;
+
+        multiplicator = new int[lineages];
+        coalescentRates = new double[states];
+        migrationRates = new double[states][states];
+        for (int i = 0; i < lineages; i++)
+            multiplicator[i] = 1;
+        for (int j = 0; j < states; j++) {
+            coalescentRates[j] = 1.0 / (POP_SIZE * PLOIDY * (0.5 + random.nextDouble()));
+            for (int k = 0; k < states; k++)
+                if (j != k) migrationRates[j][k] = MIGRATION_RATE * random.nextDouble();
+        }
+
+        // each lineage starts mostly in one state, the last element is the log probability
+        initialProbs = new double[lineages * states + 1];
+        for (int i = 0; i < lineages; i++) {
+            final int home = i % states;
+            for (int j = 0; j < states; j++)
+                initialProbs[i * states + j] = j == home ? 0.9 : 0.1 / (states - 1);
+        }
+        probs = new double[initialProbs.length];
+
+        if (integrator.equals("dormand-prince"))
+            intervalIntegrator = new DormandPrinceAIM(states, initialProbs.length, TOLERANCE, Double.POSITIVE_INFINITY);
+        else if (integrator.equals("hybrid"))
+            // every lineage can migrate, so this interval is not linear and measures the overhead of the hybrid solver
+            intervalIntegrator = new HybridAIM(states, EXPONENTIAL_THRESHOLD,
+                    new DormandPrinceAIM(states, initialProbs.length, TOLERANCE, Double.POSITIVE_INFINITY));
+        else
+            intervalIntegrator = new Euler2ndOrderAIM(states, initialProbs.length, 0.001, 0.2);
+    }
+
+    private void setupGeneTrees() {
+        final SyntheticTrees synthetic = new SyntheticTrees(species, loci, tipsPerSpecies, POP_SIZE, PLOIDY, seed);
+        final SpeciesTreeParser speciesTree = synthetic.speciesTree();
+
+        popSizesParameter = new RealParameter();
+        popSizesParameter.initByName("value", String.valueOf(POP_SIZE));
+        final RealParameter migRatesParameter = new RealParameter();
+        migRatesParameter.initByName("value", String.valueOf(MIGRATION_RATE));
+        final BooleanParameter indicatorParameter = new BooleanParameter();
+        indicatorParameter.initByName("value", "true false");
+
+        final AllEqual migrationModel = new AllEqual();
+        migrationModel.initByName("speciesTree", speciesTree);
+
+        popModel = new ConstantWithGeneFlow();
+        popModel.initByName("Ne", popSizesParameter, "m", migRatesParameter, "indicator", indicatorParameter,
+                "migrationModel", migrationModel, "rateIsForward", true);
+
+        // dummy state to allow state node editing
+        final State state = new State();
+        state.initByName("stateNode", popSizesParameter);
+        state.initialise();
+
+        geneTrees = new ArrayList<>();
+        for (TreeParser geneTree: synthetic.geneTrees()) {
+            final GeneTreeWithMigration geneTreeWithMigration = new GeneTreeWithMigration();
+            geneTreeWithMigration.initByName("tree", geneTree, "ploidy", PLOIDY, "populationModel", popModel,
+                    "integrator", integrator, "tolerance", TOLERANCE, "exponentialThreshold", EXPONENTIAL_THRESHOLD);
+            geneTrees.add(geneTreeWithMigration);
+        }
+        flip = false;
+    }
+
+    @Benchmark
+    public double intervalIntegration(Counters counters) {
+        System.arraycopy(initialProbs, 0, probs, 0, probs.length);
+        intervalIntegrator.reset(multiplicator, migrationRates, null, null, coalescentRates, lineages, species);
+        intervalIntegrator.calculateValues(DURATION, probs, probs.length);
+        counters.evaluations += intervalIntegrator.getEvaluations();
+        return probs[probs.length - 1];
+    }
+
+    @Benchmark
+    public double geneTreeLogP() {
+        // alternate between two sets of population sizes so no checkpoint can be reused
+        flip = !flip;
+        final double popSize = flip ? POP_SIZE * 1.01 : POP_SIZE;
+        for (int i = 0; i < popSizesParameter.getDimension(); i++)
+            popSizesParameter.setValue(i, popSize);
+        popModel.requiresRecalculation();
+
+        double logP = 0.0;
+        for (GeneTreeWithMigration geneTree: geneTrees)
+            logP += geneTree.calculateLogP();
+        return logP;
+    }
+}
@@ -0,0 +1,89 @@
+package sb2benchmarks;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.util.Randomizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+import starbeast2.CoordinatedExchange;
+import starbeast2.SpeciesTreeParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of narrow and wide coordinated exchange proposals, with gene trees
+ * processed serially or by a pool of threads. Each proposal
+ * is rejected by restoring the state, so every invocation starts from the
+ * same species and gene trees.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+public class CoordinatedExchangeBenchmark {
+    @Param({"8", "32"})
+    public int species;
+
+    @Param({"10", "100"})
+    public int loci;
+
+    @Param({"2", "8"})
+    public int tipsPerSpecies;
+
+    @Param({"true", "false"})
+    public boolean isNarrow;
+
+    @Param({"1", "4"})
+    public int geneThreads;
+
+    @Param({"127"})
+    public long seed;
+
+    private final static double POP_SIZE = 0.1;
+    private final static double PLOIDY = 2.0;
+
+    private State state;
+    private CoordinatedExchange coex;
+    private long sample;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Randomizer.setSeed(seed);
+
+        final SyntheticTrees synthetic = new SyntheticTrees(species, loci, tipsPerSpecies, POP_SIZE, PLOIDY, seed);
+        final SpeciesTreeParser speciesTree = synthetic.speciesTree();
+        final List<TreeParser> geneTrees = synthetic.geneTrees();
+
+        state = new State();
+        state.initByName("stateNode", speciesTree);
+        for (Tree geneTree: geneTrees)
+            state.initByName("stateNode", geneTree);
+        state.initialise();
+
+        coex = new CoordinatedExchange();
+        coex.initByName("speciesTree", speciesTree, "geneTree", new ArrayList<>(geneTrees), "isNarrow", isNarrow, "geneThreads", geneThreads, "weight", 1.0);
+        sample = 0;
+    }
+
+    @Benchmark
+    public double proposal() {
+        state.store(sample++);
+        final double logHR = coex.proposal();
+        state.restore();
+        return logHR;
+    }
+}
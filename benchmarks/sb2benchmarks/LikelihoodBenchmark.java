@@ -0,0 +1,153 @@
+package sb2benchmarks;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import starbeast2.GeneTree;
+import starbeast2.MultispeciesCoalescent;
+import starbeast2.SpeciesTreeParser;
+import starbeast2.StarBeastClock;
+import starbeast2.UncorrelatedRates;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the gene tree embedding, the analytically integrated
+ * multispecies coalescent and the species tree relaxed clock. Every
+ * invocation marks all gene trees as changed, so each operation is a full
+ * (non-incremental) evaluation. Run with "-prof gc" for allocation rates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+public class LikelihoodBenchmark {
+    @Param({"8", "32"})
+    public int species;
+
+    @Param({"10", "100"})
+    public int loci;
+
+    @Param({"2", "8"})
+    public int tipsPerSpecies;
+
+    @Param({"1"})
+    public int branchThreads;
+
+    @Param({"127"})
+    public long seed;
+
+    private final static double POP_SIZE = 0.1;
+    private final static double PLOIDY = 2.0;
+
+    private List<GeneTree> geneTreeWrappers;
+    private List<StarBeastClock> geneTreeClocks;
+    private List<Node> geneTreeLeaves;
+    private MultispeciesCoalescent msc;
+    private UncorrelatedRates speciesTreeClock;
+    private RealParameter meanRateParameter;
+    private IntegerParameter branchRatesParameter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final SyntheticTrees synthetic = new SyntheticTrees(species, loci, tipsPerSpecies, POP_SIZE, PLOIDY, seed);
+        final SpeciesTreeParser speciesTree = synthetic.speciesTree();
+        final List<TreeParser> geneTrees = synthetic.geneTrees();
+
+        meanRateParameter = new RealParameter();
+        meanRateParameter.initByName("value", "1.0");
+        branchRatesParameter = new IntegerParameter();
+        branchRatesParameter.initByName("value", "0");
+        final RealParameter stdevParameter = new RealParameter();
+        stdevParameter.initByName("value", "0.3");
+        final RealParameter shapeParameter = new RealParameter();
+        shapeParameter.initByName("value", "3.0");
+        final RealParameter meanParameter = new RealParameter();
+        meanParameter.initByName("value", String.valueOf(POP_SIZE));
+
+        // dummy state to allow state node editing
+        final State state = new State();
+        state.initByName("stateNode", meanRateParameter);
+        state.initByName("stateNode", branchRatesParameter);
+        state.initialise();
+
+        geneTreeWrappers = new ArrayList<>();
+        final List<Distribution> geneTreeDistributions = new ArrayList<>();
+        for (TreeParser geneTree: geneTrees) {
+            final GeneTree geneTreeWrapper = new GeneTree();
+            geneTreeWrapper.initByName("tree", geneTree, "ploidy", PLOIDY, "speciesTree", speciesTree);
+            geneTreeWrappers.add(geneTreeWrapper);
+            geneTreeDistributions.add(geneTreeWrapper);
+        }
+
+        msc = new MultispeciesCoalescent();
+        msc.initByName("distribution", geneTreeDistributions, "populationShape", shapeParameter,
+                "populationMean", meanParameter, "branchThreads", branchThreads);
+
+        speciesTreeClock = new UncorrelatedRates();
+        speciesTreeClock.initByName("tree", speciesTree, "rates", branchRatesParameter, "stdev", stdevParameter, "estimateRoot", true);
+
+        geneTreeClocks = new ArrayList<>();
+        geneTreeLeaves = new ArrayList<>();
+        for (int i = 0; i < geneTreeWrappers.size(); i++) {
+            final StarBeastClock geneTreeClock = new StarBeastClock();
+            geneTreeClock.initByName("geneTree", geneTreeWrappers.get(i), "speciesTreeRates", speciesTreeClock, "clock.rate", meanRateParameter);
+            geneTreeClocks.add(geneTreeClock);
+            geneTreeLeaves.add(geneTrees.get(i).getNode(0));
+        }
+
+        // spread the discrete rates over all bins so the clock is not trivially strict
+        for (int i = 0; i < branchRatesParameter.getDimension(); i++)
+            branchRatesParameter.setValue(i, i % (branchRatesParameter.getUpper() + 1));
+    }
+
+    private void markGeneTreesDirty() {
+        for (GeneTree geneTreeWrapper: geneTreeWrappers)
+            geneTreeWrapper.requiresRecalculation();
+    }
+
+    @Benchmark
+    public void geneTreeUpdate(Blackhole bh) {
+        markGeneTreesDirty();
+        for (GeneTree geneTreeWrapper: geneTreeWrappers)
+            bh.consume(geneTreeWrapper.getCoalescentCounts());
+    }
+
+    @Benchmark
+    public double multispeciesCoalescentLogP() {
+        markGeneTreesDirty();
+        return msc.calculateLogP();
+    }
+
+    @Benchmark
+    public void starBeastClockUpdate(Blackhole bh) {
+        markGeneTreesDirty();
+        // re-setting the clock rate keeps it dirty, so every clock recalculates its branch rates
+        meanRateParameter.setValue(meanRateParameter.getValue());
+        speciesTreeClock.requiresRecalculation();
+        for (int i = 0; i < geneTreeClocks.size(); i++) {
+            final StarBeastClock geneTreeClock = geneTreeClocks.get(i);
+            geneTreeClock.requiresRecalculation();
+            bh.consume(geneTreeClock.getRateForBranch(geneTreeLeaves.get(i)));
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package sb2benchmarks;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.TreeParser;
+import starbeast2.SpeciesTreeParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Simulates a Yule species tree and multispecies coalescent gene trees
+ * embedded within it, so benchmarks can be run at any scale without data files.
+ */
+final class SyntheticTrees {
+    private final static double BIRTH_RATE = 1.0;
+
+    final int nSpecies;
+    final int nLoci;
+    final int tipsPerSpecies;
+    final double popSize;
+    final double ploidy;
+
+    final String speciesNewick;
+    final List<String> geneNewicks = new ArrayList<>();
+
+    private final Random random;
+
+    private static class SimNode {
+        final String label;
+        final double height;
+        final SimNode left;
+        final SimNode right;
+
+        SimNode(String label, double height, SimNode left, SimNode right) {
+            this.label = label;
+            this.height = height;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    SyntheticTrees(int nSpecies, int nLoci, int tipsPerSpecies, double popSize, double ploidy, long seed) {
+        if (nSpecies < 2) throw new IllegalArgumentException("At least two species are required.");
+        if (tipsPerSpecies < 1) throw new IllegalArgumentException("At least one tip per species is required.");
+
+        this.nSpecies = nSpecies;
+        this.nLoci = nLoci;
+        this.tipsPerSpecies = tipsPerSpecies;
+        this.popSize = popSize;
+        this.ploidy = ploidy;
+        random = new Random(seed);
+
+        final SimNode speciesRoot = simulateSpeciesTree();
+        speciesNewick = toNewick(speciesRoot, speciesRoot.height) + ";";
+        for (int i = 0; i < nLoci; i++) {
+            final List<SimNode> lineages = simulateGeneTree(speciesRoot, Double.POSITIVE_INFINITY);
+            assert lineages.size() == 1;
+            final SimNode geneRoot = lineages.get(0);
+            geneNewicks.add(toNewick(geneRoot, geneRoot.height) + ";");
+        }
+    }
+
+    private static String speciesName(int speciesI) {
+        return String.format("s%d", speciesI);
+    }
+
+    private static String tipName(int speciesI, int tipI) {
+        return String.format("s%d_%d", speciesI, tipI);
+    }
+
+    private SimNode simulateSpeciesTree() {
+        final List<SimNode> lineages = new ArrayList<>();
+        for (int i = 0; i < nSpecies; i++)
+            lineages.add(new SimNode(speciesName(i), 0.0, null, null));
+
+        double height = 0.0;
+        while (lineages.size() > 1) {
+            final int k = lineages.size();
+            height += -Math.log(random.nextDouble()) / (k * BIRTH_RATE);
+            final SimNode left = lineages.remove(random.nextInt(k));
+            final SimNode right = lineages.remove(random.nextInt(k - 1));
+            lineages.add(new SimNode(null, height, left, right));
+        }
+
+        return lineages.get(0);
+    }
+
+    // returns the gene lineages leaving the top of this species branch
+    private List<SimNode> simulateGeneTree(SimNode speciesNode, double topHeight) {
+        final List<SimNode> lineages;
+        if (speciesNode.left == null) {
+            lineages = new ArrayList<>();
+            final int speciesI = Integer.parseInt(speciesNode.label.substring(1));
+            for (int i = 0; i < tipsPerSpecies; i++)
+                lineages.add(new SimNode(tipName(speciesI, i), 0.0, null, null));
+        } else {
+            lineages = simulateGeneTree(speciesNode.left, speciesNode.height);
+            lineages.addAll(simulateGeneTree(speciesNode.right, speciesNode.height));
+        }
+
+        double height = speciesNode.height;
+        while (lineages.size() > 1) {
+            final int k = lineages.size();
+            final double rate = k * (k - 1) * 0.5 / (popSize * ploidy);
+            height += -Math.log(random.nextDouble()) / rate;
+            if (height >= topHeight) break;
+
+            final SimNode left = lineages.remove(random.nextInt(k));
+            final SimNode right = lineages.remove(random.nextInt(k - 1));
+            lineages.add(new SimNode(null, height, left, right));
+        }
+
+        return lineages;
+    }
+
+    private static String toNewick(SimNode node, double parentHeight) {
+        final StringBuilder sb = new StringBuilder();
+        if (node.left == null) {
+            sb.append(node.label);
+        } else {
+            sb.append('(');
+            sb.append(toNewick(node.left, node.height));
+            sb.append(',');
+            sb.append(toNewick(node.right, node.height));
+            sb.append(')');
+        }
+
+        sb.append(':');
+        sb.append(parentHeight - node.height);
+        return sb.toString();
+    }
+
+    TaxonSet speciesTaxonSet() {
+        final List<Taxon> speciesList = new ArrayList<>();
+        for (int i = 0; i < nSpecies; i++) {
+            final List<Taxon> tipList = new ArrayList<>();
+            for (int j = 0; j < tipsPerSpecies; j++)
+                tipList.add(new Taxon(tipName(i, j)));
+            speciesList.add(new TaxonSet(speciesName(i), tipList));
+        }
+
+        return new TaxonSet(speciesList);
+    }
+
+    SpeciesTreeParser speciesTree() {
+        final SpeciesTreeParser speciesTree = new SpeciesTreeParser();
+        speciesTree.initByName("newick", speciesNewick, "IsLabelledNewick", true, "taxonset", speciesTaxonSet());
+        return speciesTree;
+    }
+
+    List<TreeParser> geneTrees() {
+        final List<TreeParser> geneTrees = new ArrayList<>();
+        for (String geneNewick: geneNewicks) {
+            final TreeParser geneTree = new TreeParser();
+            geneTree.initByName("newick", geneNewick, "IsLabelledNewick", true);
+            geneTrees.add(geneTree);
+        }
+
+        return geneTrees;
+    }
+}
@@ -0,0 +1,100 @@
+package sb2tests;
+
+import beast.base.evolution.operator.Exchange;
+import beast.base.evolution.operator.Uniform;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Operator;
+import beast.base.util.Randomizer;
+import org.junit.Test;
+import starbeast2.ConstantWithGeneFlow;
+import starbeast2.GeneTreeWithMigration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// After every proposal and every restore, the gene tree log probability resumed from a checkpoint
+// must be the same as one integrated from the tips
+public class AIMCheckpointTest {
+    private final String newickGeneTree = "((((a_1:0.4,a_2:0.4):1.2,b_1:1.6):0.9,(b_2:0.7,c_1:0.7):1.8):1.1,((c_2:2.3,d_1:2.3):0.6,d_2:2.9):0.7)";
+    private final String integrator = "dormand-prince";
+    private final int nSteps = 300;
+
+    @Test
+    public void testWithoutIndicators() {
+        runProposals(null, 5);
+    }
+
+    @Test
+    public void testWithIndicators() {
+        final boolean[] indicators = new boolean[GeneFlowTestHelper.ROUTE_COUNT];
+        indicators[1] = true; // a to c
+        indicators[8] = true; // c to d
+        indicators[14] = true; // ab to c
+        indicators[16] = true; // d to abc
+        runProposals(indicators, 9);
+    }
+
+    private void runProposals(boolean[] indicators, long seed) {
+        Randomizer.setSeed(seed);
+        final GeneFlowTestHelper helper = new GeneFlowTestHelper(new ConstantWithGeneFlow(), indicators, newickGeneTree);
+        final Tree geneTree = helper.geneTrees.get(0);
+        final GeneTreeWithMigration geneTreeLikelihood = helper.geneTreeLikelihood(0, integrator);
+        helper.state.setPosterior(geneTreeLikelihood);
+        helper.state.setEverythingDirty(false);
+        geneTreeLikelihood.calculateLogP();
+
+        // species tree exchanges change the order of the species intervals, the other moves change heights within them
+        final Exchange speciesExchange = new Exchange();
+        speciesExchange.initByName("tree", helper.speciesTree, "isNarrow", true, "weight", 1.0);
+        final Uniform speciesUniform = new Uniform();
+        speciesUniform.initByName("tree", helper.speciesTree, "weight", 1.0);
+        final Uniform geneUniform = new Uniform();
+        geneUniform.initByName("tree", geneTree, "weight", 1.0);
+        final Operator[] treeOperators = {speciesExchange, speciesUniform, geneUniform};
+
+        int restores = 0;
+        for (int step = 0; step < nSteps; step++) {
+            helper.state.store(step);
+
+            final int move = Randomizer.nextInt(treeOperators.length + 2);
+            if (move == treeOperators.length) {
+                helper.neParameter.setValue(Randomizer.nextInt(helper.neParameter.getDimension()), 0.05 + Randomizer.nextDouble());
+            } else if (move == treeOperators.length + 1) {
+                helper.mParameter.setValue(Randomizer.nextInt(helper.mParameter.getDimension()), 0.1 + 3.0 * Randomizer.nextDouble());
+            } else if (treeOperators[move].proposal() == Double.NEGATIVE_INFINITY) {
+                helper.state.restore();
+                helper.state.setEverythingDirty(false);
+                continue;
+            }
+
+            // as in MCMC.propagateState
+            helper.state.storeCalculationNodes();
+            helper.state.checkCalculationNodesDirtiness();
+            final double logP = geneTreeLikelihood.calculateLogP();
+            assertEquals("step " + step, referenceLogP(helper, geneTree), logP, 1e-10);
+
+            if (logP != Double.NEGATIVE_INFINITY && Randomizer.nextBoolean()) {
+                helper.state.acceptCalculationNodes();
+            } else {
+                helper.state.restore();
+                helper.state.restoreCalculationNodes();
+                final double expectedLogP = referenceLogP(helper, geneTree);
+                assertEquals("restore at step " + step, expectedLogP, geneTreeLikelihood.getCurrentLogP(), 1e-10);
+                // resuming from the restored checkpoints must give the same result again
+                assertEquals("restore at step " + step, expectedLogP, geneTreeLikelihood.calculateLogP(), 1e-10);
+                restores++;
+            }
+            helper.state.setEverythingDirty(false);
+        }
+
+        assertTrue(restores > 0);
+    }
+
+    // the log probability of a copy of the gene tree, integrated from the tips
+    private double referenceLogP(GeneFlowTestHelper helper, Tree geneTree) {
+        final GeneTreeWithMigration reference = new GeneTreeWithMigration();
+        reference.initByName("tree", new Tree(geneTree.getRoot().copy()), "populationModel", helper.popModel,
+                "integrator", integrator, "tolerance", 1e-8, "checkpoint", false);
+        return reference.calculateLogP();
+    }
+}
@@ -0,0 +1,98 @@
+package sb2tests;
+
+import beast.base.evolution.tree.Node;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+import org.junit.Test;
+import starbeast2.AIMCoalescent;
+import starbeast2.ConstantWithGeneFlow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+// Gene trees evaluated in parallel must sum to the same log probability as a serial compound distribution,
+// through accepted and rejected changes to the population model and gene trees
+public class AIMCoalescentTest {
+    private final String[] newickGeneTrees = {
+        "((a_1:0.5,b_1:0.5):2.0,c_1:2.5)",
+        "(((a_1:0.3,a_2:0.3):1.2,b_2:1.5):2.0,d_1:3.5)",
+        "((c_1:0.8,c_2:0.8):2.6,(d_1:1.0,d_2:1.0):2.4)",
+        "((b_1:1.2,c_2:1.2):0.9,a_2:2.1)",
+    };
+    private final int geneThreads = 3;
+    private final int nSteps = 30;
+
+    @Test
+    public void testParallelEqualsSerial() {
+        final GeneFlowTestHelper helper = new GeneFlowTestHelper(new ConstantWithGeneFlow(), null, newickGeneTrees);
+
+        // every gene tree has one likelihood for each of the two distributions
+        final List<Distribution> parallelGeneTrees = new ArrayList<>();
+        final List<Distribution> serialGeneTrees = new ArrayList<>();
+        for (int i = 0; i < newickGeneTrees.length; i++) {
+            parallelGeneTrees.add(helper.geneTreeLikelihood(i, "dormand-prince"));
+            serialGeneTrees.add(helper.geneTreeLikelihood(i, "dormand-prince"));
+        }
+
+        final AIMCoalescent parallel = new AIMCoalescent();
+        parallel.initByName("distribution", parallelGeneTrees, "geneThreads", geneThreads);
+        final CompoundDistribution serial = new CompoundDistribution();
+        serial.initByName("distribution", serialGeneTrees);
+
+        final List<Distribution> both = new ArrayList<>();
+        both.add(parallel);
+        both.add(serial);
+        final CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", both);
+        helper.state.setPosterior(posterior);
+        helper.state.setEverythingDirty(false);
+
+        double parallelLogP = parallel.calculateLogP();
+        double serialLogP = serial.calculateLogP();
+        assertEquals(serialLogP, parallelLogP, 1e-10);
+
+        // the internal node of the second gene tree joining a_1 and a_2
+        Node aNode = null;
+        for (Node leaf: helper.geneTrees.get(1).getExternalNodes()) {
+            if (leaf.getID().equals("a_1")) aNode = leaf.getParent();
+        }
+
+        final Random random = new Random(3);
+        for (int step = 0; step < nSteps; step++) {
+            helper.state.store(step);
+
+            // as a proposal would, change one population size, one migration rate or one gene tree node height
+            switch (step % 3) {
+                case 0:
+                    helper.neParameter.setValue(random.nextInt(helper.neParameter.getDimension()), 0.05 + random.nextDouble());
+                    break;
+                case 1:
+                    helper.mParameter.setValue(random.nextInt(helper.mParameter.getDimension()), 0.1 + 20.0 * random.nextDouble());
+                    break;
+                default:
+                    aNode.setHeight(0.05 + 1.4 * random.nextDouble());
+            }
+
+            helper.state.storeCalculationNodes();
+            helper.state.checkCalculationNodesDirtiness();
+            final double proposedParallelLogP = parallel.calculateLogP();
+            final double proposedSerialLogP = serial.calculateLogP();
+            assertEquals("step " + step, proposedSerialLogP, proposedParallelLogP, 1e-10);
+
+            if (random.nextBoolean()) {
+                helper.state.acceptCalculationNodes();
+                parallelLogP = proposedParallelLogP;
+                serialLogP = proposedSerialLogP;
+            } else {
+                helper.state.restore();
+                helper.state.restoreCalculationNodes();
+                assertEquals("step " + step, parallelLogP, parallel.getCurrentLogP(), 0.0);
+                assertEquals("step " + step, serialLogP, serial.getCurrentLogP(), 0.0);
+            }
+            helper.state.setEverythingDirty(false);
+        }
+    }
+}
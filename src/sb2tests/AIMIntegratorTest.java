@@ -0,0 +1,97 @@
+package sb2tests;
+
+import org.junit.Test;
+import starbeast2.AIMIntegrator;
+import starbeast2.DormandPrinceAIM;
+import starbeast2.Euler2ndOrderAIM;
+import starbeast2.HybridAIM;
+import starbeast2.MatrixExponential;
+
+import static org.junit.Assert.assertEquals;
+
+// The adaptive solver must agree with a much tighter run of itself and with the fixed Euler scheme
+public class AIMIntegratorTest {
+    private final int states = 3;
+    private final int lineages = 4;
+    private final int[] multiplicator = {1, 1, 2, 1};
+    private final double[] coalescentRates = {2.5, 5.0, 1.0};
+    private final double[][] migrationRates = {{0.0, 0.3, 0.1}, {0.2, 0.0, 0.4}, {0.5, 0.1, 0.0}};
+    private final double[] initialProbs = {
+            1.0, 0.0, 0.0,
+            0.0, 1.0, 0.0,
+            0.2, 0.3, 0.5,
+            0.0, 0.0, 1.0,
+            0.0};
+    private final double duration = 0.8;
+
+    @Test
+    public void testAgainstReference() {
+        final double[] reference = integrate(new DormandPrinceAIM(states, initialProbs.length, 1e-12, Double.POSITIVE_INFINITY));
+        final double[] adaptive = integrate(new DormandPrinceAIM(states, initialProbs.length, 1e-6, Double.POSITIVE_INFINITY));
+        final double[] euler = integrate(new Euler2ndOrderAIM(states, initialProbs.length, 0.001, 0.2));
+
+        for (int i = 0; i < initialProbs.length; i++)
+            assertEquals(reference[i], adaptive[i], 1e-5);
+
+        // the Euler scheme only integrates the log probability to first order
+        for (int i = 0; i < initialProbs.length - 1; i++)
+            assertEquals(reference[i], euler[i], 1e-2);
+
+        for (int i = 0; i < lineages; i++) {
+            double linSum = 0.0;
+            for (int j = 0; j < states; j++)
+                linSum += adaptive[i * states + j];
+            assertEquals(1.0, linSum, 1e-12);
+        }
+    }
+
+    @Test
+    public void testTwoStateExponential() {
+        final double a = 2.0;
+        final double b = 3.0;
+        final double t = 0.7;
+        final double[] q = {-a, a, b, -b};
+        final double[] result = new double[4];
+        new MatrixExponential(2).exp(q, 2, t, result);
+
+        final double decay = Math.exp(-(a + b) * t);
+        assertEquals((b + a * decay) / (a + b), result[0], 1e-14);
+        assertEquals((a - a * decay) / (a + b), result[1], 1e-14);
+        assertEquals((b - b * decay) / (a + b), result[2], 1e-14);
+        assertEquals((a + b * decay) / (a + b), result[3], 1e-14);
+    }
+
+    // only the first lineage is in a connected state, so the hybrid solver is exact
+    @Test
+    public void testHybridLinearInterval() {
+        final int[] connectedMultiplicator = {1, 2, 1};
+        final double[][] connectedRates = {{0.0, 0.3, 0.0}, {0.2, 0.0, 0.0}, {0.0, 0.0, 0.0}};
+        final int[][] indicators = {{0, 1}, {1, 0}};
+        final boolean[] isConnected = {true, true, false};
+        final double[] p0 = {0.6, 0.4, 0.0, 0.0, 0.0, 1.0, 0.0, 0.0, 1.0, 0.0};
+
+        final double[] reference = p0.clone();
+        final DormandPrinceAIM dormandPrince = new DormandPrinceAIM(states, p0.length, 1e-12, Double.POSITIVE_INFINITY);
+        dormandPrince.reset(connectedMultiplicator, connectedRates, indicators, isConnected, coalescentRates, 3, states);
+        dormandPrince.calculateConnectedValues(duration, reference, reference.length);
+
+        final double[] generator = new double[states * states];
+        HybridAIM.migrationGenerator(connectedRates, states, generator);
+        final HybridAIM hybrid = new HybridAIM(states, 64, new DormandPrinceAIM(states, p0.length, 1e-3, Double.POSITIVE_INFINITY));
+        hybrid.setMigrationGenerator(generator);
+        final double[] exact = p0.clone();
+        hybrid.reset(connectedMultiplicator, connectedRates, indicators, isConnected, coalescentRates, 3, states);
+        hybrid.calculateConnectedValues(duration, exact, exact.length);
+
+        assertEquals(0, hybrid.getEvaluations());
+        for (int i = 0; i < p0.length; i++)
+            assertEquals(reference[i], exact[i], 1e-10);
+    }
+
+    private double[] integrate(AIMIntegrator integrator) {
+        final double[] p = initialProbs.clone();
+        integrator.reset(multiplicator, migrationRates, null, null, coalescentRates, lineages, states);
+        integrator.calculateValues(duration, p, p.length);
+        return p;
+    }
+}
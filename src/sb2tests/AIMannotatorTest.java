@@ -0,0 +1,139 @@
+package sb2tests;
+
+import org.junit.Test;
+import starbeast2.aimannotator.AIMannotator;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// The summary trees and gene flow logs must be byte for byte the same for any number of threads
+public class AIMannotatorTest {
+    private final int speciesCount = 5;
+    private final int sampleCount = 300;
+
+    @Test
+    public void testThreads() throws Exception {
+        final File directory = Files.createTempDirectory("sb2annotator").toFile();
+        try {
+            final File logFile = new File(directory, "species.trees");
+            writeLog(logFile);
+
+            for (boolean stream: new boolean[] {false, true}) {
+                final File serial = annotate(logFile, new File(directory, "serial" + stream), 1, stream);
+                final File parallel = annotate(logFile, new File(directory, "parallel" + stream), 4, stream);
+
+                final String[] serialFiles = serial.list();
+                final String[] parallelFiles = parallel.list();
+                Arrays.sort(serialFiles);
+                Arrays.sort(parallelFiles);
+                assertArrayEquals(serialFiles, parallelFiles);
+                // the summary tree, the topology of every sample and at least one gene flow log
+                assertTrue(serialFiles.length >= 3);
+
+                for (String fileName: serialFiles) {
+                    final byte[] expected = Files.readAllBytes(new File(serial, fileName).toPath());
+                    final byte[] actual = Files.readAllBytes(new File(parallel, fileName).toPath());
+                    assertEquals(fileName + ", streaming " + stream, new String(expected), new String(actual));
+                }
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    // runs the annotator as from the command line, writing into an empty output directory
+    private File annotate(File logFile, File outputDirectory, int threads, boolean stream) {
+        outputDirectory.mkdir();
+        final File outFile = new File(outputDirectory, "summary.tree");
+        AIMannotator.main(new String[] {"-threads", String.valueOf(threads), "-stream", String.valueOf(stream),
+                logFile.getPath(), outFile.getPath()});
+        return outputDirectory;
+    }
+
+    // random species trees with the metadata written by SpeciesTreeLoggerWithGeneFlow, leaves are numbered from 1
+    private void writeLog(File logFile) throws Exception {
+        final Random random = new Random(17);
+        try (PrintStream out = new PrintStream(logFile)) {
+            out.println("#NEXUS");
+            out.println();
+            out.println("Begin trees;");
+            out.println("\tTranslate");
+            for (int i = 0; i < speciesCount; i++)
+                out.println("\t\t" + (i + 1) + " s" + i + (i < speciesCount - 1 ? "," : ""));
+            out.println(";");
+
+            for (int s = 0; s < sampleCount; s++) {
+                final List<String> lineages = new ArrayList<>();
+                final List<Double> lineageHeights = new ArrayList<>();
+                final List<Integer> lineageNrs = new ArrayList<>();
+                for (int i = 0; i < speciesCount; i++) {
+                    lineages.add(String.valueOf(i + 1));
+                    lineageHeights.add(0.0);
+                    lineageNrs.add(i);
+                }
+
+                double height = 0.0;
+                for (int i = speciesCount; i < 2 * speciesCount - 1; i++) {
+                    height += random.nextDouble() + 0.01;
+                    final String left = child(lineages, lineageHeights, lineageNrs, height, random);
+                    final String right = child(lineages, lineageHeights, lineageNrs, height, random);
+                    lineages.add("(" + left + "," + right + ")");
+                    lineageHeights.add(height);
+                    lineageNrs.add(i);
+                }
+                out.println("tree STATE_" + s + " = " + lineages.get(0) + metaData(lineageNrs.get(0), true, random) + ":0.0;");
+            }
+            out.println("End;");
+        }
+    }
+
+    // removes a random lineage and returns it with its metadata and the length of its branch to the parent height
+    private String child(List<String> lineages, List<Double> lineageHeights, List<Integer> lineageNrs,
+            double parentHeight, Random random) {
+        final int k = random.nextInt(lineages.size());
+        final double branchLength = parentHeight - lineageHeights.remove(k);
+        return lineages.remove(k) + metaData(lineageNrs.remove(k), false, random) + ":" + branchLength;
+    }
+
+    private String metaData(int nodeNr, boolean isRoot, Random random) {
+        final StringBuilder metaData = new StringBuilder("[&species=").append(nodeNr).append(",Ne=").append(random.nextDouble());
+        if (!isRoot) {
+            final StringBuilder to = new StringBuilder();
+            final StringBuilder rates = new StringBuilder();
+            for (int other = 0; other < 2 * speciesCount - 2; other++) {
+                if (other == nodeNr)
+                    continue;
+                if (to.length() > 0) {
+                    to.append(',');
+                    rates.append(',');
+                }
+                to.append(other);
+                rates.append(random.nextDouble() < 0.3 ? 0.0 : random.nextDouble());
+            }
+            metaData.append(",to={").append(to).append("},rates={").append(rates).append('}');
+        }
+        return metaData.append(']').toString();
+    }
+
+    private void deleteDirectory(File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                if (file.isDirectory())
+                    deleteDirectory(file);
+                else
+                    file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
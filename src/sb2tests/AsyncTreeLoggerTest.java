@@ -0,0 +1,71 @@
+package sb2tests;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.inference.Logger;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import org.junit.Test;
+import starbeast2.AsyncTreeLogger;
+import starbeast2.ConstantPopulations;
+import starbeast2.SpeciesTreeLogger;
+import starbeast2.SpeciesTreeParser;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+// The asynchronous tree logger must write exactly the same file as the plain tree logger
+public class AsyncTreeLoggerTest {
+    private final String newickSpeciesTree = "(((a:1.0,b:1.0):1.0,c:2.0):1.0,d:3.0)";
+    private final String[] speciesNames = {"a", "b", "c", "d"};
+
+    @Test
+    public void testSameOutput() throws Exception {
+        final List<Taxon> speciesList = new ArrayList<>();
+        for (String speciesName: speciesNames) {
+            final List<Taxon> tipList = new ArrayList<>();
+            tipList.add(new Taxon(speciesName + "_tip"));
+            speciesList.add(new TaxonSet(speciesName, tipList));
+        }
+        final SpeciesTreeParser speciesTree = new SpeciesTreeParser();
+        speciesTree.initByName("newick", newickSpeciesTree, "IsLabelledNewick", true, "taxonset", new TaxonSet(speciesList));
+
+        final RealParameter popSizes = new RealParameter();
+        popSizes.initByName("value", "0.1 0.2 0.3 0.4 0.5 0.6 0.7");
+
+        // Create dummy state to allow statenode editing
+        State state = new State();
+        state.initByName("stateNode", popSizes);
+        state.initialise();
+
+        final ConstantPopulations populationModel = new ConstantPopulations();
+        populationModel.initByName("populationSizes", popSizes, "speciesTree", speciesTree);
+
+        Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+        final String plainLog = writeLog(new Logger(), speciesTree, populationModel, popSizes);
+        final String asyncLog = writeLog(new AsyncTreeLogger(), speciesTree, populationModel, popSizes);
+        assertEquals(plainLog, asyncLog);
+    }
+
+    private String writeLog(Logger logger, SpeciesTreeParser speciesTree, ConstantPopulations populationModel, RealParameter popSizes) throws Exception {
+        final File logFile = File.createTempFile("sb2async", ".trees");
+        logFile.deleteOnExit();
+
+        final SpeciesTreeLogger treeLogger = new SpeciesTreeLogger();
+        treeLogger.initByName("speciesTree", speciesTree, "populationmodel", populationModel, "dp", 3);
+        logger.initByName("fileName", logFile.getPath(), "logEvery", 1, "mode", "tree", "log", treeLogger);
+
+        logger.init();
+        for (int sample = 0; sample < 100; sample++) {
+            popSizes.setValue(sample % popSizes.getDimension(), 0.001 * sample + 0.0005);
+            logger.log(sample);
+        }
+        logger.close();
+
+        return new String(Files.readAllBytes(logFile.toPath()), "ASCII");
+    }
+}
@@ -0,0 +1,132 @@
+package sb2tests;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Logger;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import org.junit.Test;
+import starbeast2.SpeciesTreeParser;
+import starbeast2.utils.BinaryTreeLogger;
+import starbeast2.utils.BinaryTreeTrace;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+// Trees read back from a binary trace must have the logged topology, heights and metadata
+public class BinaryTreeTraceTest {
+    private final String newickSpeciesTree = "(((a:1.0,b:1.0):1.0,c:2.0):1.0,d:3.0)";
+    private final String[] speciesNames = {"a", "b", "c", "d"};
+
+    private SpeciesTreeParser speciesTree;
+    private RealParameter popSizes;
+
+    private void initSpeciesTree() {
+        final List<Taxon> speciesList = new ArrayList<>();
+        for (String speciesName: speciesNames) {
+            final List<Taxon> tipList = new ArrayList<>();
+            tipList.add(new Taxon(speciesName + "_tip"));
+            speciesList.add(new TaxonSet(speciesName, tipList));
+        }
+        speciesTree = new SpeciesTreeParser();
+        speciesTree.initByName("newick", newickSpeciesTree, "IsLabelledNewick", true, "taxonset", new TaxonSet(speciesList));
+
+        // Create dummy state to allow statenode editing
+        State state = new State();
+        state.initialise();
+
+        popSizes = new RealParameter();
+        popSizes.initByName("value", "0.1 0.2 0.3 0.4 0.5 0.6 0.7");
+        popSizes.setID("popSizes");
+    }
+
+    private BinaryTreeLogger newLogger(File traceFile) {
+        final BinaryTreeLogger logger = new BinaryTreeLogger();
+        logger.initByName("fileName", traceFile.getPath(), "tree", speciesTree, "metadata", popSizes, "logEvery", 10);
+        return logger;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        initSpeciesTree();
+
+        final File traceFile = File.createTempFile("sb2trace", ".bin");
+        traceFile.delete();
+        traceFile.deleteOnExit();
+
+        final BinaryTreeLogger logger = newLogger(traceFile);
+        logger.init();
+        logger.log(0);
+        logger.log(5);
+        logger.log(10);
+        logger.close();
+
+        try (BinaryTreeTrace trace = new BinaryTreeTrace(traceFile)) {
+            int samples = 0;
+            while (trace.next()) {
+                assertEquals(10 * samples, trace.getSample());
+                final Tree tree = trace.getTree();
+                assertEquals(speciesTree.getRoot().getHeight(), tree.getRoot().getHeight(), 0.0);
+                for (int i = 0; i < speciesTree.getLeafNodeCount(); i++) {
+                    final Node leaf = speciesTree.getNode(i);
+                    final Node readLeaf = tree.getNode(i);
+                    assertEquals(leaf.getID(), readLeaf.getID());
+                    assertEquals(leaf.getParent().getHeight(), readLeaf.getParent().getHeight(), 0.0);
+                    assertEquals(leaf.getParent().getLeafNodeCount(), readLeaf.getParent().getLeafNodeCount());
+                    assertEquals(popSizes.getValue(i), (Double) readLeaf.getMetaData("popSizes"), 0.0);
+                    assertEquals(popSizes.getValue(leaf.getParent().getNr()), (Double) readLeaf.getParent().getMetaData("popSizes"), 0.0);
+                }
+                samples++;
+            }
+            assertEquals(2, samples);
+            assertEquals(1, trace.getTopologyCount());
+        }
+    }
+
+    // a resumed chain starts again from sample 0, which is the last sample already in the trace
+    @Test
+    public void testResume() throws Exception {
+        initSpeciesTree();
+
+        final File traceFile = File.createTempFile("sb2trace", ".bin");
+        traceFile.delete();
+        traceFile.deleteOnExit();
+
+        final Logger.LogFileMode fileMode = Logger.FILE_MODE;
+        try {
+            Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+            final BinaryTreeLogger firstLogger = newLogger(traceFile);
+            firstLogger.init();
+            firstLogger.log(0);
+            firstLogger.log(10);
+            firstLogger.close();
+
+            Logger.FILE_MODE = Logger.LogFileMode.resume;
+            final BinaryTreeLogger resumedLogger = newLogger(traceFile);
+            resumedLogger.init();
+            resumedLogger.log(0);
+            resumedLogger.log(10);
+            resumedLogger.log(20);
+            resumedLogger.close();
+        } finally {
+            Logger.FILE_MODE = fileMode;
+        }
+
+        try (BinaryTreeTrace trace = new BinaryTreeTrace(traceFile)) {
+            final long[] expectedSamples = {0, 10, 20, 30};
+            int samples = 0;
+            while (trace.next()) {
+                assertEquals(expectedSamples[samples], trace.getSample());
+                assertEquals(speciesTree.getRoot().getHeight(), trace.getTree().getRoot().getHeight(), 0.0);
+                samples++;
+            }
+            assertEquals(expectedSamples.length, samples);
+            assertEquals(1, trace.getTopologyCount());
+        }
+    }
+}
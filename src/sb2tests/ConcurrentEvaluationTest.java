@@ -0,0 +1,226 @@
+package sb2tests;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import org.junit.Test;
+import starbeast2.ConstantPopulations;
+import starbeast2.GeneTree;
+import starbeast2.SpeciesTreeParser;
+import starbeast2.UncorrelatedRates;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Many threads read the same gene tree embedding and species tree rates while they are being rebuilt after
+// changes to the species tree, gene tree and rates, and must all see exactly what a serial recomputation sees
+public class ConcurrentEvaluationTest {
+    private final String newickSpeciesTree = "((a:1.5,b:1.5):0.5,c:2.0)";
+    private final String newickGeneTree = "((((a1:0.3,a2:0.3):1.6,(b1:1.8,b2:1.8):0.1):0.5,c1:2.4):0.6,c2:3.0)";
+
+    private final int nSpecies = 3;
+    private final int individualsPerSpecies = 2;
+    private final double ploidy = 2.0;
+    private final double popSize = 0.5;
+
+    private final int nThreads = 16;
+    private final int nRounds = 200;
+    private final int readsPerRound = 50;
+
+    private SpeciesTreeParser speciesTree;
+    private IntegerParameter branchRatesParameter;
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        speciesTree = new SpeciesTreeParser();
+        speciesTree.initByName("newick", newickSpeciesTree, "IsLabelledNewick", true, "taxonset", generateSuperset());
+
+        final TreeParser geneTree = new TreeParser();
+        geneTree.initByName("newick", newickGeneTree, "IsLabelledNewick", true);
+
+        final RealParameter meanRateParameter = new RealParameter();
+        final RealParameter stdevParameter = new RealParameter();
+        final RealParameter popsizeParameter = new RealParameter();
+        branchRatesParameter = new IntegerParameter();
+        meanRateParameter.initByName("value", "1.5");
+        stdevParameter.initByName("value", "1.0");
+        popsizeParameter.initByName("value", String.valueOf(popSize));
+        branchRatesParameter.initByName("value", "1");
+
+        // Create dummy state to allow statenode editing
+        State state = new State();
+        state.initByName("stateNode", speciesTree);
+        state.initByName("stateNode", geneTree);
+        state.initByName("stateNode", meanRateParameter);
+        state.initByName("stateNode", branchRatesParameter);
+        state.initByName("stateNode", popsizeParameter);
+        state.initialise();
+
+        final ConstantPopulations populationModel = new ConstantPopulations();
+        populationModel.initByName("populationSizes", popsizeParameter, "speciesTree", speciesTree);
+        populationModel.initPopSizes(speciesTree.getNodeCount());
+        populationModel.initPopSizes(popSize);
+
+        // the reference rebuilds everything, serially, every round
+        final GeneTree geneTreeWrapper = new GeneTree();
+        geneTreeWrapper.initByName("tree", geneTree, "ploidy", ploidy, "speciesTree", speciesTree, "populationModel", populationModel);
+        final GeneTree referenceGeneTree = new GeneTree();
+        referenceGeneTree.initByName("tree", geneTree, "ploidy", ploidy, "speciesTree", speciesTree, "populationModel", populationModel, "incrementalUpdate", false);
+
+        final UncorrelatedRates speciesTreeClock = new UncorrelatedRates();
+        speciesTreeClock.initByName("tree", speciesTree, "rates", branchRatesParameter, "stdev", stdevParameter, "estimateRoot", true, "clock.rate", meanRateParameter);
+        final UncorrelatedRates referenceClock = new UncorrelatedRates();
+        referenceClock.initByName("tree", speciesTree, "rates", branchRatesParameter, "stdev", stdevParameter, "estimateRoot", true, "clock.rate", meanRateParameter, "noCache", true);
+
+        final int speciesNodeCount = speciesTree.getNodeCount();
+        final Node[] speciesNodes = speciesTree.getNodesAsArray();
+        final Random random = new Random(7);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        try {
+            for (int round = 0; round < nRounds; round++) {
+                // every few rounds the proposal is rejected, and the stored rates must come back
+                final boolean reject = round % 4 == 3;
+                final double[] previousRates = speciesTreeClock.getRatesArray().clone();
+                final int previousRateIndex = round % speciesNodeCount;
+                final int previousRate = branchRatesParameter.getValue(previousRateIndex);
+                if (reject) speciesTreeClock.store();
+
+                // change the inputs on this thread only, as the MCMC thread would
+                branchRatesParameter.setValue(previousRateIndex, round % branchRatesParameter.getUpper());
+                changeTrees(round, geneTree, random);
+                speciesTreeClock.requiresRecalculation();
+                referenceClock.requiresRecalculation();
+                geneTreeWrapper.requiresRecalculation();
+                referenceGeneTree.requiresRecalculation();
+
+                final double[] expectedRates = referenceClock.getRatesArray().clone();
+                final double expectedLogP = referenceGeneTree.calculateLogP();
+                final double[][] expectedTimes = new double[speciesNodeCount][];
+                for (int i = 0; i < speciesNodeCount; i++)
+                    expectedTimes[i] = referenceGeneTree.getCoalescentTimes(i);
+                final double[] expectedOccupancy = referenceGeneTree.getSpeciesOccupancy();
+                assertTrue("round " + round, expectedLogP > Double.NEGATIVE_INFINITY);
+
+                final CyclicBarrier startTogether = new CyclicBarrier(nThreads);
+                final List<Callable<Boolean>> readers = new ArrayList<>();
+                for (int t = 0; t < nThreads; t++) {
+                    readers.add(() -> {
+                        startTogether.await();
+                        boolean consistent = true;
+                        for (int r = 0; r < readsPerRound; r++) {
+                            consistent &= Arrays.equals(expectedRates, speciesTreeClock.getRatesArray());
+                            for (int i = 0; i < speciesNodeCount; i++) {
+                                consistent &= expectedRates[i] == speciesTreeClock.getRateForBranch(speciesNodes[i]);
+                                consistent &= Arrays.equals(expectedTimes[i], geneTreeWrapper.getCoalescentTimes(i));
+                            }
+                            consistent &= Arrays.equals(expectedOccupancy, geneTreeWrapper.getSpeciesOccupancy());
+                            consistent &= expectedLogP == branchLogPSum(geneTreeWrapper, populationModel, speciesNodes);
+                        }
+                        return consistent;
+                    });
+                }
+
+                for (Future<Boolean> result: pool.invokeAll(readers))
+                    assertTrue("round " + round, result.get());
+                assertEquals("round " + round, expectedLogP, geneTreeWrapper.calculateLogP(), 0.0);
+
+                if (reject) {
+                    speciesTreeClock.restore();
+                    assertArrayEquals("round " + round, previousRates, speciesTreeClock.getRatesArray(), 0.0);
+                    branchRatesParameter.setValue(previousRateIndex, previousRate);
+                }
+
+                // the next round only sees its own changes as dirty, so the gene tree can be embedded incrementally
+                speciesTree.setEverythingDirty(false);
+                geneTree.setEverythingDirty(false);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // alternately move the ab species node, move gene tree nodes within or between species branches,
+    // and swap the attachment points of c1 and c2, which keeps the gene tree compatible with the species tree
+    private void changeTrees(int round, TreeParser geneTree, Random random) {
+        final Node speciesA = findLeaf(speciesTree, "a");
+        final Node a1 = findLeaf(geneTree, "a1");
+        final Node b1 = findLeaf(geneTree, "b1");
+
+        switch (round % 3) {
+            case 0:
+                speciesA.getParent().setHeight(1.0 + 0.8 * random.nextDouble());
+                break;
+            case 1:
+                a1.getParent().setHeight(0.05 + 0.3 * random.nextDouble());
+                b1.getParent().setHeight(0.1 + 1.7 * random.nextDouble());
+                break;
+            default:
+                final Node c1 = findLeaf(geneTree, "c1");
+                final Node c2 = findLeaf(geneTree, "c2");
+                final Node c1Parent = c1.getParent();
+                final Node c2Parent = c2.getParent();
+                c1Parent.removeChild(c1);
+                c2Parent.removeChild(c2);
+                c1Parent.addChild(c2);
+                c2Parent.addChild(c1);
+                c1.makeDirty(Tree.IS_FILTHY);
+                c2.makeDirty(Tree.IS_FILTHY);
+                c1Parent.makeDirty(Tree.IS_FILTHY);
+                c2Parent.makeDirty(Tree.IS_FILTHY);
+        }
+    }
+
+    private Node findLeaf(Tree tree, String id) {
+        for (Node leaf: tree.getExternalNodes()) {
+            if (leaf.getID().equals(id)) return leaf;
+        }
+        throw new IllegalArgumentException(id);
+    }
+
+    // the log probability of the gene tree, computed from its embedding as calculateLogP does
+    private double branchLogPSum(GeneTree geneTreeWrapper, ConstantPopulations populationModel, Node[] speciesNodes) {
+        final double[] coalescentTimes = geneTreeWrapper.getCoalescentTimesBlock();
+        final int[] coalescentCounts = geneTreeWrapper.getCoalescentCounts();
+        final int[] coalescentLineageCounts = geneTreeWrapper.getCoalescentLineageCounts();
+
+        double logP = 0.0;
+        for (int i = 0; i < speciesNodes.length; i++) {
+            logP += populationModel.branchLogP(i, speciesNodes[i], ploidy, coalescentTimes, geneTreeWrapper.getCoalescentTimesOffset(i),
+                    coalescentLineageCounts[i], coalescentCounts[i]);
+        }
+        return logP;
+    }
+
+    private TaxonSet generateSuperset() {
+        String speciesCodes = "abc";
+        List<Taxon> superSetList = new ArrayList<>();
+        for (int i = 0; i < nSpecies; i++) {
+            final String speciesName = speciesCodes.substring(i, i + 1);
+            List<Taxon> taxonList = new ArrayList<>();
+            for (int j = 0; j < individualsPerSpecies; j++) {
+                final String taxonName = String.format("%s%d", speciesName, j + 1);
+                taxonList.add(new Taxon(taxonName));
+            }
+            superSetList.add(new TaxonSet(speciesName, taxonList));
+        }
+
+        return new TaxonSet(superSetList);
+    }
+}
@@ -66,6 +66,29 @@ public class ConstantIOTest {
         assertEquals(expectedLogP, calculatedLogP, allowedError);
     }
 
+    // branches evaluated on several threads must sum to exactly the serial log probability
+    @Test
+    public void testParallelBranches() throws Exception {
+        TaxonSet speciesSuperset = generateSuperset();
+        initialize(speciesSuperset);
+        final double serialLogP = msc.calculateLogP();
+
+        final List<GeneTree> parallelGeneTreeWrappers = new ArrayList<>();
+        for (TreeParser geneTree: geneTrees) {
+            GeneTree geneTreeWrapper = new GeneTree();
+            geneTreeWrapper.initByName("tree", geneTree, "ploidy", ploidy, "speciesTree", speciesTree);
+            parallelGeneTreeWrappers.add(geneTreeWrapper);
+        }
+
+        final MultispeciesCoalescent parallelMsc = new MultispeciesCoalescent();
+        parallelMsc.initByName("populationShape", alphaParameter, "populationMean", meanParameter, "distribution", parallelGeneTreeWrappers, "branchThreads", 3);
+        assertEquals(serialLogP, parallelMsc.calculateLogP(), 0.0);
+
+        // initialising again replaces the thread pool
+        parallelMsc.initAndValidate();
+        assertEquals(serialLogP, parallelMsc.calculateLogP(), 0.0);
+    }
+
     private TaxonSet generateSuperset() {
         List<Taxon> superSetList = new ArrayList<>();
         for (int i = 0; i < nSpecies; i++) {
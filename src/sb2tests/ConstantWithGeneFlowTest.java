@@ -0,0 +1,203 @@
+package sb2tests;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import org.junit.Test;
+import starbeast2.ConstantWithGeneFlow;
+import starbeast2.GeneTreeWithMigration;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+// Pins the migration routes, states, connections, population sizes and daughter lineages of every interval
+// of a fixed species tree, and checks that all of them come back after a rejected move
+public class ConstantWithGeneFlowTest {
+    private final String newickGeneTree = "((a_1:0.5,b_1:0.5):3.0,(c_1:2.2,d_1:2.2):1.3)";
+
+    // the daughter lineages are only visible to subclasses
+    static class PinnedConstantWithGeneFlow extends ConstantWithGeneFlow {
+        int daughter1(int currTreeInterval) {
+            return getDaughter1(currTreeInterval);
+        }
+
+        int daughter2(int currTreeInterval) {
+            return getDaughter2(currTreeInterval);
+        }
+    }
+
+    // species tree node numbers
+    private int a, b, c, d, ab, abc, root;
+
+    private void findNodes(GeneFlowTestHelper helper) {
+        final Tree speciesTree = helper.speciesTree;
+        a = nodeNr(speciesTree, "a");
+        b = nodeNr(speciesTree, "b");
+        c = nodeNr(speciesTree, "c");
+        d = nodeNr(speciesTree, "d");
+        ab = speciesTree.getNode(a).getParent().getNr();
+        abc = speciesTree.getNode(c).getParent().getNr();
+        root = speciesTree.getRoot().getNr();
+    }
+
+    private int nodeNr(Tree tree, String id) {
+        for (Node leaf: tree.getExternalNodes()) {
+            if (leaf.getID().equals(id)) return leaf.getNr();
+        }
+        throw new IllegalArgumentException(id);
+    }
+
+    // routes between leaves in order of node number, then for each speciation the routes into and out of the parent
+    private int[][] expectedRoutes() {
+        final int[][] routes = {
+            {a, b}, {a, c}, {a, d}, {b, a}, {b, c}, {b, d}, {c, a}, {c, b}, {c, d}, {d, a}, {d, b}, {d, c},
+            {c, ab}, {d, ab}, {ab, c}, {ab, d},
+            {d, abc}, {abc, d},
+        };
+        assertEquals(GeneFlowTestHelper.ROUTE_COUNT, routes.length);
+        return routes;
+    }
+
+    private int expectedRoute(int fromNode, int toNode) {
+        final int[][] routes = expectedRoutes();
+        for (int k = 0; k < routes.length; k++) {
+            if (routes[k][0] == fromNode && routes[k][1] == toNode) return k;
+        }
+        return -1;
+    }
+
+    private void checkModel(GeneFlowTestHelper helper, boolean[] indicators, boolean[][] expectedConnected) {
+        final PinnedConstantWithGeneFlow popModel = (PinnedConstantWithGeneFlow) helper.popModel;
+        final int nSpecies = popModel.getNumberOfSpecies();
+        findNodes(helper);
+        assertArrayEquals(new int[] {0, 1, 2, 3}, new int[] {a, b, c, d});
+
+        final int[][] expectedStates = {{a, b, c, d}, {c, d, ab}, {d, abc}, {root}};
+        for (int i = 0; i < expectedStates.length; i++) {
+            final int[] states = expectedStates[i];
+            final int interval = nSpecies + i;
+            assertEquals(Arrays.toString(states), popModel.getStateToNodeMap().get(i).toString());
+
+            final double[] popSizes = popModel.getPopulationSizes(interval);
+            final boolean[] connected = popModel.getConnectedStates(interval);
+            final double[][] migrationRates = popModel.getMigrationRates(interval);
+            assertEquals(states.length, popSizes.length);
+            for (int x = 0; x < states.length; x++) {
+                assertEquals(helper.neParameter.getValue(states[x]), popSizes[x], 0.0);
+                assertEquals(expectedConnected[i][x], connected[x]);
+                assertEquals(expectedConnected[i][x], popModel.getIsConnected(interval, x));
+
+                // the relative rate of every route is one more than its index
+                for (int y = 0; y < states.length; y++) {
+                    final int k = expectedRoute(states[x], states[y]);
+                    final boolean indicated = k >= 0 && (indicators == null || indicators[k]);
+                    assertEquals(indicated ? k + 1.0 : 0.0, migrationRates[x][y], 0.0);
+                    assertEquals(indicated ? k + 1.0 : 0.0, popModel.getMigrationRates(interval, x, y), 0.0);
+                }
+            }
+        }
+
+        final int speciesNodeCount = helper.speciesTree.getNodeCount();
+        for (int from = 0; from < speciesNodeCount; from++) {
+            for (int to = 0; to < speciesNodeCount; to++)
+                assertEquals(from + " to " + to, expectedRoute(from, to), helper.routeIndex(from, to));
+        }
+
+        // speciation intervals follow the sampling intervals, the left daughter is the first child in the newick string
+        assertEquals(0, popModel.daughter1(nSpecies));
+        assertEquals(1, popModel.daughter2(nSpecies));
+        assertEquals(2, popModel.daughter1(nSpecies + 1));
+        assertEquals(0, popModel.daughter2(nSpecies + 1));
+        assertEquals(1, popModel.daughter1(nSpecies + 2));
+        assertEquals(0, popModel.daughter2(nSpecies + 2));
+    }
+
+    @Test
+    public void testWithoutIndicators() {
+        final GeneFlowTestHelper helper = new GeneFlowTestHelper(new PinnedConstantWithGeneFlow(), null, newickGeneTree);
+        final boolean[][] expectedConnected = {{true, true, true, true}, {true, true, true}, {true, true}, {true}};
+        checkModel(helper, null, expectedConnected);
+    }
+
+    @Test
+    public void testWithIndicators() {
+        final boolean[] indicators = new boolean[GeneFlowTestHelper.ROUTE_COUNT];
+        indicators[8] = true; // c to d
+        final GeneFlowTestHelper helper = new GeneFlowTestHelper(new PinnedConstantWithGeneFlow(), indicators, newickGeneTree);
+
+        // a merged lineage keeps the connections of its daughters, until they merge with each other
+        final boolean[][] expectedConnected = {{false, false, true, true}, {true, true, false}, {true, true}, {false}};
+        checkModel(helper, indicators, expectedConnected);
+    }
+
+    @Test
+    public void testRestore() {
+        final boolean[] indicators = new boolean[GeneFlowTestHelper.ROUTE_COUNT];
+        indicators[8] = true; // c to d
+        indicators[16] = true; // d to abc
+        final GeneFlowTestHelper helper = new GeneFlowTestHelper(new PinnedConstantWithGeneFlow(), indicators, newickGeneTree);
+        final GeneTreeWithMigration geneTreeLikelihood = helper.geneTreeLikelihood(0, "dormand-prince");
+        helper.state.setPosterior(geneTreeLikelihood);
+        helper.state.setEverythingDirty(false);
+        findNodes(helper);
+
+        final String before = describe(helper);
+
+        // propose to swap c and d, and to change a population size and a migration rate
+        helper.state.store(0);
+        final Node cNode = helper.speciesTree.getNode(c);
+        final Node dNode = helper.speciesTree.getNode(d);
+        final Node abcNode = cNode.getParent();
+        final Node rootNode = dNode.getParent();
+        abcNode.removeChild(cNode);
+        rootNode.removeChild(dNode);
+        abcNode.addChild(dNode);
+        rootNode.addChild(cNode);
+        cNode.makeDirty(Tree.IS_FILTHY);
+        dNode.makeDirty(Tree.IS_FILTHY);
+        abcNode.makeDirty(Tree.IS_FILTHY);
+        rootNode.makeDirty(Tree.IS_FILTHY);
+        helper.neParameter.setValue(ab, 2.5);
+        helper.mParameter.setValue(12, 0.5);
+
+        helper.state.storeCalculationNodes();
+        helper.state.checkCalculationNodesDirtiness();
+        geneTreeLikelihood.calculateLogP();
+        assertNotEquals(before, describe(helper));
+
+        // reject
+        helper.state.restore();
+        helper.state.restoreCalculationNodes();
+        helper.state.setEverythingDirty(false);
+        assertEquals(before, describe(helper));
+    }
+
+    // everything the gene trees read from the population model
+    private String describe(GeneFlowTestHelper helper) {
+        final PinnedConstantWithGeneFlow popModel = (PinnedConstantWithGeneFlow) helper.popModel;
+        final int nSpecies = popModel.getNumberOfSpecies();
+        final StringBuilder description = new StringBuilder();
+
+        description.append(popModel.getStateToNodeMap()).append('\n');
+        for (int i = 0; i < nSpecies; i++) {
+            final int interval = nSpecies + i;
+            description.append(Arrays.toString(popModel.getPopulationSizes(interval))).append('\n');
+            description.append(Arrays.toString(popModel.getConnectedStates(interval))).append('\n');
+            description.append(Arrays.deepToString(popModel.getMigrationRates(interval))).append('\n');
+            description.append(Arrays.deepToString(popModel.getIndicatorsRates(interval))).append('\n');
+            if (i < nSpecies - 1) {
+                description.append(popModel.daughter1(interval)).append(' ');
+                description.append(popModel.daughter2(interval)).append('\n');
+            }
+        }
+
+        final int speciesNodeCount = helper.speciesTree.getNodeCount();
+        for (int from = 0; from < speciesNodeCount; from++) {
+            for (int to = 0; to < speciesNodeCount; to++)
+                description.append(helper.routeIndex(from, to)).append(' ');
+        }
+        return description.toString();
+    }
+}
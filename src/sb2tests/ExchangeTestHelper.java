@@ -29,6 +29,7 @@ abstract class ExchangeTestHelper {
 
     double ploidy;
     double popSize;
+    int geneThreads = 1;
     double expectedLogHR;
     String bTipLabel;
     String cTipLabel;
@@ -84,7 +85,7 @@ abstract class ExchangeTestHelper {
         }
 
         CoordinatedExchange coex = new CoordinatedExchange();
-        coex.initByName("speciesTree", speciesTreeWrapper, "geneTree", geneTrees, "testing", true, "weight", 1.0);
+        coex.initByName("speciesTree", speciesTreeWrapper, "geneTree", geneTrees, "testing", true, "geneThreads", geneThreads, "weight", 1.0);
         coex.aNode = aNode;
         coex.bNode = bNode;
         coex.cNode = cNode;
@@ -0,0 +1,115 @@
+package sb2tests;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.RealParameter;
+import starbeast2.AllEqual;
+import starbeast2.ConstantWithGeneFlow;
+import starbeast2.GeneTreeWithMigration;
+import starbeast2.SpeciesTreeParser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Species tree, parameters and population model with gene flow shared by the AIM tests
+class GeneFlowTestHelper {
+    static final String NEWICK_SPECIES_TREE = "(((a:1.0,b:1.0):1.0,c:2.0):1.0,d:3.0)";
+    static final String[] SPECIES_NAMES = {"a", "b", "c", "d"};
+    // gene tree tips are named species_i
+    static final int TIPS_PER_SPECIES = 2;
+    // (n - 1)^2 * 2 migration routes for n = 4 species
+    static final int ROUTE_COUNT = 18;
+
+    final SpeciesTreeParser speciesTree;
+    final RealParameter neParameter;
+    final RealParameter mParameter;
+    final BooleanParameter indicatorParameter;
+    final AllEqual migrationModel;
+    final ConstantWithGeneFlow popModel;
+    final List<TreeParser> geneTrees = new ArrayList<>();
+    final State state;
+
+    /**
+     * @param popModel the (uninitialised) population model to set up
+     * @param indicators null for no indicators, or which of the ROUTE_COUNT routes are indicated
+     * @param geneTreeNewicks the gene trees, which are added to the state with the other parameters
+     */
+    GeneFlowTestHelper(ConstantWithGeneFlow popModel, boolean[] indicators, String... geneTreeNewicks) {
+        final List<Taxon> speciesList = new ArrayList<>();
+        for (String speciesName: SPECIES_NAMES) {
+            final List<Taxon> tipList = new ArrayList<>();
+            for (int i = 1; i <= TIPS_PER_SPECIES; i++)
+                tipList.add(new Taxon(speciesName + "_" + i));
+            speciesList.add(new TaxonSet(speciesName, tipList));
+        }
+        speciesTree = new SpeciesTreeParser();
+        speciesTree.initByName("newick", NEWICK_SPECIES_TREE, "IsLabelledNewick", true, "taxonset", new TaxonSet(speciesList));
+
+        final StringBuilder neValues = new StringBuilder();
+        for (int i = 0; i < speciesTree.getNodeCount(); i++)
+            neValues.append(0.1 * (i + 1)).append(' ');
+        neParameter = new RealParameter();
+        neParameter.initByName("value", neValues.toString().trim());
+
+        // the relative rate of every route is one more than its index, so the index can be read from the rate
+        final StringBuilder mValues = new StringBuilder();
+        for (int k = 0; k < ROUTE_COUNT; k++)
+            mValues.append(k + 1).append(' ');
+        mParameter = new RealParameter();
+        mParameter.initByName("value", mValues.toString().trim());
+
+        if (indicators == null) {
+            indicatorParameter = null;
+        } else {
+            final StringBuilder indicatorValues = new StringBuilder();
+            for (boolean indicator: indicators)
+                indicatorValues.append(indicator).append(' ');
+            indicatorParameter = new BooleanParameter();
+            indicatorParameter.initByName("value", indicatorValues.toString().trim());
+        }
+
+        for (String geneTreeNewick: geneTreeNewicks) {
+            final TreeParser geneTree = new TreeParser();
+            geneTree.initByName("newick", geneTreeNewick, "IsLabelledNewick", true);
+            geneTrees.add(geneTree);
+        }
+
+        // Create dummy state to allow statenode editing
+        final List<StateNode> stateNodes = new ArrayList<>();
+        stateNodes.add(speciesTree);
+        stateNodes.add(neParameter);
+        stateNodes.add(mParameter);
+        if (indicatorParameter != null)
+            stateNodes.add(indicatorParameter);
+        stateNodes.addAll(geneTrees);
+        state = new State();
+        for (StateNode stateNode: stateNodes)
+            state.initByName("stateNode", stateNode);
+        state.initialise();
+
+        migrationModel = new AllEqual();
+        migrationModel.initByName("speciesTree", speciesTree);
+
+        this.popModel = popModel;
+        if (indicatorParameter == null)
+            popModel.initByName("Ne", neParameter, "m", mParameter, "migrationModel", migrationModel, "rateIsForward", true);
+        else
+            popModel.initByName("Ne", neParameter, "m", mParameter, "indicator", indicatorParameter, "migrationModel", migrationModel, "rateIsForward", true);
+    }
+
+    GeneTreeWithMigration geneTreeLikelihood(int geneTreeIndex, String integrator) {
+        final GeneTreeWithMigration geneTreeLikelihood = new GeneTreeWithMigration();
+        geneTreeLikelihood.initByName("tree", geneTrees.get(geneTreeIndex), "populationModel", popModel, "integrator", integrator, "tolerance", 1e-8);
+        return geneTreeLikelihood;
+    }
+
+    // the migration route between two species tree nodes, found from its relative rate
+    int routeIndex(int fromNode, int toNode) {
+        final double rate = popModel.getMigrationRates(fromNode, toNode);
+        return rate == 0.0 ? -1 : (int) Math.round(rate) - 1;
+    }
+}
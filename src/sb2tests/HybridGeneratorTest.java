@@ -0,0 +1,52 @@
+package sb2tests;
+
+import org.junit.Test;
+import starbeast2.ConstantWithGeneFlow;
+import starbeast2.GeneTreeWithMigration;
+import starbeast2.HybridAIM;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+// A hybrid gene tree must find the migration rate generators built as soon as it is initialised
+public class HybridGeneratorTest {
+    // no lineage of species d, so only the lineage in c can migrate along the single indicated route c to d
+    private final String newickGeneTree = "((a_1:0.5,b_1:0.5):2.0,c_1:2.5)";
+
+    private boolean[] indicateCtoD() {
+        final GeneFlowTestHelper routes = new GeneFlowTestHelper(new ConstantWithGeneFlow(), null);
+        final int cNr = routes.speciesTree.getTipNumberMap().get("c_1");
+        final int dNr = routes.speciesTree.getTipNumberMap().get("d_1");
+
+        final boolean[] indicators = new boolean[GeneFlowTestHelper.ROUTE_COUNT];
+        indicators[routes.routeIndex(cNr, dNr)] = true;
+        return indicators;
+    }
+
+    @Test
+    public void testGeneratorsAfterInit() {
+        final GeneFlowTestHelper helper = new GeneFlowTestHelper(new ConstantWithGeneFlow(), indicateCtoD(), newickGeneTree);
+        helper.geneTreeLikelihood(0, "hybrid");
+
+        final int speciesCount = helper.popModel.getNumberOfSpecies();
+        for (int i = speciesCount; i < 2 * speciesCount; i++)
+            assertNotNull(helper.popModel.getMigrationGenerator(i));
+    }
+
+    @Test
+    public void testExactPath() {
+        final boolean[] indicators = indicateCtoD();
+        final GeneFlowTestHelper hybridHelper = new GeneFlowTestHelper(new ConstantWithGeneFlow(), indicators, newickGeneTree);
+        final GeneFlowTestHelper referenceHelper = new GeneFlowTestHelper(new ConstantWithGeneFlow(), indicators, newickGeneTree);
+
+        final GeneTreeWithMigration hybrid = hybridHelper.geneTreeLikelihood(0, "hybrid");
+        final GeneTreeWithMigration reference = referenceHelper.geneTreeLikelihood(0, "dormand-prince");
+        final double hybridLogP = hybrid.calculateLogP();
+        final double referenceLogP = reference.calculateLogP();
+
+        // the intervals before the first coalescence are linear, and must not be passed on to Dormand-Prince
+        assertTrue(((HybridAIM) hybrid.getIntegrator()).getExactSolutions() > 0);
+        assertEquals(referenceLogP, hybridLogP, 1e-6);
+    }
+}
@@ -0,0 +1,156 @@
+package sb2tests;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.operator.Exchange;
+import beast.base.evolution.operator.SubtreeSlide;
+import beast.base.evolution.operator.Uniform;
+import beast.base.evolution.operator.WilsonBalding;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import org.junit.Test;
+import starbeast2.ConstantPopulations;
+import starbeast2.GeneTree;
+import starbeast2.SpeciesTreeParser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// After every proposal and every restore, the incrementally updated embedding must be the same as one built from scratch
+public class IncrementalEmbeddingTest {
+    private final String newickSpeciesTree = "((a:1.5,b:1.5):0.5,c:2.0)";
+    private final String newickGeneTree = "(((((a1:0.2,a2:0.2):0.3,a3:0.5):1.4,((b1:0.4,b2:0.4):0.6,b3:1.0):0.9):0.4,(c1:0.7,c2:0.7):1.6):0.5,c3:2.8)";
+
+    private final int nSpecies = 3;
+    private final int individualsPerSpecies = 3;
+    private final double ploidy = 2.0;
+    private final double popSize = 0.5;
+    private final int nSteps = 2000;
+
+    private SpeciesTreeParser speciesTree;
+    private ConstantPopulations populationModel;
+
+    @Test
+    public void testOperators() throws Exception {
+        Randomizer.setSeed(17);
+
+        speciesTree = new SpeciesTreeParser();
+        speciesTree.initByName("newick", newickSpeciesTree, "IsLabelledNewick", true, "taxonset", generateSuperset());
+
+        final TreeParser geneTree = new TreeParser();
+        geneTree.initByName("newick", newickGeneTree, "IsLabelledNewick", true);
+
+        final RealParameter popsizeParameter = new RealParameter();
+        popsizeParameter.initByName("value", String.valueOf(popSize));
+
+        final State state = new State();
+        state.initByName("stateNode", speciesTree);
+        state.initByName("stateNode", popsizeParameter);
+        state.initByName("stateNode", geneTree);
+        state.initialise();
+
+        populationModel = new ConstantPopulations();
+        populationModel.initByName("populationSizes", popsizeParameter, "speciesTree", speciesTree);
+        populationModel.initPopSizes(speciesTree.getNodeCount());
+        populationModel.initPopSizes(popSize);
+
+        final GeneTree geneTreeWrapper = new GeneTree();
+        geneTreeWrapper.initByName("tree", geneTree, "ploidy", ploidy, "speciesTree", speciesTree, "populationModel", populationModel);
+        state.setPosterior(geneTreeWrapper);
+        state.setEverythingDirty(false);
+        geneTreeWrapper.calculateLogP();
+
+        // exchanges change the topology, and slides and Wilson-Balding moves over the root renumber the nodes
+        final List<Operator> operators = new ArrayList<>();
+        final Exchange narrowExchange = new Exchange();
+        narrowExchange.initByName("tree", geneTree, "isNarrow", true, "weight", 1.0);
+        operators.add(narrowExchange);
+        final Exchange wideExchange = new Exchange();
+        wideExchange.initByName("tree", geneTree, "isNarrow", false, "weight", 1.0);
+        operators.add(wideExchange);
+        final SubtreeSlide subtreeSlide = new SubtreeSlide();
+        subtreeSlide.initByName("tree", geneTree, "size", 0.5, "weight", 1.0);
+        operators.add(subtreeSlide);
+        final WilsonBalding wilsonBalding = new WilsonBalding();
+        wilsonBalding.initByName("tree", geneTree, "weight", 1.0);
+        operators.add(wilsonBalding);
+        final Uniform uniform = new Uniform();
+        uniform.initByName("tree", geneTree, "weight", 1.0);
+        operators.add(uniform);
+
+        int acceptedRootChanges = 0;
+        int restores = 0;
+        for (int step = 0; step < nSteps; step++) {
+            final Node root = geneTree.getRoot();
+            state.store(step);
+
+            final Operator operator = operators.get(Randomizer.nextInt(operators.size()));
+            if (operator.proposal() == Double.NEGATIVE_INFINITY) {
+                state.restore();
+                state.setEverythingDirty(false);
+                continue;
+            }
+
+            // as in MCMC.propagateState
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            final double logP = geneTreeWrapper.calculateLogP();
+            assertSameEmbedding("step " + step, geneTreeWrapper, logP, geneTree);
+
+            if (logP != Double.NEGATIVE_INFINITY && Randomizer.nextBoolean()) {
+                state.acceptCalculationNodes();
+                if (geneTree.getRoot() != root) acceptedRootChanges++;
+            } else {
+                state.restore();
+                state.restoreCalculationNodes();
+                assertSameEmbedding("restore at step " + step, geneTreeWrapper, geneTreeWrapper.getCurrentLogP(), geneTree);
+                restores++;
+            }
+            state.setEverythingDirty(false);
+        }
+
+        assertTrue(acceptedRootChanges > 0);
+        assertTrue(restores > 0);
+    }
+
+    // compares the embedding and log probability with those of a gene tree embedded from scratch
+    private void assertSameEmbedding(String message, GeneTree geneTreeWrapper, double logP, Tree geneTree) {
+        final GeneTree reference = new GeneTree();
+        reference.initByName("tree", new Tree(geneTree.getRoot().copy()), "ploidy", ploidy, "speciesTree", speciesTree,
+                "populationModel", populationModel, "incrementalUpdate", false);
+        final double expectedLogP = reference.calculateLogP();
+
+        assertEquals(message, expectedLogP, logP, 1e-10);
+        if (expectedLogP == Double.NEGATIVE_INFINITY) return;
+
+        for (int i = 0; i < speciesTree.getNodeCount(); i++)
+            assertArrayEquals(message, reference.getCoalescentTimes(i), geneTreeWrapper.getCoalescentTimes(i), 0.0);
+        assertArrayEquals(message, reference.getCoalescentLineageCounts(), geneTreeWrapper.getCoalescentLineageCounts());
+        assertArrayEquals(message, reference.getSpeciesOccupancy(), geneTreeWrapper.getSpeciesOccupancy(), 1e-12);
+    }
+
+    private TaxonSet generateSuperset() {
+        String speciesCodes = "abc";
+        List<Taxon> superSetList = new ArrayList<>();
+        for (int i = 0; i < nSpecies; i++) {
+            final String speciesName = speciesCodes.substring(i, i + 1);
+            List<Taxon> taxonList = new ArrayList<>();
+            for (int j = 0; j < individualsPerSpecies; j++) {
+                final String taxonName = String.format("%s%d", speciesName, j + 1);
+                taxonList.add(new Taxon(taxonName));
+            }
+            superSetList.add(new TaxonSet(speciesName, taxonList));
+        }
+
+        return new TaxonSet(superSetList);
+    }
+}
@@ -0,0 +1,165 @@
+package sb2tests;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import org.junit.Test;
+import starbeast2.AllEqual;
+import starbeast2.SpeciesTreeParser;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+// The cached descendant leaves must exclude the same migration routes as walking the species tree,
+// and must follow changes of the species tree topology and their rejection
+public class MigrationModelTest {
+    private final String newickSpeciesTree = "(((a:1.0,b:1.0):1.0,c:2.0):1.0,d:3.0)";
+    private final String[] speciesNames = {"a", "b", "c", "d"};
+    private final double effectiveMigrants = 0.25;
+
+    @Test
+    public void testExcluded() throws Exception {
+        final SpeciesTreeParser speciesTree = speciesTree();
+        final RealParameter emParameter = new RealParameter();
+        emParameter.initByName("value", String.valueOf(effectiveMigrants));
+        final AllEqual migrationModel = new AllEqual();
+        migrationModel.initByName("speciesTree", speciesTree, "effectiveMigrants", emParameter, "exclude", "c");
+
+        final int excludedNr = speciesTree.getTipNumberMap().get("c_tip");
+        for (Node source: speciesTree.getNodesAsArray()) {
+            for (Node sink: speciesTree.getNodesAsArray()) {
+                final boolean excluded = containsLeaf(source, excludedNr) || containsLeaf(sink, excludedNr);
+                assertEquals(excluded ? 0.0 : effectiveMigrants, migrationModel.getMigration(source.getNr(), sink.getNr()), 0.0);
+            }
+        }
+        checkDescendants(speciesTree, migrationModel);
+    }
+
+    // swaps c and d, checking the descendant leaves after the change and after it is rejected
+    @Test
+    public void testTopologyChange() throws Exception {
+        final SpeciesTreeParser speciesTree = speciesTree();
+        final RealParameter emParameter = new RealParameter();
+        emParameter.initByName("value", String.valueOf(effectiveMigrants));
+        final AllEqual migrationModel = new AllEqual();
+        migrationModel.initByName("speciesTree", speciesTree, "effectiveMigrants", emParameter);
+
+        final State state = new State();
+        state.initByName("stateNode", speciesTree);
+        state.initialise();
+        state.setPosterior(migrationModel);
+        state.setEverythingDirty(false);
+        checkDescendants(speciesTree, migrationModel);
+
+        final String before = describeDescendants(speciesTree, migrationModel);
+        for (int step = 0; step < 2; step++) {
+            state.store(step);
+            swapCD(speciesTree);
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            checkDescendants(speciesTree, migrationModel);
+            assertNotEquals(before, describeDescendants(speciesTree, migrationModel));
+
+            if (step == 0) {
+                // reject
+                state.restore();
+                state.restoreCalculationNodes();
+                checkDescendants(speciesTree, migrationModel);
+                assertEquals(before, describeDescendants(speciesTree, migrationModel));
+            } else {
+                state.acceptCalculationNodes();
+            }
+            state.setEverythingDirty(false);
+        }
+
+        // a copy returned earlier must not follow later changes, nor change the cache
+        final int cNr = leaf(speciesTree, "c").getNr();
+        final int dNr = leaf(speciesTree, "d").getNr();
+        final int abcNr = leaf(speciesTree, "a").getParent().getParent().getNr();
+        final BitSet leaves = migrationModel.getDescendantLeaves(abcNr);
+        state.store(2);
+        swapCD(speciesTree);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        checkDescendants(speciesTree, migrationModel);
+        assertTrue(leaves.get(dNr));
+        assertFalse(leaves.get(cNr));
+        leaves.clear();
+        checkDescendants(speciesTree, migrationModel);
+    }
+
+    private SpeciesTreeParser speciesTree() {
+        final List<Taxon> speciesList = new ArrayList<>();
+        for (String speciesName: speciesNames) {
+            final List<Taxon> tipList = new ArrayList<>();
+            tipList.add(new Taxon(speciesName + "_tip"));
+            speciesList.add(new TaxonSet(speciesName, tipList));
+        }
+        final SpeciesTreeParser speciesTree = new SpeciesTreeParser();
+        speciesTree.initByName("newick", newickSpeciesTree, "IsLabelledNewick", true, "taxonset", new TaxonSet(speciesList));
+        return speciesTree;
+    }
+
+    // moves c to the root and d into the clade of a and b
+    private void swapCD(SpeciesTreeParser speciesTree) {
+        final Node cNode = leaf(speciesTree, "c");
+        final Node dNode = leaf(speciesTree, "d");
+        final Node cParent = cNode.getParent();
+        final Node dParent = dNode.getParent();
+        cParent.removeChild(cNode);
+        dParent.removeChild(dNode);
+        cParent.addChild(dNode);
+        dParent.addChild(cNode);
+        cNode.makeDirty(Tree.IS_FILTHY);
+        dNode.makeDirty(Tree.IS_FILTHY);
+        cParent.makeDirty(Tree.IS_FILTHY);
+        dParent.makeDirty(Tree.IS_FILTHY);
+    }
+
+    private Node leaf(SpeciesTreeParser speciesTree, String id) {
+        for (Node node: speciesTree.getExternalNodes()) {
+            if (node.getID().equals(id))
+                return node;
+        }
+        throw new IllegalArgumentException(id);
+    }
+
+    // the cached descendant leaves of every node must be the leaves found by walking the species tree
+    private void checkDescendants(SpeciesTreeParser speciesTree, AllEqual migrationModel) {
+        final int leafCount = speciesTree.getLeafNodeCount();
+        for (Node node: speciesTree.getNodesAsArray()) {
+            final BitSet leaves = migrationModel.getDescendantLeaves(node.getNr());
+            assertEquals(node.getLeafNodeCount(), leaves.cardinality());
+            for (int leafNr = 0; leafNr < leafCount; leafNr++) {
+                final boolean expected = containsLeaf(node, leafNr);
+                assertEquals(expected, leaves.get(leafNr));
+                assertEquals(expected, migrationModel.isDescendant(node.getNr(), leafNr));
+            }
+        }
+    }
+
+    private String describeDescendants(SpeciesTreeParser speciesTree, AllEqual migrationModel) {
+        final StringBuilder description = new StringBuilder();
+        for (int nodeNr = 0; nodeNr < speciesTree.getNodeCount(); nodeNr++)
+            description.append(migrationModel.getDescendantLeaves(nodeNr)).append(' ');
+        return description.toString();
+    }
+
+    private static boolean containsLeaf(Node node, int leafNr) {
+        if (node.isLeaf())
+            return node.getNr() == leafNr;
+        for (Node leaf: node.getAllLeafNodes())
+            if (leaf.getNr() == leafNr)
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,110 @@
+package sb2tests;
+
+import beast.base.evolution.tree.Node;
+import org.junit.Test;
+import starbeast2.NewickWriter;
+import starbeast2.PopulationModel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+// Doubles written at a fixed number of decimal places must be identical to the DecimalFormat output
+public class NewickWriterTest {
+    private final int[] decimalPlaces = {1, 3, 6, 10};
+
+    @Test
+    public void testDecimalPlaces() {
+        final Random random = new Random(7);
+        for (int dp: decimalPlaces) {
+            final NewickWriter writer = new NewickWriter(dp);
+            final double[] special = {0.0, -0.0, 0.5, -0.5, 1.0, 5.0E-7, 0.125, 1.0E20, Double.NaN, Double.POSITIVE_INFINITY};
+            for (double d: special)
+                checkValue(writer, d);
+
+            for (int i = 0; i < 100000; i++) {
+                checkValue(writer, random.nextDouble() * Math.pow(10.0, random.nextInt(10) - 4));
+                checkValue(writer, -random.nextDouble());
+                // values half way between two results
+                checkValue(writer, (random.nextInt(100000) + 0.5) / Math.pow(10.0, dp));
+            }
+        }
+    }
+
+    @Test
+    public void testFlush() {
+        final NewickWriter writer = new NewickWriter(-1);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStream out = new PrintStream(bytes);
+
+        writer.append('(').append(1).append(':').appendDouble(0.1).append(',').append("2:").append(0.2).append(')');
+        writer.flush(out);
+        assertEquals(0, writer.length());
+        writer.append(';');
+        writer.flush(out);
+
+        out.flush();
+        assertEquals("(1:0.1,2:0.2);", bytes.toString());
+    }
+
+    // models written against either serialize method must give the same text through the other one
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testSerializeCompatibility() {
+        final Node node = new Node();
+        final double popSize = 0.123456;
+
+        final PopulationModel legacyModel = new TestModel() {
+            @Override
+            public void serialize(Node speciesTreeNode, StringBuffer buf, DecimalFormat df) {
+                buf.append("dmv={").append(df == null ? String.valueOf(popSize) : df.format(popSize)).append('}');
+            }
+        };
+        final PopulationModel writerModel = new TestModel() {
+            @Override
+            public void serialize(Node speciesTreeNode, NewickWriter writer) {
+                writer.append("dmv={").appendDouble(popSize).append('}');
+            }
+        };
+
+        for (int dp: new int[] {-1, 3}) {
+            final NewickWriter writer = new NewickWriter(dp);
+            legacyModel.serialize(node, writer);
+            assertEquals(dp + " decimal places", dp < 0 ? "dmv={0.123456}" : "dmv={0.123}", writer.toString());
+
+            final StringBuffer buf = new StringBuffer("[&");
+            writerModel.serialize(node, buf, writer.getDecimalFormat());
+            assertEquals(dp + " decimal places", "[&" + writer, buf.toString());
+        }
+    }
+
+    private static abstract class TestModel implements PopulationModel {
+        @Override
+        public double branchLogP(int speciesTreeNodeNumber, Node speciesTreeNode, double ploidy, double[] branchCoalescentTimes, int branchLineageCount, int branchEventCount) {
+            return 0.0;
+        }
+
+        @Override
+        public void initPopSizes(double initialPopSizes) {
+        }
+
+        @Override
+        public boolean isDirtyBranch(Node speciesTreeNode) {
+            return false;
+        }
+
+        @Override
+        public PopulationModel getBaseModel() {
+            return this;
+        }
+    }
+
+    private static void checkValue(NewickWriter writer, double d) {
+        writer.appendDouble(d);
+        assertEquals(writer.getDecimalFormat().format(d), writer.toString());
+        writer.flush(new PrintStream(new ByteArrayOutputStream()));
+    }
+}
@@ -0,0 +1,42 @@
+package sb2tests;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.distance.JukesCantorDistance;
+import org.junit.Test;
+import starbeast2.PackedJukesCantorDistance;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+// Distances from bit packed patterns must be exactly the same as from JukesCantorDistance
+public class PackedJukesCantorDistanceTest {
+    private final String[] sequences = {
+        "ACGTACGTACGTAAAACCCCGGGGTTTTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGT",
+        "ACGTACGAACGTAAAACCCCGGGGTTTTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGT",
+        "ACGTTCGTACGAAAAACCCNGGGGTTTTACGTACG-ACGTACGTACGTACGTACGTACGTACGTACGTACGT",
+        "TCGTACGTACGTAAAACCCCGGTGTTTTACGTACGTACGTACGTACRTACGTACGTACGTACCTACGTACGT",
+        "ACGTACGTACGTAAAACCCCGGGGTTTTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGT",
+        "GGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGGG",
+    };
+
+    @Test
+    public void testSameDistances() {
+        final List<Sequence> sequenceList = new ArrayList<>();
+        for (int i = 0; i < sequences.length; i++)
+            sequenceList.add(new Sequence("t" + i, sequences[i]));
+        final Alignment alignment = new Alignment(sequenceList, "nucleotide");
+
+        final JukesCantorDistance expected = new JukesCantorDistance();
+        expected.setPatterns(alignment);
+        final PackedJukesCantorDistance packed = new PackedJukesCantorDistance(alignment);
+
+        for (int i = 0; i < sequences.length; i++) {
+            for (int j = 0; j < sequences.length; j++) {
+                assertEquals(expected.pairwiseDistance(i, j), packed.pairwiseDistance(i, j), 0.0);
+            }
+        }
+    }
+}
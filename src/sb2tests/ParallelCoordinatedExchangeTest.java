@@ -0,0 +1,155 @@
+package sb2tests;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.State;
+import beast.base.util.Randomizer;
+import org.junit.Test;
+import starbeast2.CoordinatedExchange;
+import starbeast2.CoordinatedExponential;
+import starbeast2.CoordinatedOperator;
+import starbeast2.CoordinatedUniform;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// gene trees processed by separate threads must give the same Hastings ratio as serial processing
+public class ParallelCoordinatedExchangeTest extends BigCoordinatedExchangeTest {
+    private final int[] threadCounts = {1, 2, 3};
+    private final int nProposals = 200;
+    private final int nSeeds = 20;
+
+    public ParallelCoordinatedExchangeTest() {
+        super();
+        geneThreads = 2;
+    }
+
+    // regrafts draw from one random stream per block of gene trees, so for a given seed and number of threads
+    // a sequence of exchanges must always give the same trees
+    @Test
+    public void testSeededExchanges() throws Exception {
+        for (int threads: threadCounts) {
+            for (boolean isNarrow: new boolean[] {true, false}) {
+                final List<String> first = runExchanges(threads, isNarrow);
+                final List<String> second = runExchanges(threads, isNarrow);
+                assertEquals(threads + " threads", first, second);
+            }
+        }
+    }
+
+    // connecting nodes are found in parallel, but the nodes moved and the shift must be those of a serial proposal
+    @Test
+    public void testParallelCoordinatedHeights() throws Exception {
+        int movedGeneNodes = 0;
+        for (int seed = 0; seed < nSeeds; seed++) {
+            for (boolean isUniform: new boolean[] {true, false}) {
+                final List<String> serial = new ArrayList<>();
+                movedGeneNodes += proposeHeights(seed, isUniform, 1, serial);
+                for (int threads: threadCounts) {
+                    final List<String> parallel = new ArrayList<>();
+                    proposeHeights(seed, isUniform, threads, parallel);
+                    assertEquals("seed " + seed + ", " + threads + " threads", serial, parallel);
+                }
+            }
+        }
+
+        assertTrue(movedGeneNodes > 0);
+    }
+
+    // the species tree, gene trees and log Hastings ratio after every proposal, of which about half are rejected
+    private List<String> runExchanges(int threads, boolean isNarrow) throws Exception {
+        Randomizer.setSeed(11);
+        final State state = initializeState();
+
+        final CoordinatedExchange coex = new CoordinatedExchange();
+        coex.initByName("speciesTree", speciesTreeWrapper, "geneTree", geneTrees, "isNarrow", isNarrow, "geneThreads", threads, "weight", 1.0);
+
+        final List<String> history = new ArrayList<>();
+        int accepted = 0;
+        for (int i = 0; i < nProposals; i++) {
+            state.store(i);
+            final double logHR = coex.proposal();
+            history.add(String.valueOf(logHR));
+            if (logHR == Double.NEGATIVE_INFINITY || Randomizer.nextBoolean()) {
+                state.restore();
+            } else {
+                accepted++;
+                history.add(speciesTreeWrapper.getRoot().toNewick());
+                for (Tree geneTree: geneTrees)
+                    history.add(geneTree.getRoot().toNewick());
+            }
+            state.setEverythingDirty(false);
+        }
+
+        assertTrue(accepted > 0);
+        return history;
+    }
+
+    // describes one coordinated proposal as the shift of the species tree node and the gene tree nodes moved by it,
+    // and returns the number of gene tree nodes moved
+    private int proposeHeights(int seed, boolean isUniform, int threads, List<String> description) throws Exception {
+        Randomizer.setSeed(seed);
+        initializeState();
+
+        final CoordinatedOperator operator = isUniform ? new CoordinatedUniform() : new CoordinatedExponential();
+        operator.initByName("speciesTree", speciesTreeWrapper, "geneTree", geneTrees, "geneThreads", threads, "weight", 1.0);
+
+        final double[] speciesHeights = getHeights(speciesTreeWrapper);
+        final List<double[]> geneHeights = new ArrayList<>();
+        for (Tree geneTree: geneTrees)
+            geneHeights.add(getHeights(geneTree));
+
+        description.add(String.valueOf(operator.proposal()));
+
+        double shift = 0.0;
+        for (int i = 0; i < speciesHeights.length; i++) {
+            final double newHeight = speciesTreeWrapper.getNode(i).getHeight();
+            if (newHeight != speciesHeights[i]) {
+                shift = newHeight - speciesHeights[i];
+                description.add("species node " + i + " shifted by " + shift);
+            }
+        }
+
+        int moved = 0;
+        for (int j = 0; j < geneTrees.size(); j++) {
+            final Tree geneTree = geneTrees.get(j);
+            final double[] heights = geneHeights.get(j);
+            for (int i = 0; i < heights.length; i++) {
+                final Node node = geneTree.getNode(i);
+                if (node.getHeight() != heights[i]) {
+                    assertEquals(shift, node.getHeight() - heights[i], 1e-12);
+                    description.add("gene tree " + j + " node " + i);
+                    moved++;
+                }
+            }
+        }
+
+        return moved;
+    }
+
+    // fresh copies of the trees, in a state so that they can be edited, stored and restored
+    private State initializeState() throws Exception {
+        geneTrees.clear();
+        geneTreeWrappers.clear();
+        initializeSpeciesTree(generateSuperset());
+        initializeGeneTrees();
+
+        final State state = new State();
+        state.initByName("stateNode", speciesTreeWrapper);
+        for (Tree gt: geneTrees) {
+            state.initByName("stateNode", gt);
+        }
+        state.initialise();
+        return state;
+    }
+
+    private double[] getHeights(Tree tree) {
+        final double[] heights = new double[tree.getNodeCount()];
+        for (int i = 0; i < heights.length; i++)
+            heights[i] = tree.getNode(i).getHeight();
+        return heights;
+    }
+}
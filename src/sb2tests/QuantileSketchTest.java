@@ -0,0 +1,41 @@
+package sb2tests;
+
+import org.junit.Test;
+import starbeast2.aimannotator.QuantileSketch;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+// Rank queries are exact up to the sketch capacity, and close to the exact quantiles beyond it
+public class QuantileSketchTest {
+    private final int capacity = 256;
+
+    @Test
+    public void testExact() {
+        checkQuantiles(capacity, 0.0);
+    }
+
+    @Test
+    public void testCompacted() {
+        checkQuantiles(100 * capacity, 0.02);
+    }
+
+    private void checkQuantiles(int n, double tolerance) {
+        final Random random = new Random(42);
+        final QuantileSketch sketch = new QuantileSketch(capacity);
+        final double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = random.nextDouble();
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        final long[] ranks = {(long) (0.025 * n), n / 2, (long) (0.975 * n)};
+        final double[] estimates = sketch.valuesAtRanks(ranks);
+        assertEquals(n, sketch.getCount());
+        for (int r = 0; r < ranks.length; r++)
+            assertEquals(values[(int) ranks[r]], estimates[r], tolerance);
+    }
+}
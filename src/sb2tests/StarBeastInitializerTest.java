@@ -0,0 +1,149 @@
+package sb2tests;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import org.junit.Test;
+import starbeast2.SpeciesTree;
+import starbeast2.StarBeastInitializer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+// Starting trees must not depend on the number of threads, and species first meetings must be found
+// for species beyond the first word of the species bit sets
+public class StarBeastInitializerTest {
+    private final int nSpecies = 6;
+    private final int individualsPerSpecies = 3;
+    private final int nGenes = 5;
+    private final int nSites = 300;
+    private final String nucleotides = "ACGT";
+
+    // the first meetings of a gene tree are only visible to subclasses
+    static class ExposedStarBeastInitializer extends StarBeastInitializer {
+        double[] exposedFirstMeetings(Tree gtree, Map<String, Integer> tipName2Species, int speciesCount) {
+            return firstMeetings(gtree, tipName2Species, speciesCount);
+        }
+    }
+
+    @Test
+    public void testThreads() {
+        final String[][] alignments = simulateAlignments(new Random(5));
+        final List<String> serial = initialise(alignments, 1);
+        final List<String> parallel = initialise(alignments, 4);
+        assertEquals(serial, parallel);
+    }
+
+    @Test
+    public void testManySpeciesFirstMeetings() {
+        final int speciesCount = 70;
+
+        // a caterpillar tree in which tip k joins the tips before it at height k, so the first meeting
+        // of the species of tips i and j is at the larger of i and j, and at least 1.0
+        // the species are shuffled across both words of the species bit sets, and the last tip repeats the
+        // species of the first, so it meets every other species only above its first meetings
+        String newick = "t0";
+        final Map<String, Integer> tipName2Species = new HashMap<>();
+        tipName2Species.put("t0", species(0, speciesCount));
+        for (int k = 1; k <= speciesCount; k++) {
+            final String tipName = "t" + k;
+            tipName2Species.put(tipName, species(k % speciesCount, speciesCount));
+            newick = "(" + newick + ":1.0," + tipName + ":" + k + ".0)";
+        }
+        final TreeParser gtree = new TreeParser();
+        gtree.initByName("newick", newick, "IsLabelledNewick", true);
+
+        final double[] dmin = new ExposedStarBeastInitializer().exposedFirstMeetings(gtree, tipName2Species, speciesCount);
+        assertEquals(speciesCount * (speciesCount - 1) / 2, dmin.length);
+
+        // upper triangular, row by row
+        int index = 0;
+        final int[] tipOfSpecies = new int[speciesCount];
+        for (int k = 0; k < speciesCount; k++)
+            tipOfSpecies[species(k, speciesCount)] = k;
+        for (int s1 = 0; s1 < speciesCount; s1++) {
+            for (int s2 = s1 + 1; s2 < speciesCount; s2++) {
+                final double expected = Math.max(1.0, Math.max(tipOfSpecies[s1], tipOfSpecies[s2]));
+                assertEquals(s1 + " and " + s2, expected, dmin[index++], 0.0);
+            }
+        }
+    }
+
+    // the species of tip k of the caterpillar tree
+    private int species(int k, int speciesCount) {
+        return (k * 37) % speciesCount;
+    }
+
+    // the species tree and gene trees built by fullInit from the same alignments
+    private List<String> initialise(String[][] alignments, int threads) {
+        final List<Taxon> superSetList = new ArrayList<>();
+        for (int i = 0; i < nSpecies; i++) {
+            final List<Taxon> taxonList = new ArrayList<>();
+            for (int j = 0; j < individualsPerSpecies; j++)
+                taxonList.add(new Taxon(tipName(i, j)));
+            superSetList.add(new TaxonSet(String.format("s%d", i), taxonList));
+        }
+        final SpeciesTree speciesTree = new SpeciesTree();
+        speciesTree.initByName("taxonset", new TaxonSet(superSetList));
+
+        final List<Tree> geneTrees = new ArrayList<>();
+        for (int g = 0; g < nGenes; g++) {
+            final List<Sequence> sequenceList = new ArrayList<>();
+            for (int i = 0; i < nSpecies; i++) {
+                for (int j = 0; j < individualsPerSpecies; j++)
+                    sequenceList.add(new Sequence(tipName(i, j), alignments[g][i * individualsPerSpecies + j]));
+            }
+            final Alignment alignment = new Alignment(sequenceList, "nucleotide");
+            final TaxonSet geneTaxa = new TaxonSet();
+            geneTaxa.initByName("alignment", alignment);
+            final Tree geneTree = new Tree();
+            geneTree.initByName("taxonset", geneTaxa);
+            geneTree.setID("gene" + g);
+            geneTrees.add(geneTree);
+        }
+
+        final StarBeastInitializer initializer = new StarBeastInitializer();
+        initializer.initByName("speciesTree", speciesTree, "geneTree", geneTrees, "threads", threads);
+        initializer.initStateNodes();
+
+        final List<String> newicks = new ArrayList<>();
+        newicks.add(speciesTree.getRoot().toNewick());
+        for (Tree geneTree: geneTrees)
+            newicks.add(geneTree.getRoot().toNewick());
+        return newicks;
+    }
+
+    // each gene evolves from a root sequence, with more differences from it in later species and a few in each individual
+    private String[][] simulateAlignments(Random random) {
+        final String[][] alignments = new String[nGenes][nSpecies * individualsPerSpecies];
+        for (int g = 0; g < nGenes; g++) {
+            final char[] root = mutate(new char[nSites], 1.0, random);
+            for (int i = 0; i < nSpecies; i++) {
+                final char[] species = mutate(root.clone(), 0.03 * (i + 1), random);
+                for (int j = 0; j < individualsPerSpecies; j++)
+                    alignments[g][i * individualsPerSpecies + j] = new String(mutate(species.clone(), 0.01, random));
+            }
+        }
+        return alignments;
+    }
+
+    private char[] mutate(char[] sequence, double probability, Random random) {
+        for (int s = 0; s < sequence.length; s++) {
+            if (random.nextDouble() < probability)
+                sequence[s] = nucleotides.charAt(random.nextInt(nucleotides.length()));
+        }
+        return sequence;
+    }
+
+    private String tipName(int species, int individual) {
+        return String.format("s%d_tip%d", species, individual);
+    }
+}
@@ -0,0 +1,209 @@
+package sb2tests;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import org.junit.Test;
+import starbeast2.aimannotator.RankedCladeSystem;
+import starbeast2.aimannotator.StreamingCladeSystem;
+import starbeast2.aimannotator.UnrankedCladeSystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Up to the sketch capacity, summarising in streaming mode must give the same trees as in memory
+public class StreamingCladeSystemTest {
+    private final int speciesCount = 5;
+    // fewer than SKETCH_CAPACITY samples, but more topologies than gene flow logs are kept open
+    private final int sampleCount = 1000;
+
+    private final Pattern number = Pattern.compile("-?[0-9]+(\\.[0-9]+)?(E-?[0-9]+)?");
+
+    @Test
+    public void testRanked() throws Exception {
+        final List<Tree> trees = randomTrees();
+        final Set<String> attributeNames = attributeNames();
+
+        final RankedCladeSystem cladeSystem = new RankedCladeSystem();
+        for (Tree tree: trees)
+            cladeSystem.add(tree, true, attributeNames);
+        cladeSystem.calculateCladeCredibilities(1);
+        final int[] treeOrder = cladeSystem.orderRankedTrees();
+
+        final File directory = Files.createTempDirectory("sb2stream").toFile();
+        try {
+            final StreamingCladeSystem streaming = summariseStreaming(true, trees, attributeNames, directory);
+            assertEquals(treeOrder.length, streaming.getSummarisedCount());
+            assertTrue(streaming.getSummarisedCount() > StreamingCladeSystem.MAX_OPEN_GENE_FLOW_LOGS);
+
+            for (int i = 0; i < treeOrder.length; i++) {
+                final String geneFlowLog = readGeneFlowLog(directory, streaming, i);
+                final ByteArrayOutputStream expectedLog = new ByteArrayOutputStream();
+                try (PrintStream ps = new PrintStream(expectedLog)) {
+                    cladeSystem.printMetaData(ps, treeOrder[i], attributeNames);
+                }
+                assertEquals(expectedLog.toString(), geneFlowLog);
+
+                for (boolean useMean: new boolean[] {true, false}) {
+                    final String expected = cladeSystem.compactMetaData(treeOrder[i], attributeNames, useMean).getRoot().toNewick();
+                    final String actual = streaming.compactMetaData(i, useMean).getRoot().toNewick();
+                    assertSameSummary(expected, actual);
+                }
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testUnranked() throws Exception {
+        final List<Tree> trees = randomTrees();
+        final Set<String> attributeNames = attributeNames();
+
+        final UnrankedCladeSystem cladeSystem = new UnrankedCladeSystem();
+        for (Tree tree: trees)
+            cladeSystem.add(tree, true, attributeNames);
+        cladeSystem.calculateCladeCredibilities(1);
+        final int[] treeOrder = cladeSystem.orderRankedTrees();
+
+        final File directory = Files.createTempDirectory("sb2stream").toFile();
+        try {
+            final StreamingCladeSystem streaming = summariseStreaming(false, trees, attributeNames, directory);
+            assertEquals(treeOrder.length, streaming.getSummarisedCount());
+            assertTrue(streaming.getSummarisedCount() > StreamingCladeSystem.MAX_OPEN_GENE_FLOW_LOGS);
+
+            for (int i = 0; i < treeOrder.length; i++) {
+                // a header line and one line per sample, also for the logs that were closed and reopened
+                final String geneFlowLog = readGeneFlowLog(directory, streaming, i);
+                assertEquals(streaming.getCount(i) + 1, geneFlowLog.split("\n").length);
+
+                for (boolean useMean: new boolean[] {true, false}) {
+                    final String expected = cladeSystem.compactMetaData(treeOrder[i], attributeNames, useMean).getRoot().toNewick();
+                    final String actual = streaming.compactMetaData(i, useMean).getRoot().toNewick();
+                    assertSameSummary(expected, actual);
+                }
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private Set<String> attributeNames() {
+        // as AIMannotator
+        final Set<String> attributeNames = new HashSet<>();
+        attributeNames.add("length");
+        attributeNames.add("height");
+        attributeNames.add("Ne");
+        attributeNames.add("species");
+        attributeNames.add("to");
+        attributeNames.add("rates");
+        return attributeNames;
+    }
+
+    private StreamingCladeSystem summariseStreaming(boolean useRank, List<Tree> trees, Set<String> attributeNames, File directory) throws Exception {
+        final StreamingCladeSystem streaming = new StreamingCladeSystem(useRank, attributeNames);
+        for (Tree tree: trees)
+            streaming.countTopology(tree);
+        streaming.orderTopologies(0.0, new File(directory, "summary").getPath());
+        try {
+            for (Tree tree: trees)
+                streaming.addSample(tree);
+        } finally {
+            streaming.closeGeneFlowLogs();
+        }
+        return streaming;
+    }
+
+    private String readGeneFlowLog(File directory, StreamingCladeSystem streaming, int index) throws Exception {
+        final File geneFlowFile = new File(directory, "summary." + streaming.getSummaryName(index) + ".log");
+        return new String(Files.readAllBytes(geneFlowFile.toPath()));
+    }
+
+    private void deleteDirectory(File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file: files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    // the same newick strings, up to rounding of the numbers
+    private void assertSameSummary(String expected, String actual) {
+        assertEquals(number.matcher(expected).replaceAll("#"), number.matcher(actual).replaceAll("#"));
+
+        final Matcher expectedNumbers = number.matcher(expected);
+        final Matcher actualNumbers = number.matcher(actual);
+        while (expectedNumbers.find()) {
+            assertTrue(actualNumbers.find());
+            final double expectedValue = Double.parseDouble(expectedNumbers.group());
+            assertEquals(expectedValue, Double.parseDouble(actualNumbers.group()), 1e-12 * Math.max(1.0, Math.abs(expectedValue)));
+        }
+    }
+
+    // coalescent trees with the metadata of the AIM species tree logger, internal nodes are numbered in order of coalescence
+    private List<Tree> randomTrees() {
+        final Random random = new Random(42);
+        final List<Tree> trees = new ArrayList<>();
+        for (int s = 0; s < sampleCount; s++) {
+            final List<Node> lineages = new ArrayList<>();
+            final List<Node> nodes = new ArrayList<>();
+            for (int i = 0; i < speciesCount; i++) {
+                final Node leaf = new Node();
+                leaf.setNr(i);
+                leaf.setID("s" + i);
+                leaf.setHeight(0.0);
+                lineages.add(leaf);
+                nodes.add(leaf);
+            }
+
+            double height = 0.0;
+            for (int i = speciesCount; i < 2 * speciesCount - 1; i++) {
+                final Node left = lineages.remove(random.nextInt(lineages.size()));
+                final Node right = lineages.remove(random.nextInt(lineages.size()));
+                height += random.nextDouble() + 0.01;
+
+                final Node parent = new Node();
+                parent.setNr(i);
+                parent.setHeight(height);
+                parent.addChild(left);
+                parent.addChild(right);
+                lineages.add(parent);
+                nodes.add(parent);
+            }
+            final Node root = lineages.get(0);
+
+            for (Node node: nodes) {
+                node.setMetaData("species", (double) node.getNr());
+                node.setMetaData("Ne", random.nextDouble());
+                if (node.isRoot())
+                    continue;
+
+                final List<Double> to = new ArrayList<>();
+                for (Node other: nodes) {
+                    if (other != node && !other.isRoot())
+                        to.add((double) other.getNr());
+                }
+                final Double[] rates = new Double[to.size()];
+                for (int k = 0; k < rates.length; k++)
+                    rates[k] = random.nextDouble() < 0.3 ? 0.0 : random.nextDouble();
+                node.setMetaData("to", to.toArray(new Double[0]));
+                node.setMetaData("rates", rates);
+            }
+
+            trees.add(new Tree(root));
+        }
+        return trees;
+    }
+}
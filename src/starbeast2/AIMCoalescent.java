@@ -0,0 +1,102 @@
+package starbeast2;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+@Description("Calculates the probability of gene trees under the approximate isolation-with-migration (AIM) model, optionally evaluating loci in parallel.")
+public class AIMCoalescent extends CompoundDistribution {
+    final public Input<Integer> geneThreadsInput = new Input<>("geneThreads", "Number of threads used to evaluate gene trees (default is 1, i.e. serial evaluation).", 1);
+
+    private int nGeneTrees;
+    private Distribution[] geneTrees;
+    private ConstantWithGeneFlow[] popModels;
+    private double[] perGeneLogP;
+
+    private ForkJoinPool genePool;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        final List<Distribution> distributions = pDistributions.get();
+        nGeneTrees = distributions.size();
+        geneTrees = new Distribution[nGeneTrees];
+        perGeneLogP = new double[nGeneTrees];
+
+        final List<ConstantWithGeneFlow> distinctPopModels = new ArrayList<>();
+        for (int geneI = 0; geneI < nGeneTrees; geneI++) {
+            final Distribution pDist = distributions.get(geneI);
+            if (pDist instanceof GeneTreeWithMigration) {
+                final ConstantWithGeneFlow popModel = ((GeneTreeWithMigration) pDist).popModelInput.get();
+                if (!distinctPopModels.contains(popModel)) distinctPopModels.add(popModel);
+                geneTrees[geneI] = pDist;
+            } else { // check that all input distributions are gene trees
+                throw new IllegalArgumentException("Input distributions must all be of class GeneTreeWithMigration.");
+            }
+        }
+        popModels = distinctPopModels.toArray(new ConstantWithGeneFlow[0]);
+
+        // a pool from an earlier initialisation would otherwise keep its threads alive
+        if (genePool != null) genePool.shutdown();
+        final int geneThreads = geneThreadsInput.get();
+        genePool = geneThreads > 1 ? new ForkJoinPool(geneThreads) : null;
+    }
+
+    @Override
+    public double calculateLogP() {
+        if (genePool == null) return super.calculateLogP();
+
+        // bring the shared population models up to date before any gene tree reads them
+        for (ConstantWithGeneFlow popModel: popModels)
+            popModel.ensureIntervals();
+
+        // each gene tree only writes to its own slot of perGeneLogP
+        genePool.invoke(new GeneTask(0, nGeneTrees));
+
+        // sum in gene order so that the result does not depend on the number of threads
+        logP = 0.0;
+        for (int geneI = 0; geneI < nGeneTrees; geneI++) {
+            logP += perGeneLogP[geneI];
+            if (Double.isInfinite(logP) || Double.isNaN(logP)) return logP;
+        }
+
+        return logP;
+    }
+
+    private void updateGenes(final int fromGeneI, final int toGeneI) {
+        for (int geneI = fromGeneI; geneI < toGeneI; geneI++) {
+            final Distribution geneTree = geneTrees[geneI];
+            perGeneLogP[geneI] = geneTree.isDirtyCalculation() ? geneTree.calculateLogP() : geneTree.getCurrentLogP();
+        }
+    }
+
+    // recursively splits a range of gene trees until each task evaluates a single gene tree
+    private class GeneTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int fromGeneI;
+        private final int toGeneI;
+
+        GeneTask(final int fromGeneI, final int toGeneI) {
+            this.fromGeneI = fromGeneI;
+            this.toGeneI = toGeneI;
+        }
+
+        @Override
+        protected void compute() {
+            if (toGeneI - fromGeneI <= 1) {
+                updateGenes(fromGeneI, toGeneI);
+            } else {
+                final int midGeneI = (fromGeneI + toGeneI) >>> 1;
+                invokeAll(new GeneTask(fromGeneI, midGeneI), new GeneTask(midGeneI, toGeneI));
+            }
+        }
+    }
+}
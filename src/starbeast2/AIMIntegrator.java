@@ -0,0 +1,22 @@
+package starbeast2;
+
+/**
+ * Integrates the lineage state probabilities of the approximate isolation-with-migration model
+ * over an interval with no speciation or coalescent events. The last element of p accumulates
+ * the log probability of no coalescence over the interval.
+ */
+public interface AIMIntegrator {
+	/**
+	 * Set the rates and dimensions for the next interval, multiplicator, indicators and isConnected may be null
+	 */
+	void reset(int[] multiplicator, double[][] migration_rates, int[][] indicators, boolean[] isConnected, double[] coalescent_rates, int lineages, int states);
+
+	// integrate every state
+	void calculateValues(double duration, double[] p, int length);
+
+	// integrate only the connected states, lineages in other states stay where they are
+	void calculateConnectedValues(double duration, double[] p, int length);
+
+	// number of evaluations of the derivatives since the last reset
+	int getEvaluations();
+}
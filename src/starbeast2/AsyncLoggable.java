@@ -0,0 +1,16 @@
+package starbeast2;
+
+import beast.base.core.Loggable;
+
+/**
+ * A loggable which can copy the state it logs into a deferred NewickWriter on the MCMC thread, so that
+ * AsyncTreeLogger can format and write it on another thread. Flushing the snapshot must print exactly
+ * what log(sample, out) would have printed.
+ */
+public interface AsyncLoggable extends Loggable {
+    // A deferred writer for the snapshots of this loggable, which will be reused for many samples
+    NewickWriter newSnapshotWriter();
+
+    // Appends everything log(sample, out) would print for the current state to the writer
+    void snapshot(long sample, NewickWriter writer);
+}
@@ -0,0 +1,201 @@
+package starbeast2;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.inference.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Tree logger which formats and writes samples on a background thread. On the MCMC thread every
+ * AsyncLoggable only copies its state (the tree structure and the doubles to be logged) into one of a
+ * fixed number of reusable snapshots, and the writer thread formats the snapshots in the order they
+ * were taken. When every snapshot is waiting to be written, logging waits for the writer thread, so a
+ * slow disk slows the chain down instead of using more and more memory.
+ *
+ * The file is exactly the same as written by a plain tree logger. When resuming, and for screen
+ * logs, samples are logged synchronously by the plain logger.
+ */
+@Description("Tree logger which formats and writes samples on a background thread")
+public class AsyncTreeLogger extends Logger {
+    public Input<Integer> queueSizeInput = new Input<>("queueSize", "The number of samples which can wait to be written before the chain waits for the writer thread.", 16);
+
+    private List<Loggable> loggables;
+    private boolean async;
+
+    private BlockingQueue<Snapshot> freeSnapshots;
+    private BlockingQueue<Snapshot> pendingSnapshots;
+    private Thread writerThread;
+    private volatile Throwable writerError;
+
+    // taken by the writer thread after the last sample
+    private final Snapshot endOfLog = new Snapshot(null);
+
+    public AsyncTreeLogger() {
+        modeInput.setValue("tree", this);
+    }
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+        if (queueSizeInput.get() < 1)
+            throw new IllegalArgumentException("The queue size must be at least 1");
+
+        loggables = loggersInput.get();
+    }
+
+    @Override
+    public void init() throws IOException {
+        super.init();
+
+        async = fileNameInput.get() != null && modeInput.get() == LOGMODE.tree && Logger.FILE_MODE != LogFileMode.resume;
+        if (!async)
+            return;
+
+        final int queueSize = queueSizeInput.get();
+        freeSnapshots = new ArrayBlockingQueue<>(queueSize);
+        pendingSnapshots = new ArrayBlockingQueue<>(queueSize + 1);
+        for (int i = 0; i < queueSize; i++)
+            freeSnapshots.add(new Snapshot(loggables));
+
+        writerError = null;
+        writerThread = new Thread(this::writeSnapshots, "AsyncTreeLogger-" + fileNameInput.get());
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void log(long sample) {
+        if (!async) {
+            super.log(sample);
+            return;
+        }
+
+        if ((sample < 0) || (sample % everyInput.get() > 0))
+            return;
+        checkWriter();
+
+        try {
+            final Snapshot snapshot = freeSnapshots.take();
+            snapshot.take(sample);
+            pendingSnapshots.put(snapshot);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to log sample " + sample + " to " + fileNameInput.get(), e);
+        }
+    }
+
+    private void writeSnapshots() {
+        final PrintStream out = getM_out();
+        final StringBuilder line = new StringBuilder(1024);
+        while (true) {
+            final Snapshot snapshot;
+            try {
+                snapshot = pendingSnapshots.take();
+            } catch (InterruptedException e) {
+                writerError = e;
+                return;
+            }
+            if (snapshot == endOfLog)
+                return;
+
+            // after an error keep taking snapshots so that the chain never waits forever, and report it from log or close
+            if (writerError == null) {
+                try {
+                    snapshot.write(line, out);
+                } catch (Throwable e) {
+                    writerError = e;
+                }
+            }
+            freeSnapshots.add(snapshot);
+        }
+    }
+
+    private void checkWriter() {
+        if (writerError != null)
+            throw new RuntimeException("Could not write to " + fileNameInput.get(), writerError);
+    }
+
+    @Override
+    public void close() {
+        if (async) {
+            try {
+                pendingSnapshots.put(endOfLog);
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the samples to be written to " + fileNameInput.get(), e);
+            }
+            async = false;
+            checkWriter();
+        }
+        super.close();
+    }
+
+    /**
+     * The state of one sample, with one deferred writer for every AsyncLoggable. Other loggables are
+     * logged as text straight away.
+     */
+    private static final class Snapshot {
+        final List<Loggable> loggables;
+        final NewickWriter[] writers;
+        final ByteArrayOutputStream textBytes = new ByteArrayOutputStream();
+        final PrintStream text = new PrintStream(textBytes);
+
+        Snapshot(List<Loggable> loggables) {
+            this.loggables = loggables;
+            if (loggables == null) {
+                writers = null;
+                return;
+            }
+
+            writers = new NewickWriter[loggables.size()];
+            for (int i = 0; i < writers.length; i++) {
+                final Loggable loggable = loggables.get(i);
+                writers[i] = loggable instanceof AsyncLoggable ? ((AsyncLoggable) loggable).newSnapshotWriter() : new NewickWriter(-1);
+            }
+        }
+
+        void take(long sample) {
+            for (int i = 0; i < writers.length; i++) {
+                final Loggable loggable = loggables.get(i);
+                if (loggable instanceof AsyncLoggable) {
+                    ((AsyncLoggable) loggable).snapshot(sample, writers[i]);
+                } else {
+                    // like Logger.log, which reads everything the loggers print as ASCII
+                    loggable.log(sample, text);
+                    text.flush();
+                    try {
+                        writers[i].append(textBytes.toString("ASCII"));
+                    } catch (UnsupportedEncodingException e) {
+                        throw new RuntimeException("ASCII string encoding not supported: required for logging!");
+                    }
+                    textBytes.reset();
+                }
+            }
+        }
+
+        // prints the sample as one trimmed line, as Logger.log does
+        void write(StringBuilder line, PrintStream out) {
+            line.setLength(0);
+            for (NewickWriter writer: writers)
+                writer.flush(line);
+
+            int start = 0;
+            int end = line.length();
+            while (start < end && line.charAt(start) <= ' ')
+                start++;
+            while (end > start && line.charAt(end - 1) <= ' ')
+                end--;
+            out.append(line, start, end);
+            out.println();
+        }
+    }
+}
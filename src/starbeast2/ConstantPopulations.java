@@ -7,7 +7,6 @@ import beast.base.evolution.tree.Node;
 import beast.base.inference.CalculationNode;
 import beast.base.inference.parameter.RealParameter;
 
-import java.text.DecimalFormat;
 import java.util.Arrays;
 
 /**
@@ -41,9 +40,14 @@ public class ConstantPopulations extends CalculationNode implements PopulationMo
 
     @Override
     public double branchLogP(int speciesTreeNodeNumber, Node speciesTreeNode, double ploidy, double[] branchCoalescentTimes, int branchLineageCount, int branchEventCount) {
+        return branchLogP(speciesTreeNodeNumber, speciesTreeNode, ploidy, branchCoalescentTimes, 0, branchLineageCount, branchEventCount);
+    }
+
+    @Override
+    public double branchLogP(int speciesTreeNodeNumber, Node speciesTreeNode, double ploidy, double[] coalescentTimes, int timesOffset, int branchLineageCount, int branchEventCount) {
         final RealParameter popSizes = popSizesInput.get();
         final double popSize = popSizes.getValue(speciesTreeNodeNumber);
-        double logP = constantLogP(popSize, ploidy, branchCoalescentTimes, branchLineageCount, branchEventCount);
+        double logP = constantLogP(popSize, ploidy, coalescentTimes, timesOffset, branchLineageCount, branchEventCount);
 
         return logP;
     }
@@ -62,18 +66,12 @@ public class ConstantPopulations extends CalculationNode implements PopulationMo
     }
 
     @Override
-    public void serialize(Node speciesTreeNode, StringBuffer buf, DecimalFormat df) {
+    public void serialize(Node speciesTreeNode, NewickWriter writer) {
         final RealParameter popSizes = popSizesInput.get();
         final int speciesTreeNodeNumber = speciesTreeNode.getNr();
         final double branchPopSize = popSizes.getValue(speciesTreeNodeNumber);
 
-        buf.append("dmv={");
-        if (df == null) {
-            buf.append(branchPopSize);
-        } else {
-            buf.append(df.format(branchPopSize));
-        }
-        buf.append("}");
+        writer.append("dmv={").appendDouble(branchPopSize).append('}');
     }
 
     @Override
@@ -92,14 +90,14 @@ public class ConstantPopulations extends CalculationNode implements PopulationMo
         return speciesBranchStatus[speciesNode.getNr()];
     }
 
-    protected static double constantLogP(double popSize, double ploidy, double[] geneTimes, int geneN, int geneK) {
+    protected static double constantLogP(double popSize, double ploidy, double[] geneTimes, int t0, int geneN, int geneK) {
         double partialGamma = 0.0;
         for (int i = 0; i < geneK; i++) {
-            partialGamma += (geneTimes[i + 1] - geneTimes[i]) * (geneN - i) * (geneN - (i + 1.0)) / 2.0;
+            partialGamma += (geneTimes[t0 + i + 1] - geneTimes[t0 + i]) * (geneN - i) * (geneN - (i + 1.0)) / 2.0;
         }
         
         if (geneN - geneK > 1) {
-            partialGamma += (geneTimes[geneK + 1] - geneTimes[geneK]) * (geneN - geneK) * (geneN - (geneK + 1.0)) / 2.0;
+            partialGamma += (geneTimes[t0 + geneK + 1] - geneTimes[t0 + geneK]) * (geneN - geneK) * (geneN - (geneK + 1.0)) / 2.0;
         }
 
         final double branchGamma = partialGamma / ploidy;
@@ -24,7 +24,6 @@ import beast.base.inference.CalculationNode;
 import beast.base.inference.parameter.BooleanParameter;
 import beast.base.inference.parameter.RealParameter;
 
-import java.text.DecimalFormat;
 import java.util.*;
 
 /**
@@ -44,58 +43,88 @@ public class ConstantWithGeneFlow extends CalculationNode implements PopulationM
    
     SpeciesTreeInterface speciesTree;
     private MigrationModel migModel;
+
+    // scratch space for writing the migration rates of a node to a tree log
+    private int[] migrationTargets;
+    private double[] migrationTargetRates;
     private MigrationModel maxMigRatesModel;
     
-    private boolean needsUpdate = true;
+    // written by the MCMC thread, read by every gene tree evaluated in parallel
+    private volatile boolean needsUpdate = true;
+    private boolean storedNeedsUpdate = true;
+    // false if only the population sizes have changed since the intervals were last calculated
+    private boolean ratesNeedUpdate = true;
     private int leafNodeCount;
+    private int speciesNodeCount;
     
 	public int nrSamples;
 	
-	// save all the species (sample) names
-	private HashMap<String, Integer> speciesNames;
+	// node numbers sorted by height, i.e. the species tree node added at each interval
+	private int[] intervalNodes;
+	private int[] storedIntervalNodes;
+	// node numbers of the daughter lineages removed at each interval, -1 at sampling events
+	private int[] removedLeft;
+	private int[] removedRight;
+	private int[] storedRemovedLeft;
+	private int[] storedRemovedRight;
 	
-	// maps states to node numbers
-	public ArrayList<ArrayList<Integer>> stateToNodeMap;
-	private ArrayList<ArrayList<Integer>> storedStateToNodeMap;
+	// maps states to node numbers, stateToNode[speciesInterval][state]
+	private int[][] stateToNode;
+	private int[][] storedStateToNode;
+	// maps node numbers to states (-1 if not present), nodeToState[speciesInterval][nodeNr]
+	private int[][] nodeToState;
+	private int[][] storedNodeToState;
 	
-	// maps branches migration rates
-	public ArrayList<Integer[]> migrationMap;
-	private ArrayList<Integer[]> storedMigrationMap;
+	// index of the migration rate element from node a to node b at a * speciesNodeCount + b,
+	// -1 if the two nodes never co-exist
+	private int[] migrationIndex;
+	private int[] storedMigrationIndex;
 	
-	//  get the indices of the daughter lineages at the last coalescent event
-	private int daughterIndex1, daughterIndex2;	
+	// connected[speciesInterval][nodeNr]
+	private boolean[][] connected;
+	private boolean[][] storedConnected;
 	
-	private ArrayList<Boolean[]> connected;
-	private ArrayList<Boolean[]> storedConnected;
+	// the rates, population sizes, connections and coalescent rates of the states of each interval are fresh arrays
+	// each time they are calculated and never modified afterwards, so every gene tree can share them by reference
+	private double[][][] migrationRates;
+	private double[][][] storedMigrationRates;
+	private double[][] popSizes;
+	private double[][] storedPopSizes;
+	private boolean[][] connectedStates;
+	private boolean[][] storedConnectedStates;
+	// coalescentRates[ploidyIndex][speciesInterval][state], for the ploidy of each gene tree
+	private double[] ploidies = new double[0];
+	private double[][][] coalescentRates = new double[0][][];
+	private double[][][] storedCoalescentRates = new double[0][][];
+	private int[][][] indicators;
+	private int[][][] storedIndicators;
 	
-	private ArrayList<DoubleArrayForList> migrationRates;
-	private ArrayList<IntegerArrayForList> indicators;
-	private ArrayList<DoubleArrayForList> storedMigrationRates;
-	private ArrayList<IntegerArrayForList> storedIndicators;
+	// migration rate generators for the exact solver, only built once a gene tree asks for them
+	private boolean buildGenerators = false;
+	private double[][] generators;
+	private double[][] storedGenerators;
 	
 	private boolean migrationRatesValid = false;
 	private boolean storedMigrationRatesValid = false;
 	
-	
-
+	// scratch space for walking through the intervals, connectivity matrices have a stride of leafNodeCount
+	private int[] activeStates;
+	private boolean[] isConnected;
+	private boolean[] newIsConnected;
 	
     protected double[] intervals;
     protected double[] storedIntervals;
     protected boolean[] isCoalescent;
     protected boolean[] storedIsCoalescent;
 
-    final static NodeHeightComparator nhc = new NodeHeightComparator();
-    
-    /**
-     * parent and daugheter lineages at each coalescent event
-     */
-    protected List<Node>[] lineagesAdded;
-    protected List<Node>[] lineagesRemoved;
-    protected List<Node>[] storedLineagesAdded;
-    protected List<Node>[] storedLineagesRemoved;
-
     @Override
     public boolean requiresRecalculation() {
+        // the population sizes are not used by the species intervals, migration rates or connections
+        final boolean onlyPopSizes = !speciesTree.somethingIsDirty() && !mInput.get().somethingIsDirty()
+        		&& (indicatorInput.get() == null || !indicatorInput.get().somethingIsDirty()) && !migModel.isDirtyCalculation()
+        		&& (maxMigRatesModel == null || !maxMigRatesModel.isDirtyCalculation());
+        if (!onlyPopSizes)
+        	ratesNeedUpdate = true;
         needsUpdate = true;
         return needsUpdate;
     }
@@ -109,7 +138,7 @@ public class ConstantWithGeneFlow extends CalculationNode implements PopulationM
     		maxMigRatesModel = maxMigrationModelInput.get();
     	
         speciesTree = migModel.speciesTreeInput.get();
-        final int speciesNodeCount = speciesTree.getNodeCount();
+        speciesNodeCount = speciesTree.getNodeCount();
         leafNodeCount = speciesTree.getLeafNodeCount(); // also the number of "tip" population sizes
         NeInput.get().setDimension(2*leafNodeCount-1);
         mInput.get().setDimension((leafNodeCount-1)*(leafNodeCount-1)*2);
@@ -120,371 +149,337 @@ public class ConstantWithGeneFlow extends CalculationNode implements PopulationM
 
         // make sure we are not in BEAUti
         if (speciesNodeCount != 1) {
+        	allocateIntervals();
 			// Calculate the tree intervals (time between events, which nodes participate at a event etc.)
 			calculateIntervals();
 		}
     }
     
+    // the number of intervals and states is fixed by the number of species, so everything is allocated once
+    private void allocateIntervals() {
+    	intervals = new double[speciesNodeCount];
+    	storedIntervals = new double[speciesNodeCount];
+    	isCoalescent = new boolean[speciesNodeCount];
+    	storedIsCoalescent = new boolean[speciesNodeCount];
+    	intervalNodes = new int[speciesNodeCount];
+    	storedIntervalNodes = new int[speciesNodeCount];
+    	removedLeft = new int[speciesNodeCount];
+    	removedRight = new int[speciesNodeCount];
+    	storedRemovedLeft = new int[speciesNodeCount];
+    	storedRemovedRight = new int[speciesNodeCount];
+
+    	stateToNode = new int[leafNodeCount][];
+    	storedStateToNode = new int[leafNodeCount][];
+    	nodeToState = new int[leafNodeCount][speciesNodeCount];
+    	storedNodeToState = new int[leafNodeCount][speciesNodeCount];
+    	migrationRates = new double[leafNodeCount][][];
+    	storedMigrationRates = new double[leafNodeCount][][];
+    	popSizes = new double[leafNodeCount][];
+    	storedPopSizes = new double[leafNodeCount][];
+    	connectedStates = new boolean[leafNodeCount][];
+    	storedConnectedStates = new boolean[leafNodeCount][];
+    	for (int i = 0; i < leafNodeCount; i++) {
+    		stateToNode[i] = new int[leafNodeCount - i];
+    		storedStateToNode[i] = new int[leafNodeCount - i];
+    	}
+    	indicators = new int[leafNodeCount][][];
+    	storedIndicators = new int[leafNodeCount][][];
+    	generators = new double[leafNodeCount][];
+    	storedGenerators = new double[leafNodeCount][];
+    	connected = new boolean[leafNodeCount][speciesNodeCount];
+    	storedConnected = new boolean[leafNodeCount][speciesNodeCount];
+
+    	migrationIndex = new int[speciesNodeCount * speciesNodeCount];
+    	storedMigrationIndex = new int[speciesNodeCount * speciesNodeCount];
+
+    	activeStates = new int[speciesNodeCount];
+    	isConnected = new boolean[leafNodeCount * leafNodeCount];
+    	newIsConnected = new boolean[leafNodeCount * leafNodeCount];
+    }
+    
+    // is there a non-zero migration rate from one node to another
+    private boolean isIndicated(int fromNode, int toNode) {
+    	final int k = migrationIndex[fromNode * speciesNodeCount + toNode];
+    	return k >= 0 && indicatorInput.get().getArrayValue(k) > 0.5;
+    }
+    
+    // removes a node from the active states, preserving the order of the remaining states
+    private int removeActiveState(int activeCount, int nodeNr) {
+    	int k = 0;
+    	while (activeStates[k] != nodeNr) k++;
+    	System.arraycopy(activeStates, k + 1, activeStates, k, activeCount - k - 1);
+    	return activeCount - 1;
+    }
+    
+    private int indexOfActiveState(int activeCount, int nodeNr) {
+    	for (int k = 0; k < activeCount; k++)
+    		if (activeStates[k] == nodeNr) return k;
+    	return -1;
+    }
+    
+    // where a state ends up after the daughter states minInd and maxInd are merged and appended
+    private static int mergedIndex(int a, int minInd, int maxInd, int activeCount) {
+    	if (a < minInd)
+    		return a;
+    	else if (a == minInd || a == maxInd)
+    		return activeCount - 2;
+    	else if (a < maxInd)
+    		return a - 1;
+    	else
+    		return a - 2;
+    }
+    
     public void checkConnections(){
-//    	System.out.println(stateToNodeMap);
-//    	System.out.println(speciesTree);
-    	connected = new ArrayList<>();
-        // check the connectivity for 
-        ArrayList<Boolean[][]> isConnectedList = new ArrayList<>();
-        
-    	ArrayList<Integer> activeStates = new ArrayList<>();
-    	
-    	int currentInterval = 0;
-    	boolean firstCoalescent = true;
-    	Boolean[][] isConnected = new Boolean[0][0];
-    	for (int i = 0; i < intervals.length; i++){
-    		if (isCoalescent[i]){
-    			if(firstCoalescent){
-    		    	isConnected = new Boolean[activeStates.size()][activeStates.size()];
-    		    	for (int a = 0; a < activeStates.size(); a++)
-    		    		for (int b = 0; b < activeStates.size(); b++)
-    		    			isConnected[a][b] = false;
-    		    	getInitialConnectedStates(activeStates, currentInterval, isConnected);
-    		    	getConnectedStates(isConnected, activeStates);
-    				firstCoalescent = false;
+    	int activeCount = 0;
+    	int a = 0;
+    	while (!isCoalescent[a])
+    		activeStates[activeCount++] = intervalNodes[a++];
+
+    	// check migration between any two states
+    	for (int x = 0; x < activeCount; x++)
+    		for (int y = 0; y < activeCount; y++)
+    			isConnected[x * leafNodeCount + y] = x != y && isIndicated(activeStates[x], activeStates[y]);
+    	getConnectedStates(0, activeCount);
+
+    	int speciesInterval = 0;
+    	while (a < intervals.length) {
+    		// get the correct order of indices
+    		final int ind1 = indexOfActiveState(activeCount, removedLeft[a]);
+    		final int ind2 = indexOfActiveState(activeCount, removedRight[a]);
+    		final int minInd = Math.min(ind1, ind2);
+    		final int maxInd = Math.max(ind1, ind2);
+
+    		// add all connections of the preexisting and the daughter species
+    		Arrays.fill(newIsConnected, false);
+    		for (int x = 0; x < activeCount; x++) {
+    			final int xVal = mergedIndex(x, minInd, maxInd, activeCount);
+    			for (int y = 0; y < activeCount; y++) {
+    				if (isConnected[x * leafNodeCount + y])
+    					newIsConnected[xVal * leafNodeCount + mergedIndex(y, minInd, maxInd, activeCount)] = true;
     			}
-    			// get the added and removed lineages
-    			List<Node> lins = lineagesRemoved[i];
-    			int ind1 = activeStates.indexOf(lins.get(0).getNr());
-    			int ind2 = activeStates.indexOf(lins.get(1).getNr());
-    			// get the correct order of indices
-    			int min_ind = Math.min(ind1,  ind2);
-    			int max_ind = Math.max(ind1,  ind2);
-		    	Boolean[][] new_isConnected = new Boolean[activeStates.size()-1][activeStates.size()-1];
-		    	for (int a = 0; a < activeStates.size()-1; a++)
-		    		for (int b = 0; b < activeStates.size()-1; b++)
-		    			new_isConnected[a][b] = false;
-
-		    	
-		    	// add all connections of the preexisting and the daughter species
-		    	int a_val,b_val;
-		    	for (int a = 0; a < activeStates.size(); a++){
-    				if (a<min_ind){
-    					a_val = a;
-    				}else if(a==min_ind){
-    					a_val = activeStates.size()-2;
-    				}else if(a>min_ind && a<max_ind){
-    					a_val = a-1;
-    				}else if(a==max_ind){
-    					a_val = activeStates.size()-2;   					
-    				}else{
-    					a_val = a-2;
-    				}
-		    		for (int b = 0; b < activeStates.size(); b++){
-	    				if (b<min_ind){
-	    					b_val = b;
-	    				}else if(b==min_ind){
-	    					b_val = activeStates.size()-2;
-	    				}else if(b>min_ind && b<max_ind){
-	    					b_val = b-1;
-	    				}else if(b==max_ind){
-	    					b_val = activeStates.size()-2;   					
-	    				}else{
-	    					b_val = b-2;
-	    				}
-	    				if (isConnected[a][b])
-	    					new_isConnected[a_val][b_val] = true;
-		    		}
-		    	}
-		    	// remove daughter lineages
-    			activeStates.remove(max_ind);
-    			activeStates.remove(min_ind);
-		    	
-		    	// get the parent lineage
-		    	int par_lin = lins.get(1).getParent().getNr();
-		    	// find potential connections of the parent lineage
-	    		for (int a = 0; a < activeStates.size(); a++){
-    				if (a!=par_lin){					
-    					for (int c = 0; c < migrationMap.size(); c++){
-    						if (migrationMap.get(c)[0]==activeStates.get(a)
-    								&& migrationMap.get(c)[1]==par_lin){
-    							if(indicatorInput.get().getArrayValue(c) > 0.5)
-    								new_isConnected[a][activeStates.size()] = true;
-    						}
-    					}
-    					for (int c = 0; c < migrationMap.size(); c++){
-    						if (migrationMap.get(c)[0]==par_lin
-    								&& migrationMap.get(c)[1]==activeStates.get(a)){
-    							if(indicatorInput.get().getArrayValue(c) > 0.5)
-    								new_isConnected[activeStates.size()][a] = true;
-    						}
-    					}
+    		}
 
-    				}
-	    			
-	    		}
-				isConnectedList.add(new_isConnected);
-				isConnected = new_isConnected;    			    			
-    			activeStates.add(par_lin);
-    			
-//		    	System.out.println(Arrays.toString(isConnected[0]));
-//		    	System.out.println(Arrays.toString(isConnected[1]));
+    		// remove daughter lineages
+    		activeCount = removeActiveState(activeCount, removedLeft[a]);
+    		activeCount = removeActiveState(activeCount, removedRight[a]);
+
+    		// find potential connections of the parent lineage
+    		final int parent = intervalNodes[a];
+    		for (int x = 0; x < activeCount; x++) {
+    			if (isIndicated(activeStates[x], parent))
+    				newIsConnected[x * leafNodeCount + activeCount] = true;
+    			if (isIndicated(parent, activeStates[x]))
+    				newIsConnected[activeCount * leafNodeCount + x] = true;
+    		}
+    		activeStates[activeCount++] = parent;
 
-    			
-		    	getConnectedStates(isConnected, activeStates);
-    			
-    			currentInterval++;
+    		final boolean[] tmp = isConnected;
+    		isConnected = newIsConnected;
+    		newIsConnected = tmp;
 
-    			
-    		}else{
-    			activeStates.add(lineagesAdded[i].get(0).getNr());
-    		}
+    		speciesInterval++;
+    		getConnectedStates(speciesInterval, activeCount);
+    		a++;
     	}
-    	
-//    	System.out.println("");
-//    	for (int i = 0; i < connected.size(); i++)
-//    		System.out.println(Arrays.toString(connected.get(i)));
-
-    	
-    }
-    
-    private void getInitialConnectedStates(ArrayList activeStates, int currentInterval, Boolean[][] isConnected){
-    	
-		// check migration between any two states
-		for (int a = 0; a < activeStates.size(); a++){
-			for (int b = 0; b < activeStates.size(); b++){
-				if (a!=b){					
-					for (int c = 0; c < migrationMap.size(); c++){
-						if (migrationMap.get(c)[0]==activeStates.get(a)
-								&& migrationMap.get(c)[1]==activeStates.get(b)){
-							if(indicatorInput.get().getArrayValue(c) > 0.5){
-								isConnected[a][b] = true;
-							}
-						}
-					}
-				}
-			}
-		}
     }
     
-    
-    private void getConnectedStates(Boolean[][] isConnected, ArrayList<Integer> activeStates){
-    	Boolean[] con = new Boolean[speciesTree.getNodeCount()];
-    	for (int a = 0; a < con.length; a++)
-    		con[a] = false;
-    	for (int a = 0; a < isConnected.length; a++){
-    		for (int b = 0; b < isConnected.length; b++){
-    			if (a!=b){
-	    			if (isConnected[a][b]){
-	    				con[activeStates.get(a)] = true;
-	    				con[activeStates.get(b)] = true;
-	    			}
+    private void getConnectedStates(int speciesInterval, int activeCount){
+    	final boolean[] con = connected[speciesInterval];
+    	Arrays.fill(con, false);
+    	for (int x = 0; x < activeCount; x++){
+    		for (int y = 0; y < activeCount; y++){
+    			if (x != y && isConnected[x * leafNodeCount + y]){
+    				con[activeStates[x]] = true;
+    				con[activeStates[y]] = true;
     			}
     		}
     	}
-    	connected.add(con);
-    	
     }
     
-    @SuppressWarnings({ "unchecked", "deprecation" })
-	public void calculateIntervals() {
-    	Node[] speciesNodesTmp = speciesTree.getNodesAsArray();
-    	Node[] speciesNodes = new Node[speciesNodesTmp.length];
-    	// make a deep copy of every node
-    	for (int i = 0; i < speciesNodesTmp.length; i++)
-    		speciesNodes[i] = speciesNodesTmp[i].copy();
+	// the interval arrays are filled in place, so concurrent readers must wait until they are complete
+	void ensureIntervals() {
+		if (needsUpdate) {
+			synchronized (this) {
+				if (needsUpdate)
+					calculateIntervals();
+			}
+		}
+	}
 
-    	
-    	Arrays.sort(speciesNodes, nhc);
-    	
-        intervals = new double[speciesNodes.length];
-        isCoalescent = new boolean[speciesNodes.length];
-        lineagesAdded = new List[speciesNodes.length];
-        lineagesRemoved = new List[speciesNodes.length];
-        
-        ArrayList<Node> initAL = new ArrayList<>(); 
-        intervals[0] = speciesNodes[0].getHeight();
-        lineagesAdded[0] = new ArrayList<>(); 
-		lineagesAdded[0].add(speciesNodes[0].copy());
-		isCoalescent[0] = false;
-		lineagesRemoved[0] = new ArrayList<>(); 
-		lineagesRemoved[0].add(null);
-		lineagesRemoved[0].add(null);    		  			
-		for (int i = 1; i < speciesNodes.length; i++){
-    		intervals[i] = speciesNodes[i].getHeight()-speciesNodes[i-1].getHeight();
-            lineagesAdded[i] = new ArrayList<>(); 
-    		lineagesAdded[i].add(speciesNodes[i].copy());
-    		if (!speciesNodes[i].isLeaf()){
-    			isCoalescent[i] = true;
-    			lineagesRemoved[i] = new ArrayList<>(); 
-	    		lineagesRemoved[i].add(speciesNodes[i].getLeft().copy());
-	    		lineagesRemoved[i].add(speciesNodes[i].getRight().copy()); 
-	    		lineagesRemoved[i].get(0).setParent(lineagesAdded[i].get(0));
-	    		lineagesRemoved[i].get(1).setParent(lineagesAdded[i].get(0));
-    		}else{
-    			isCoalescent[i] = false;
-    			lineagesRemoved[i] = new ArrayList<>(); 
-	    		lineagesRemoved[i].add(null);
-	    		lineagesRemoved[i].add(null);    		  			
-    		}
-    	}   
+	public synchronized void calculateIntervals() {
+		if (intervalNodes == null)
+			allocateIntervals();
+		else if (!ratesNeedUpdate) {
+			precomputePopulationSizes();
+			needsUpdate = false;
+			return;
+		}
+
+		final Node[] speciesNodes = speciesTree.getNodesAsArray();
+
+		// sort the node numbers by height, ties are broken by node number
+		for (int i = 0; i < speciesNodeCount; i++) {
+			final double height = speciesNodes[i].getHeight();
+			int j = i;
+			while (j > 0) {
+				final double previousHeight = speciesNodes[intervalNodes[j - 1]].getHeight();
+				if (previousHeight < height || (previousHeight == height && intervalNodes[j - 1] < i)) break;
+				intervalNodes[j] = intervalNodes[j - 1];
+				j--;
+			}
+			intervalNodes[j] = i;
+		}
+
+		double previousHeight = 0.0;
+		for (int i = 0; i < speciesNodeCount; i++) {
+			final Node node = speciesNodes[intervalNodes[i]];
+			intervals[i] = node.getHeight() - previousHeight;
+			previousHeight = node.getHeight();
+			if (node.isLeaf()) {
+				isCoalescent[i] = false;
+				removedLeft[i] = -1;
+				removedRight[i] = -1;
+			} else {
+				isCoalescent[i] = true;
+				removedLeft[i] = node.getLeft().getNr();
+				removedRight[i] = node.getRight().getNr();
+			}
+		}
     	
     	stateToNodeMap();
     	preComputeMigrationRates();
         if (indicatorInput.get()!=null)
         	checkConnections();
+        precomputeConnectedStates();
+        precomputePopulationSizes();
         
     	precomputeMaxRates();
 
+    	ratesNeedUpdate = false;
     	needsUpdate = false;
-        
-        
-
     }
     
-	// builds the map from state to node number
-    public void stateToNodeMap(){
-    	stateToNodeMap = new ArrayList<>();
-    	ArrayList<Integer> activeStates = new ArrayList<>();
-	
-    	boolean firstCoalescent = true;
-    	for (int i = 0; i < intervals.length; i++){
-    		if (isCoalescent[i]){
-    			if(firstCoalescent){
-    				// sort sampled lineages
-    				Collections.sort(activeStates);
-    				ArrayList<Integer> addList = new ArrayList<>(activeStates);
-    				stateToNodeMap.add(addList);
-    				firstCoalescent = false;
-    			}
-			
-    			// get the added and removed lineages
-    			List<Node> lins = lineagesRemoved[i];
-    			activeStates.remove(activeStates.indexOf(lins.get(0).getNr()));
-    			activeStates.remove(activeStates.indexOf(lins.get(1).getNr()));
-    			if (lins.get(1).getParent().getNr() != lins.get(0).getParent().getNr()){
-    				System.err.println("lineages don't have the same parent");
-    				System.exit(0);
-    			}
-    			if (lins.get(1).getParent().getNr() != lineagesAdded[i].get(0).getNr()){
-    				System.out.println(lins.get(1).getParent().getNr() + " " + lineagesAdded[i].get(0).getNr());
-    				System.err.println("wrong lineage added");  				
-    			}
-    			
-    			activeStates.add(lins.get(1).getParent().getNr());
-				ArrayList<Integer> addList = new ArrayList<>(activeStates);
-				stateToNodeMap.add(addList);
-    		}else{
-    			activeStates.add(lineagesAdded[i].get(0).getNr());
+    private void precomputeConnectedStates(){
+    	final boolean useIndicators = indicatorInput.get() != null;
+    	for (int i = 0; i < stateToNode.length; i++){
+    		final int[] states = stateToNode[i];
+    		final boolean[] con = new boolean[states.length];
+    		for (int a = 0; a < states.length; a++)
+    			con[a] = !useIndicators || connected[i][states[a]];
+    		connectedStates[i] = con;
+    	}
+    }
+    
+    private void precomputePopulationSizes(){
+    	final RealParameter Ne = NeInput.get();
+    	final double NeMean = NeMeanInput.get() != null ? NeMeanInput.get().getValue() : 1.0;
+    	for (int i = 0; i < stateToNode.length; i++){
+    		final int[] states = stateToNode[i];
+    		final double[] sizes = new double[states.length];
+    		for (int a = 0; a < states.length; a++)
+    			sizes[a] = NeMeanInput.get() != null ? NeMean*Ne.getArrayValue(states[a]) : Ne.getArrayValue(states[a]);
+    		popSizes[i] = sizes;
+
+    		for (int p = 0; p < ploidies.length; p++){
+    			final double[] rates = new double[states.length];
+    			for (int a = 0; a < states.length; a++)
+    				rates[a] = 1/(ploidies[p]*sizes[a]);
+    			coalescentRates[p][i] = rates;
     		}
     	}
-    	migrationMap = new ArrayList<>();
-    	migrationRates = new ArrayList<>();
-    	
-    	int migrationRatePoint = 0;
-    	
-    	// get the migration map for each interval
-    	activeStates = new ArrayList<>();
+    }
+    
+	// builds the map from state to node number and the map from migration routes to rate elements
+    public void stateToNodeMap(){
+    	int activeCount = 0;
     	int a = 0;
-    	while (!isCoalescent[a]){
-			activeStates.add(lineagesAdded[a].get(0).getNr());
-    		a++;
-    	}    	
+    	while (!isCoalescent[a])
+    		activeStates[activeCount++] = intervalNodes[a++];
     	// sorting ensures the correct order of migration rate elements
-    	Collections.sort(activeStates);
-    	
-    	
-    	for (int i = 0; i < activeStates.size(); i++){
-    		for (int j = 0; j < activeStates.size(); j++){
-    			if (i!=j){    			
-    				Integer[] migroute = new Integer[]{activeStates.get(i), activeStates.get(j)};
-    				migrationMap.add(migroute);
-    				
-    			}
-    		}
-    	}
-    	
+    	Arrays.sort(activeStates, 0, activeCount);
+
+    	Arrays.fill(migrationIndex, -1);
+    	int route = 0;
+    	for (int i = 0; i < activeCount; i++)
+    		for (int j = 0; j < activeCount; j++)
+    			if (i != j)
+    				migrationIndex[activeStates[i] * speciesNodeCount + activeStates[j]] = route++;
+    	setStates(0, activeCount);
+
+    	int speciesInterval = 0;
     	while (a < intervals.length){
-    		int parent = lineagesAdded[a].get(0).getNr();
-    		activeStates.add(parent);
-    		int d1 = activeStates.indexOf(lineagesRemoved[a].get(0).getNr());
-    		activeStates.remove(d1);
-    		int d2 = activeStates.indexOf(lineagesRemoved[a].get(1).getNr());
-    		activeStates.remove(d2);	
-        	for (int j = 0; j < activeStates.size()-1; j++){
-				Integer[] migroute = new Integer[]{activeStates.get(j), parent};
-				migrationMap.add(migroute);
-        	}
-        	for (int j = 0; j < activeStates.size()-1; j++){
-				Integer[] migroute = new Integer[]{parent, activeStates.get(j)};
-				migrationMap.add(migroute);
-        	}
+    		final int parent = intervalNodes[a];
+    		activeCount = removeActiveState(activeCount, removedLeft[a]);
+    		activeCount = removeActiveState(activeCount, removedRight[a]);
+        	for (int j = 0; j < activeCount; j++)
+        		migrationIndex[activeStates[j] * speciesNodeCount + parent] = route++;
+        	for (int j = 0; j < activeCount; j++)
+        		migrationIndex[parent * speciesNodeCount + activeStates[j]] = route++;
+        	activeStates[activeCount++] = parent;
+
+        	speciesInterval++;
+        	setStates(speciesInterval, activeCount);
         	a++;
     	}
     }
     
+    private void setStates(int speciesInterval, int activeCount) {
+    	final int[] states = stateToNode[speciesInterval];
+    	final int[] nodeStates = nodeToState[speciesInterval];
+    	Arrays.fill(nodeStates, -1);
+    	for (int k = 0; k < activeCount; k++) {
+    		states[k] = activeStates[k];
+    		nodeStates[activeStates[k]] = k;
+    	}
+    }
+    
     private void preComputeMigrationRates(){
-    	indicators = new ArrayList<>();
-    	migrationRates = new ArrayList<>();
-    	// get the correct mapping of migration rates
-    	//TODO speed up that thing
-    	for (int i = 0; i < stateToNodeMap.size(); i++){
-    		int[][] mRateMapping = new int[stateToNodeMap.get(i).size()][stateToNodeMap.get(i).size()];
-    		for (int a = 0; a < mRateMapping.length; a++){
-    			for (int b = 0; b < mRateMapping.length; b++){
-    				for (int k = 0; k< migrationMap.size(); k++){
-    					if (migrationMap.get(k)[0]==stateToNodeMap.get(i).get(a) 
-    							&& migrationMap.get(k)[1]==stateToNodeMap.get(i).get(b)){
-    						mRateMapping[a][b] = k;
+    	final RealParameter m = mInput.get();
+    	final boolean useIndicators = indicatorInput.get() != null;
+    	for (int i = 0; i < stateToNode.length; i++){
+    		final int[] states = stateToNode[i];
+    		final double[][] rates = new double[states.length][states.length];
+    		int indicatorCount = 0;
+    		for (int a = 0; a < states.length; a++){
+    			for (int b = 0; b < states.length; b++){
+    				if (a == b || (useIndicators && !isIndicated(states[a], states[b])))
+    					continue;
+
+    				final int k = migrationIndex[states[a] * speciesNodeCount + states[b]];
+    				rates[a][b] = migModel.getMigration(states[a], states[b]) * m.getArrayValue(k);
+    				indicatorCount++;
+    			}
+    		}
+    		migrationRates[i] = rates;
+
+    		// build the indicators list, a fresh array each time so stored lists can be kept by reference
+    		if (useIndicators){
+    			final int[][] indicatorList = new int[indicatorCount][2];
+    			int c = 0;
+    			for (int a = 0; a < states.length; a++){
+    				for (int b = 0; b < states.length; b++){
+    					if (a != b && isIndicated(states[a], states[b])){
+    						indicatorList[c][0] = a;
+    						indicatorList[c][1] = b;
+    						c++;
     					}
     				}
     			}
+    			indicators[i] = indicatorList;
     		}
-    		
-    		// build the indicators list
-    		if (indicatorInput.get()!=null){
-	        	ArrayList<Integer[]> indicatorList = new ArrayList<>();
-	        	for (int a = 0; a < mRateMapping.length; a++){
-	    			for (int b = 0; b < mRateMapping.length; b++){
-	    				if (a!=b){
-		    				if(indicatorInput.get().getArrayValue(mRateMapping[a][b]) > 0.5){
-		    					Integer[] add={a,b};
-		    					indicatorList.add(add);
-		    				}
-	    				}
-	    			}
-	    		}
-	        	IntegerArrayForList indicators_array = new IntegerArrayForList(indicatorList.size());
-	    		for (int a = 0; a < indicatorList.size(); a++){
-	    			indicators_array.setValue(a, indicatorList.get(a)[0], indicatorList.get(a)[1]);
-	    		}  
-	    		indicators.add(indicators_array);
-	    		
-	    		// also add migration rates
-	    		DoubleArrayForList migration_array = new DoubleArrayForList(mRateMapping.length);
-	    		for (int a = 0; a < indicatorList.size(); a++){
-	    			int x_c = indicators_array.getValue(a, 0);
-	    			int y_c = indicators_array.getValue(a, 1);
-	    			migration_array.setValue(x_c, y_c, migModel.getMigration(stateToNodeMap.get(i).get(x_c) , stateToNodeMap.get(i).get(y_c))
-	    					* mInput.get().getArrayValue(mRateMapping[x_c][y_c]));
-	    		}
-	    		migrationRates.add(migration_array);
-	    				
-    		}else{
-	    		DoubleArrayForList migration_array = new DoubleArrayForList(mRateMapping.length);
-	        	for (int a = 0; a < mRateMapping.length; a++){
-	    			for (int b = 0; b < mRateMapping.length; b++){
-	    				if (a!=b){
-	    					migration_array.setValue(a, b, migModel.getMigration(stateToNodeMap.get(i).get(a) , stateToNodeMap.get(i).get(b))
-	    							* mInput.get().getArrayValue(mRateMapping[a][b]));
-	    				}
-	    			}
-	    		}    
-	    		migrationRates.add(migration_array);
+
+    		// also a fresh array each time
+    		if (buildGenerators){
+    			final double[] generator = new double[states.length * states.length];
+    			HybridAIM.migrationGenerator(rates, states.length, generator);
+    			generators[i] = generator;
     		}
     	}
-    	
     }
     
     // get the time of the next speciation event
     protected double getNextSpeciationTime(int currTreeInterval){
-    	if (needsUpdate)
-    		calculateIntervals();
+    	ensureIntervals();
     	
     	if (currTreeInterval >= intervals.length)
     		return Double.POSITIVE_INFINITY;
@@ -495,8 +490,7 @@ public class ConstantWithGeneFlow extends CalculationNode implements PopulationM
    
     // return the number of internal nodes
     protected int getIntNodes(){
-    	if (needsUpdate)
-    		calculateIntervals();
+    	ensureIntervals();
 
     	return nrSamples-1;
     }
@@ -504,129 +498,144 @@ public class ConstantWithGeneFlow extends CalculationNode implements PopulationM
 
     // get the effective population size of a state in the current interval
     public double getPopulationSize(int currentInterval, int state){
-    	if (needsUpdate)
-    		calculateIntervals();
+    	ensureIntervals();
     	
-    	if (NeMeanInput.get()!=null)
-    		return NeMeanInput.get().getValue()*NeInput.get().getArrayValue(
-        			stateToNodeMap.get(currentInterval-getNumberOfSpecies()).get(state));
-    	else
-    		return NeInput.get().getArrayValue(
-    			stateToNodeMap.get(currentInterval-getNumberOfSpecies()).get(state));
+    	return popSizes[currentInterval-getNumberOfSpecies()][state];
+    }
+    
+    // the population sizes of all states of an interval, must not be modified
+    public double[] getPopulationSizes(int currentInterval){
+    	ensureIntervals();
+
+    	return popSizes[currentInterval-getNumberOfSpecies()];
     }
     
     public boolean getIsConnected(int currentInterval, int state){
-    	if (needsUpdate)
-    		calculateIntervals();
-
-        if (indicatorInput.get()!=null)      
-        	return connected.get(currentInterval-getNumberOfSpecies())[
-    			stateToNodeMap.get(currentInterval-getNumberOfSpecies()).get(state)];
-        else
-        	return true;
+    	ensureIntervals();
+
+    	return connectedStates[currentInterval-getNumberOfSpecies()][state];
+    }
+    
+    // whether each state of an interval is connected (always true without indicators), must not be modified
+    public boolean[] getConnectedStates(int currentInterval){
+    	ensureIntervals();
+
+    	return connectedStates[currentInterval-getNumberOfSpecies()];
+    }
+    
+    // the coalescent rates 1/(ploidy*Ne) of all states of an interval, must not be modified
+    public double[] getCoalescentRates(int currentInterval, int ploidyIndex){
+    	ensureIntervals();
+
+    	return coalescentRates[ploidyIndex][currentInterval-getNumberOfSpecies()];
+    }
+    
+    // coalescent rates are calculated once per interval for each distinct ploidy, returns the index of this ploidy
+    public synchronized int registerPloidy(double ploidy){
+    	for (int p = 0; p < ploidies.length; p++)
+    		if (ploidies[p] == ploidy)
+    			return p;
+
+    	final int p = ploidies.length;
+    	ploidies = Arrays.copyOf(ploidies, p + 1);
+    	ploidies[p] = ploidy;
+    	coalescentRates = Arrays.copyOf(coalescentRates, p + 1);
+    	coalescentRates[p] = new double[leafNodeCount][];
+    	storedCoalescentRates = Arrays.copyOf(storedCoalescentRates, p + 1);
+    	storedCoalescentRates[p] = new double[leafNodeCount][];
+    	needsUpdate = true;
+    	return p;
     }
     
     public int getIsNodeConnected(int nodeNr){
-    	if (needsUpdate)
-    		calculateIntervals();
+    	ensureIntervals();
 
-    	for (int i =0; i < connected.size();i++)
-    		if (connected.get(i)[nodeNr])
+    	for (int i =0; i < connected.length;i++)
+    		if (connected[i][nodeNr])
     			return 1;
     			
     	return 0;
     }
     
-    
-//    migrationRates
-//    
-//    private void computeAllMigrationRates(){
-//    	
-//    }
-//    
-//    private double[][] getAllMigrationRates(){
-//    	
-//    }
-    
     // faster way to return migration rates
     
     public double[][] getMigrationRates(int currentInterval){
-    	if (needsUpdate)
-    		calculateIntervals();
+    	ensureIntervals();
     	
     	
-    	return migrationRates.get(currentInterval-getNumberOfSpecies()).getArray();
+    	return migrationRates[currentInterval-getNumberOfSpecies()];
     }
     
     public int[][] getIndicatorsRates(int currentInterval){
-    	if (needsUpdate)
-    		calculateIntervals();
+    	ensureIntervals();
+
+    	return indicators[currentInterval-getNumberOfSpecies()];
+    }
+    
+    // build the migration rate generators of every interval from now on
+    public synchronized void cacheMigrationGenerators(){
+    	if (!buildGenerators){
+    		buildGenerators = true;
+    		// the rates have to be calculated again to build the generators, also after restoring
+    		// intervals that were stored before any generators were built
+    		ratesNeedUpdate = true;
+    		storedNeedsUpdate = true;
+    		needsUpdate = true;
+    	}
+    }
+    
+    // null unless cacheMigrationGenerators has been called
+    public double[] getMigrationGenerator(int currentInterval){
+    	ensureIntervals();
 
-    	return indicators.get(currentInterval-getNumberOfSpecies()).getArray();
+    	return generators == null ? null : generators[currentInterval-getNumberOfSpecies()];
     }
 
     
-    //slow to return migration rates
+    // migration rate between two states of an interval
 	public double getMigrationRates(int currentInterval, int state1, int state2) {
-    	if (needsUpdate)
-    		calculateIntervals();
-
-		int interval = currentInterval-getNumberOfSpecies();
-//		double Nesink = NeInput.get().getArrayValue(
-//    			stateToNodeMap.get(currentInterval-getNumberOfSpecies()).get(state1));
-//		double Nesource = NeInput.get().getArrayValue(
-//    			stateToNodeMap.get(currentInterval-getNumberOfSpecies()).get(state2));
-		
-		double migration = migModel.getMigration(stateToNodeMap.get(interval).get(state1) , stateToNodeMap.get(interval).get(state2));
-//		migration *= Nesource;
-//		migration /= Nesink;
-		for (int i = 0; i < migrationMap.size(); i++){
-			if (migrationMap.get(i)[0]==stateToNodeMap.get(interval).get(state1) 
-					&& migrationMap.get(i)[1]==stateToNodeMap.get(interval).get(state2)){
-					if (indicatorInput.get()!=null){
-						if(indicatorInput.get().getArrayValue(i) > 0.5)
-							return migration*mInput.get().getArrayValue(i);
-						else
-							return 0.0;
-					}else{
-						return migration*mInput.get().getArrayValue(i);						
-					}
-			}
-		}
-		return 0.0;
+    	ensureIntervals();
+
+		final int interval = currentInterval-getNumberOfSpecies();
+		final int node1 = stateToNode[interval][state1];
+		final int node2 = stateToNode[interval][state2];
+		final int k = migrationIndex[node1 * speciesNodeCount + node2];
+		if (k < 0)
+			return 0.0;
+
+		if (indicatorInput.get()!=null && indicatorInput.get().getArrayValue(k) <= 0.5)
+			return 0.0;
+
+		return migModel.getMigration(node1, node2)*mInput.get().getArrayValue(k);
 	}
 	
     //get migration rates between nodes
 	
 	public double getMigrationRates(int node1, int node2) {	
-    	if (needsUpdate)
-    		calculateIntervals();
+    	ensureIntervals();
+
+		final int k = migrationIndex[node1 * speciesNodeCount + node2];
+		if (k < 0)
+			return 0.0;
 
 		double migration = migModel.getMigration(node1 , node2);
-		for (int i = 0; i < migrationMap.size(); i++){
-			if (migrationMap.get(i)[0]==node1 
-					&& migrationMap.get(i)[1]==node2){
-				if (!rateIsForwardInput.get()){
-					double NeRatio = NeInput.get().getArrayValue(node2)/NeInput.get().getArrayValue(node1);
-					return migration*mInput.get().getArrayValue(i) * NeRatio;
-				}else{
-					return migration*mInput.get().getArrayValue(i);
-				}
-			}
+		if (!rateIsForwardInput.get()){
+			double NeRatio = NeInput.get().getArrayValue(node2)/NeInput.get().getArrayValue(node1);
+			return migration*mInput.get().getArrayValue(k) * NeRatio;
+		}else{
+			return migration*mInput.get().getArrayValue(k);
 		}
-		return 0.0;
 	}
 	
 	
 	public ArrayList<ArrayList<Integer>> getStateToNodeMap(){
-    	if (needsUpdate)
-    		calculateIntervals();
+    	ensureIntervals();
 
 		ArrayList<ArrayList<Integer>> returnList = new ArrayList<>();
-		for (int i= 0; i < stateToNodeMap.size(); i++){
+		for (int i= 0; i < stateToNode.length; i++){
 			ArrayList<Integer> add = new ArrayList<>();
-			for (int j = 0; j < stateToNodeMap.get(i).size(); j++)
-				add.add(stateToNodeMap.get(i).get(j));
+			for (int j = 0; j < stateToNode[i].length; j++)
+				add.add(stateToNode[i][j]);
 			returnList.add(add);		
 		}		
 		return returnList;
@@ -635,213 +644,148 @@ public class ConstantWithGeneFlow extends CalculationNode implements PopulationM
 	
 	// return all migration rates from a node
 	public String getAllMigrationRates(int nodeNr){
-    	if (needsUpdate)
-    		calculateIntervals();
-
-		boolean isEmpty = true;
-		String migRates = new String();	
-		String migTo = new String();
-		migRates ="abcdef";
-		migTo ="abcdef";
-		ArrayList<Integer> visited = new ArrayList<>();
-		for (int i = 0; i < (stateToNodeMap.size()-1); i++){
-			for (int j = 0; j < stateToNodeMap.get(i).size(); j++){
-				if (stateToNodeMap.get(i).get(j) == nodeNr){
-					for (int k = 0; k < stateToNodeMap.get(i).size(); k++){
-						if (k!=j && visited.indexOf(stateToNodeMap.get(i).get(k))==-1){
-							visited.add(stateToNodeMap.get(i).get(k));
-							double migration = migModel.getMigration(stateToNodeMap.get(i).get(j) , stateToNodeMap.get(i).get(k));
-							for (int l = 0; l < migrationMap.size(); l++){
-								if (migrationMap.get(l)[0]==stateToNodeMap.get(i).get(j) 
-										&& migrationMap.get(l)[1]==stateToNodeMap.get(i).get(k)){
-										if (indicatorInput.get()!=null){
-											if (indicatorInput.get().getArrayValue(l) > 0.5){
-												migration*=mInput.get().getArrayValue(l);											
-											}else{
-												migration*=0.0;											
-											}											
-										}else{
-											migration*=mInput.get().getArrayValue(l);
-										}
-								}
-							}
-							migRates = migRates + "," + migration;
-							migTo = migTo + "," + stateToNodeMap.get(i).get(k);
-							isEmpty = false;
-						}
-					}
-				}
-			}
-		}		
-		migRates = migRates.replace("abcdef,", ",rates={");
-		migTo = migTo.replace("abcdef,", ",to={");
-		
-		migRates = migRates + "}";
-		migTo = migTo + "}";
-		String returnString = new String();
-		returnString =  migTo + migRates;
-
-		if (isEmpty)
-			return "";
-		else
-			return returnString;
+		final NewickWriter writer = new NewickWriter(-1);
+		serializeMigrationRates(nodeNr, writer);
+		return writer.toString();
 	}
-	
-    
+
 	public String getAllMigrationRatesLong(int nodeNr){
-    	if (needsUpdate)
-    		calculateIntervals();
-
-		boolean isEmpty = true;
-		String migRates = new String();	
-		String migInd = new String();
-		migRates ="abcdef";
-		migInd ="abcdef";
-		ArrayList<Integer> visited = new ArrayList<>();
-		for (int i = 0; i < (stateToNodeMap.size()-1); i++){
-			for (int j = 0; j < stateToNodeMap.get(i).size(); j++){
-				if (stateToNodeMap.get(i).get(j) == nodeNr){
-					for (int k = 0; k < stateToNodeMap.get(i).size(); k++){
-						if (k!=j && visited.indexOf(stateToNodeMap.get(i).get(k))==-1){
-							visited.add(stateToNodeMap.get(i).get(k));
-							double migration = migModel.getMigration(stateToNodeMap.get(i).get(j) , stateToNodeMap.get(i).get(k));
-							for (int l = 0; l < migrationMap.size(); l++){
-								if (migrationMap.get(l)[0]==stateToNodeMap.get(i).get(j) 
-										&& migrationMap.get(l)[1]==stateToNodeMap.get(i).get(k)){
-										if (indicatorInput.get()!=null){
-											if (indicatorInput.get().getArrayValue(l) > 0.5){
-												migration=mInput.get().getArrayValue(l)*migModel.getEM();											
-											}else{
-												migration*=0.0;											
-											}											
-										}else{
-											migration=mInput.get().getArrayValue(l)*migModel.getEM();
-										}
-								}
-							}
-							// get the node numbers of all children
-							ArrayList<Integer> node_nr = new ArrayList<>();
-							for (Node n : speciesTree.getNode(stateToNodeMap.get(i).get(k)).getAllLeafNodes())
-								node_nr.add(n.getNr());
-							// sort the node numbers
-							Collections.sort(node_nr);	
-							
-							migRates = migRates + ",r";
-							migInd = migInd + ",i";
-							
-							for (Integer leaf_nr : node_nr){
-								migRates = migRates + "." + (leaf_nr+1);
-								migInd = migInd + "." + (leaf_nr+1);
-							}
-							
-							if (node_nr.size()==0){
-								migRates = migRates + "." + (stateToNodeMap.get(i).get(k)+1);
-								migInd = migInd + "." + (stateToNodeMap.get(i).get(k)+1);
-							}
-								
-							migRates = migRates + "=" + migration;
-							if (migration==0)
-								migInd = migInd + "=0";
-							else
-								migInd = migInd + "=1";
-							
-							isEmpty = false;
+		final NewickWriter writer = new NewickWriter(-1);
+		serializeMigrationRatesLong(nodeNr, writer);
+		return writer.toString();
+	}
+
+	// writes ",to={..},rates={..}" with the species the node has migration to and the rates, or nothing if there are none
+	public void serializeMigrationRates(int nodeNr, NewickWriter writer){
+		final int targetCount = findMigrationTargets(nodeNr, false);
+		if (targetCount == 0)
+			return;
+
+		writer.append(",to={");
+		for (int k = 0; k < targetCount; k++){
+			if (k > 0)
+				writer.append(',');
+			writer.append(migrationTargets[k]);
+		}
+		writer.append("},rates={");
+		for (int k = 0; k < targetCount; k++){
+			if (k > 0)
+				writer.append(',');
+			writer.append(migrationTargetRates[k]);
+		}
+		writer.append('}');
+	}
+
+	// as above, but writes ",i.<leaves>=0|1" indicators followed by ",r.<leaves>=<rate>" rates that are not scaled by the migration model
+	public void serializeMigrationRatesLong(int nodeNr, NewickWriter writer){
+		final int targetCount = findMigrationTargets(nodeNr, true);
+
+		for (int k = 0; k < targetCount; k++){
+			writer.append(",i.");
+			serializeSpecies(migrationTargets[k], writer);
+			writer.append(migrationTargetRates[k] == 0 ? "=0" : "=1");
+		}
+		for (int k = 0; k < targetCount; k++){
+			writer.append(",r.");
+			serializeSpecies(migrationTargets[k], writer);
+			writer.append('=').append(migrationTargetRates[k]);
+		}
+	}
+
+	// writes the numbers (from 1) of the species tree leaves below a node in ascending order, separated by "."
+	public void serializeSpecies(int nodeNr, NewickWriter writer){
+		boolean first = true;
+		for (int leafNr = 0; leafNr < leafNodeCount; leafNr++) {
+			if (!migModel.isDescendant(nodeNr, leafNr))
+				continue;
+			if (!first)
+				writer.append('.');
+			writer.append(leafNr + 1);
+			first = false;
+		}
+	}
+
+	// fills migrationTargets and migrationTargetRates with every node the node has migration to, in the order of the intervals
+	private int findMigrationTargets(int nodeNr, boolean emScaled){
+		ensureIntervals();
+
+		if (migrationTargets == null){
+			migrationTargets = new int[speciesNodeCount];
+			migrationTargetRates = new double[speciesNodeCount];
+		}
+
+		int targetCount = 0;
+		boolean[] visited = new boolean[speciesNodeCount];
+		for (int i = 0; i < (stateToNode.length-1); i++){
+			if (nodeToState[i][nodeNr] < 0)
+				continue;
+
+			for (int other : stateToNode[i]){
+				if (other!=nodeNr && !visited[other]){
+					visited[other] = true;
+					double migration = migModel.getMigration(nodeNr, other);
+					final int l = migrationIndex[nodeNr * speciesNodeCount + other];
+					if (l >= 0){
+						if (indicatorInput.get()!=null && !(indicatorInput.get().getArrayValue(l) > 0.5)){
+							migration*=0.0;
+						}else if (emScaled){
+							migration=mInput.get().getArrayValue(l)*migModel.getEM();
+						}else{
+							migration*=mInput.get().getArrayValue(l);
 						}
 					}
+					migrationTargets[targetCount] = other;
+					migrationTargetRates[targetCount] = migration;
+					targetCount++;
 				}
 			}
-		}		
-		migRates = migRates.replace("abcdef,", ",");
-		migInd = migInd.replace("abcdef,", ",");
-		
-		String returnString = new String();
-		returnString =  migInd + "" + migRates;
-
-		if (isEmpty)
-			return "";
-		else
-			return returnString;
+		}
+		return targetCount;
 	}
 	
 
 	
+	// the daughter lineages are looked up from the interval on each call, so there is no state shared between gene trees
 	protected void coalesce(int currTreeInterval) {
-    	if (needsUpdate)
-    		calculateIntervals();
+    	ensureIntervals();
     	
-    	// Get the daughter lineages
-		List<Node> coalLines = lineagesRemoved[currTreeInterval];
-    	if (coalLines.size() > 2) {
-			System.err.println("Unsupported coalescent at non-binary node");
-			System.exit(0);
-		}
-    	if (coalLines.size() < 2) {
-    		System.out.println(coalLines);
-    		System.out.println(lineagesAdded[currTreeInterval]);
+    	if (!isCoalescent[currTreeInterval]) {
     		System.err.println();
     		System.err.println("WARNING: Less than two lineages found at coalescent event!");
     		System.err.println();
 			System.exit(0);
 		}
-		
-    	//  get the indices of the daughter lineages
-    	daughterIndex1 = coalLines.get(0).getNr();
-		daughterIndex2 = coalLines.get(1).getNr();	
-		
-		
-		if (daughterIndex1 < 0)
-			System.out.println("daughter not found");
-		else if(daughterIndex2 < 0)
-			System.out.println("daughter not found");
     }
     
     protected int getDaughter1(int currTreeInterval){
-    	if (needsUpdate)
-    		calculateIntervals();
+    	ensureIntervals();
 
-    	int index = stateToNodeMap.get(currTreeInterval-getNumberOfSpecies()).indexOf(daughterIndex1);
+    	final int index = nodeToState[currTreeInterval-getNumberOfSpecies()][removedLeft[currTreeInterval]];
     	if (index < 0){
-    		System.out.println(daughterIndex1);
-    		System.out.println(stateToNodeMap);
-    		System.out.println(stateToNodeMap.get(currTreeInterval-getNumberOfSpecies()));
-    		System.out.println(daughterIndex1 + " " + daughterIndex2);
-    		System.out.println(lineagesRemoved[currTreeInterval]);
+    		System.out.println(removedLeft[currTreeInterval] + " " + removedRight[currTreeInterval]);
+    		System.out.println(Arrays.toString(stateToNode[currTreeInterval-getNumberOfSpecies()]));
     		System.out.println("daughter lineage 1 not found");
-    		for (int i = 0; i < lineagesAdded.length; i++)
-    			System.out.println(lineagesAdded[i]);
-    		System.out.println(lineagesAdded.length);
     		System.out.println(speciesTree);
-    		calculateIntervals();
-    		System.out.println("");
-    		for (int i = 0; i < lineagesAdded.length; i++)
-    			System.out.println(lineagesAdded[i]);
-    		System.out.println(lineagesAdded.length);
-    		System.out.println(lineagesAdded.length);
     		System.exit(0);
     	}
     	return index;
     }
     
     protected int getDaughter2(int currTreeInterval){
-    	if (needsUpdate)
-    		calculateIntervals();
+    	ensureIntervals();
 
-    	int index = stateToNodeMap.get(currTreeInterval-getNumberOfSpecies()).indexOf(daughterIndex2);
+    	final int index = nodeToState[currTreeInterval-getNumberOfSpecies()][removedRight[currTreeInterval]];
     	if (index < 0){
-    		System.out.println(daughterIndex1);
-    		System.out.println(stateToNodeMap);
-    		System.out.println(stateToNodeMap.get(currTreeInterval-getNumberOfSpecies()));
-    		System.out.println(daughterIndex1 + " " + daughterIndex2);
-    		System.out.println(lineagesRemoved[currTreeInterval]);
+    		System.out.println(removedLeft[currTreeInterval] + " " + removedRight[currTreeInterval]);
+    		System.out.println(Arrays.toString(stateToNode[currTreeInterval-getNumberOfSpecies()]));
     		System.out.println("daughter lineage 2 not found");
     	}
 
-    	return stateToNodeMap.get(currTreeInterval-getNumberOfSpecies()).indexOf(daughterIndex2);
+    	return index;
     }
 
 	public int getCurrentNumberOfStates(int speciesInterval) {	
-    	if (needsUpdate)
-    		calculateIntervals();
+    	ensureIntervals();
 
 		if (speciesInterval < (intervals.length+1)/2)
 			return (intervals.length+1)/2;
@@ -849,20 +793,6 @@ public class ConstantWithGeneFlow extends CalculationNode implements PopulationM
 			return intervals.length-speciesInterval;
 	}
 	
-	// gets all the species names from the species Tree. Gets it ones such that the 
-	// order is fixed for the MCMC analysis
-    private void getSpeciesNames() {
-		int currInt = 0; 
-		speciesNames = new HashMap<>();
-		do{
-			List<Node> incomingLines = lineagesAdded[currInt];
-			for (Node l:incomingLines){
-				speciesNames.put(l.getID(), l.getNr());
-			}
-			currInt++;
-		}while (!isCoalescent[currInt]);
-	}
-
     // get the state of a sample, i.e. the int corresponding to a sampled species
     public Integer getSampleState(String species){
     	for (Node leaf: speciesTree.getNodesAsArray()) {
@@ -883,191 +813,112 @@ public class ConstantWithGeneFlow extends CalculationNode implements PopulationM
 	}
      
 	protected int getSpeciesState(int currentInterval, int state){
-    	if (needsUpdate)
-    		calculateIntervals();
+    	ensureIntervals();
 
-		return stateToNodeMap.get(currentInterval - speciesTree.getLeafNodeCount()).get(state);
+		return stateToNode[currentInterval - leafNodeCount][state];
 	}
 	
 	
-	@SuppressWarnings("unchecked")
 	@Override
 	protected void store(){	
-//		System.out.println("store..");
-
-	    storedIntervals = new double[intervals.length];
-		System.arraycopy(intervals,0,storedIntervals,0,intervals.length);
-		
-		
-		storedMigrationRatesValid = migrationRatesValid;
-	    		
-		
-		
-		storedStateToNodeMap = new ArrayList<>();
-		for (int i= 0; i < stateToNodeMap.size(); i++){
-			ArrayList<Integer> add = new ArrayList<>();
-			for (int j = 0; j < stateToNodeMap.get(i).size(); j++)
-				add.add(stateToNodeMap.get(i).get(j));
-			storedStateToNodeMap.add(add);			
-		}
-		
-		storedMigrationMap = new ArrayList<>();
-		for (Integer[] m : migrationMap)
-			storedMigrationMap.add(m);
-		
-		// store the lineages added and removed
-		storedLineagesAdded = new List[lineagesAdded.length];
-		storedLineagesRemoved = new List[lineagesRemoved.length];
-		
-//		System.out.println("");
-//		for (int i = 0; i <lineagesAdded.length; i++)
-//			System.out.println(lineagesAdded[i] + " " + storedLineagesAdded[i]);
-
-		
-		for (int i = 0; i < lineagesAdded.length; i++){
-			ArrayList<Node> add = new ArrayList<>();
-			for (Node n : lineagesAdded[i]){
-				add.add(n.copy());
+		// nothing to copy if the intervals are out of date, they will be recalculated after a restore
+		storedNeedsUpdate = needsUpdate || intervals == null;
+		if (!storedNeedsUpdate) {
+			System.arraycopy(intervals, 0, storedIntervals, 0, intervals.length);
+			System.arraycopy(isCoalescent, 0, storedIsCoalescent, 0, isCoalescent.length);
+			System.arraycopy(intervalNodes, 0, storedIntervalNodes, 0, intervalNodes.length);
+			System.arraycopy(removedLeft, 0, storedRemovedLeft, 0, removedLeft.length);
+			System.arraycopy(removedRight, 0, storedRemovedRight, 0, removedRight.length);
+			System.arraycopy(migrationIndex, 0, storedMigrationIndex, 0, migrationIndex.length);
+			for (int i = 0; i < stateToNode.length; i++){
+				System.arraycopy(stateToNode[i], 0, storedStateToNode[i], 0, stateToNode[i].length);
+				System.arraycopy(nodeToState[i], 0, storedNodeToState[i], 0, nodeToState[i].length);
+				System.arraycopy(connected[i], 0, storedConnected[i], 0, connected[i].length);
 			}
-			storedLineagesAdded[i] = new ArrayList<>(add);
+			// the per interval arrays below are never modified once built
+			System.arraycopy(migrationRates, 0, storedMigrationRates, 0, migrationRates.length);
+			System.arraycopy(popSizes, 0, storedPopSizes, 0, popSizes.length);
+			System.arraycopy(connectedStates, 0, storedConnectedStates, 0, connectedStates.length);
+			for (int p = 0; p < coalescentRates.length; p++)
+				System.arraycopy(coalescentRates[p], 0, storedCoalescentRates[p], 0, coalescentRates[p].length);
+			System.arraycopy(indicators, 0, storedIndicators, 0, indicators.length);
+			System.arraycopy(generators, 0, storedGenerators, 0, generators.length);
 		}
-			
-		for (int i = 0; i < lineagesRemoved.length; i++){
-			ArrayList<Node> remove = new ArrayList<Node>();
-			if (lineagesRemoved[i] != null){
-				for (Node n : lineagesRemoved[i]){
-					if (n!=null){
-						remove.add(n.copy());
-					}else{
-						remove.add(null);
-					}						
-				}
-				storedLineagesRemoved[i] = new ArrayList<>(remove);
-			}else{
-				storedLineagesRemoved[i] = null;
-			}
 
-		}	
-		
-		storedIsCoalescent = new boolean[isCoalescent.length];
-		System.arraycopy(isCoalescent,0,storedIsCoalescent,0,isCoalescent.length);
-		
-		storedMigrationRates = new ArrayList<>();
-		for (DoubleArrayForList dafl : migrationRates){
-			DoubleArrayForList add  = new DoubleArrayForList(dafl.getArray());
-			storedMigrationRates.add(add);
-		}
-		
-		storedIndicators = new ArrayList<>();
-		for (IntegerArrayForList iafl : indicators){
-			IntegerArrayForList add  = new IntegerArrayForList(iafl.getArray());
-			storedIndicators.add(add);
-		}
-//		System.exit(0);
-
-		storedConnected = new ArrayList<>();
-		for (Boolean[] bool : connected){
-			Boolean[] con = new Boolean[bool.length];
-			for (int i = 0; i < con.length; i++)
-				con[i] = bool[i];
-			storedConnected.add(con);
-		}
-		
-//		System.out.println("");
-//		for (int i = 0; i <lineagesAdded.length; i++)
-//			System.out.println(lineagesAdded[i]);
-//		System.out.println("");
-//		for (int i = 0; i <lineagesAdded.length; i++)
-//			System.out.println(storedLineagesAdded[i]);
-
-		
-//		storedNes = Arrays.copyOf(savedNes, savedNes.length);
+		storedMigrationRatesValid = migrationRatesValid;
 		super.store();
 	}
 	
-	@SuppressWarnings("unchecked")
 	@Override
 	protected void restore(){
-//		System.out.println("restore..");
-		intervals = new double[storedIntervals.length];
-		System.arraycopy(storedIntervals,0,intervals,0,storedIntervals.length);
+		double[] tmpIntervals = intervals;
+		intervals = storedIntervals;
+		storedIntervals = tmpIntervals;
 
-		
-		stateToNodeMap = new ArrayList<>();
-		for (int i= 0; i < storedStateToNodeMap.size(); i++){
-			ArrayList<Integer> add = new ArrayList<>();
-			for (int j = 0; j < storedStateToNodeMap.get(i).size(); j++)
-				add.add(storedStateToNodeMap.get(i).get(j));
-			stateToNodeMap.add(add);			
-		}
-		
-		migrationMap = new ArrayList<>();
-		for (Integer[] m : storedMigrationMap)
-			migrationMap.add(m);
-		
-		// restore the lineages added and removed
-		lineagesAdded = new List[storedLineagesAdded.length];
-		lineagesRemoved = new List[storedLineagesRemoved.length];
-		for (int i = 0; i < storedLineagesAdded.length; i++){
-			ArrayList<Node> add = new ArrayList<Node>();
-			for (Node n : storedLineagesAdded[i])
-				add.add(n.copy());
-			lineagesAdded[i] = new ArrayList<>(add);			
-		}
-		
-		for (int i = 0; i < storedLineagesRemoved.length; i++){
-			ArrayList<Node> remove = new ArrayList<Node>();
-			if (storedLineagesRemoved[i]!=null){
-				for (Node n : storedLineagesRemoved[i])
-					if (n!=null){
-						remove.add(n.copy());
-					}else{
-						remove.add(null);
-					}
+		boolean[] tmpIsCoalescent = isCoalescent;
+		isCoalescent = storedIsCoalescent;
+		storedIsCoalescent = tmpIsCoalescent;
 
-				lineagesRemoved[i] = new ArrayList<>(remove);
-			}else{
-				lineagesRemoved[i] = null;
-			}
+		int[] tmpIntervalNodes = intervalNodes;
+		intervalNodes = storedIntervalNodes;
+		storedIntervalNodes = tmpIntervalNodes;
 
-		}				
+		int[] tmpRemovedLeft = removedLeft;
+		removedLeft = storedRemovedLeft;
+		storedRemovedLeft = tmpRemovedLeft;
 
-		isCoalescent = new boolean[storedIsCoalescent.length];
-		System.arraycopy(storedIsCoalescent,0,isCoalescent,0,storedIsCoalescent.length);
+		int[] tmpRemovedRight = removedRight;
+		removedRight = storedRemovedRight;
+		storedRemovedRight = tmpRemovedRight;
 
-		
-		migrationRates = new ArrayList<>();
-		for (DoubleArrayForList dafl : storedMigrationRates){
-			DoubleArrayForList add  = new DoubleArrayForList(dafl.getArray());
-			migrationRates.add(add);
-		}
-		
-		indicators = new ArrayList<>();
-		for (IntegerArrayForList iafl : storedIndicators){
-			IntegerArrayForList add  = new IntegerArrayForList(iafl.getArray());
-			indicators.add(add);
-		}
+		int[] tmpMigrationIndex = migrationIndex;
+		migrationIndex = storedMigrationIndex;
+		storedMigrationIndex = tmpMigrationIndex;
 
-		connected = new ArrayList<>();
-		for (Boolean[] bool : storedConnected){
-			Boolean[] con = new Boolean[bool.length];
-			for (int i = 0; i < con.length; i++)
-				con[i] = bool[i];
-			connected.add(con);
-		}
-		
-//		System.out.println("");
-//		for (int i = 0; i < lineagesAdded.length; i++)
-//			System.out.println(lineagesAdded[i]);
-		
-		migrationRatesValid = storedMigrationRatesValid;
+		int[][] tmpStateToNode = stateToNode;
+		stateToNode = storedStateToNode;
+		storedStateToNode = tmpStateToNode;
 
+		int[][] tmpNodeToState = nodeToState;
+		nodeToState = storedNodeToState;
+		storedNodeToState = tmpNodeToState;
 
-		
-//		savedNes = Arrays.copyOf(storedNes, storedNes.length);
+		boolean[][] tmpConnected = connected;
+		connected = storedConnected;
+		storedConnected = tmpConnected;
+
+		double[][][] tmpMigrationRates = migrationRates;
+		migrationRates = storedMigrationRates;
+		storedMigrationRates = tmpMigrationRates;
+
+		double[][] tmpPopSizes = popSizes;
+		popSizes = storedPopSizes;
+		storedPopSizes = tmpPopSizes;
+
+		boolean[][] tmpConnectedStates = connectedStates;
+		connectedStates = storedConnectedStates;
+		storedConnectedStates = tmpConnectedStates;
+
+		double[][][] tmpCoalescentRates = coalescentRates;
+		coalescentRates = storedCoalescentRates;
+		storedCoalescentRates = tmpCoalescentRates;
+
+		int[][][] tmpIndicators = indicators;
+		indicators = storedIndicators;
+		storedIndicators = tmpIndicators;
+
+		double[][] tmpGenerators = generators;
+		generators = storedGenerators;
+		storedGenerators = tmpGenerators;
+
+		// the stored arrays are only complete if the intervals were up to date when stored
+		ratesNeedUpdate = storedNeedsUpdate;
+		needsUpdate = storedNeedsUpdate;
+		migrationRatesValid = storedMigrationRatesValid;
 		super.restore();
 	}
 
+
 	@Override
 	public double branchLogP(int speciesTreeNodeNumber, Node speciesTreeNode, double ploidy,
 			double[] branchCoalescentTimes, int branchLineageCount, int branchEventCount) {
@@ -1082,7 +933,7 @@ public class ConstantWithGeneFlow extends CalculationNode implements PopulationM
 	}
 
 	@Override
-	public void serialize(Node speciesTreeNode, StringBuffer buf, DecimalFormat df) {
+	public void serialize(Node speciesTreeNode, NewickWriter writer) {
 		// TODO Auto-generated method stub
 		
 	}
@@ -1105,32 +956,20 @@ public class ConstantWithGeneFlow extends CalculationNode implements PopulationM
 			return;
 		}
 		
-    	for (int i = 0; i < stateToNodeMap.size(); i++){
-    		int[][] mRateMapping = new int[stateToNodeMap.get(i).size()][stateToNodeMap.get(i).size()];
-    		for (int a = 0; a < mRateMapping.length; a++){
-    			for (int b = 0; b < mRateMapping.length; b++){
-    				for (int k = 0; k< migrationMap.size(); k++){
-    					if (migrationMap.get(k)[0]==stateToNodeMap.get(i).get(a) 
-    							&& migrationMap.get(k)[1]==stateToNodeMap.get(i).get(b)){
-    						mRateMapping[a][b] = k;
-    					}
-    				}
-    			}
-    		}
-    		
-    		// check if rates are valid (all are below the maximal rate
-//    		DoubleArrayForList migration_array = new DoubleArrayForList(mRateMapping.length);
-        	for (int a = 0; a < mRateMapping.length; a++){
-    			for (int b = 0; b < mRateMapping.length; b++){
+		// check if rates are valid (all are below the maximal rate)
+		final RealParameter m = mInput.get();
+    	for (int i = 0; i < stateToNode.length; i++){
+    		final int[] states = stateToNode[i];
+        	for (int a = 0; a < states.length; a++){
+    			for (int b = 0; b < states.length; b++){
     				if (a!=b){
-    					double migRate = migModel.getMigration(stateToNodeMap.get(i).get(a) , stateToNodeMap.get(i).get(b))
-    							* mInput.get().getArrayValue(mRateMapping[a][b]);
-    					double maxMigRate = maxMigRatesModel.getMigration(stateToNodeMap.get(i).get(a) , stateToNodeMap.get(i).get(b));
+    					final int k = migrationIndex[states[a] * speciesNodeCount + states[b]];
+    					double migRate = migModel.getMigration(states[a], states[b]) * m.getArrayValue(k);
+    					double maxMigRate = maxMigRatesModel.getMigration(states[a], states[b]);
     					if (migRate>maxMigRate){
     						migrationRatesValid = false;
     						return;
     					}
-    					
     				}
     			}
     		}   
@@ -1138,7 +977,9 @@ public class ConstantWithGeneFlow extends CalculationNode implements PopulationM
     	migrationRatesValid = true;
 	}
 	
+	
 	public boolean checkMaxRates(){
+		ensureIntervals();
     	return migrationRatesValid;
 	}
 
@@ -1171,62 +1012,4 @@ public class ConstantWithGeneFlow extends CalculationNode implements PopulationM
 //        intervalIsDirty = new boolean[intervals.length];
 //        lastIntervalDirty = false;
 //    }
-
-    // helper class to have primitiv classes
-    private class DoubleArrayForList{
-    	double[][] array;
-    	
-    	DoubleArrayForList(int states){
-    		this.array = new double[states][states];
-    	}
-    	
-    	DoubleArrayForList(double[][] array){
-    		this.array = new double[array.length][array.length];
-    		for (int i = 0; i < this.array.length; i++)
-    			System.arraycopy(array[i], 0, this.array[i], 0, array[i].length);
-    	}
-    	
-    	void setValue(int i, int j, double val){
-    		this.array[i][j] = val;
-    	}
-    	
-    	double[][] getArray(){
-    		return array;
-    	}
-    }
-    
-    // helper class to have primitiv classes
-    private class IntegerArrayForList{
-    	int[][] array;
-    	
-    	IntegerArrayForList(int states){
-    		this.array = new int[states][2];
-    	}
-    	
-    	IntegerArrayForList(int[][] array){
-    		this.array = new int[array.length][2];
-    		for (int i = 0; i < this.array.length; i++)
-    			System.arraycopy(array[i], 0, this.array[i], 0, array[i].length);
-//    		for (int i = 0; i < this.array.length; i++){
-//    			System.out.println(Arrays.toString(this.array[i]));
-//    			System.out.println(Arrays.toString(array[i]));
-//    		}
-    	}
-
-    	
-    	void setValue(int i, int val0, int val1){
-    		this.array[i][0] = val0;
-    		this.array[i][1] = val1;
-    	}
-    	
-    	int getValue(int i, int j){
-    		return this.array[i][j];
-    	}
-    	
-    	int[][] getArray(){
-    		return array;
-    	}
-    }
-
-
 }
@@ -5,11 +5,12 @@ import beast.base.core.Input;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.SetMultimap;
 
-import java.util.*;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
 
 /**
 * @author Remco Bouckaert
@@ -42,18 +43,35 @@ public class CoordinatedExchange extends CoordinatedOperator {
     private int czBranchCount;
     SpeciesTreeInterface speciesTree;
 
-    private List<List<SortedMap<Node, Node>>> movedNodes;
-    private List<SetMultimap<Integer, Node>> graftNodes;
-    
-    private boolean testing = false;
+    // gene tree node numbers by destination branch (oldest to youngest) and gene tree: nodes to be moved
+    // (oldest to youngest), the children they disown, and the nodes defining potential graft branches.
+    // numbers rather than nodes are kept, because restoring a tree replaces its node objects
+    private int[][][] movedNodes;
+    private int[][][] disownedChildren;
+    private int[][] movedCounts;
+    private int[][][] graftNodes;
+    private int[][] graftCounts;
+    private int allocatedBranches;
 
-    // reversed because nodes must be grafted oldest to youngest
-    private final static Comparator<Node> nhc = new NodeHeightComparator().reversed();
+    // log Hastings ratio contribution of each gene tree for the current branch, set by independent gene tree tasks
+    private double[] geneLogHR;
+    private volatile boolean rearrangeFailed;
+
+    private boolean testing = false;
 
     @Override
     public void initAndValidate() {
         speciesTree = speciesTreeInput.get();
     	super.initAndValidate();
+
+        geneLogHR = new double[nGeneTrees];
+
+        movedNodes = new int[0][][];
+        disownedChildren = new int[0][][];
+        movedCounts = new int[0][];
+        graftNodes = new int[0][][];
+        graftCounts = new int[0][];
+        allocatedBranches = 0;
     }
     
     /**
@@ -101,9 +119,7 @@ public class CoordinatedExchange extends CoordinatedOperator {
         for (final Tree geneTree: geneTreeInput.get()) geneTree.startEditing(null); // hack to stop beast.base.inference.State.Trie memory leak
 
         for (int i = 0; i < czBranchCount; i++) {
-            final List<SortedMap<Node, Node>> perBranchMovedNodes = movedNodes.get(i);
-            final SetMultimap<Integer, Node> perBranchGraftNodes = graftNodes.get(i);
-            final double logForward = rearrangeGeneTrees(perBranchMovedNodes, perBranchGraftNodes, true);
+            final double logForward = rearrangeGeneTrees(i, true);
             if (logForward == Double.NEGATIVE_INFINITY) return Double.NEGATIVE_INFINITY;
             else logHastingsRatio += logForward;
         }
@@ -118,9 +134,7 @@ public class CoordinatedExchange extends CoordinatedOperator {
         fillNodes(); // fills in movedNodes and graftNodes for reverse move
 
         for (int i = 0; i < czBranchCount; i++) {
-            final List<SortedMap<Node, Node>> perBranchMovedNodes = movedNodes.get(i);
-            final SetMultimap<Integer, Node> perBranchGraftNodes = graftNodes.get(i);
-            final double logReverse = rearrangeGeneTrees(perBranchMovedNodes, perBranchGraftNodes, false);
+            final double logReverse = rearrangeGeneTrees(i, false);
             if (logReverse == Double.NEGATIVE_INFINITY) return Double.NEGATIVE_INFINITY;
             else logHastingsRatio -= logReverse;
         }
@@ -227,23 +241,53 @@ public class CoordinatedExchange extends CoordinatedOperator {
     // fills forward nodes by destination branch (c through z) 
     private void fillNodes() {
         // must be done before any changes are made to the gene or species trees
-        Node childNode = cNode;
-        movedNodes = new ArrayList<>();
-        graftNodes = new ArrayList<>();
         czBranchCount = 0;
-        while (childNode != zNode) {
+        for (Node childNode = cNode; childNode != zNode; childNode = childNode.getParent())
             czBranchCount++;
+        allocateBranches(czBranchCount);
+
+        final BitSet chosenDescendants = findDescendantSpecies(aNode);
+        Node childNode = cNode;
+        int branchIndex = czBranchCount;
+        while (childNode != zNode) {
+            // filled in reverse order because nodes must be grafted oldest to youngest
+            branchIndex--;
             final Node parentNode = childNode.getParent();
             final double childNodeHeight = childNode.getHeight();
             final double parentNodeHeight = parentNode.getHeight();
-            final List<SortedMap<Node, Node>> perBranchMovedNodes = getMovedPairs(childNodeHeight, parentNodeHeight);
-            final SetMultimap<Integer, Node> perBranchGraftNodes = getGraftBranches(childNode);
-            movedNodes.add(0, perBranchMovedNodes); // needs to be added in reverse order
-            graftNodes.add(0, perBranchGraftNodes); // because nodes must be grafted oldest to youngest
+            fillMovedPairs(branchIndex, chosenDescendants, childNodeHeight, parentNodeHeight);
+            fillGraftBranches(branchIndex, childNode);
             childNode = parentNode;
         }
     }
 
+    // each gene tree can have at most as many moved or graft nodes as it has nodes
+    private void allocateBranches(final int branchCount) {
+        if (branchCount <= allocatedBranches)
+            return;
+
+        final List<Tree> geneTrees = geneTreeInput.get();
+        movedNodes = Arrays.copyOf(movedNodes, branchCount);
+        disownedChildren = Arrays.copyOf(disownedChildren, branchCount);
+        movedCounts = Arrays.copyOf(movedCounts, branchCount);
+        graftNodes = Arrays.copyOf(graftNodes, branchCount);
+        graftCounts = Arrays.copyOf(graftCounts, branchCount);
+        for (int i = allocatedBranches; i < branchCount; i++) {
+            movedNodes[i] = new int[nGeneTrees][];
+            disownedChildren[i] = new int[nGeneTrees][];
+            movedCounts[i] = new int[nGeneTrees];
+            graftNodes[i] = new int[nGeneTrees][];
+            graftCounts[i] = new int[nGeneTrees];
+            for (int j = 0; j < nGeneTrees; j++) {
+                final int geneNodeCount = geneTrees.get(j).getNodeCount();
+                movedNodes[i][j] = new int[geneNodeCount];
+                disownedChildren[i][j] = new int[geneNodeCount];
+                graftNodes[i][j] = new int[geneNodeCount];
+            }
+        }
+        allocatedBranches = branchCount;
+    }
+
     private static void pruneAndRegraft(final Node nodeToMove, final Node newChild, final Node disownedChild) {
         final Node sourceParent = nodeToMove.getParent();
         final Node destinationParent = newChild.getParent();
@@ -266,46 +310,63 @@ public class CoordinatedExchange extends CoordinatedOperator {
         disownedChild.makeDirty(Tree.IS_FILTHY);
     }
 
-    private double rearrangeGeneTrees(List<SortedMap<Node, Node>> branchMovedNodes, SetMultimap<Integer, Node> branchGraftNodes, boolean forwardMove) {
+    private double rearrangeGeneTrees(final int branchIndex, final boolean forwardMove) {
+        final List<Tree> geneTrees = geneTreeInput.get();
+        rearrangeFailed = false;
+        forEachGeneTree((j, random) -> {
+            // stop as soon as any gene tree cannot be rearranged, the proposal will be rejected
+            geneLogHR[j] = rearrangeFailed ? Double.NEGATIVE_INFINITY : rearrangeGeneTree(geneTrees.get(j), branchIndex, j, forwardMove, random);
+            if (geneLogHR[j] == Double.NEGATIVE_INFINITY) rearrangeFailed = true;
+        }, forwardMove);
+
+        // sum in gene order so that the result does not depend on the number of threads
         double logHastingsRatio = 0.0;
-
         for (int j = 0; j < nGeneTrees; j++) {
-            final Set<Node> jForwardGraftNodes = branchGraftNodes.get(j);
-            final SortedMap<Node, Node> jForwardMovedNodes = branchMovedNodes.get(j);
-            for (final Entry<Node, Node> nodePair: jForwardMovedNodes.entrySet()) {
-                final Node movedNode = nodePair.getKey();
-                final Node disownedChild = nodePair.getValue();
-                final double movedNodeHeight = movedNode.getHeight();
-
-                final List<Node> validGraftBranches = new ArrayList<>();
-                int forwardGraftCount = 0;
-                for (Node potentialGraft: jForwardGraftNodes) {
-                    final double potentialGraftBottom = potentialGraft.getHeight();
-                    double potentialGraftTop;
-
-                    if (potentialGraft.isRoot()) {
-                        potentialGraftTop = Double.POSITIVE_INFINITY;
-                    } else {
-                        potentialGraftTop = potentialGraft.getParent().getHeight();
-                    }
+            if (geneLogHR[j] == Double.NEGATIVE_INFINITY) return Double.NEGATIVE_INFINITY;
+            logHastingsRatio += geneLogHR[j];
+        }
 
-                    if (movedNodeHeight > potentialGraftBottom && movedNodeHeight < potentialGraftTop) {
-                        forwardGraftCount++;
-                        validGraftBranches.add(potentialGraft);
-                    }
+        return logHastingsRatio;
+    }
+
+    private double rearrangeGeneTree(final Tree geneTree, final int branchIndex, final int j, final boolean forwardMove, final Random random) {
+        double logHastingsRatio = 0.0;
+
+        final int[] jMovedNodes = movedNodes[branchIndex][j];
+        final int[] jDisownedChildren = disownedChildren[branchIndex][j];
+        final int[] jGraftNodes = graftNodes[branchIndex][j];
+        final int jMovedCount = movedCounts[branchIndex][j];
+        final int jGraftCount = graftCounts[branchIndex][j];
+        for (int k = 0; k < jMovedCount; k++) {
+            final Node movedNode = geneTree.getNode(jMovedNodes[k]);
+            final double movedNodeHeight = movedNode.getHeight();
+
+            int forwardGraftCount = 0;
+            for (int g = 0; g < jGraftCount; g++) {
+                if (isValidGraft(geneTree.getNode(jGraftNodes[g]), movedNodeHeight)) {
+                    forwardGraftCount++;
                 }
+            }
 
-                // no compatible branches to graft this node on to
-                // this only occurs when there is missing data and the gene tree root is in the "parent" branch
-                // or if two gene tree nodes which need moving are of equal height
-                if (forwardGraftCount == 0) {
-                    return Double.NEGATIVE_INFINITY;
-                } else {
-                    logHastingsRatio += Math.log(forwardGraftCount);
-                    if (forwardMove) { // only actually change gene trees if this is the forward move
-                        final Node chosenGraft = validGraftBranches.get(Randomizer.nextInt(forwardGraftCount));
-                        pruneAndRegraft(movedNode, chosenGraft, disownedChild);
+            // no compatible branches to graft this node on to
+            // this only occurs when there is missing data and the gene tree root is in the "parent" branch
+            // or if two gene tree nodes which need moving are of equal height
+            if (forwardGraftCount == 0) {
+                return Double.NEGATIVE_INFINITY;
+            } else {
+                logHastingsRatio += Math.log(forwardGraftCount);
+                if (forwardMove) { // only actually change gene trees if this is the forward move
+                    // find the chosen valid graft branch in the order the graft branches were filled
+                    int chosenValidGraft = nextInt(random, forwardGraftCount);
+                    Node chosenGraft = null;
+                    for (int g = 0; chosenGraft == null; g++) {
+                        final Node potentialGraft = geneTree.getNode(jGraftNodes[g]);
+                        if (isValidGraft(potentialGraft, movedNodeHeight) && chosenValidGraft-- == 0) {
+                            chosenGraft = potentialGraft;
+                        }
                     }
+                    final Node disownedChild = geneTree.getNode(jDisownedChildren[k]);
+                    pruneAndRegraft(movedNode, chosenGraft, disownedChild);
                 }
             }
         }
@@ -313,44 +374,53 @@ public class CoordinatedExchange extends CoordinatedOperator {
         return logHastingsRatio;
     }
 
-    // identify nodes that can serve as graft branches as part of a coordinated exchange move
-    protected SetMultimap<Integer, Node> getGraftBranches(Node yNode) {
-        final int yNumber = yNode.getNr();
-        final Set<String> cousinDescendants = findDescendants(yNode, yNumber);
+    // the branch above the potential graft node includes the height of the moved node
+    private static boolean isValidGraft(final Node potentialGraft, final double movedNodeHeight) {
+        final double potentialGraftBottom = potentialGraft.getHeight();
+        double potentialGraftTop;
 
-        final SetMultimap<Integer, Node> allGraftBranches = HashMultimap.create();
-        final List<Tree> geneTrees = geneTreeInput.get();
-        for (int j = 0; j < nGeneTrees; j++) {
-            final Tree geneTree = geneTrees.get(j);
-            final Node geneTreeRootNode = geneTree.getRoot();
-            final Set<Node> jGraftBranches = new LinkedHashSet<>();
-            findGraftBranches(geneTreeRootNode, jGraftBranches, cousinDescendants);
-            allGraftBranches.putAll(j, jGraftBranches);
+        if (potentialGraft.isRoot()) {
+            potentialGraftTop = Double.POSITIVE_INFINITY;
+        } else {
+            potentialGraftTop = potentialGraft.getParent().getHeight();
         }
 
-        return allGraftBranches;
+        return movedNodeHeight > potentialGraftBottom && movedNodeHeight < potentialGraftTop;
+    }
+
+    // identify nodes that can serve as graft branches as part of a coordinated exchange move
+    private void fillGraftBranches(final int branchIndex, final Node yNode) {
+        final BitSet cousinDescendants = findDescendantSpecies(yNode);
+
+        final List<Tree> geneTrees = geneTreeInput.get();
+        final int[] branchGraftCounts = graftCounts[branchIndex];
+        forEachGeneTree((j, random) -> {
+            final Node geneTreeRootNode = geneTrees.get(j).getRoot();
+            branchGraftCounts[j] = 0;
+            findGraftBranches(geneTreeRootNode, graftNodes[branchIndex][j], branchGraftCounts, j, getGeneTipSpecies(j), cousinDescendants);
+        }, false);
     }
 
     // identify nodes that can serve as graft branches as part of a coordinated exchange move
-    private boolean findGraftBranches(Node geneTreeNode, Set<Node> graftNodes, Set<String> branchDescendants) {
+    private boolean findGraftBranches(Node geneTreeNode, int[] graftNodes, int[] graftCounts, int j, int[] tipSpecies, BitSet branchDescendants) {
         if (geneTreeNode.isLeaf()) {
-            final String descendantName = geneTreeNode.getID();
-            return branchDescendants.contains(descendantName);
+            final int descendantSpecies = tipSpecies[geneTreeNode.getNr()];
+            return descendantSpecies >= 0 && branchDescendants.get(descendantSpecies);
         }
 
         final Node leftChild = geneTreeNode.getLeft();
         final Node rightChild = geneTreeNode.getRight();
-        final boolean leftOverlaps = findGraftBranches(leftChild, graftNodes, branchDescendants);
-        final boolean rightOverlaps = findGraftBranches(rightChild, graftNodes, branchDescendants);
+        final boolean leftOverlaps = findGraftBranches(leftChild, graftNodes, graftCounts, j, tipSpecies, branchDescendants);
+        final boolean rightOverlaps = findGraftBranches(rightChild, graftNodes, graftCounts, j, tipSpecies, branchDescendants);
 
         // subtree defined by a child node overlaps species subtree defined by branch
         if (leftOverlaps || rightOverlaps) {
             if (leftOverlaps) {
-                graftNodes.add(leftChild);
+                graftNodes[graftCounts[j]++] = leftChild.getNr();
             }
 
             if (rightOverlaps) {
-                graftNodes.add(rightChild);
+                graftNodes[graftCounts[j]++] = rightChild.getNr();
             }
 
             return true;
@@ -360,45 +430,44 @@ public class CoordinatedExchange extends CoordinatedOperator {
     }
 
     // identify nodes to be grafted in a narrow move, and children to be "disowned" (joined directly to their grandparent)
-    private List<SortedMap<Node, Node>> getMovedPairs(final double lowerHeight, final double upperHeight) {
-        final int aNodeNumber = aNode.getNr();
-        final Set<String> chosenDescendants = findDescendants(aNode, aNodeNumber);
-
-        final List<SortedMap<Node, Node>> allMovedNodes = new ArrayList<>();
+    private void fillMovedPairs(final int branchIndex, final BitSet chosenDescendants, final double lowerHeight, final double upperHeight) {
         final List<Tree> geneTrees = geneTreeInput.get();
-        for (int j = 0; j < nGeneTrees; j++) {
-            final Node geneTreeRootNode = geneTrees.get(j).getRoot();
-            final SortedMap<Node, Node> jMovedNodes = new TreeMap<>(nhc);
-            findMovedPairs(geneTreeRootNode, jMovedNodes, chosenDescendants, lowerHeight, upperHeight);
-            allMovedNodes.add(jMovedNodes);
-        }
-
-        return allMovedNodes;
+        final int[] branchMovedCounts = movedCounts[branchIndex];
+        forEachGeneTree((j, random) -> {
+            final Tree geneTree = geneTrees.get(j);
+            final int[] jMovedNodes = movedNodes[branchIndex][j];
+            final int[] jDisownedChildren = disownedChildren[branchIndex][j];
+            branchMovedCounts[j] = 0;
+            findMovedPairs(geneTree.getRoot(), jMovedNodes, jDisownedChildren, branchMovedCounts, j, getGeneTipSpecies(j), chosenDescendants, lowerHeight, upperHeight);
+            sortOldestFirst(geneTree, jMovedNodes, jDisownedChildren, branchMovedCounts[j]);
+        }, false);
     }
 
     // identify nodes to be moved as part of a coordinated exchange move
-    private boolean findMovedPairs(Node geneTreeNode, Map<Node, Node> movedNodes, Set<String> chosenDescendants, double lowerHeight, double upperHeight) {
+    private boolean findMovedPairs(Node geneTreeNode, int[] movedNodes, int[] disownedChildren, int[] movedCounts, int j, int[] tipSpecies, BitSet chosenDescendants, double lowerHeight, double upperHeight) {
         if (geneTreeNode.isLeaf()) {
-            final String descendantName = geneTreeNode.getID();
+            final int descendantSpecies = tipSpecies[geneTreeNode.getNr()];
             // returns true if this leaf is a descendant of the chosen species
-            return chosenDescendants.contains(descendantName);
+            return descendantSpecies >= 0 && chosenDescendants.get(descendantSpecies);
         }
 
         final Node leftChild = geneTreeNode.getLeft();
         final Node rightChild = geneTreeNode.getRight();
 
         // left child descendants are exclusively descendants of the chosen species tree node
-        final boolean leftExclusive = findMovedPairs(leftChild, movedNodes, chosenDescendants, lowerHeight, upperHeight);
+        final boolean leftExclusive = findMovedPairs(leftChild, movedNodes, disownedChildren, movedCounts, j, tipSpecies, chosenDescendants, lowerHeight, upperHeight);
         // right child descendants are exclusively descendants of the chosen species tree node
-        final boolean rightExclusive = findMovedPairs(rightChild, movedNodes, chosenDescendants, lowerHeight, upperHeight);
+        final boolean rightExclusive = findMovedPairs(rightChild, movedNodes, disownedChildren, movedCounts, j, tipSpecies, chosenDescendants, lowerHeight, upperHeight);
 
         final double nodeHeight = geneTreeNode.getHeight();
         if (nodeHeight >= lowerHeight && nodeHeight < upperHeight) {
             if (leftExclusive ^ rightExclusive) {
+                final int movedCount = movedCounts[j]++;
+                movedNodes[movedCount] = geneTreeNode.getNr();
                 if (leftExclusive) { // leave right child attached to original parent
-                    movedNodes.put(geneTreeNode, rightChild);
+                    disownedChildren[movedCount] = rightChild.getNr();
                 } else { // leaf left child attached to original parent
-                    movedNodes.put(geneTreeNode, leftChild);
+                    disownedChildren[movedCount] = leftChild.getNr();
                 }
             }
         }
@@ -407,6 +476,46 @@ public class CoordinatedExchange extends CoordinatedOperator {
         return leftExclusive && rightExclusive;
     }
 
+    // insertion sort in the reverse order of NodeHeightComparator, because nodes must be grafted oldest to youngest
+    private static void sortOldestFirst(final Tree geneTree, final int[] nodeNrs, final int[] pairedNrs, final int count) {
+        for (int i = 1; i < count; i++) {
+            final int nodeNr = nodeNrs[i];
+            final int pairedNr = pairedNrs[i];
+            int k = i - 1;
+            while (k >= 0 && isOlder(geneTree, nodeNr, nodeNrs[k])) {
+                nodeNrs[k + 1] = nodeNrs[k];
+                pairedNrs[k + 1] = pairedNrs[k];
+                k--;
+            }
+            nodeNrs[k + 1] = nodeNr;
+            pairedNrs[k + 1] = pairedNr;
+        }
+    }
+
+    // if height is equal, the node closer to the root is older, and if depth is equal the higher node number is older
+    private static boolean isOlder(final Tree geneTree, final int nodeNrA, final int nodeNrB) {
+        final double heightA = geneTree.getNode(nodeNrA).getHeight();
+        final double heightB = geneTree.getNode(nodeNrB).getHeight();
+        if (heightA == heightB) {
+            final int depthA = nodeDepth(geneTree.getNode(nodeNrA));
+            final int depthB = nodeDepth(geneTree.getNode(nodeNrB));
+            if (depthA == depthB) {
+                return nodeNrA > nodeNrB;
+            }
+            return depthA < depthB;
+        }
+        return heightA > heightB;
+    }
+
+    private static int nodeDepth(Node node) {
+        int depth = 0;
+        while (!node.isRoot()) {
+            node = node.getParent();
+            depth++;
+        }
+        return depth;
+    }
+
     private int isg(final Node n) {
       return (n.getLeft().isLeaf() && n.getRight().isLeaf()) ? 0 : 1;
     }
@@ -5,40 +5,144 @@ import beast.base.core.Input.Validate;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.Operator;
-import com.google.common.collect.Multimap;
+import beast.base.util.Randomizer;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public abstract class CoordinatedOperator extends Operator {
     public Input<SpeciesTreeInterface> speciesTreeInput = new Input<>("speciesTree", "The species tree state node.", Validate.REQUIRED);
     public Input<List<Tree>> geneTreeInput = new Input<>("geneTree", "Gene tree within the species tree.", new ArrayList<>());
+    public Input<Integer> geneThreadsInput = new Input<>("geneThreads", "Number of threads used to process gene trees within each proposal (default is 1, i.e. serial processing).", 1);
 
     protected int nGeneTrees;
 
+    // species tree tip number of every gene tree leaf (by node number), or -1 if the leaf is not assigned to a species
+    private int[][] geneTipSpecies;
+
+    // gene trees are processed in one contiguous block per thread, and each block draws from its own random stream
+    private ForkJoinPool genePool;
+    private int nGeneBlocks;
+    private Random[] blockRandoms;
+
     @Override
     public void initAndValidate() {
         nGeneTrees = geneTreeInput.get().size();
+        // the gene trees may have changed, so their leaf species are looked up again
+        geneTipSpecies = null;
+
+        // a pool from an earlier initialisation would otherwise keep its threads alive, or still be used
+        if (genePool != null) genePool.shutdown();
+        genePool = null;
+
+        final int geneThreads = geneThreadsInput.get();
+        if (geneThreads > 1) {
+            genePool = new ForkJoinPool(geneThreads);
+            nGeneBlocks = Math.min(geneThreads, Math.max(nGeneTrees, 1));
+            blockRandoms = new Random[nGeneBlocks];
+            for (int blockI = 0; blockI < nGeneBlocks; blockI++)
+                blockRandoms[blockI] = new Random();
+        }
+    }
+
+    // work done on a single gene tree, random is null when gene trees are processed serially (use Randomizer)
+    @FunctionalInterface
+    protected interface GeneTreeWork {
+        void apply(int geneTreeIndex, Random random);
+    }
+
+    /**
+     * Applies the work to every gene tree, in parallel when there is more than one gene thread. The work
+     * for different gene trees must be independent, and any gene tree it changes must already have been
+     * passed to startEditing by the calling thread. The random streams are seeded from Randomizer each
+     * time, so proposals are reproducible for a given seed and number of threads.
+     */
+    protected void forEachGeneTree(final GeneTreeWork work, final boolean usesRandom) {
+        // the gene tree leaf species are filled in by the calling thread before any worker reads them
+        getGeneTipSpecies(0);
+
+        if (genePool == null) {
+            for (int j = 0; j < nGeneTrees; j++)
+                work.apply(j, null);
+        } else {
+            if (usesRandom) {
+                for (int blockI = 0; blockI < nGeneBlocks; blockI++)
+                    blockRandoms[blockI].setSeed(Randomizer.nextLong());
+            }
+            genePool.invoke(new GeneBlockTask(work, 0, nGeneBlocks));
+        }
     }
 
-    protected Set<String> findDescendants(Node speciesTreeNode, int speciesTreeNodeNumber) {
-        final Multimap<Integer, String> numberTipMap = speciesTreeInput.get().getNumberTipMap();
-        final Set<String> descendantNames = new HashSet<>();
+    protected static int nextInt(final Random random, final int n) {
+        return random == null ? Randomizer.nextInt(n) : random.nextInt(n);
+    }
+
+    // recursively splits a range of blocks until each task processes the gene trees of a single block
+    private class GeneBlockTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final GeneTreeWork work;
+        private final int fromBlockI;
+        private final int toBlockI;
+
+        GeneBlockTask(final GeneTreeWork work, final int fromBlockI, final int toBlockI) {
+            this.work = work;
+            this.fromBlockI = fromBlockI;
+            this.toBlockI = toBlockI;
+        }
+
+        @Override
+        protected void compute() {
+            if (toBlockI - fromBlockI <= 1) {
+                final int fromGeneI = (int) ((long) fromBlockI * nGeneTrees / nGeneBlocks);
+                final int toGeneI = (int) ((long) (fromBlockI + 1) * nGeneTrees / nGeneBlocks);
+                for (int j = fromGeneI; j < toGeneI; j++)
+                    work.apply(j, blockRandoms[fromBlockI]);
+            } else {
+                final int midBlockI = (fromBlockI + toBlockI) >>> 1;
+                invokeAll(new GeneBlockTask(work, fromBlockI, midBlockI), new GeneBlockTask(work, midBlockI, toBlockI));
+            }
+        }
+    }
+
+    // species tree tip numbers descending from the species tree node
+    protected BitSet findDescendantSpecies(Node speciesTreeNode) {
+        final BitSet descendantSpecies = new BitSet(speciesTreeInput.get().getLeafNodeCount());
+        addDescendantSpecies(speciesTreeNode, descendantSpecies);
+        return descendantSpecies;
+    }
 
+    private void addDescendantSpecies(Node speciesTreeNode, BitSet descendantSpecies) {
         if (speciesTreeNode.isLeaf()) {
-            descendantNames.addAll(numberTipMap.get(speciesTreeNodeNumber));
+            descendantSpecies.set(speciesTreeNode.getNr());
         } else {
-            final Node leftChild = speciesTreeNode.getLeft();
-            final Node rightChild = speciesTreeNode.getRight();
-            final int leftChildNumber = leftChild.getNr();
-            final int rightChildNumber = rightChild.getNr();
+            addDescendantSpecies(speciesTreeNode.getLeft(), descendantSpecies);
+            addDescendantSpecies(speciesTreeNode.getRight(), descendantSpecies);
+        }
+    }
 
-            descendantNames.addAll(findDescendants(leftChild, leftChildNumber));
-            descendantNames.addAll(findDescendants(rightChild, rightChildNumber));
+    // the gene tree leaves never change, so their species are looked up by name only once
+    protected int[] getGeneTipSpecies(int geneTreeIndex) {
+        if (geneTipSpecies == null && nGeneTrees > 0) {
+            final Map<String, Integer> tipNumberMap = speciesTreeInput.get().getTipNumberMap();
+            final List<Tree> geneTrees = geneTreeInput.get();
+            geneTipSpecies = new int[nGeneTrees][];
+            for (int j = 0; j < nGeneTrees; j++) {
+                final Tree geneTree = geneTrees.get(j);
+                final int leafCount = geneTree.getLeafNodeCount();
+                geneTipSpecies[j] = new int[leafCount];
+                for (int i = 0; i < leafCount; i++) {
+                    final Integer speciesNumber = tipNumberMap.get(geneTree.getNode(i).getID());
+                    geneTipSpecies[j][i] = speciesNumber == null ? -1 : speciesNumber;
+                }
+            }
         }
 
-        return descendantNames;
+        return geneTipSpecies == null ? null : geneTipSpecies[geneTreeIndex];
     }
 }
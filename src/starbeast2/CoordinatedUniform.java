@@ -4,9 +4,9 @@ import beast.base.core.Description;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.SetMultimap;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -67,7 +67,7 @@ public class CoordinatedUniform extends CoordinatedOperator {
 
         final MinimumDouble tipwardFreedom = new MinimumDouble();
         final MinimumDouble rootwardFreedom = new MinimumDouble();
-        final SetMultimap<Integer, Node> connectingNodes = getConnectingNodes(speciesTreeNode, tipwardFreedom, rootwardFreedom);
+        final List<Set<Node>> connectingNodes = getConnectingNodes(speciesTreeNode, tipwardFreedom, rootwardFreedom);
 
         final double leftChildBranchLength = speciesTreeNodeHeight - speciesTreeNode.getLeft().getHeight();
         final double rightChildBranchLength = speciesTreeNodeHeight - speciesTreeNode.getRight().getHeight();
@@ -81,8 +81,10 @@ public class CoordinatedUniform extends CoordinatedOperator {
         final double uniformShift = (Randomizer.nextDouble() * (twf + rwf)) - twf;
 
         speciesTreeNode.setHeight(speciesTreeNode.getHeight() + uniformShift);
-        for (Node geneTreeNode: connectingNodes.values()) {
-            geneTreeNode.setHeight(geneTreeNode.getHeight() + uniformShift);
+        for (Set<Node> jConnectingNodes: connectingNodes) {
+            for (Node geneTreeNode: jConnectingNodes) {
+                geneTreeNode.setHeight(geneTreeNode.getHeight() + uniformShift);
+            }
         }
 
         return fLogHastingsRatio;
@@ -91,34 +93,45 @@ public class CoordinatedUniform extends CoordinatedOperator {
 
     // identify gene tree nodes which descend through both (and also descend exclusively through)
     // the left and right children of the species tree node of interest
-    private SetMultimap<Integer, Node> getConnectingNodes(Node speciesTreeNode, MinimumDouble tipwardFreedom, MinimumDouble rootwardFreedom) {
+    private List<Set<Node>> getConnectingNodes(Node speciesTreeNode, MinimumDouble tipwardFreedom, MinimumDouble rootwardFreedom) {
         final Node leftChildNode = speciesTreeNode.getLeft();
         final Node rightChildNode = speciesTreeNode.getRight();
-        final int leftChildNodeNumber = leftChildNode.getNr();
-        final int rightChildNodeNumber = rightChildNode.getNr();
-        final Set<String> leftChildDescendants = findDescendants(leftChildNode, leftChildNodeNumber);
-        final Set<String> rightChildDescendants = findDescendants(rightChildNode, rightChildNodeNumber);
+        final BitSet leftChildDescendants = findDescendantSpecies(leftChildNode);
+        final BitSet rightChildDescendants = findDescendantSpecies(rightChildNode);
 
-        final SetMultimap<Integer, Node> allConnectingNodes = HashMultimap.create();
+        // each gene tree is searched independently, with its own connecting nodes and freedoms
         final List<Tree> geneTrees = geneTreeInput.get();
+        final List<Set<Node>> allConnectingNodes = new ArrayList<>(nGeneTrees);
+        final MinimumDouble[] geneTipwardFreedom = new MinimumDouble[nGeneTrees];
+        final MinimumDouble[] geneRootwardFreedom = new MinimumDouble[nGeneTrees];
+        for (int j = 0; j < nGeneTrees; j++) {
+            allConnectingNodes.add(new HashSet<>());
+            geneTipwardFreedom[j] = new MinimumDouble();
+            geneRootwardFreedom[j] = new MinimumDouble();
+        }
+
+        forEachGeneTree((j, random) -> {
+            final Node geneTreeRootNode = geneTrees.get(j).getRoot();
+            findConnectingNodes(geneTreeRootNode, allConnectingNodes.get(j), getGeneTipSpecies(j), leftChildDescendants, rightChildDescendants, geneTipwardFreedom[j], geneRootwardFreedom[j]);
+        }, false);
+
         for (int j = 0; j < nGeneTrees; j++) {
-            final Tree geneTree = geneTrees.get(j);
-            final Node geneTreeRootNode = geneTree.getRoot();
-            final Set<Node> jConnectingNodes = new HashSet<Node>();
-            findConnectingNodes(geneTreeRootNode, jConnectingNodes, leftChildDescendants, rightChildDescendants, tipwardFreedom, rootwardFreedom);
-            allConnectingNodes.putAll(j, jConnectingNodes);
-            geneTree.startEditing(null); // hack to stop beast.base.inference.State.Trie memory leak
+            tipwardFreedom.set(geneTipwardFreedom[j].get());
+            rootwardFreedom.set(geneRootwardFreedom[j].get());
+            geneTrees.get(j).startEditing(null); // hack to stop beast.base.inference.State.Trie memory leak
         }
 
         return allConnectingNodes;
     }
 
-    private descendsThrough findConnectingNodes(Node geneTreeNode, Set<Node> connectingNodes, Set<String> leftChildDescendants, Set<String> rightChildDescendants, MinimumDouble tipwardFreedom, MinimumDouble rootwardFreedom) {
+    private descendsThrough findConnectingNodes(Node geneTreeNode, Set<Node> connectingNodes, int[] tipSpecies, BitSet leftChildDescendants, BitSet rightChildDescendants, MinimumDouble tipwardFreedom, MinimumDouble rootwardFreedom) {
         if (geneTreeNode.isLeaf()) {
-            final String descendantName = geneTreeNode.getID();
-            if (leftChildDescendants.contains(descendantName)) {
+            final int descendantSpecies = tipSpecies[geneTreeNode.getNr()];
+            if (descendantSpecies < 0) {
+                return descendsThrough.NEITHER;
+            } else if (leftChildDescendants.get(descendantSpecies)) {
                 return descendsThrough.LEFT_ONLY;
-            } else if (rightChildDescendants.contains(descendantName)) {
+            } else if (rightChildDescendants.get(descendantSpecies)) {
                 return descendsThrough.RIGHT_ONLY;
             } else {
                 return descendsThrough.NEITHER;
@@ -127,8 +140,8 @@ public class CoordinatedUniform extends CoordinatedOperator {
 
         final Node leftChild = geneTreeNode.getLeft();
         final Node rightChild = geneTreeNode.getRight();
-        final descendsThrough leftDescent = findConnectingNodes(leftChild, connectingNodes, leftChildDescendants, rightChildDescendants, tipwardFreedom, rootwardFreedom);
-        final descendsThrough rightDescent = findConnectingNodes(rightChild, connectingNodes, leftChildDescendants, rightChildDescendants, tipwardFreedom, rootwardFreedom);
+        final descendsThrough leftDescent = findConnectingNodes(leftChild, connectingNodes, tipSpecies, leftChildDescendants, rightChildDescendants, tipwardFreedom, rootwardFreedom);
+        final descendsThrough rightDescent = findConnectingNodes(rightChild, connectingNodes, tipSpecies, leftChildDescendants, rightChildDescendants, tipwardFreedom, rootwardFreedom);
 
         if (leftDescent == rightDescent) {
             if (leftDescent == descendsThrough.BOTH) {
@@ -0,0 +1,291 @@
+package starbeast2;
+
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Dormand-Prince 5(4) embedded Runge-Kutta integrator for the lineage state probabilities,
+ * with local error control and step size adaptation. The rates are constant within an
+ * interval, so the system is autonomous and the stage times are not needed.
+ */
+public class DormandPrinceAIM implements AIMIntegrator {
+
+	// Butcher tableau
+	static final double A21 = 1.0/5.0;
+	static final double A31 = 3.0/40.0, A32 = 9.0/40.0;
+	static final double A41 = 44.0/45.0, A42 = -56.0/15.0, A43 = 32.0/9.0;
+	static final double A51 = 19372.0/6561.0, A52 = -25360.0/2187.0, A53 = 64448.0/6561.0, A54 = -212.0/729.0;
+	static final double A61 = 9017.0/3168.0, A62 = -355.0/33.0, A63 = 46732.0/5247.0, A64 = 49.0/176.0, A65 = -5103.0/18656.0;
+	// fifth order weights, also the last row of the tableau (first same as last)
+	static final double B1 = 35.0/384.0, B3 = 500.0/1113.0, B4 = 125.0/192.0, B5 = -2187.0/6784.0, B6 = 11.0/84.0;
+	// difference between the fifth and fourth order weights
+	static final double E1 = 71.0/57600.0, E3 = -71.0/16695.0, E4 = 71.0/1920.0, E5 = -17253.0/339200.0, E6 = 22.0/525.0, E7 = -1.0/40.0;
+
+	static final double SAFETY = 0.9;
+	static final double MIN_SCALE = 0.2;
+	static final double MAX_SCALE = 5.0;
+	static final double MIN_STEP = 1e-12;
+	static final int MAX_STEPS = 1000000;
+
+	double tolerance;
+	double max_step;
+
+	double[][] migration_rates;
+	int[] multiplicator;
+	int[][] indicators;
+	boolean[] isConnected;
+	double[] coalescent_rates;
+	int lineages;
+	int states;
+	boolean hasIndicators;
+	boolean hasMultiplicator;
+
+	int evaluations;
+
+	// scratch space, sized for the largest number of states and lineages this integrator will be reset to
+	double[] sumStates;
+	double[] tCR;
+	double[] k1, k2, k3, k4, k5, k6, k7;
+	double[] yTmp;
+	double[] yNew;
+
+	/**
+	 * @param maxStates the largest number of states
+	 * @param maxLength the largest length of the lineage state probability vector, including the probability element
+	 * @param tolerance the relative and absolute tolerance of the local error of each step
+	 * @param max_step the longest step allowed
+	 */
+	public DormandPrinceAIM(int maxStates, int maxLength, double tolerance, double max_step) {
+		this.tolerance = tolerance;
+		this.max_step = max_step;
+		sumStates = new double[maxStates];
+		tCR = new double[maxStates];
+		k1 = new double[maxLength];
+		k2 = new double[maxLength];
+		k3 = new double[maxLength];
+		k4 = new double[maxLength];
+		k5 = new double[maxLength];
+		k6 = new double[maxLength];
+		k7 = new double[maxLength];
+		yTmp = new double[maxLength];
+		yNew = new double[maxLength];
+	}
+
+	@Override
+	public void reset(int[] multiplicator, double[][] migration_rates, int[][] indicators, boolean[] isConnected, double[] coalescent_rates, int lineages, int states) {
+		if (states > sumStates.length)
+			throw new IllegalArgumentException("Integrator was allocated for " + sumStates.length + " states, not " + states);
+
+		this.multiplicator = multiplicator;
+		this.migration_rates = migration_rates;
+		this.indicators = indicators;
+		this.isConnected = isConnected;
+		this.coalescent_rates = coalescent_rates;
+		this.lineages = lineages;
+		this.states = states;
+		hasIndicators = indicators != null;
+		hasMultiplicator = multiplicator != null;
+
+		evaluations = 0;
+	}
+
+	@Override
+	public void calculateValues(double duration, double[] p, int length) {
+		integrate(duration, p, null, length);
+	}
+
+	@Override
+	public void calculateConnectedValues(double duration, double[] p, int length) {
+		integrate(duration, p, isConnected, length);
+	}
+
+	@Override
+	public int getEvaluations() {
+		return evaluations;
+	}
+
+	private void integrate(double duration, final double[] p, final boolean[] connected, final int length) {
+		computeDerivatives(p, k1, connected, length);
+		double timeStep = FastMath.min(initialStep(p, k1, connected, length), max_step);
+
+		int steps = 0;
+		while (duration > 0) {
+			if (++steps > MAX_STEPS) {
+				System.err.println("too many iterations, return negative infinity");
+				p[length-1] = Double.NEGATIVE_INFINITY;
+				return;
+			}
+
+			final boolean lastStep = timeStep >= duration;
+			final double h = lastStep ? duration : timeStep;
+
+			for (int i = 0; i < length; i++)
+				yTmp[i] = p[i] + h*A21*k1[i];
+			computeDerivatives(yTmp, k2, connected, length);
+			for (int i = 0; i < length; i++)
+				yTmp[i] = p[i] + h*(A31*k1[i] + A32*k2[i]);
+			computeDerivatives(yTmp, k3, connected, length);
+			for (int i = 0; i < length; i++)
+				yTmp[i] = p[i] + h*(A41*k1[i] + A42*k2[i] + A43*k3[i]);
+			computeDerivatives(yTmp, k4, connected, length);
+			for (int i = 0; i < length; i++)
+				yTmp[i] = p[i] + h*(A51*k1[i] + A52*k2[i] + A53*k3[i] + A54*k4[i]);
+			computeDerivatives(yTmp, k5, connected, length);
+			for (int i = 0; i < length; i++)
+				yTmp[i] = p[i] + h*(A61*k1[i] + A62*k2[i] + A63*k3[i] + A64*k4[i] + A65*k5[i]);
+			computeDerivatives(yTmp, k6, connected, length);
+			for (int i = 0; i < length; i++)
+				yNew[i] = p[i] + h*(B1*k1[i] + B3*k3[i] + B4*k4[i] + B5*k5[i] + B6*k6[i]);
+			computeDerivatives(yNew, k7, connected, length);
+
+			final double error = errorNorm(p, h, length);
+
+			// lineage state probabilities must stay probabilities, otherwise the step is too long
+			boolean valid = !Double.isNaN(error);
+			for (int i = 0; valid && i < length - 1; i++)
+				valid = yNew[i] >= -tolerance && yNew[i] <= 1.0 + tolerance;
+
+			if (valid && error <= 1.0) {
+				System.arraycopy(yNew, 0, p, 0, length);
+				for (int i = 0; i < lineages; i++)
+					normalise(i, p);
+
+				// first same as last, the derivatives at the end of this step start the next one
+				final double[] swap = k1;
+				k1 = k7;
+				k7 = swap;
+
+				duration = lastStep ? 0.0 : duration - h;
+				final double scale = error == 0.0 ? MAX_SCALE : FastMath.min(MAX_SCALE, SAFETY*FastMath.pow(error, -0.2));
+				timeStep = FastMath.min(h*scale, max_step);
+			} else {
+				final double scale = valid ? FastMath.max(MIN_SCALE, SAFETY*FastMath.pow(error, -0.2)) : 0.5;
+				timeStep = h*scale;
+				if (timeStep < MIN_STEP) {
+					System.err.println("cannot find proper time step, skip these parameter values");
+					p[length-1] = Double.NEGATIVE_INFINITY;
+					return;
+				}
+			}
+		}
+	}
+
+	// root mean square of the local error estimate scaled by the tolerance
+	private double errorNorm(final double[] p, final double h, final int length) {
+		double sum = 0.0;
+		for (int i = 0; i < length; i++) {
+			final double e = h*(E1*k1[i] + E3*k3[i] + E4*k4[i] + E5*k5[i] + E6*k6[i] + E7*k7[i]);
+			final double scale = tolerance + tolerance*FastMath.max(FastMath.abs(p[i]), FastMath.abs(yNew[i]));
+			sum += (e/scale)*(e/scale);
+		}
+		return FastMath.sqrt(sum/length);
+	}
+
+	// starting step size from the magnitudes of the probabilities and their first two derivatives (Hairer et al. 1993)
+	private double initialStep(final double[] p, final double[] pDot, final boolean[] connected, final int length) {
+		double d0 = 0.0;
+		double d1 = 0.0;
+		for (int i = 0; i < length; i++) {
+			final double scale = tolerance + tolerance*FastMath.abs(p[i]);
+			d0 += (p[i]/scale)*(p[i]/scale);
+			d1 += (pDot[i]/scale)*(pDot[i]/scale);
+		}
+		d0 = FastMath.sqrt(d0/length);
+		d1 = FastMath.sqrt(d1/length);
+		final double h0 = d0 < 1e-5 || d1 < 1e-5 ? 1e-6 : 0.01*d0/d1;
+
+		// explicit Euler step to estimate the second derivative
+		for (int i = 0; i < length; i++)
+			yTmp[i] = p[i] + h0*pDot[i];
+		computeDerivatives(yTmp, k2, connected, length);
+		double d2 = 0.0;
+		for (int i = 0; i < length; i++) {
+			final double scale = tolerance + tolerance*FastMath.abs(p[i]);
+			final double diff = (k2[i] - pDot[i])/scale;
+			d2 += diff*diff;
+		}
+		d2 = FastMath.sqrt(d2/length)/h0;
+
+		final double maxD = FastMath.max(d1, d2);
+		final double h1 = maxD <= 1e-15 ? FastMath.max(1e-6, h0*1e-3) : FastMath.pow(0.01/maxD, 0.2);
+		return FastMath.min(100*h0, h1);
+	}
+
+	private void normalise(final int i, final double[] p) {
+		final int k = states*i;
+		double linSum = 0;
+
+		// accepted steps only undershoot zero by less than the tolerance
+		for (int j = 0; j < states; j++) {
+			if (p[k+j] < 0.0)
+				p[k+j] = 0.0;
+			linSum += p[k+j];
+		}
+		for (int j = 0; j < states; j++)
+			p[k+j] /= linSum;
+	}
+
+	// first derivatives only, states that are not connected (if connected is not null) do not change
+	public void computeDerivatives(final double[] p, final double[] pDot, final boolean[] connected, final int length) {
+		evaluations++;
+
+		for (int i = 0; i < length; i++)
+			pDot[i] = 0.0;
+
+		// Compute the sum of line state probabilities for each state
+		for (int j = 0; j < states; j++)
+			sumStates[j] = 0.0;
+		for (int i = 0; i < lineages; i++) {
+			final int k = states*i;
+			final int m = hasMultiplicator ? multiplicator[i] : 1;
+			for (int j = 0; j < states; j++)
+				if (connected == null || connected[j])
+					sumStates[j] += m*p[k+j];
+		}
+
+		// Caluclate the change in the lineage state probabilities for every lineage in every state
+		for (int i = 0; i < lineages; i++) {
+			final int currlin = states*i;
+			double sumCoal = 0;
+			for (int j = 0; j < states; j++) {
+				if (connected == null || connected[j]) {
+					tCR[j] = coalescent_rates[j]*(sumStates[j] - p[currlin+j]);
+					sumCoal += p[currlin+j]*tCR[j];
+				}
+			}
+			pDot[length-1] -= hasMultiplicator ? multiplicator[i]*sumCoal : sumCoal;
+
+			for (int j = 0; j < states; j++)
+				if (connected == null || connected[j])
+					pDot[currlin+j] += p[currlin+j]*(sumCoal - tCR[j]);
+		}
+
+		// Calculate the probability of a lineage changing states
+		if (hasIndicators) {
+			for (int j = 0; j < indicators.length; j++) {
+				final int source = indicators[j][0];
+				final int sink = indicators[j][1];
+				final double mrate = migration_rates[source][sink];
+				for (int i = 0; i < lineages; i++) {
+					final double migrates = p[states*i+source]*mrate;
+					pDot[states*i+sink] += migrates;
+					pDot[states*i+source] -= migrates;
+				}
+			}
+		} else if (connected == null) {
+			for (int i = 0; i < lineages; i++) {
+				final int currlin = states*i;
+				for (int j = 0; j < states; j++) {
+					final double pj = p[currlin+j];
+					for (int k = j+1; k < states; k++) {
+						final double migrates = p[currlin+k]*migration_rates[k][j] - pj*migration_rates[j][k];
+						pDot[currlin+j] += migrates;
+						pDot[currlin+k] -= migrates;
+					}
+				}
+			}
+		}
+
+		pDot[length-1] /= 2;
+	}
+}
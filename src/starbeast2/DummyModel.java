@@ -4,7 +4,6 @@ package starbeast2;
 import beast.base.evolution.tree.Node;
 import beast.base.inference.CalculationNode;
 
-import java.text.DecimalFormat;
 
 /**
 * @author Huw Ogilvie
@@ -24,7 +23,7 @@ public class DummyModel extends CalculationNode implements PopulationModel {
     public void initPopSizes(double initialPopSizes) {}
 
     @Override
-    public void serialize(Node speciesTreeNode, StringBuffer buf, DecimalFormat df) {}
+    public void serialize(Node speciesTreeNode, NewickWriter writer) {}
 
     @Override
     public boolean isDirtyBranch(Node speciesTreeNode) {
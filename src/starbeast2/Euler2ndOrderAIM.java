@@ -3,7 +3,7 @@ package starbeast2;
 
 import org.apache.commons.math3.util.FastMath;
 
-public class Euler2ndOrderAIM {
+public class Euler2ndOrderAIM implements AIMIntegrator {
 
 	double epsilon;
 	double max_step;
@@ -24,89 +24,95 @@ public class Euler2ndOrderAIM {
 	int iterations;
 
 	
-	public Euler2ndOrderAIM(double[][] migration_rates, double[] coalescent_rates, int lineages, int states, double epsilon, double max_step) {
+	// scratch space, sized for the largest number of states and lineages this integrator will be reset to
+	double[] sumDotStates;
+	double[] tCR;
+	double[] pDot;
+	double[] pDotDot;
+	double[] pDotDotDot;
+
+	/**
+	 * Long-lived integrator with preallocated scratch space, call reset before integrating each interval
+	 * @param maxStates the largest number of states
+	 * @param maxLength the largest length of the lineage state probability vector, including the probability element
+	 */
+	public Euler2ndOrderAIM(int maxStates, int maxLength, double epsilon, double max_step) {
 		this.max_step = max_step;
 		this.epsilon = epsilon;
-        this.migration_rates = migration_rates;
-        this.coalescent_rates = coalescent_rates;
-        this.lineages = lineages;
-        this.states = states;
-        this.dimension = this.lineages*this.states;
-    	sumStates = new double[states];    	
-    	hasIndicators = false;
-    	hasMultiplicator = false;
-    	
-    	iterations=0;
+		sumStates = new double[maxStates];
+		sumDotStates = new double[maxStates];
+		tCR = new double[maxStates];
+		pDot = new double[maxLength];
+		pDotDot = new double[maxLength];
+		pDotDotDot = new double[maxLength];
+	}
+
+	public Euler2ndOrderAIM(double[][] migration_rates, double[] coalescent_rates, int lineages, int states, double epsilon, double max_step) {
+		this(states, epsilon, max_step);
+		reset(null, migration_rates, null, null, coalescent_rates, lineages, states);
 	}
 	
 	public Euler2ndOrderAIM(double[][] migration_rates, int[][] indicators, double[] coalescent_rates, int lineages, int states, double epsilon, double max_step) {
-		this.max_step = max_step;
-		this.epsilon = epsilon;
-        this.migration_rates = migration_rates;
-        this.indicators = indicators;
-        this.coalescent_rates = coalescent_rates;
-        this.lineages = lineages;
-        this.states = states;
-        this.dimension = this.lineages*this.states;
-    	sumStates = new double[states];
-    	hasIndicators = true;
-    	hasMultiplicator = false;
-    	
-    	iterations=0;
+		this(states, epsilon, max_step);
+		reset(null, migration_rates, indicators, null, coalescent_rates, lineages, states);
 	}
 
 	public Euler2ndOrderAIM(int[] multiplicator, double[][] migration_rates, double[] coalescent_rates, int lineages, int states, double epsilon, double max_step) {
-		this.max_step = max_step;
-		this.epsilon = epsilon;
-        this.migration_rates = migration_rates;
-        this.multiplicator = multiplicator;
-        this.coalescent_rates = coalescent_rates;
-        this.lineages = lineages;
-        this.states = states;
-        this.dimension = this.lineages*this.states;
-    	sumStates = new double[states];    	
-    	hasIndicators = false;
-    	hasMultiplicator = true; 
-    	
-    	iterations=0;
+		this(states, epsilon, max_step);
+		reset(multiplicator, migration_rates, null, null, coalescent_rates, lineages, states);
 	}
 	
 	public Euler2ndOrderAIM(int[] multiplicator, double[][] migration_rates, int[][] indicators, double[] coalescent_rates, int lineages, int states, double epsilon, double max_step) {
-		this.max_step = max_step;
-		this.epsilon = epsilon;
-        this.migration_rates = migration_rates;
-        this.multiplicator = multiplicator;
-        this.indicators = indicators;
-        this.coalescent_rates = coalescent_rates;
-        this.lineages = lineages;
-        this.states = states;
-        this.dimension = this.lineages*this.states;
-    	sumStates = new double[states];    	
-    	hasIndicators = true;
-    	hasMultiplicator = true;   
-    	
-    	iterations=0;
+		this(states, epsilon, max_step);
+		reset(multiplicator, migration_rates, indicators, null, coalescent_rates, lineages, states);
 	}
 
 	public Euler2ndOrderAIM(int[] multiplicator, double[][] migration_rates, int[][] indicators, boolean[] isConnected, double[] coalescent_rates, int lineages, int states, double epsilon, double max_step) {
-		this.max_step = max_step;
-		this.epsilon = epsilon;
-        this.migration_rates = migration_rates;
-        this.multiplicator = multiplicator;
-        this.indicators = indicators;
-        this.coalescent_rates = coalescent_rates;
-        this.lineages = lineages;
-        this.states = states;
-        this.dimension = this.lineages*this.states;
-        this.isConnected = isConnected;
-    	sumStates = new double[states];    	
-    	hasIndicators = true;
-    	hasMultiplicator = true;   
-    	
-    	iterations=0;
+		this(states, epsilon, max_step);
+		reset(multiplicator, migration_rates, indicators, isConnected, coalescent_rates, lineages, states);
+	}
+
+	// one-shot integrators only need the per-state scratch space, the derivative arrays are passed in
+	private Euler2ndOrderAIM(int states, double epsilon, double max_step) {
+		this(states, 0, epsilon, max_step);
+	}
+
+	@Override
+	public void reset(int[] multiplicator, double[][] migration_rates, int[][] indicators, boolean[] isConnected, double[] coalescent_rates, int lineages, int states) {
+		if (states > sumStates.length)
+			throw new IllegalArgumentException("Integrator was allocated for " + sumStates.length + " states, not " + states);
+
+		this.multiplicator = multiplicator;
+		this.migration_rates = migration_rates;
+		this.indicators = indicators;
+		this.isConnected = isConnected;
+		this.coalescent_rates = coalescent_rates;
+		this.lineages = lineages;
+		this.states = states;
+		this.dimension = this.lineages*this.states;
+		hasIndicators = indicators != null;
+		hasMultiplicator = multiplicator != null;
+
+		iterations=0;
+	}
+
+	// integrate using the preallocated derivative arrays
+	@Override
+	public void calculateValues(double duration, double[] p, int length){
+		calculateValues(duration, p, pDot, pDotDot, pDotDotDot, length);
+	}
+
+	@Override
+	public void calculateConnectedValues(double duration, double[] p, int length){
+		calculateConnectedValues(duration, p, pDot, pDotDot, pDotDotDot, length);
+	}
+
+	// every iteration evaluates the first and second derivatives and approximates the third
+	@Override
+	public int getEvaluations() {
+		return iterations;
 	}
 
-	
 	public void calculateValues(double duration, double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length){
 		clearArray(pDotDot, length);
 		clearArray(pDotDotDot, length);
@@ -249,7 +255,7 @@ public class Euler2ndOrderAIM {
 		
     	double migrates;
     	// Compute the sum of line state probabilities for each state
-     	sumStates = new double[states];
+     	clearArray(sumStates, states);
      	if (hasMultiplicator){
 	    	for (int i = 0; i<lineages; i++) {
 	    		int k = states * i;
@@ -268,7 +274,6 @@ public class Euler2ndOrderAIM {
     		
     	// Caluclate the change in the lineage state probabilities for every lineage in every state
     	for (int i = 0; i<lineages; i++){
-    		double[] tCR =  new double[states];
     		double sumCoal = 0;
     		int currlin = states*i;
     		for (int j = 0; j<states; j++){
@@ -326,7 +331,7 @@ public class Euler2ndOrderAIM {
     }
         
     public void computeSecondDerivate (double[] p, double[] pDot, double[] pDotDot, int length){  
-    	double[] sumDotStates = new double[states];
+    	clearArray(sumDotStates, states);
     	if (hasMultiplicator){
 	    	for (int i = 0; i<lineages; i++)
 	    		for (int j = 0; j<states; j++)
@@ -523,7 +528,7 @@ public class Euler2ndOrderAIM {
 		
     	double migrates;
     	// Compute the sum of line state probabilities for each state
-     	sumStates = new double[states];
+     	clearArray(sumStates, states);
 		for (int j = 0; j<states; j++) {
 			if (isConnected[j]){
 				for (int i = 0; i<lineages; i++) {
@@ -534,7 +539,6 @@ public class Euler2ndOrderAIM {
     		
     	// Caluclate the change in the lineage state probabilities for every lineage in every state
     	for (int i = 0; i < lineages; i++){
-    		double[] tCR =  new double[states];
     		double sumCoal = 0;
     		int currlin = states*i;
     		for (int j = 0; j<states; j++){
@@ -582,7 +586,7 @@ public class Euler2ndOrderAIM {
     }
         
     public void computeConnectedSecondDerivate (double[] p, double[] pDot, double[] pDotDot, int length){  
-    	double[] sumDotStates = new double[states];
+    	clearArray(sumDotStates, states);
 		for (int j = 0; j<states; j++){
 			if (isConnected[j]){
 				for (int i = 0; i<lineages; i++){
@@ -4,7 +4,6 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
-import beast.base.evolution.tree.TreeInterface;
 import beast.base.inference.Distribution;
 import beast.base.inference.State;
 
@@ -12,6 +11,9 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
 * @author Remco Bouckaert
@@ -23,103 +25,140 @@ public class GeneTree extends Distribution {
     public Input<SpeciesTreeInterface> speciesTreeInput = new Input<>("speciesTree", "Species tree for embedding the gene tree.", Validate.REQUIRED);
     public Input<Double> ploidyInput = new Input<>("ploidy", "Ploidy (copy number) for this gene, typically a whole number or half (default is 2).", 2.0);
     public Input<PopulationModel> popModelInput = new Input<>("populationModel", "Population model used to infer the multispecies coalescent probability for this gene");
+    public Input<Boolean> incrementalUpdateInput = new Input<>("incrementalUpdate", "When the species tree is unchanged, only re-embed the gene tree lineages affected by the last proposal (default is true).", true);
 
     private double ploidy;
     private int geneTreeLeafNodeCount;
     private int geneTreeNodeCount;
     private int speciesLeafNodeCount;
     private int speciesNodeCount;
-    private boolean needsUpdate;
-    private boolean needsLeafMapping;
+    private boolean incrementalUpdate;
 
-    // the following are matrices associated with each branch of the species tree
-    // they are flattened to arrays for optimal java performance
-    protected double[] coalescentTimes; // the coalescent event times for this gene tree for all species tree branches
-    protected double[] storedCoalescentTimes; // the coalescent event times for this gene tree for all species tree branches
-    int coalescentTimesLength; // length of coalescentTimes array
-    protected int[] coalescentCounts; // the number of coalescent events in each branch
-    protected int[] storedCoalescentCounts; // stored version of coalescentCounts
+    final static int BLOCK_PADDING = 2; // the start and end times of each branch are stored either side of its events
     final static int DELTA_BLOCK_SIZE = 4;
-    private int blocksize = DELTA_BLOCK_SIZE; // size of blocks for storing coalescentTimes, may grow (and shrink) throughout the MCMC
-    int maxCoalescentCounts, storedMaxCoalescentCounts; // maximum number of coalescent events in a branch -- blocksize must always be at least as large
-
-    protected int[] coalescentLineageCounts; // the number of lineages at the tipward end of each branch
-    protected int[] storedCoalescentLineageCounts; // the number of lineages at the tipward end of each branch
-
-    protected int[] geneNodeSpeciesAssignment;
-    protected int[] storedGeneNodeSpeciesAssignment;
-    protected double[] speciesOccupancy;
-    protected double[] storedSpeciesOccupancy;
-    protected boolean geneTreeCompatible;
-    protected boolean storedGeneTreeCompatible;
+    private volatile int blocksize = DELTA_BLOCK_SIZE; // size of blocks for storing coalescentTimes, may grow (and shrink) throughout the MCMC
 
     // pre-calculated lineage counts and node assignments for gene tree leaf nodes
     int[] leafCoalescentLineageCounts;
     int[] leafGeneNodeSpeciesAssignment;
-
-    int updateCount = 0;
-    boolean stopPopping = false;
-
-    private boolean[] speciesBranchIsDirty;
+    private volatile boolean needsLeafMapping;
+
+    private final AtomicInteger updateCount = new AtomicInteger();
+    private volatile boolean stopPopping = false;
+
+    // The embedding is rebuilt once for every version (epoch) of the inputs. Only the MCMC thread changes the epoch,
+    // in requiresRecalculation and restore. Embeddings are never modified once published, so any thread can read
+    // the current embedding without locking, and a thread which finds it out of date builds a new one itself.
+    private volatile int epoch;
+    private int storedEpoch;
+    private final AtomicReference<Embedding> embedding = new AtomicReference<>();
+    private volatile Embedding storedEmbedding;
+    // embeddings replaced during this step may still be read until the step ends, so are only reused after that
+    private final ConcurrentLinkedQueue<Embedding> retiredEmbeddings = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Embedding> spareEmbeddings = new ConcurrentLinkedQueue<>();
 
     private SpeciesTreeInterface spTree;
     private Tree geneTree;
     private PopulationModel popModel;
 
+    // only used by calculateLogP, which is never run concurrently for the same gene tree
     private double[] perBranchLogP;
     private double[] storedPerBranchLogP;
 
+    // Everything derived from embedding this gene tree within the species tree for one epoch.
+    // The following are matrices associated with each branch of the species tree
+    // they are flattened to arrays for optimal java performance
+    static final class Embedding {
+        int epoch;
+        boolean compatible;
+
+        // each block of coalescentTimes begins with the height of the species tree node, followed by the coalescent event
+        // times in ascending order, and ends with the height of the parent species tree node (or infinity for the root)
+        double[] coalescentTimes; // the coalescent event times for this gene tree for all species tree branches
+        int blocksize; // the number of events each block can hold
+        int[] coalescentCounts; // the number of coalescent events in each branch
+        int maxCoalescentCounts; // maximum number of coalescent events in a branch -- blocksize must always be at least as large
+        int[] coalescentLineageCounts; // the number of lineages at the tipward end of each branch
+        boolean[] speciesBranchIsDirty; // compared with the stored embedding
+
+        int[] geneNodeSpeciesAssignment;
+        double[] geneNodeHeights; // the height of each internal gene tree node when it was embedded
+
+        // sparse species occupancy, one row for the branch above each gene tree node
+        // row i lists the species tree branches the gene branch passes through, and the time spent in each
+        // rows are flattened with a fixed stride, which is at least the depth of the species tree
+        int occupancyStride;
+        int[] occupancyCounts; // the number of species tree branches in each row
+        int[] occupancySpecies; // species tree node numbers
+        double[] occupancyLengths; // time spent by the gene branch in each species tree branch
+
+        // working space used while building the embedding:
+        // gene tree nodes that have changed since the last update, and all of their ancestors
+        final int[] affectedNodes;
+        int affectedNodeCount;
+        final int[] affectedNodeStamps; // equal to affectedStamp for nodes in affectedNodes
+        int affectedStamp;
+
+        Embedding(int geneTreeNodeCount, int speciesNodeCount) {
+            coalescentTimes = new double[0];
+            coalescentCounts = new int[speciesNodeCount];
+            coalescentLineageCounts = new int[speciesNodeCount];
+            speciesBranchIsDirty = new boolean[speciesNodeCount];
+            geneNodeSpeciesAssignment = new int[geneTreeNodeCount];
+            geneNodeHeights = new double[geneTreeNodeCount];
+            occupancyCounts = new int[geneTreeNodeCount];
+            occupancySpecies = new int[0];
+            occupancyLengths = new double[0];
+            affectedNodes = new int[geneTreeNodeCount];
+            affectedNodeStamps = new int[geneTreeNodeCount];
+        }
+
+        // the coalescent times of species tree branch nodeI occupy coalescentCounts[nodeI] + 2
+        // elements of coalescentTimes starting from this offset
+        int timesOffset(int nodeI) {
+            return nodeI * (blocksize + BLOCK_PADDING);
+        }
+    }
+
     @Override
     public boolean requiresRecalculation() {
-        needsUpdate = true;
-        return needsUpdate;
+        epoch++; // only the MCMC thread writes the epoch
+        return true;
     }
 
     @Override
     public void store() {
         super.store();
 
-        System.arraycopy(coalescentCounts, 0, storedCoalescentCounts, 0, coalescentCounts.length);
-        System.arraycopy(coalescentTimes, 0, storedCoalescentTimes, 0, coalescentTimesLength);
-        System.arraycopy(coalescentLineageCounts, 0, storedCoalescentLineageCounts, 0, coalescentLineageCounts.length);
-
-        System.arraycopy(geneNodeSpeciesAssignment, 0, storedGeneNodeSpeciesAssignment, 0, geneNodeSpeciesAssignment.length);
-        System.arraycopy(speciesOccupancy, 0, storedSpeciesOccupancy, 0, speciesOccupancy.length);
         System.arraycopy(perBranchLogP, 0, storedPerBranchLogP, 0, perBranchLogP.length);
 
-        storedGeneTreeCompatible = geneTreeCompatible;
-        storedMaxCoalescentCounts = maxCoalescentCounts;
+        // published embeddings are immutable, so storing one only needs a reference
+        storedEmbedding = embedding.get();
+        storedEpoch = epoch;
+        recycleEmbeddings();
     }
 
     @Override
     public void restore() {
         super.restore();
 
-        double[] tmpCoalescentTimes = coalescentTimes;
-        int[] tmpCoalescentCounts = coalescentCounts;
-        int[] tmpCoalescentLineageCounts = coalescentLineageCounts;
-        int[] tmpGeneNodeSpeciesAssignment = geneNodeSpeciesAssignment;
-        double[] tmpSpeciesOccupancy = speciesOccupancy;
         double[] tmpPerBranchLogP = perBranchLogP;
-        boolean tmpGeneTreeCompatible = geneTreeCompatible;
-
-        coalescentTimes = storedCoalescentTimes;
-        coalescentCounts = storedCoalescentCounts;
-        coalescentLineageCounts = storedCoalescentLineageCounts;
-        speciesOccupancy = storedSpeciesOccupancy;
-        geneNodeSpeciesAssignment = storedGeneNodeSpeciesAssignment;
         perBranchLogP = storedPerBranchLogP;
-        geneTreeCompatible = storedGeneTreeCompatible;
-
-        storedCoalescentTimes = tmpCoalescentTimes;
-        storedCoalescentCounts = tmpCoalescentCounts;
-        storedCoalescentLineageCounts = tmpCoalescentLineageCounts;
-        storedSpeciesOccupancy = tmpSpeciesOccupancy;
-        storedGeneNodeSpeciesAssignment = tmpGeneNodeSpeciesAssignment;
         storedPerBranchLogP = tmpPerBranchLogP;
-        storedGeneTreeCompatible = tmpGeneTreeCompatible;
 
-        maxCoalescentCounts = storedMaxCoalescentCounts;
+        final Embedding discarded = embedding.getAndSet(storedEmbedding);
+        if (discarded != null && discarded != storedEmbedding) retiredEmbeddings.add(discarded);
+        epoch = storedEpoch;
+        recycleEmbeddings();
+    }
+
+    // called between steps, when no other thread can be reading a retired embedding
+    private void recycleEmbeddings() {
+        final Embedding current = embedding.get();
+        Embedding retired;
+        while ((retired = retiredEmbeddings.poll()) != null) {
+            if (retired != current && retired != storedEmbedding) spareEmbeddings.add(retired);
+        }
     }
 
     public void initAndValidate() {
@@ -128,40 +167,26 @@ public class GeneTree extends Distribution {
         ploidy = ploidyInput.get();
         geneTree = treeInput.get();
         spTree = speciesTreeInput.get();
+        incrementalUpdate = incrementalUpdateInput.get();
 
         geneTreeLeafNodeCount = treeInput.get().getLeafNodeCount();
         geneTreeNodeCount = geneTree.getNodeCount();
         speciesLeafNodeCount = spTree.getLeafNodeCount();
         speciesNodeCount = spTree.getNodeCount();
 
-        geneNodeSpeciesAssignment = new int[geneTreeNodeCount];
-        storedGeneNodeSpeciesAssignment = new int[geneTreeNodeCount];
-
-        geneTreeCompatible = false;
-        storedGeneTreeCompatible = false;
-
-        coalescentLineageCounts = new int[speciesNodeCount];
-        storedCoalescentLineageCounts = new int[speciesNodeCount];
-        
-        coalescentCounts = new int[speciesNodeCount];
-        storedCoalescentCounts = new int[speciesNodeCount];
-        coalescentTimesLength = speciesNodeCount * blocksize;
-        coalescentTimes = new double[coalescentTimesLength + geneTreeNodeCount];
-        storedCoalescentTimes = new double[coalescentTimesLength + geneTreeNodeCount];
-
-        speciesOccupancy = new double[geneTreeNodeCount * speciesNodeCount];
-        storedSpeciesOccupancy = new double[geneTreeNodeCount * speciesNodeCount];
-
         perBranchLogP = new double[speciesNodeCount];
         storedPerBranchLogP = new double[speciesNodeCount];
 
-        speciesBranchIsDirty = new boolean[speciesNodeCount];
-        Arrays.fill(speciesBranchIsDirty, true);
-
         leafCoalescentLineageCounts = new int[speciesLeafNodeCount];
         leafGeneNodeSpeciesAssignment = new int[geneTreeLeafNodeCount];
 
-        needsUpdate = true;
+        embedding.set(null);
+        storedEmbedding = null;
+        retiredEmbeddings.clear();
+        spareEmbeddings.clear();
+        epoch = 0;
+        storedEpoch = 0;
+
         needsLeafMapping = true;
 
         logP = 0.0;
@@ -170,9 +195,9 @@ public class GeneTree extends Distribution {
     @Override
     public double calculateLogP() {
         assert SanityChecks.checkTreeSanity(speciesTreeInput.get().getRoot());
-        if (needsUpdate) update();
+        final Embedding current = getEmbedding();
 
-        if (!geneTreeCompatible) {
+        if (!current.compatible) {
             logP = Double.NEGATIVE_INFINITY;
             return logP;
         }
@@ -184,11 +209,11 @@ public class GeneTree extends Distribution {
         final Node[] speciesTreeNodes = spTree.getNodesAsArray();
         for (int nodeI = 0; nodeI < speciesNodeCount; nodeI++) {
             Node speciesNode = speciesTreeNodes[nodeI];
-            if (isDirtyBranch(nodeI) || popModel.isDirtyBranch(speciesNode)) {
-                final int branchLineageCount = coalescentLineageCounts[nodeI];
-                final int branchEventCount = coalescentCounts[nodeI];
-                final double[] branchCoalescentTimes = getCoalescentTimes(nodeI);
-                perBranchLogP[nodeI] = popModel.branchLogP(nodeI, speciesNode, ploidy, branchCoalescentTimes, branchLineageCount, branchEventCount);
+            if (current.speciesBranchIsDirty[nodeI] || popModel.isDirtyBranch(speciesNode)) {
+                final int branchLineageCount = current.coalescentLineageCounts[nodeI];
+                final int branchEventCount = current.coalescentCounts[nodeI];
+                final int branchTimesOffset = current.timesOffset(nodeI);
+                perBranchLogP[nodeI] = popModel.branchLogP(nodeI, speciesNode, ploidy, current.coalescentTimes, branchTimesOffset, branchLineageCount, branchEventCount);
             }
 
             // System.out.println(String.format("%s-%d: %f", getID(), nodeI, logP));
@@ -199,137 +224,305 @@ public class GeneTree extends Distribution {
         return logP;
     }
 
-    void update() {
-    	synchronized (this) {
-			if (needsUpdate) {
-				updateCount++;
+    // the embedding for the current epoch, built on the calling thread if no other thread has published it yet
+    Embedding getEmbedding() {
+        final int currentEpoch = epoch;
+        final Embedding published = embedding.get();
+        if (published != null && published.epoch == currentEpoch) return published;
 
-                final TreeInterface geneTree = treeInput.get();
+        final Embedding built = buildEmbedding(published, currentEpoch);
+        if (embedding.compareAndSet(published, built)) {
+            if (published != null) retiredEmbeddings.add(published);
+            return built;
+        }
 
-                // generate map of species tree tip node names to node numbers
-                // and count up the number of gene copies for each species
-                if (needsLeafMapping) {
-                    final Map<String, Integer> tipNumberMap = spTree.getTipNumberMap();
+        // another thread published first, and nothing else has seen the embedding built by this thread
+        spareEmbeddings.add(built);
+        return getEmbedding();
+    }
 
-                    Arrays.fill(leafCoalescentLineageCounts, 0);
+    private Embedding buildEmbedding(final Embedding base, final int buildEpoch) {
+        final int buildCount = updateCount.incrementAndGet();
 
-                    for (int i = 0; i < geneTreeLeafNodeCount; i++) {
-                        final Node geneTreeLeafNode = geneTree.getNode(i);
-                        final String geneTreeLeafName = geneTreeLeafNode.getID();
-                        final int speciesTreeLeafNumber = tipNumberMap.get(geneTreeLeafName);
+        // generate map of species tree tip node names to node numbers
+        // and count up the number of gene copies for each species
+        if (needsLeafMapping) mapLeaves();
 
-                        leafGeneNodeSpeciesAssignment[i] = speciesTreeLeafNumber;
-                        leafCoalescentLineageCounts[speciesTreeLeafNumber]++;
-                    }
+        // shrink memory reservation for coalescent times?
+        int targetBlocksize = blocksize;
+        if (!stopPopping && (buildCount & 0x7fff) == 0 && base != null && base.maxCoalescentCounts < targetBlocksize - 4) {
+            targetBlocksize -= 4;
+            blocksize = targetBlocksize;
+            // System.err.print("pop");
+        }
 
-                    needsLeafMapping = false;
-                }
+        Embedding e = spareEmbeddings.poll();
+        if (e == null) e = new Embedding(geneTreeNodeCount, speciesNodeCount);
+        e.epoch = buildEpoch;
+
+        // the embedding of unaffected lineages can only be reused when the species tree is unchanged,
+        // and when the base embedding is no older than the last store, as node dirtiness is relative to that
+        boolean compatible;
+        if (incrementalUpdate && base != null && base.compatible && base.epoch >= storedEpoch &&
+                base.blocksize == targetBlocksize && !speciesTreeIsDirty() && findAffectedNodes(e) &&
+                removeAffectedLineages(base, e)) {
+            compatible = embedAffectedLineages(e);
+        } else {
+            compatible = embedAllLineages(e, targetBlocksize);
+        }
 
-				// shrink memory reservation for coalescent times?
-				if (! stopPopping &&  (updateCount & 0x7fff) == 0 && maxCoalescentCounts < blocksize - 4) {
-					// ensure stored coalescent times are valid, so that a restore gives proper times
-	            	double [] stmp = new double[speciesNodeCount * (blocksize - 4) + geneTreeNodeCount];
-	            	for (int i = 0; i < speciesNodeCount; i++) {
-	            		System.arraycopy(storedCoalescentTimes, i * blocksize, stmp, i * (blocksize - 4), blocksize - 4);
-	            	}
-            		System.arraycopy(stmp, 0, storedCoalescentTimes, 0, speciesNodeCount * (blocksize - 4));
-	            	
-					blocksize -= 4;
-	            	coalescentTimesLength = speciesNodeCount * blocksize;
-	            	// System.err.print("pop");
-				}
-
-                // reset arrays as these values need to be recomputed after any changes to the species or gene tree
-                System.arraycopy(leafGeneNodeSpeciesAssignment, 0, geneNodeSpeciesAssignment, 0, geneTreeLeafNodeCount);
-                System.arraycopy(leafCoalescentLineageCounts, 0, coalescentLineageCounts, 0, speciesLeafNodeCount);
-
-                // -1 means no species assignment for that gene tree node has been made yet
-                Arrays.fill(geneNodeSpeciesAssignment, geneTreeLeafNodeCount, geneTreeNodeCount, -1);
-                Arrays.fill(coalescentLineageCounts, speciesLeafNodeCount, speciesNodeCount, 0);
-
-                Arrays.fill(speciesOccupancy, 0);
-                Arrays.fill(coalescentCounts, 0);
-                Arrays.fill(speciesBranchIsDirty, false);
-
-                for (int geneTreeLeafNumber = 0; geneTreeLeafNumber < geneTreeLeafNodeCount; geneTreeLeafNumber++) {
-                    final Node geneTreeLeafNode = geneTree.getNode(geneTreeLeafNumber);
-                    final int speciesTreeLeafNumber = leafGeneNodeSpeciesAssignment[geneTreeLeafNumber];
-                    final Node speciesTreeLeafNode = spTree.getNode(speciesTreeLeafNumber);
-                    final Node firstCoalescenceNode = geneTreeLeafNode.getParent();
-                    final int firstCoalescenceNumber = firstCoalescenceNode.getNr();
-                    final double lastHeight = 0.0;
-
-                    if (!collateCoalescenceEvents(geneTreeLeafNumber, lastHeight,
-                            firstCoalescenceNode, firstCoalescenceNumber,
-                            speciesTreeLeafNode, speciesTreeLeafNumber)) {
-                        // this gene tree IS NOT compatible with the species tree
-                        geneTreeCompatible = false;
-                        needsUpdate = false;
-                        return;
-                    }
-                }
+        if (!compatible) {
+            // this gene tree IS NOT compatible with the species tree
+            e.compatible = false;
+            return e;
+        }
 
-                maxCoalescentCounts = 0;
-                for (int j : coalescentCounts) {
-                    if (j > maxCoalescentCounts) {maxCoalescentCounts = j;}
-                }
-                if (maxCoalescentCounts > blocksize) {
-                    // grow memory reservation for coalescent times
-                    int DELTA_BLOCK_SIZE = 4*((maxCoalescentCounts+3)/4) - blocksize;
-                    coalescentTimesLength = speciesNodeCount * (blocksize + DELTA_BLOCK_SIZE);
-                    double [] tmp = new double[coalescentTimesLength + geneTreeNodeCount];
-                    double [] stmp = new double[coalescentTimesLength + geneTreeNodeCount];
-                    for (int i = 0; i < speciesNodeCount; i++) {
-                        //System.arraycopy(coalescentTimes, i * blocksize, tmp, i * (blocksize + DELTA_BLOCK_SIZE), blocksize);
-                        System.arraycopy(storedCoalescentTimes, i * blocksize, stmp, i * (blocksize + DELTA_BLOCK_SIZE), blocksize);
-                    }
-                    coalescentTimes = tmp;
-                    storedCoalescentTimes = stmp;
-                    blocksize += DELTA_BLOCK_SIZE;
-                    // System.err.print("blocksize = " + blocksize + " ");
+        e.maxCoalescentCounts = maxCount(e.coalescentCounts);
+        if (e.maxCoalescentCounts > e.blocksize) {
+            // grow memory reservation for coalescent times
+            // do calculation again, this time with properly sized array
+            // we only get here very occasionally (only when blocksize is updated)
+            targetBlocksize = 4 * ((e.maxCoalescentCounts + 3) / 4);
+            blocksize = targetBlocksize;
+            // System.err.print("blocksize = " + blocksize + " ");
+            embedAllLineages(e, targetBlocksize);
+            e.maxCoalescentCounts = maxCount(e.coalescentCounts);
+
+            if (buildCount > 0x7fff) {
+                stopPopping = true;
+            }
+        }
 
-                    // do calculation again, this time with properly sized array
-                    // we only get here very occasionally (only when blocksize is updated)
-                    update();
+        // bracket the sorted coalescent times of each branch with the start and end times of that branch
+        for (int i = 0; i < speciesNodeCount; i++) {
+            final Node speciesNode = spTree.getNode(i);
+            final Node parentNode = speciesNode.getParent();
+            final int blockStart = e.timesOffset(i);
+            e.coalescentTimes[blockStart] = speciesNode.getHeight();
+            e.coalescentTimes[blockStart + e.coalescentCounts[i] + 1] = (parentNode == null) ? Double.POSITIVE_INFINITY : parentNode.getHeight();
+        }
 
-                    if (updateCount > 0x7fff) {
-                        stopPopping = true;
-                    }
-                    return;
-                }
+        // determine which species tree branch is dirty for this gene tree
+        final Embedding stored = storedEmbedding;
+        for (int i = 0; i < speciesNodeCount; i++) {
+            if (stored == null || !stored.compatible ||
+                e.coalescentLineageCounts[i] != stored.coalescentLineageCounts[i] ||
+                e.coalescentCounts[i] != stored.coalescentCounts[i]) {
+                e.speciesBranchIsDirty[i] = true;
+            } else {
+                Node node = spTree.getNode(i);
+                e.speciesBranchIsDirty[i] = node.isDirty() != Tree.IS_CLEAN ||
+                    (!node.isRoot() && node.getParent().isDirty() != Tree.IS_CLEAN) ||
+                    coalescentTimesChanged(e, stored, i);
+            }
+        }
+
+        e.compatible = true;
+        return e;
+    }
+
+    private void mapLeaves() {
+        final Map<String, Integer> tipNumberMap = spTree.getTipNumberMap();
+
+        // counts are made privately, in case another thread is also mapping the leaves
+        final int[] leafCounts = new int[speciesLeafNodeCount];
+        for (int i = 0; i < geneTreeLeafNodeCount; i++) {
+            final Node geneTreeLeafNode = geneTree.getNode(i);
+            final String geneTreeLeafName = geneTreeLeafNode.getID();
+            final int speciesTreeLeafNumber = tipNumberMap.get(geneTreeLeafName);
+
+            leafGeneNodeSpeciesAssignment[i] = speciesTreeLeafNumber;
+            leafCounts[speciesTreeLeafNumber]++;
+        }
+
+        System.arraycopy(leafCounts, 0, leafCoalescentLineageCounts, 0, speciesLeafNodeCount);
+        needsLeafMapping = false;
+    }
+
+    private static int maxCount(int[] counts) {
+        int max = 0;
+        for (int j : counts) {
+            if (j > max) {max = j;}
+        }
+        return max;
+    }
+
+    // make sure the embedding arrays can hold the given number of events per species branch and occupancies per gene branch
+    private void resizeEmbedding(Embedding e, int newBlocksize, int newOccupancyStride) {
+        if (e.blocksize != newBlocksize || e.coalescentTimes.length == 0) {
+            e.blocksize = newBlocksize;
+            e.coalescentTimes = new double[speciesNodeCount * (newBlocksize + BLOCK_PADDING) + geneTreeNodeCount];
+        }
+
+        if (e.occupancyStride != newOccupancyStride) {
+            e.occupancyStride = newOccupancyStride;
+            e.occupancySpecies = new int[geneTreeNodeCount * newOccupancyStride];
+            e.occupancyLengths = new double[geneTreeNodeCount * newOccupancyStride];
+        }
+    }
 
-                // determine which species tree branch is dirty for this gene tree
-                for (int i = 0; i < speciesNodeCount; i++) {
-                    if (coalescentLineageCounts[i] != storedCoalescentLineageCounts[i] ||
-                        coalescentCounts[i] != storedCoalescentCounts[i]) {
-                        speciesBranchIsDirty[i] = true;
-                    } else {
-                        Node node = spTree.getNode(i);
-                        if (node.isDirty() != Tree.IS_CLEAN ||
-                            (!node.isRoot() && node.getParent().isDirty() != Tree.IS_CLEAN) ||
-                            coalescentTimesChanged(i)) speciesBranchIsDirty[i] = true;
+    private void copyEmbedding(Embedding from, Embedding to) {
+        resizeEmbedding(to, from.blocksize, from.occupancyStride);
+
+        System.arraycopy(from.coalescentTimes, 0, to.coalescentTimes, 0, from.coalescentTimes.length);
+        System.arraycopy(from.coalescentCounts, 0, to.coalescentCounts, 0, speciesNodeCount);
+        System.arraycopy(from.coalescentLineageCounts, 0, to.coalescentLineageCounts, 0, speciesNodeCount);
+        System.arraycopy(from.geneNodeSpeciesAssignment, 0, to.geneNodeSpeciesAssignment, 0, geneTreeNodeCount);
+        System.arraycopy(from.geneNodeHeights, 0, to.geneNodeHeights, 0, geneTreeNodeCount);
+        System.arraycopy(from.occupancyCounts, 0, to.occupancyCounts, 0, geneTreeNodeCount);
+        System.arraycopy(from.occupancySpecies, 0, to.occupancySpecies, 0, from.occupancySpecies.length);
+        System.arraycopy(from.occupancyLengths, 0, to.occupancyLengths, 0, from.occupancyLengths.length);
+    }
+
+    // reset arrays and embed every gene tree lineage, starting from the leaves
+    private boolean embedAllLineages(Embedding e, int targetBlocksize) {
+        // a gene tree branch can pass through at most one species tree branch per level of the species tree
+        resizeEmbedding(e, targetBlocksize, Math.max(e.occupancyStride, speciesTreeDepth()));
+
+        System.arraycopy(leafGeneNodeSpeciesAssignment, 0, e.geneNodeSpeciesAssignment, 0, geneTreeLeafNodeCount);
+        System.arraycopy(leafCoalescentLineageCounts, 0, e.coalescentLineageCounts, 0, speciesLeafNodeCount);
+
+        // -1 means no species assignment for that gene tree node has been made yet
+        Arrays.fill(e.geneNodeSpeciesAssignment, geneTreeLeafNodeCount, geneTreeNodeCount, -1);
+        Arrays.fill(e.coalescentLineageCounts, speciesLeafNodeCount, speciesNodeCount, 0);
+        Arrays.fill(e.occupancyCounts, 0);
+        Arrays.fill(e.coalescentCounts, 0);
+
+        for (int geneTreeLeafNumber = 0; geneTreeLeafNumber < geneTreeLeafNodeCount; geneTreeLeafNumber++) {
+            final Node geneTreeLeafNode = geneTree.getNode(geneTreeLeafNumber);
+            final int speciesTreeLeafNumber = leafGeneNodeSpeciesAssignment[geneTreeLeafNumber];
+            final Node speciesTreeLeafNode = spTree.getNode(speciesTreeLeafNumber);
+            final Node firstCoalescenceNode = geneTreeLeafNode.getParent();
+            final int firstCoalescenceNumber = firstCoalescenceNode.getNr();
+            final double lastHeight = 0.0;
+
+            if (!collateCoalescenceEvents(e, geneTreeLeafNumber, lastHeight,
+                    firstCoalescenceNode, firstCoalescenceNumber,
+                    speciesTreeLeafNode, speciesTreeLeafNumber)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // find gene tree nodes changed by the last proposal, and all of their ancestors
+    // returns false if so much of the gene tree has changed that rebuilding the embedding is cheaper
+    private boolean findAffectedNodes(Embedding e) {
+        final int stamp = ++e.affectedStamp;
+        e.affectedNodeCount = 0;
+        for (int i = 0; i < geneTreeNodeCount; i++) {
+            Node node = geneTree.getNode(i);
+            if (node.isDirty() == Tree.IS_CLEAN) continue;
+
+            while (node != null && e.affectedNodeStamps[node.getNr()] != stamp) {
+                e.affectedNodeStamps[node.getNr()] = stamp;
+                e.affectedNodes[e.affectedNodeCount++] = node.getNr();
+                node = node.getParent();
+            }
+        }
+
+        return e.affectedNodeCount <= geneTreeNodeCount / 2;
+    }
+
+    private boolean speciesTreeIsDirty() {
+        for (int i = 0; i < speciesNodeCount; i++) {
+            if (spTree.getNode(i).isDirty() != Tree.IS_CLEAN) return true;
+        }
+        return false;
+    }
+
+    // copy the base embedding, then remove the events and occupancies of affected nodes and of the branches directly
+    // below them. returns false if an event of the base embedding cannot be found, and the embedding must be rebuilt
+    private boolean removeAffectedLineages(Embedding base, Embedding e) {
+        copyEmbedding(base, e);
+
+        for (int i = 0; i < e.affectedNodeCount; i++) {
+            final int geneTreeNodeNumber = e.affectedNodes[i];
+            final Node geneTreeNode = geneTree.getNode(geneTreeNodeNumber);
+
+            if (!geneTreeNode.isLeaf()) {
+                // node numbers may have been swapped along with the root, so remove the event recorded for this number
+                if (!removeCoalescentTime(e, e.geneNodeSpeciesAssignment[geneTreeNodeNumber], e.geneNodeHeights[geneTreeNodeNumber]))
+                    return false;
+                e.geneNodeSpeciesAssignment[geneTreeNodeNumber] = -1;
+
+                for (Node childNode: geneTreeNode.getChildren())
+                    removeOccupancy(e, childNode.getNr());
+            }
+
+            removeOccupancy(e, geneTreeNodeNumber);
+        }
+
+        return true;
+    }
+
+    // re-embed the branches above affected nodes, starting from their unaffected (or leaf) children
+    private boolean embedAffectedLineages(Embedding e) {
+        final int stamp = e.affectedStamp;
+        for (int i = 0; i < e.affectedNodeCount; i++) {
+            final int geneTreeNodeNumber = e.affectedNodes[i];
+            final Node geneTreeNode = geneTree.getNode(geneTreeNodeNumber);
+
+            for (Node childNode: geneTreeNode.getChildren()) {
+                final int childNodeNumber = childNode.getNr();
+                // affected internal nodes are embedded when a lineage from below reaches them
+                if (childNode.isLeaf() || e.affectedNodeStamps[childNodeNumber] != stamp) {
+                    final int speciesTreeNodeNumber = e.geneNodeSpeciesAssignment[childNodeNumber];
+                    final Node speciesTreeNode = spTree.getNode(speciesTreeNodeNumber);
+                    final double lastHeight = childNode.isLeaf() ? 0.0 : childNode.getHeight();
+
+                    if (!collateCoalescenceEvents(e, childNodeNumber, lastHeight,
+                            geneTreeNode, geneTreeNodeNumber,
+                            speciesTreeNode, speciesTreeNodeNumber)) {
+                        return false;
                     }
                 }
+            }
+        }
 
-                geneTreeCompatible = true;
-                needsUpdate = false;
-			}
-    	}
+        return true;
     }
 
-    private boolean coalescentTimesChanged(int i) {
-    	int k = i * blocksize;
-    	for (int j = 0; j < coalescentLineageCounts[i]; j++) {
-    		if (coalescentTimes[k] != storedCoalescentTimes[k]) {
+    // returns false if the branch has no event at this height
+    private static boolean removeCoalescentTime(Embedding e, int speciesTreeNodeNumber, double height) {
+        if (speciesTreeNodeNumber < 0) return false;
+
+        final int firstEventIndex = e.timesOffset(speciesTreeNodeNumber) + 1;
+        final int lastEventIndex = firstEventIndex + e.coalescentCounts[speciesTreeNodeNumber] - 1;
+
+        int eventIndex = firstEventIndex;
+        while (eventIndex <= lastEventIndex && e.coalescentTimes[eventIndex] != height) eventIndex++;
+        if (eventIndex > lastEventIndex) return false;
+
+        System.arraycopy(e.coalescentTimes, eventIndex + 1, e.coalescentTimes, eventIndex, lastEventIndex - eventIndex);
+        e.coalescentCounts[speciesTreeNodeNumber]--;
+        return true;
+    }
+
+    // every species tree branch after the first in a row was entered by this gene tree lineage
+    private static void removeOccupancy(Embedding e, int geneTreeNodeNumber) {
+        final int rowStart = geneTreeNodeNumber * e.occupancyStride;
+        for (int k = rowStart + 1; k < rowStart + e.occupancyCounts[geneTreeNodeNumber]; k++)
+            e.coalescentLineageCounts[e.occupancySpecies[k]]--;
+        e.occupancyCounts[geneTreeNodeNumber] = 0;
+    }
+
+    private static boolean coalescentTimesChanged(Embedding e, Embedding stored, int i) {
+    	int k = e.timesOffset(i) + 1;
+    	int storedK = stored.timesOffset(i) + 1;
+    	for (int j = 0; j < e.coalescentCounts[i]; j++) {
+    		if (e.coalescentTimes[k] != stored.coalescentTimes[storedK]) {
     			return true;
     		}
     		k++;
+    		storedK++;
     	}
 		return false;
 	}
 
     // non-recursive version of recurseCoalescenceEvents
-    private boolean collateCoalescenceEvents(int lastGeneTreeNodeNumber, double lastHeight, Node geneTreeNode, int geneTreeNodeNumber, Node speciesTreeNode, int speciesTreeNodeNumber) {
+    private boolean collateCoalescenceEvents(Embedding e, int lastGeneTreeNodeNumber, double lastHeight, Node geneTreeNode, int geneTreeNodeNumber, Node speciesTreeNode, int speciesTreeNodeNumber) {
         while (true) {
             final double geneTreeNodeHeight = geneTreeNode.getHeight();
 
@@ -342,8 +535,8 @@ public class GeneTree extends Distribution {
                 final double speciesTreeParentHeight = speciesTreeParentNode.getHeight();
                 final int speciesTreeParentNodeNumber = speciesTreeParentNode.getNr();
 
-                speciesOccupancy[lastGeneTreeNodeNumber * speciesNodeCount + speciesTreeNodeNumber] = speciesTreeParentHeight - lastHeight;
-                coalescentLineageCounts[speciesTreeParentNodeNumber]++;
+                addOccupancy(e, lastGeneTreeNodeNumber, speciesTreeNodeNumber, speciesTreeParentHeight - lastHeight);
+                e.coalescentLineageCounts[speciesTreeParentNodeNumber]++;
 
                 speciesTreeNode = speciesTreeParentNode;
                 speciesTreeNodeNumber = speciesTreeParentNodeNumber;
@@ -351,12 +544,21 @@ public class GeneTree extends Distribution {
             }
 
             // this code executes if the next coalescence event occurs within the current branch
-            speciesOccupancy[lastGeneTreeNodeNumber * speciesNodeCount + speciesTreeNodeNumber] = geneTreeNodeHeight - lastHeight;
-            final int existingSpeciesAssignment = geneNodeSpeciesAssignment[geneTreeNodeNumber];
+            addOccupancy(e, lastGeneTreeNodeNumber, speciesTreeNodeNumber, geneTreeNodeHeight - lastHeight);
+            final int existingSpeciesAssignment = e.geneNodeSpeciesAssignment[geneTreeNodeNumber];
             if (existingSpeciesAssignment == -1) {
-                geneNodeSpeciesAssignment[geneTreeNodeNumber] = speciesTreeNodeNumber;
-
-                coalescentTimes[speciesTreeNodeNumber * blocksize + coalescentCounts[speciesTreeNodeNumber]++] = geneTreeNodeHeight;
+                e.geneNodeSpeciesAssignment[geneTreeNodeNumber] = speciesTreeNodeNumber;
+                e.geneNodeHeights[geneTreeNodeNumber] = geneTreeNodeHeight;
+
+                // insertion sort keeps the event times of each branch in ascending order
+                final double[] coalescentTimes = e.coalescentTimes;
+                final int firstEventIndex = e.timesOffset(speciesTreeNodeNumber) + 1;
+                int eventIndex = firstEventIndex + e.coalescentCounts[speciesTreeNodeNumber]++;
+                while (eventIndex > firstEventIndex && coalescentTimes[eventIndex - 1] > geneTreeNodeHeight) {
+                    coalescentTimes[eventIndex] = coalescentTimes[eventIndex - 1];
+                    eventIndex--;
+                }
+                coalescentTimes[eventIndex] = geneTreeNodeHeight;
 
                 final Node nextGeneTreeNode = geneTreeNode.getParent();
                 if (nextGeneTreeNode == null) {
@@ -378,34 +580,87 @@ public class GeneTree extends Distribution {
         }
     }
 
+    private static void addOccupancy(Embedding e, int geneTreeNodeNumber, int speciesTreeNodeNumber, double length) {
+        final int k = geneTreeNodeNumber * e.occupancyStride + e.occupancyCounts[geneTreeNodeNumber]++;
+        e.occupancySpecies[k] = speciesTreeNodeNumber;
+        e.occupancyLengths[k] = length;
+    }
+
+    // the maximum number of species tree nodes on a path from a leaf to the root
+    private int speciesTreeDepth() {
+        int maxDepth = 0;
+        for (int i = 0; i < speciesLeafNodeCount; i++) {
+            int depth = 1;
+            for (Node node = spTree.getNode(i); !node.isRoot(); node = node.getParent())
+                depth++;
+            if (depth > maxDepth) maxDepth = depth;
+        }
+        return maxDepth;
+    }
+
+    // dense geneTreeNodeCount * speciesNodeCount matrix of occupancies, built on demand
+    // use getOccupancyCounts, getOccupancySpecies, getOccupancyLengths and getOccupancyStride to avoid allocation
     public double[] getSpeciesOccupancy() {
-        if (needsUpdate) update();
+        final Embedding current = getEmbedding();
+
+        final double[] speciesOccupancy = new double[geneTreeNodeCount * speciesNodeCount];
+        for (int i = 0; i < geneTreeNodeCount; i++) {
+            final int rowStart = i * current.occupancyStride;
+            for (int k = rowStart; k < rowStart + current.occupancyCounts[i]; k++)
+                speciesOccupancy[i * speciesNodeCount + current.occupancySpecies[k]] = current.occupancyLengths[k];
+        }
 
         return speciesOccupancy;
     }
 
+    // the getters below each read the current embedding, which may be replaced after the next change to the inputs
+
+    public int[] getOccupancyCounts() {
+        return getEmbedding().occupancyCounts;
+    }
+
+    public int[] getOccupancySpecies() {
+        return getEmbedding().occupancySpecies;
+    }
+
+    public double[] getOccupancyLengths() {
+        return getEmbedding().occupancyLengths;
+    }
+
+    public int getOccupancyStride() {
+        return getEmbedding().occupancyStride;
+    }
+
+	// returns a copy of the coalescent times of a species tree branch, use
+	// getCoalescentTimesBlock and getCoalescentTimesOffset to avoid allocation
 	public double[] getCoalescentTimes(int nodeI) {
-        if (needsUpdate) update();
+        final Embedding current = getEmbedding();
 
-        final Node speciesNode = spTree.getNode(nodeI);
-        final Node parentNode = speciesNode.getParent();
+        final int blockStart = current.timesOffset(nodeI);
+        return Arrays.copyOfRange(current.coalescentTimes, blockStart, blockStart + current.coalescentCounts[nodeI] + BLOCK_PADDING);
+	}
 
-        final double speciesEndTime = speciesNode.getHeight();
-        final double speciesStartTime = (parentNode == null) ? Double.POSITIVE_INFINITY : parentNode.getHeight();
-        final int branchEventCount = coalescentCounts[nodeI];
+	// the array holding the coalescent times of every species tree branch for this gene tree
+	public double[] getCoalescentTimesBlock() {
+        return getEmbedding().coalescentTimes;
+	}
 
-		final double[] branchCoalescentTimes = new double[branchEventCount + 2];
-		branchCoalescentTimes[0] = speciesEndTime;
-        branchCoalescentTimes[branchEventCount + 1] = speciesStartTime;
+	// the coalescent times of species tree branch nodeI occupy getCoalescentCounts()[nodeI] + 2
+	// elements of the block starting from this offset
+	public int getCoalescentTimesOffset(int nodeI) {
+		return getEmbedding().timesOffset(nodeI);
+	}
 
-		System.arraycopy(coalescentTimes, nodeI * blocksize, branchCoalescentTimes, 1, branchEventCount);
-		Arrays.sort(branchCoalescentTimes);
+	public int[] getCoalescentCounts() {
+		return getEmbedding().coalescentCounts;
+	}
 
-		return branchCoalescentTimes;
+	public int[] getCoalescentLineageCounts() {
+		return getEmbedding().coalescentLineageCounts;
 	}
 
 	protected boolean isDirtyBranch(int nodeNr) {
-		return speciesBranchIsDirty[nodeNr];
+		return getEmbedding().speciesBranchIsDirty[nodeNr];
 	}
 
 	int[] getTipNumberMap() {
@@ -427,7 +682,7 @@ public class GeneTree extends Distribution {
     @Override
     public void sample(State state, Random random) {
         // TODO Auto-generated method stub
-        
+
     }
 
     public int getNodeCount() {
@@ -41,6 +41,30 @@ public class GeneTreeWithMigration extends Distribution {
     public Input<Tree> treeInput = new Input<>("tree", "The gene tree.", Validate.REQUIRED);
     public Input<Double> ploidyInput = new Input<>("ploidy", "Ploidy (copy number) for this gene, typically a whole number or half (default is 4).", 4.0);
     public Input<ConstantWithGeneFlow> popModelInput = new Input<>("populationModel", "Population model used to infer the multispecies coalescent probability for this gene");
+    public Input<Integrator> integratorInput = new Input<>("integrator", "ODE solver used to integrate the lineage state probabilities " +
+    		"between events (default is euler).", Integrator.EULER, Integrator.values());
+    public Input<Double> toleranceInput = new Input<>("tolerance", "Local error tolerance of the adaptive dormand-prince solver (default is 1e-3).", 1e-3);
+    public Input<Integer> exponentialThresholdInput = new Input<>("exponentialThreshold", "Largest number of lineage states (lineages times states) " +
+    		"the hybrid solver integrates exactly with a matrix exponential, when at most one lineage is in a connected state (default is 64).", 64);
+    public Input<Boolean> checkpointInput = new Input<>("checkpoint", "Resume the integration from the last coalescent event below anything " +
+    		"changed by the last proposal (default is true).", true);
+
+    static enum Integrator {
+        EULER("euler"),
+        DORMAND_PRINCE("dormand-prince"),
+        HYBRID("hybrid");
+
+        Integrator(final String name) {
+            this.ename = name;
+        }
+
+        @Override
+		public String toString() {
+            return ename;
+        }
+
+        private final String ename;
+    }
    
 	public int samples;
 	public int nrSamples;
@@ -60,26 +84,50 @@ public class GeneTreeWithMigration extends Distribution {
     public int states;    
     private boolean recalculateLogP;    
     private double maxTolerance;            
+    // which of the coalescent rates calculated by the population model are for the ploidy of this gene
+    private int ploidyIndex;
     private int nr_lineages;  
     
-    // store the linProbs, multiplicators and logP's at coalescent points in jagged arrays from last time
-//    private double[][] coalLinProbs;
-//    private int[][] coalMultiplicator;
-//    private double[] coalLogP;
-//    private int[] coalSpeciesInterval;
-//    private ArrayList<ArrayList<Integer>> coalActiveLineages;
-//    private ArrayList<ArrayList<Integer>> coalSampleState;
-//    
-//    // deep store the things above for MCMC
-//    private double[][] storeLinProbs;
-//    private int[][] storeMultiplicator;
-//    private double[] storeLogP;
-//    private int[] storeSpeciesInterval;
-//    private ArrayList<ArrayList<Integer>> storeActiveLineages;
-//    private ArrayList<ArrayList<Integer>> storeSampleState;
-//    private boolean storedFirst;
+    // store the linProbs, multiplicators and logP's at coalescent points in jagged arrays from last time,
+    // together with everything else needed to resume the integration from that point
+    // rows are never modified once written, so storing only copies the outer arrays
+    private int coalCount;
+    private double[] coalHeight;
+    private double[][] coalLinProbs;
+    private int[][] coalMultiplicator;
+    private double[] coalLogP;
+    private int[] coalGeneInterval;
+    private int[] coalSpeciesInterval;
+    private int[] coalStates;
+    private int[] coalNrLineages;
+    private double[] coalNextSpeciesTime;
+    private int[][] coalActiveLineages;
+    private int[][] coalSampleState;
+    
+    // deep store the things above for MCMC
+    private int storeCount;
+    private double[] storeHeight;
+    private double[][] storeLinProbs;
+    private int[][] storeMultiplicator;
+    private double[] storeLogP;
+    private int[] storeGeneInterval;
+    private int[] storeSpeciesInterval;
+    private int[] storeStates;
+    private int[] storeNrLineages;
+    private double[] storeNextSpeciesTime;
+    private int[][] storeActiveLineages;
+    private int[][] storeSampleState;
+    private int[] storeMostLikelyState;
+    
+    // the gene tree events and species tree intervals the checkpoints were calculated from,
+    // compared against the current trees and parameters to find the lowest height that changed
+    private double[] geneSignature;
+    private double[] storedGeneSignature;
+    private double[] speciesSignature;
+    private double[] storedSpeciesSignature;
+    private boolean signatureValid;
+    private boolean storedSignatureValid;
     
-        
     // Set up for lineage state probabilities
     private ArrayList<Integer> activeLineages;
     private ArrayList<Integer> sampleState;
@@ -89,6 +137,11 @@ public class GeneTreeWithMigration extends Distribution {
     
     // check if this is the first calculation
     private boolean first = true;
+
+    private boolean useCheckpoints;
+
+    // indicator pairs of every interval when there are no indicators
+    private static final int[][] NO_INDICATOR_PAIRS = new int[0][];
     
     @Override
     public boolean requiresRecalculation(){
@@ -98,6 +151,8 @@ public class GeneTreeWithMigration extends Distribution {
     @Override
     public void initAndValidate(){    
         speciesTree = popModelInput.get().migrationModelInput.get().speciesTreeInput.get();
+        ploidyIndex = popModelInput.get().registerPloidy(ploidyInput.get());
+        useCheckpoints = checkpointInput.get();
 //    	popModelInput.get().calculateIntervals();
     	// Calculate the tree intervals (time between events, which nodes participate at a event etc.)
     	calculateIntervals(); 
@@ -114,9 +169,63 @@ public class GeneTreeWithMigration extends Distribution {
     			+1;
 
     	linProbs_tmp = new double[MAX_SIZE];
-    	linProbs_tmpdt = new double[MAX_SIZE];
-    	linProbs_tmpddt = new double[MAX_SIZE];
-    	linProbs_tmpdddt = new double[MAX_SIZE];
+
+    	// one integrator per gene tree, reset with the rates of each interval
+    	final int maxStates = popModelInput.get().migrationModelInput.get().speciesTreeInput.get().getLeafNodeCount();
+    	switch (integratorInput.get()) {
+    	case DORMAND_PRINCE:
+    		integrator = new DormandPrinceAIM(maxStates, MAX_SIZE, toleranceInput.get(), Double.POSITIVE_INFINITY);
+    		break;
+    	case HYBRID:
+    		hybrid = new HybridAIM(maxStates, exponentialThresholdInput.get(),
+    				new DormandPrinceAIM(maxStates, MAX_SIZE, toleranceInput.get(), Double.POSITIVE_INFINITY));
+    		integrator = hybrid;
+    		popModelInput.get().cacheMigrationGenerators();
+    		break;
+    	default:
+    		integrator = new Euler2ndOrderAIM(maxStates, MAX_SIZE, 0.001, 0.2);
+    	}
+    	nrLins = new int[maxStates];
+
+    	// there is at most one checkpoint per coalescent event of the gene tree
+    	final int geneLeafCount = treeInput.get().getLeafNodeCount();
+    	coalHeight = new double[geneLeafCount];
+    	coalLinProbs = new double[geneLeafCount][];
+    	coalMultiplicator = new int[geneLeafCount][];
+    	coalLogP = new double[geneLeafCount];
+    	coalGeneInterval = new int[geneLeafCount];
+    	coalSpeciesInterval = new int[geneLeafCount];
+    	coalStates = new int[geneLeafCount];
+    	coalNrLineages = new int[geneLeafCount];
+    	coalNextSpeciesTime = new double[geneLeafCount];
+    	coalActiveLineages = new int[geneLeafCount][];
+    	coalSampleState = new int[geneLeafCount][];
+    	storeHeight = new double[geneLeafCount];
+    	storeLinProbs = new double[geneLeafCount][];
+    	storeMultiplicator = new int[geneLeafCount][];
+    	storeLogP = new double[geneLeafCount];
+    	storeGeneInterval = new int[geneLeafCount];
+    	storeSpeciesInterval = new int[geneLeafCount];
+    	storeStates = new int[geneLeafCount];
+    	storeNrLineages = new int[geneLeafCount];
+    	storeNextSpeciesTime = new double[geneLeafCount];
+    	storeActiveLineages = new int[geneLeafCount][];
+    	storeSampleState = new int[geneLeafCount][];
+
+    	mostLikelyState = new int[2*(geneLeafCount+1)+1];
+    	storeMostLikelyState = new int[mostLikelyState.length];
+
+    	// four values per gene tree event, and for each species interval with n states
+    	// its end, n population sizes, n node numbers, n connections, n*n migration rates and up to n*(n-1) indicator pairs
+    	final int speciesLeafCount = speciesTree.getLeafNodeCount();
+    	geneSignature = new double[4*treeInput.get().getNodeCount()];
+    	storedGeneSignature = new double[geneSignature.length];
+    	int speciesSignatureLength = 0;
+    	for (int n = 1; n <= speciesLeafCount; n++)
+    		speciesSignatureLength += 2 + 3*n + n*n + 2*n*(n-1);
+    	speciesSignature = new double[speciesSignatureLength];
+    	storedSpeciesSignature = new double[speciesSignatureLength];
+    	signatureValid = false;
 
         // make sure we are not in BEAUti
         final int speciesNodeCount = speciesTree.getNodeCount();
@@ -126,9 +235,15 @@ public class GeneTreeWithMigration extends Distribution {
     }
 
     double [] linProbs_tmp;
-    double [] linProbs_tmpdt;
-    double [] linProbs_tmpddt;
-    double [] linProbs_tmpdddt;
+    private AIMIntegrator integrator;
+    // the same integrator if it is the hybrid solver, which needs the generator of each species interval
+    private HybridAIM hybrid;
+
+    // the solver used between events, as chosen by the integrator input
+    public AIMIntegrator getIntegrator() {
+    	return integrator;
+    }
+    private int[] nrLins;
     
     public double calculateLogP() { 
     	if (!popModelInput.get().checkMaxRates())
@@ -146,45 +261,68 @@ public class GeneTreeWithMigration extends Distribution {
     	recalculateLogP = false;
 		calculateIntervals();
 		
-		
-    	
-        // Set up ArrayLists for the indices of active lineages and the lineage state probabilities
-        activeLineages = new ArrayList<Integer>(); 
-        sampleState = new ArrayList<Integer>(); 
-        
-        // set back logP
-        logP = 0;
-        
-        // initialize the counter for the current interval for the gene and the species trees
-        int geneInterval = 0;
-        int speciesInterval = popModelInput.get().getNumberOfSpecies();
-        
-        // initialize the number of state as the number of leaves in the species tree
-        states = speciesInterval;   
-        // initialize the number of leafs for the gene tree
-        nr_lineages = treeInput.get().getLeafNodeCount() + 1;        
-   	
-    	double nextGeneTime = intervals[geneInterval];
-    	double nextSpeciesTime = popModelInput.get().getNextSpeciationTime(speciesInterval);  
-        // initialize the array that saves the most likely state of each node
-        mostLikelyState = new int[2*nr_lineages+1];	        
-        
-        linProbs = new double[0];
-        
-        // initialize the coalescent and migration rates
-        updateRatesList(speciesInterval);
-        
-        int linsAdded = 0;
-        while (!isCoalescent[geneInterval]){
-        	addLineages(geneInterval, linsAdded);
-        	geneInterval++;
-        	linsAdded++;
-        }
-        // initialize the lineage state probs array
-        initializeP();
+		// resume from the last checkpoint below anything changed by the proposal
+		final double changedHeight = useCheckpoints ? updateSignatures() : Double.NEGATIVE_INFINITY;
+		int checkpoint = coalCount - 1;
+		while (checkpoint >= 0 && coalHeight[checkpoint] >= changedHeight)
+			checkpoint--;
+
+        int geneInterval;
+        int speciesInterval;
+        double nextGeneTime;
+        double nextSpeciesTime;
+        if (checkpoint >= 0) {
+        	coalCount = checkpoint + 1;
+        	logP = coalLogP[checkpoint];
+        	geneInterval = coalGeneInterval[checkpoint];
+        	speciesInterval = coalSpeciesInterval[checkpoint];
+        	states = coalStates[checkpoint];
+        	nr_lineages = coalNrLineages[checkpoint];
+        	nextGeneTime = intervals[geneInterval];
+        	nextSpeciesTime = coalNextSpeciesTime[checkpoint];
+        	linProbs = Arrays.copyOf(coalLinProbs[checkpoint], coalLinProbs[checkpoint].length);
+        	multiplicator = Arrays.copyOf(coalMultiplicator[checkpoint], coalMultiplicator[checkpoint].length);
+        	activeLineages = toList(coalActiveLineages[checkpoint]);
+        	sampleState = toList(coalSampleState[checkpoint]);
+        	updateRatesList(speciesInterval);
+        } else {
+        	coalCount = 0;
 
-		// store the node
-		nextGeneTime = intervals[geneInterval];
+	        // Set up ArrayLists for the indices of active lineages and the lineage state probabilities
+	        activeLineages = new ArrayList<Integer>(); 
+	        sampleState = new ArrayList<Integer>(); 
+	        
+	        // set back logP
+	        logP = 0;
+	        
+	        // initialize the counter for the current interval for the gene and the species trees
+	        geneInterval = 0;
+	        speciesInterval = popModelInput.get().getNumberOfSpecies();
+	        
+	        // initialize the number of state as the number of leaves in the species tree
+	        states = speciesInterval;   
+	        // initialize the number of leafs for the gene tree
+	        nr_lineages = treeInput.get().getLeafNodeCount() + 1;        
+	   	
+	    	nextSpeciesTime = popModelInput.get().getNextSpeciationTime(speciesInterval);  
+	        
+	        linProbs = new double[0];
+	        
+	        // initialize the coalescent and migration rates
+	        updateRatesList(speciesInterval);
+	        
+	        int linsAdded = 0;
+	        while (!isCoalescent[geneInterval]){
+	        	addLineages(geneInterval, linsAdded);
+	        	geneInterval++;
+	        	linsAdded++;
+	        }
+	        // initialize the lineage state probs array
+	        initializeP();
+	
+			// store the node
+			nextGeneTime = intervals[geneInterval];
+        }
 		
         do {			
         	// Length of the current interval
@@ -197,6 +335,8 @@ public class GeneTreeWithMigration extends Distribution {
     				System.err.println("ode calculation stuck, reducing tolerance");
     				System.err.println("new tolerance: " + maxTolerance);
     				maxTolerance *=0.9;
+    				coalCount = 0;
+    				signatureValid = false;
                 	return calculateLogP();
                 }              
                 if (states>1){	    
@@ -231,6 +371,8 @@ public class GeneTreeWithMigration extends Distribution {
         			nextGeneTime = intervals[geneInterval];
         		else
         			break;          		
+
+        		addCheckpoint(geneInterval, speciesInterval, nextSpeciesTime);
         	}else{
         		System.err.println("speciation and coalescence coincide, return negative infinity");
         	}
@@ -244,13 +386,11 @@ public class GeneTreeWithMigration extends Distribution {
     }   
     
 	private double doEuler(double nextEventTime) {
-		Euler2ndOrderAIM euler;
-		
 		double logVal = 0.0;
 		int inactiveStates = 0;
 		
 		// add the prob of the unstructured parts
-		int[] nrLins = new int[states];
+		Arrays.fill(nrLins, 0, states, 0);
 		if (popModelInput.get().indicatorInput.get()!=null){
 			for (int j = 0; j < states; j++){
 				if (!isConnected[j]){
@@ -272,20 +412,17 @@ public class GeneTreeWithMigration extends Distribution {
 			}
 		}			
 
-		double[] coaltmp = new double[coalescentRates.length];
-		System.arraycopy(coalescentRates,0,coaltmp,0,coalescentRates.length);
-		
 		System.arraycopy(linProbs,0,linProbs_tmp,0,linProbs.length);
 		linProbs_tmp[linProbs.length] = 0;
 
 		if (popModelInput.get().indicatorInput.get()!=null){
 			if (inactiveStates<states){
-				euler = new Euler2ndOrderAIM(multiplicator, migrationRates, indicators, isConnected, coalescentRates, multiplicator.length , states, 0.001, 0.2);
-				euler.calculateConnectedValues(nextEventTime, linProbs_tmp, linProbs_tmpdt, linProbs_tmpddt, linProbs_tmpdddt, linProbs.length + 1);
+				integrator.reset(multiplicator, migrationRates, indicators, isConnected, coalescentRates, multiplicator.length , states);
+				integrator.calculateConnectedValues(nextEventTime, linProbs_tmp, linProbs.length + 1);
 			}
 		}else{
-    		euler = new Euler2ndOrderAIM(multiplicator, migrationRates, coalescentRates, multiplicator.length , states, 0.001, 0.2);
-			euler.calculateValues(nextEventTime, linProbs_tmp, linProbs_tmpdt, linProbs_tmpddt, linProbs_tmpdddt, linProbs.length + 1);
+			integrator.reset(multiplicator, migrationRates, null, null, coalescentRates, multiplicator.length , states);
+			integrator.calculateValues(nextEventTime, linProbs_tmp, linProbs.length + 1);
 		}
 		
 		if (Double.isNaN(linProbs_tmp[linProbs.length])){
@@ -535,26 +672,167 @@ public class GeneTreeWithMigration extends Distribution {
 		}
     }   
      
-    private void updateRatesList(int speciesInterval){
-    	// initialize coalescent and migration rates
-    	coalescentRates = new double[states];
-    	migrationRates = popModelInput.get().getMigrationRates(speciesInterval);
-    	isConnected = new boolean[states];
-    	
-    	//TODO check ploidity
-    	for (int i = 0; i < states; i++){
-    		coalescentRates[i] =  
-    				1/(ploidyInput.get()*popModelInput.get().getPopulationSize(speciesInterval, i));
-    	}    	
-    	
-    	if (popModelInput.get().indicatorInput.get()!=null){
-    		indicators = popModelInput.get().getIndicatorsRates(speciesInterval);
-    		for (int i = 0; i < states; i++){
-    			isConnected[i] = popModelInput.get().getIsConnected(speciesInterval, i);
+    // checkpoint the state of the integration just after the coalescent event of the previous gene interval
+    private void addCheckpoint(int geneInterval, int speciesInterval, double nextSpeciesTime) {
+    	final int k = coalCount;
+    	coalHeight[k] = lineagesAdded[geneInterval-1].get(0).getHeight();
+    	coalLinProbs[k] = Arrays.copyOf(linProbs, linProbs.length);
+    	coalMultiplicator[k] = Arrays.copyOf(multiplicator, multiplicator.length);
+    	coalLogP[k] = logP;
+    	coalGeneInterval[k] = geneInterval;
+    	coalSpeciesInterval[k] = speciesInterval;
+    	coalStates[k] = states;
+    	coalNrLineages[k] = nr_lineages;
+    	coalNextSpeciesTime[k] = nextSpeciesTime;
+    	coalActiveLineages[k] = toArray(activeLineages);
+    	coalSampleState[k] = toArray(sampleState);
+    	coalCount++;
+    }
+    
+    private static int[] toArray(List<Integer> list) {
+    	final int[] array = new int[list.size()];
+    	for (int i = 0; i < array.length; i++)
+    		array[i] = list.get(i);
+    	return array;
+    }
+    
+    private static ArrayList<Integer> toList(int[] array) {
+    	final ArrayList<Integer> list = new ArrayList<>(array.length);
+    	for (int value : array)
+    		list.add(value);
+    	return list;
+    }
+    
+    /*
+     * Records the current gene tree events and species tree intervals, and returns the lowest height at which
+     * they differ from those the checkpoints were calculated from. A species interval that changed in any way
+     * invalidates everything from its start, so that the time to the next speciation in a checkpoint stays exact.
+     */
+    private double updateSignatures() {
+    	double changedHeight = signatureValid ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+
+    	// gene tree events in height order
+    	int o = 0;
+    	for (int i = 0; i < intervals.length; i++) {
+    		final Node node = lineagesAdded[i].get(0);
+    		final double height = node.getHeight();
+    		final double left = isCoalescent[i] ? lineagesRemoved[i].get(0).getNr() : -1;
+    		final double right = isCoalescent[i] ? lineagesRemoved[i].get(1).getNr() : -1;
+    		if (changedHeight == Double.POSITIVE_INFINITY && (geneSignature[o] != node.getNr() || geneSignature[o+1] != height
+    				|| geneSignature[o+2] != left || geneSignature[o+3] != right))
+    			changedHeight = Math.min(height, geneSignature[o+1]);
+    		geneSignature[o++] = node.getNr();
+    		geneSignature[o++] = height;
+    		geneSignature[o++] = left;
+    		geneSignature[o++] = right;
+    	}
+
+    	// species tree intervals, in the order the gene tree passes through them
+    	final ConstantWithGeneFlow popModel = popModelInput.get();
+    	final boolean hasIndicators = popModel.indicatorInput.get() != null;
+    	final int nrSpecies = popModel.getNumberOfSpecies();
+    	double start = 0.0;
+    	for (int i = 0; i < nrSpecies; i++)
+    		start += popModel.getNextSpeciationTime(i);
+    	o = 0;
+    	for (int speciesInterval = nrSpecies; speciesInterval < 2*nrSpecies; speciesInterval++) {
+    		final int n = 2*nrSpecies - speciesInterval;
+    		final double end = start + popModel.getNextSpeciationTime(speciesInterval);
+    		final int rowStart = o;
+    		boolean same = speciesSignature[o] == end;
+    		speciesSignature[o++] = end;
+    		final double[] popSizes = popModel.getPopulationSizes(speciesInterval);
+    		final boolean[] connectedStates = popModel.getConnectedStates(speciesInterval);
+    		for (int i = 0; i < n; i++) {
+    			final double popSize = popSizes[i];
+    			final double node = popModel.getSpeciesState(speciesInterval, i);
+    			final double isConnected = connectedStates[i] ? 1.0 : 0.0;
+    			same &= speciesSignature[o] == popSize && speciesSignature[o+1] == node && speciesSignature[o+2] == isConnected;
+    			speciesSignature[o++] = popSize;
+    			speciesSignature[o++] = node;
+    			speciesSignature[o++] = isConnected;
+    		}
+    		final double[][] rates = popModel.getMigrationRates(speciesInterval);
+    		for (int a = 0; a < n; a++) {
+    			for (int b = 0; b < n; b++) {
+    				same &= speciesSignature[o] == rates[a][b];
+    				speciesSignature[o++] = rates[a][b];
+    			}
+    		}
+    		final int[][] pairs = hasIndicators ? popModel.getIndicatorsRates(speciesInterval) : NO_INDICATOR_PAIRS;
+    		same &= speciesSignature[o] == pairs.length;
+    		speciesSignature[o++] = pairs.length;
+    		for (int c = 0; c < n*(n-1); c++) {
+    			final double source = c < pairs.length ? pairs[c][0] : -1;
+    			final double sink = c < pairs.length ? pairs[c][1] : -1;
+    			same &= speciesSignature[o] == source && speciesSignature[o+1] == sink;
+    			speciesSignature[o++] = source;
+    			speciesSignature[o++] = sink;
     		}
+    		assert o - rowStart == 2 + 3*n + n*n + 2*n*(n-1);
+
+    		if (!same)
+    			changedHeight = Math.min(changedHeight, start);
+    		start = end;
     	}
+
+    	signatureValid = true;
+    	return changedHeight;
+    }
+    
+    @Override
+    public void store() {
+    	storeCount = coalCount;
+    	System.arraycopy(coalHeight, 0, storeHeight, 0, coalCount);
+    	System.arraycopy(coalLinProbs, 0, storeLinProbs, 0, coalCount);
+    	System.arraycopy(coalMultiplicator, 0, storeMultiplicator, 0, coalCount);
+    	System.arraycopy(coalLogP, 0, storeLogP, 0, coalCount);
+    	System.arraycopy(coalGeneInterval, 0, storeGeneInterval, 0, coalCount);
+    	System.arraycopy(coalSpeciesInterval, 0, storeSpeciesInterval, 0, coalCount);
+    	System.arraycopy(coalStates, 0, storeStates, 0, coalCount);
+    	System.arraycopy(coalNrLineages, 0, storeNrLineages, 0, coalCount);
+    	System.arraycopy(coalNextSpeciesTime, 0, storeNextSpeciesTime, 0, coalCount);
+    	System.arraycopy(coalActiveLineages, 0, storeActiveLineages, 0, coalCount);
+    	System.arraycopy(coalSampleState, 0, storeSampleState, 0, coalCount);
+    	System.arraycopy(mostLikelyState, 0, storeMostLikelyState, 0, mostLikelyState.length);
+    	System.arraycopy(geneSignature, 0, storedGeneSignature, 0, geneSignature.length);
+    	System.arraycopy(speciesSignature, 0, storedSpeciesSignature, 0, speciesSignature.length);
+    	storedSignatureValid = signatureValid;
+    	super.store();
+    }
+    
+    @Override
+    public void restore() {
+    	coalCount = storeCount;
+    	double[] tmpDouble = coalHeight; coalHeight = storeHeight; storeHeight = tmpDouble;
+    	double[][] tmpLinProbs = coalLinProbs; coalLinProbs = storeLinProbs; storeLinProbs = tmpLinProbs;
+    	int[][] tmpRows = coalMultiplicator; coalMultiplicator = storeMultiplicator; storeMultiplicator = tmpRows;
+    	tmpDouble = coalLogP; coalLogP = storeLogP; storeLogP = tmpDouble;
+    	int[] tmpInt = coalGeneInterval; coalGeneInterval = storeGeneInterval; storeGeneInterval = tmpInt;
+    	tmpInt = coalSpeciesInterval; coalSpeciesInterval = storeSpeciesInterval; storeSpeciesInterval = tmpInt;
+    	tmpInt = coalStates; coalStates = storeStates; storeStates = tmpInt;
+    	tmpInt = coalNrLineages; coalNrLineages = storeNrLineages; storeNrLineages = tmpInt;
+    	tmpDouble = coalNextSpeciesTime; coalNextSpeciesTime = storeNextSpeciesTime; storeNextSpeciesTime = tmpDouble;
+    	tmpRows = coalActiveLineages; coalActiveLineages = storeActiveLineages; storeActiveLineages = tmpRows;
+    	tmpRows = coalSampleState; coalSampleState = storeSampleState; storeSampleState = tmpRows;
+    	tmpInt = mostLikelyState; mostLikelyState = storeMostLikelyState; storeMostLikelyState = tmpInt;
+    	tmpDouble = geneSignature; geneSignature = storedGeneSignature; storedGeneSignature = tmpDouble;
+    	tmpDouble = speciesSignature; speciesSignature = storedSpeciesSignature; storedSpeciesSignature = tmpDouble;
+    	signatureValid = storedSignatureValid;
+    	super.restore();
+    }
+    
+    private void updateRatesList(int speciesInterval){
+    	// the coalescent and migration rates of each interval are shared with every other gene tree, and must not be modified
+    	final ConstantWithGeneFlow popModel = popModelInput.get();
+    	coalescentRates = popModel.getCoalescentRates(speciesInterval, ploidyIndex);
+    	migrationRates = popModel.getMigrationRates(speciesInterval);
+    	isConnected = popModel.getConnectedStates(speciesInterval);
+    	if (hybrid != null)
+    		hybrid.setMigrationGenerator(popModel.getMigrationGenerator(speciesInterval));
     	
-    		
+    	if (popModel.indicatorInput.get()!=null)
+    		indicators = popModel.getIndicatorsRates(speciesInterval);
     }
     
     // Could work
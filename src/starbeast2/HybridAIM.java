@@ -0,0 +1,135 @@
+package starbeast2;
+
+
+/**
+ * Uses the exact solution of the lineage state probabilities whenever an interval is linear,
+ * i.e. when at most one lineage can still be in a connected state, so no coalescence can happen
+ * between states that are integrated. The probabilities of every lineage are then multiplied by
+ * the matrix exponential of the migration rate generator of the species interval, which is
+ * cached by the population model and shared by every gene tree. All other intervals, and
+ * intervals with more than a threshold number of lineage states, are passed on to another integrator.
+ */
+public class HybridAIM implements AIMIntegrator {
+	final int threshold;
+	final AIMIntegrator fallback;
+	final MatrixExponential expm;
+
+	// set by the gene tree for each species interval
+	double[] generator;
+
+	int[] multiplicator;
+	boolean[] isConnected;
+	int lineages;
+	int states;
+	boolean useFallback;
+	// number of times an interval was solved exactly, since this integrator was created
+	long exactSolutions;
+
+	// scratch space, sized for the largest number of states this integrator will be reset to
+	double[] propagator;
+	double[] row;
+
+	/**
+	 * @param maxStates the largest number of states
+	 * @param threshold the largest number of lineage states (lineages times states) solved exactly
+	 * @param fallback integrator used for intervals that are not linear or are above the threshold
+	 */
+	public HybridAIM(int maxStates, int threshold, AIMIntegrator fallback) {
+		this.threshold = threshold;
+		this.fallback = fallback;
+		expm = new MatrixExponential(maxStates);
+		propagator = new double[maxStates * maxStates];
+		row = new double[maxStates];
+	}
+
+	/**
+	 * Migration rate generator of a species interval, q[a*n + b] is the rate from state a to state b,
+	 * rates between states that are not indicated are zero so the generator covers both cases
+	 */
+	public static void migrationGenerator(final double[][] migration_rates, final int n, final double[] q) {
+		for (int a = 0; a < n; a++) {
+			double outflow = 0.0;
+			for (int b = 0; b < n; b++) {
+				if (a != b) {
+					q[a*n + b] = migration_rates[a][b];
+					outflow += migration_rates[a][b];
+				}
+			}
+			q[a*n + a] = -outflow;
+		}
+	}
+
+	// the migration rate generator of the next species interval, null if not available
+	public void setMigrationGenerator(double[] generator) {
+		this.generator = generator;
+	}
+
+	@Override
+	public void reset(int[] multiplicator, double[][] migration_rates, int[][] indicators, boolean[] isConnected, double[] coalescent_rates, int lineages, int states) {
+		this.multiplicator = multiplicator;
+		this.isConnected = isConnected;
+		this.lineages = lineages;
+		this.states = states;
+		useFallback = lineages * states > threshold || generator == null;
+		fallback.reset(multiplicator, migration_rates, indicators, isConnected, coalescent_rates, lineages, states);
+	}
+
+	@Override
+	public void calculateValues(double duration, double[] p, int length) {
+		if (useFallback || !isLinear(p, null))
+			fallback.calculateValues(duration, p, length);
+		else
+			migrate(duration, p);
+	}
+
+	@Override
+	public void calculateConnectedValues(double duration, double[] p, int length) {
+		if (useFallback || !isLinear(p, isConnected))
+			fallback.calculateConnectedValues(duration, p, length);
+		else
+			migrate(duration, p);
+	}
+
+	public long getExactSolutions() {
+		return exactSolutions;
+	}
+
+	// the exact solution does not evaluate any derivatives
+	@Override
+	public int getEvaluations() {
+		return fallback.getEvaluations();
+	}
+
+	// true if at most one lineage has any probability of being in a state that is integrated
+	private boolean isLinear(final double[] p, final boolean[] connected) {
+		int mobileLineages = 0;
+		for (int i = 0; i < lineages; i++) {
+			final int currlin = states*i;
+			for (int j = 0; j < states; j++) {
+				if ((connected == null || connected[j]) && p[currlin+j] > 0.0) {
+					mobileLineages += multiplicator == null ? 1 : multiplicator[i];
+					break;
+				}
+			}
+			if (mobileLineages > 1)
+				return false;
+		}
+		return true;
+	}
+
+	// p_i = p_i exp(duration * generator) for every lineage i, the probability of no coalescence is unchanged
+	private void migrate(final double duration, final double[] p) {
+		exactSolutions++;
+		expm.exp(generator, states, duration, propagator);
+		for (int i = 0; i < lineages; i++) {
+			final int currlin = states*i;
+			System.arraycopy(p, currlin, row, 0, states);
+			for (int j = 0; j < states; j++) {
+				double sum = 0.0;
+				for (int k = 0; k < states; k++)
+					sum += row[k] * propagator[k*states + j];
+				p[currlin+j] = sum;
+			}
+		}
+	}
+}
@@ -8,7 +8,6 @@ import beast.base.evolution.tree.Tree;
 import beast.base.inference.CalculationNode;
 import beast.base.inference.parameter.RealParameter;
 
-import java.text.DecimalFormat;
 import java.util.Arrays;
 
 /**
@@ -48,6 +47,11 @@ public class LinearWithConstantRoot extends CalculationNode implements Populatio
 
     @Override
     public double branchLogP(int speciesTreeNodeNumber, Node speciesTreeNode, double ploidy, double[] branchCoalescentTimes, int branchLineageCount, int branchEventCount) {
+        return branchLogP(speciesTreeNodeNumber, speciesTreeNode, ploidy, branchCoalescentTimes, 0, branchLineageCount, branchEventCount);
+    }
+
+    @Override
+    public double branchLogP(int speciesTreeNodeNumber, Node speciesTreeNode, double ploidy, double[] coalescentTimes, int timesOffset, int branchLineageCount, int branchEventCount) {
         final RealParameter tipPopSizes = tipPopSizesInput.get();
         final RealParameter topPopSizes = topPopSizesInput.get();
 
@@ -61,11 +65,11 @@ public class LinearWithConstantRoot extends CalculationNode implements Populatio
         }
 
         if (speciesTreeNode.isRoot()) {
-            return ConstantPopulations.constantLogP(branchTipPopSize, ploidy, branchCoalescentTimes, branchLineageCount, branchEventCount);
+            return ConstantPopulations.constantLogP(branchTipPopSize, ploidy, coalescentTimes, timesOffset, branchLineageCount, branchEventCount);
         } else {
             final int speciesTopI = speciesTreeNodeNumber;
             final double branchTopPopSize = topPopSizes.getValue(speciesTopI);
-            return linearLogP(branchTopPopSize, branchTipPopSize, ploidy, branchCoalescentTimes, branchLineageCount, branchEventCount);
+            return linearLogP(branchTopPopSize, branchTipPopSize, ploidy, coalescentTimes, timesOffset, branchLineageCount, branchEventCount);
         }
     }
 
@@ -94,7 +98,7 @@ public class LinearWithConstantRoot extends CalculationNode implements Populatio
     }
 
     @Override
-    public void serialize(Node speciesTreeNode, StringBuffer buf, DecimalFormat df) {
+    public void serialize(Node speciesTreeNode, NewickWriter writer) {
         final RealParameter tipPopSizes = tipPopSizesInput.get();
         final RealParameter topPopSizes = topPopSizesInput.get();
         final int speciesTreeNodeNumber = speciesTreeNode.getNr();
@@ -110,8 +114,7 @@ public class LinearWithConstantRoot extends CalculationNode implements Populatio
 
         final double branchTopPopSize = (speciesTreeNode.isRoot()) ? branchTipPopSize : topPopSizes.getValue(speciesTreeNode.getNr());
 
-        if (df == null) buf.append("dmv={" + branchTopPopSize + "," + branchTipPopSize + "}");
-        else buf.append("dmv={" + df.format(branchTopPopSize) + "," + df.format(branchTipPopSize) + "}");
+        writer.append("dmv={").appendDouble(branchTopPopSize).append(',').appendDouble(branchTipPopSize).append('}');
     }
 
     @Override
@@ -152,20 +155,20 @@ public class LinearWithConstantRoot extends CalculationNode implements Populatio
         return speciesBranchStatus[speciesNode.getNr()];
     }
 
-    static double linearLogP(double topPopSize, double lwcrPopSize, double ploidy, double[] fTimes, int nLineagesBottom, int k) {
+    static double linearLogP(double topPopSize, double lwcrPopSize, double ploidy, double[] fTimes, int t0, int nLineagesBottom, int k) {
         final double fPopSizeTop = topPopSize * ploidy;
         final double fPopSizeBottom = lwcrPopSize * ploidy;
 
         final double d5 = fPopSizeTop - fPopSizeBottom;
-        final double fTime0 = fTimes[0];
-        final double a = d5 / (fTimes[k + 1] - fTime0);
+        final double fTime0 = fTimes[t0];
+        final double a = d5 / (fTimes[t0 + k + 1] - fTime0);
         final double b = fPopSizeBottom;
 
         double logP = 0.0;
         if (Math.abs(d5) < 1e-10) {
             // use approximation for small values to bypass numerical instability
             for (int i = 0; i <= k; i++) {
-                final double fTimeip1 = fTimes[i + 1];
+                final double fTimeip1 = fTimes[t0 + i + 1];
                 final double fPopSize = a * (fTimeip1 - fTime0) + b;
                 if( i < k ) {
                     logP += -Math.log(fPopSize);
@@ -173,16 +176,16 @@ public class LinearWithConstantRoot extends CalculationNode implements Populatio
                 // slope = 0, so population function is constant
 
                 final int i1 = nLineagesBottom - i;
-                logP -= (i1 * (i1 - 1.0) / 2.0) * (fTimeip1 - fTimes[i]) / fPopSize;
+                logP -= (i1 * (i1 - 1.0) / 2.0) * (fTimeip1 - fTimes[t0 + i]) / fPopSize;
             }
         } else {
             final double vv = b - a * fTime0;
             for (int i = 0; i <= k; i++) {
-                final double fPopSize = a * fTimes[i + 1] + vv;
+                final double fPopSize = a * fTimes[t0 + i + 1] + vv;
                 if( i < k ) {
                     logP += -Math.log(fPopSize);
                 }
-                final double f = fPopSize / (a * fTimes[i] + vv);
+                final double f = fPopSize / (a * fTimes[t0 + i] + vv);
 
                 final int i1 = nLineagesBottom - i;
                 logP += -(i1 * (i1 - 1.0) / 2.0) * Math.log(f) / a;
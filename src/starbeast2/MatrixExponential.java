@@ -0,0 +1,143 @@
+package starbeast2;
+
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Matrix exponential of small dense matrices by scaling and squaring with a
+ * diagonal (6,6) Pade approximant. Matrices are stored row major in flat
+ * arrays, and all scratch space is allocated once for the largest dimension.
+ */
+public final class MatrixExponential {
+	// Pade coefficients c_k = (2q-k)! q! / ((2q)! k! (q-k)!) for q = 6
+	static final double[] PADE = {1.0, 1.0/2.0, 5.0/44.0, 1.0/66.0, 1.0/792.0, 1.0/15840.0, 1.0/665280.0};
+
+	// the approximant is accurate to machine precision once the scaled norm is at most this
+	static final double MAX_NORM = 0.5;
+
+	private final double[] a;
+	private final double[] a2;
+	private final double[] a4;
+	private final double[] a6;
+	private final double[] u;
+	private final double[] v;
+	private final double[] tmp;
+
+	public MatrixExponential(int maxDimension) {
+		final int size = maxDimension * maxDimension;
+		a = new double[size];
+		a2 = new double[size];
+		a4 = new double[size];
+		a6 = new double[size];
+		u = new double[size];
+		v = new double[size];
+		tmp = new double[size];
+	}
+
+	/**
+	 * @param q n by n matrix
+	 * @param t time the matrix is scaled by
+	 * @param result receives exp(t q), may not be q
+	 */
+	public void exp(final double[] q, final int n, final double t, final double[] result) {
+		final int size = n * n;
+
+		// scale so that the one norm of t q / 2^s is small enough
+		double norm = 0.0;
+		for (int j = 0; j < n; j++) {
+			double colSum = 0.0;
+			for (int i = 0; i < n; i++)
+				colSum += FastMath.abs(q[i*n + j]);
+			norm = FastMath.max(norm, colSum);
+		}
+		norm *= FastMath.abs(t);
+
+		int squarings = 0;
+		if (norm > MAX_NORM)
+			squarings = (int) FastMath.ceil(FastMath.log(norm / MAX_NORM) / FastMath.log(2.0));
+		final double scale = t / FastMath.pow(2.0, squarings);
+		for (int k = 0; k < size; k++)
+			a[k] = q[k] * scale;
+
+		multiply(a, a, a2, n);
+		multiply(a2, a2, a4, n);
+		multiply(a4, a2, a6, n);
+
+		// odd terms u = a (c1 I + c3 a^2 + c5 a^4), even terms v = c0 I + c2 a^2 + c4 a^4 + c6 a^6
+		for (int k = 0; k < size; k++) {
+			tmp[k] = PADE[3]*a2[k] + PADE[5]*a4[k];
+			v[k] = PADE[2]*a2[k] + PADE[4]*a4[k] + PADE[6]*a6[k];
+		}
+		for (int i = 0; i < n; i++) {
+			tmp[i*n + i] += PADE[1];
+			v[i*n + i] += PADE[0];
+		}
+		multiply(a, tmp, u, n);
+
+		// solve (v - u) x = (v + u)
+		for (int k = 0; k < size; k++) {
+			tmp[k] = v[k] - u[k];
+			result[k] = v[k] + u[k];
+		}
+		solve(tmp, result, n);
+
+		for (int s = 0; s < squarings; s++) {
+			multiply(result, result, tmp, n);
+			System.arraycopy(tmp, 0, result, 0, size);
+		}
+	}
+
+	private static void multiply(final double[] x, final double[] y, final double[] z, final int n) {
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				double sum = 0.0;
+				for (int k = 0; k < n; k++)
+					sum += x[i*n + k] * y[k*n + j];
+				z[i*n + j] = sum;
+			}
+		}
+	}
+
+	// Gaussian elimination with partial pivoting, m is destroyed and b is overwritten by the solution
+	private static void solve(final double[] m, final double[] b, final int n) {
+		for (int c = 0; c < n; c++) {
+			int p = c;
+			for (int r = c + 1; r < n; r++)
+				if (FastMath.abs(m[r*n + c]) > FastMath.abs(m[p*n + c]))
+					p = r;
+			if (p != c) {
+				swapRows(m, p, c, n);
+				swapRows(b, p, c, n);
+			}
+
+			final double diag = m[c*n + c];
+			for (int r = c + 1; r < n; r++) {
+				final double factor = m[r*n + c] / diag;
+				if (factor == 0.0)
+					continue;
+				for (int k = c; k < n; k++)
+					m[r*n + k] -= factor * m[c*n + k];
+				for (int k = 0; k < n; k++)
+					b[r*n + k] -= factor * b[c*n + k];
+			}
+		}
+
+		for (int c = n - 1; c >= 0; c--) {
+			final double diag = m[c*n + c];
+			for (int k = 0; k < n; k++) {
+				double sum = b[c*n + k];
+				for (int r = c + 1; r < n; r++)
+					sum -= m[c*n + r] * b[r*n + k];
+				b[c*n + k] = sum / diag;
+			}
+		}
+	}
+
+	private static void swapRows(final double[] m, final int r1, final int r2, final int n) {
+		for (int k = 0; k < n; k++) {
+			final double t = m[r1*n + k];
+			m[r1*n + k] = m[r2*n + k];
+			m[r2*n + k] = t;
+		}
+	}
+}
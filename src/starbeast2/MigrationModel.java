@@ -2,14 +2,136 @@ package starbeast2;
 
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
+import beast.base.evolution.tree.Node;
 import beast.base.inference.CalculationNode;
 
+import java.util.BitSet;
+
 public abstract class MigrationModel extends CalculationNode {
-	
+
     public Input<SpeciesTreeInterface> speciesTreeInput = new Input<>("speciesTree", "The species tree this model applies to.", Validate.REQUIRED);
 
+    private BitSet excludedLeaves;
+
+    // descendant leaves of every species tree node and whether any of them is excluded,
+    // rebuilt only when the parent of some node differs from the topology they were built for
+    private BitSet[] descendantLeaves;
+    private boolean[] excludedNodes;
+    private int[] cachedParents;
+    private volatile boolean needsUpdate = true;
+
 	public abstract double getMigration(int sourceNode, int sinkNode);
 
 	public abstract double getEM();
 
+	// species tree tips (by ID) that no migration can come from or go to
+	protected void initExcluded(String exclude) {
+		excludedLeaves = new BitSet();
+		final String[] splitStr = exclude.split("\\s+");
+		for (int i = 0; i < splitStr.length; i++) {
+			for (int j = 0; j < speciesTreeInput.get().getLeafNodeCount(); j++) {
+				if (splitStr[i].equals(speciesTreeInput.get().getNode(j).getID())) {
+					excludedLeaves.set(j);
+					break;
+				}
+			}
+		}
+		needsUpdate = true;
+	}
+
+	protected boolean hasExcluded() {
+		return excludedLeaves != null;
+	}
+
+	// true if any species tree tip descending from (or equal to) the node is excluded
+	protected boolean isExcluded(int nodeNr) {
+		ensureDescendants();
+		return excludedNodes[nodeNr];
+	}
+
+	// a copy, as the cached bit sets are reused when the species tree topology changes
+	public BitSet getDescendantLeaves(int nodeNr) {
+		ensureDescendants();
+		return (BitSet) descendantLeaves[nodeNr].clone();
+	}
+
+	// true if the species tree tip is below (or equal to) the node, without copying the cached bit set
+	public boolean isDescendant(int nodeNr, int leafNr) {
+		ensureDescendants();
+		return descendantLeaves[nodeNr].get(leafNr);
+	}
+
+	private void ensureDescendants() {
+		if (needsUpdate) {
+			synchronized (this) {
+				if (needsUpdate) {
+					updateDescendants();
+					needsUpdate = false;
+				}
+			}
+		}
+	}
+
+	private void updateDescendants() {
+		final SpeciesTreeInterface speciesTree = speciesTreeInput.get();
+		final int nodeCount = speciesTree.getNodeCount();
+		final Node[] nodes = speciesTree.getNodesAsArray();
+
+		boolean topologyChanged = cachedParents == null || cachedParents.length != nodeCount;
+		if (!topologyChanged) {
+			for (int i = 0; i < nodeCount; i++) {
+				if (cachedParents[i] != parentNr(nodes[i])) {
+					topologyChanged = true;
+					break;
+				}
+			}
+		}
+		if (!topologyChanged)
+			return;
+
+		if (cachedParents == null || cachedParents.length != nodeCount) {
+			cachedParents = new int[nodeCount];
+			descendantLeaves = new BitSet[nodeCount];
+			excludedNodes = new boolean[nodeCount];
+			for (int i = 0; i < nodeCount; i++)
+				descendantLeaves[i] = new BitSet(speciesTree.getLeafNodeCount());
+		}
+		for (int i = 0; i < nodeCount; i++)
+			cachedParents[i] = parentNr(nodes[i]);
+
+		addDescendants(speciesTree.getRoot());
+	}
+
+	private void addDescendants(Node node) {
+		final int nodeNr = node.getNr();
+		final BitSet leaves = descendantLeaves[nodeNr];
+		leaves.clear();
+		if (node.isLeaf()) {
+			leaves.set(nodeNr);
+		} else {
+			for (Node child: node.getChildren()) {
+				addDescendants(child);
+				leaves.or(descendantLeaves[child.getNr()]);
+			}
+		}
+		excludedNodes[nodeNr] = excludedLeaves != null && leaves.intersects(excludedLeaves);
+	}
+
+	private static int parentNr(Node node) {
+		return node.isRoot() ? -1 : node.getParent().getNr();
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		if (speciesTreeInput.get().somethingIsDirty())
+			needsUpdate = true;
+		return true;
+	}
+
+	@Override
+	protected void restore() {
+		needsUpdate = true;
+		super.restore();
+	}
+
 }
@@ -9,6 +9,8 @@ import beast.base.inference.parameter.RealParameter;
 
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
 * @author Remco Bouckaert
@@ -20,6 +22,10 @@ import java.util.Random;
 public class MultispeciesCoalescent extends CompoundDistribution {
     final public Input<RealParameter> populationShapeInput = new Input<>("populationShape", "Shape of the inverse gamma prior distribution on population sizes.");
     final public Input<RealParameter> populationMeanInput = new Input<>("populationMean", "Mean of the inverse gamma prior distribution on population sizes.");
+    final public Input<Integer> branchThreadsInput = new Input<>("branchThreads", "Number of threads used to evaluate species tree branches when population sizes are integrated out (default is 1, i.e. serial evaluation).", 1);
+
+    // minimum number of species tree branches evaluated by each fork-join task
+    final static int BRANCH_TASK_SIZE = 4;
 
     private RealParameter invGammaShape;
     private RealParameter invGammaMean;
@@ -34,18 +40,15 @@ public class MultispeciesCoalescent extends CompoundDistribution {
     private double storedAlpha;
     private double storedBeta;
 
-    private int[] allLineageCounts;
-    private int[] allEventCounts;
-    private double[][] allCoalescentTimes;
+    private GeneTree[] geneTrees;
     private double[] perBranchLogP;
-
-    private int[] storedLineageCounts;
-    private int[] storedEventCounts;
-    private double[][] storedCoalescentTimes;
     private double[] storedPerBranchLogP;
 
     private boolean dontCalculate;
 
+    private ForkJoinPool branchPool;
+    private boolean updatedPrior;
+
     @Override
     public void store() {
         super.store();
@@ -54,9 +57,6 @@ public class MultispeciesCoalescent extends CompoundDistribution {
         storedAlpha = alpha;
         storedBeta = beta;
 
-        System.arraycopy(allLineageCounts, 0, storedLineageCounts, 0, allLineageCounts.length);
-        System.arraycopy(allEventCounts, 0, storedEventCounts, 0, allEventCounts.length);
-        System.arraycopy(allCoalescentTimes, 0, storedCoalescentTimes, 0, allCoalescentTimes.length);
         System.arraycopy(perBranchLogP, 0, storedPerBranchLogP, 0, perBranchLogP.length);
     }
 
@@ -67,23 +67,14 @@ public class MultispeciesCoalescent extends CompoundDistribution {
 
         double tmpAlpha = alpha;
         double tmpBeta = beta;
-        int[] tmpLineageCounts = allLineageCounts;
-        int[] tmpEventCounts = allEventCounts;
-        double[][] tmpCoalescentTimes = allCoalescentTimes;
         double[] tmpPerBranchLogP = perBranchLogP;
 
         alpha = storedAlpha;
         beta = storedBeta;
-        allLineageCounts = storedLineageCounts;
-        allEventCounts = storedEventCounts;
-        allCoalescentTimes = storedCoalescentTimes;
         perBranchLogP = storedPerBranchLogP;
 
         storedAlpha = tmpAlpha;
         storedBeta = tmpBeta;
-        storedLineageCounts = tmpLineageCounts;
-        storedEventCounts = tmpEventCounts;
-        storedCoalescentTimes = tmpCoalescentTimes;
         storedPerBranchLogP = tmpPerBranchLogP;
     }
 
@@ -91,6 +82,10 @@ public class MultispeciesCoalescent extends CompoundDistribution {
     public void initAndValidate() {
         super.initAndValidate();
 
+        // a pool from an earlier initialisation would otherwise keep its threads alive
+        if (branchPool != null) branchPool.shutdown();
+        branchPool = null;
+
         if (populationShapeInput.get() == null ^ populationMeanInput.get() == null) {
             throw new IllegalArgumentException("Either specify both population size prior parameters for analytical integration,"
                     + "or neither for MCMC integration of population sizes.");
@@ -105,11 +100,13 @@ public class MultispeciesCoalescent extends CompoundDistribution {
         checkHyperparameters(true);
         nGeneTrees = geneTrees.size();
         perGenePloidy = new double[nGeneTrees];
+        this.geneTrees = new GeneTree[nGeneTrees];
         speciesNodeCount = -1;
         for (int geneI = 0; geneI < nGeneTrees; geneI++) {
             final Distribution pDist = geneTrees.get(geneI);
             if (pDist instanceof GeneTree) {
                 final GeneTree gt = (GeneTree) pDist;
+                this.geneTrees[geneI] = gt;
                 perGenePloidy[geneI] = gt.getPloidy();
                 if (speciesNodeCount == -1)
                     speciesNodeCount = gt.speciesTreeInput.get().getNodeCount();
@@ -119,16 +116,12 @@ public class MultispeciesCoalescent extends CompoundDistribution {
         }
 
         if (speciesNodeCount != -1) { // not BEAUTi
-            allLineageCounts = new int[speciesNodeCount*nGeneTrees];
-            allEventCounts = new int[speciesNodeCount*nGeneTrees];
-            allCoalescentTimes = new double[speciesNodeCount*nGeneTrees][];
             perBranchLogP = new double[speciesNodeCount];
-    
-            storedLineageCounts = new int[speciesNodeCount*nGeneTrees];
-            storedEventCounts = new int[speciesNodeCount*nGeneTrees];
-            storedCoalescentTimes = new double[speciesNodeCount*nGeneTrees][];
             storedPerBranchLogP = new double[speciesNodeCount];
         }
+
+        final int branchThreads = branchThreadsInput.get();
+        branchPool = branchThreads > 1 ? new ForkJoinPool(branchThreads) : null;
     }
 
     private boolean checkHyperparameters(final boolean force) {
@@ -153,51 +146,58 @@ public class MultispeciesCoalescent extends CompoundDistribution {
         if (dontCalculate || Double.isInfinite(logP) || Double.isNaN(logP)) return logP;
 
         // need to recompute all branches if the parameters of the prior distribution have changed
-        final boolean updatedPrior = checkHyperparameters(false);
+        updatedPrior = checkHyperparameters(false);
 
-        final int[] branchLineageCounts = new int[nGeneTrees];
-        final int[] branchEventCounts = new int[nGeneTrees];
-        final double[][] branchCoalescentTimes = new double[nGeneTrees][];
-
-        final List<Distribution> pDists = pDistributions.get();
-        final GeneTree[] geneTrees = new GeneTree[pDists.size()];
-
-        int nodeGeneI = 0;
-        for (int nodeI = 0; nodeI < speciesNodeCount; nodeI++) {
-            boolean dirtyBranch = false;
-            for (int geneI = 0; geneI < nGeneTrees; geneI++) {
-                if (nodeI == 0) geneTrees[geneI] = (GeneTree) pDists.get(geneI);
-                final GeneTree geneTree = geneTrees[geneI];
+        // each branch only writes to its own slot of perBranchLogP, so branches can be evaluated in any order or in parallel
+        if (branchPool == null) {
+            updateBranches(0, speciesNodeCount);
+        } else {
+            branchPool.invoke(new BranchTask(0, speciesNodeCount));
+        }
 
-                if (geneTree.isDirtyBranch(nodeI)) {
-                    dirtyBranch = true;
+        // sum in node order so that the result does not depend on the number of threads
+        for (int nodeI = 0; nodeI < speciesNodeCount; nodeI++)
+            logP += perBranchLogP[nodeI];
 
-                    final double[] geneBranchCoalescentTimes = geneTree.getCoalescentTimes(nodeI);
-                    final int geneBranchLineageCount = geneTree.coalescentLineageCounts[nodeI];
-                    final int geneBranchEventCount = geneTree.coalescentCounts[nodeI];
+        return logP;
+    }
 
-                    allLineageCounts[nodeGeneI] = geneBranchLineageCount;
-                    allEventCounts[nodeGeneI] = geneBranchEventCount;
-                    allCoalescentTimes[nodeGeneI] = geneBranchCoalescentTimes;
-                }
+    private void updateBranches(final int fromNodeI, final int toNodeI) {
+        for (int nodeI = fromNodeI; nodeI < toNodeI; nodeI++) {
+            boolean dirtyBranch = updatedPrior;
+            for (int geneI = 0; !dirtyBranch && geneI < nGeneTrees; geneI++)
+                dirtyBranch = geneTrees[geneI].isDirtyBranch(nodeI);
 
-                branchLineageCounts[geneI] = allLineageCounts[nodeGeneI];
-                branchEventCounts[geneI] = allEventCounts[nodeGeneI];
-                branchCoalescentTimes[geneI] = allCoalescentTimes[nodeGeneI];
+            if (dirtyBranch)
+                perBranchLogP[nodeI] = analyticalLogP(alpha, beta, perGenePloidy, geneTrees, nodeI);
+        }
+    }
 
-                nodeGeneI++;
-            }
+    // recursively splits a range of species tree branches until each task is small enough to evaluate directly
+    private class BranchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
 
-            if (updatedPrior || dirtyBranch)
-                perBranchLogP[nodeI] = analyticalLogP(alpha, beta, perGenePloidy, branchCoalescentTimes, branchLineageCounts, branchEventCounts);
+        private final int fromNodeI;
+        private final int toNodeI;
 
-            logP += perBranchLogP[nodeI];
+        BranchTask(final int fromNodeI, final int toNodeI) {
+            this.fromNodeI = fromNodeI;
+            this.toNodeI = toNodeI;
         }
 
-        return logP;
+        @Override
+        protected void compute() {
+            if (toNodeI - fromNodeI <= BRANCH_TASK_SIZE) {
+                updateBranches(fromNodeI, toNodeI);
+            } else {
+                final int midNodeI = (fromNodeI + toNodeI) >>> 1;
+                invokeAll(new BranchTask(fromNodeI, midNodeI), new BranchTask(midNodeI, toNodeI));
+            }
+        }
     }
 
-    static private double analyticalLogP(double alpha, double beta, double[] perGenePloidy, double[][] branchCoalescentTimes, int[] branchLineageCounts, int[] branchEventCounts) {
+    // reads the coalescent times of each gene in place, so no per-branch copies are made
+    static private double analyticalLogP(double alpha, double beta, double[] perGenePloidy, GeneTree[] geneTrees, int nodeI) {
         final int nGenes = perGenePloidy.length;
 
         int branchQ = 0;
@@ -205,20 +205,22 @@ public class MultispeciesCoalescent extends CompoundDistribution {
         double branchGamma = 0.0;
 
         for (int j = 0; j < nGenes; j++) {
-            final int geneN = branchLineageCounts[j];
-            final double[] geneCoalescentTimes = branchCoalescentTimes[j];
-            final int geneK = branchEventCounts[j];
+            final GeneTree.Embedding embedding = geneTrees[j].getEmbedding();
+            final double[] geneCoalescentTimes = embedding.coalescentTimes;
+            final int geneN = embedding.coalescentLineageCounts[nodeI];
+            final int geneK = embedding.coalescentCounts[nodeI];
+            final int t0 = embedding.timesOffset(nodeI);
             final double genePloidy = perGenePloidy[j]; 
             branchLogR -= geneK * Math.log(genePloidy);
             branchQ += geneK;
 
             double partialGamma = 0.0;
             for (int i = 0; i < geneK; i++) {
-                partialGamma += (geneCoalescentTimes[i + 1] - geneCoalescentTimes[i]) * (geneN - i) * (geneN - (i + 1.0)) / 2.0;
+                partialGamma += (geneCoalescentTimes[t0 + i + 1] - geneCoalescentTimes[t0 + i]) * (geneN - i) * (geneN - (i + 1.0)) / 2.0;
             }
             
             if (geneN - geneK > 1) {
-                partialGamma += (geneCoalescentTimes[geneK + 1] - geneCoalescentTimes[geneK]) * (geneN - geneK) * (geneN - (geneK + 1.0)) / 2.0;
+                partialGamma += (geneCoalescentTimes[t0 + geneK + 1] - geneCoalescentTimes[t0 + geneK]) * (geneN - geneK) * (geneN - (geneK + 1.0)) / 2.0;
             }
 
             branchGamma += partialGamma / genePloidy;
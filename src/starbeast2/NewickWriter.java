@@ -0,0 +1,246 @@
+package starbeast2;
+
+import java.io.PrintStream;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+
+/**
+ * Reusable buffer that tree loggers write a whole Newick string into before printing it, so that no
+ * intermediate strings are built for every node. Doubles written with appendDouble are formatted to
+ * the number of decimal places given to the constructor, exactly as DecimalFormat("#.##...") with
+ * HALF_UP rounding would format them, but without going through DecimalFormat in the common case.
+ *
+ * A deferred writer only records the doubles and where they go, and formats them when the buffer is
+ * flushed. Loggers use this to copy the state of a sample on the MCMC thread, and leave the formatting
+ * to the thread that writes the log.
+ */
+public class NewickWriter {
+    // 2^52, above which a double scaled by the power of ten may not have an exact integer part
+    private static final double MAX_FAST_VALUE = 4503599627370496.0;
+    private static final int MAX_FAST_DECIMAL_PLACES = 15;
+
+    private final StringBuilder buf = new StringBuilder(1024);
+    private final DecimalFormat df;
+
+    private final int decimalPlaces;
+    private final double scale;
+    private final long fractionScale;
+    private final char decimalSeparator;
+    private final char minusSign;
+    private final boolean fastFormat;
+
+    // scratch space for the digits of the fractional part
+    private final char[] fractionDigits;
+
+    // the doubles of a deferred writer, their positions in the buffer, and which are at full precision
+    private final boolean deferred;
+    private double[] deferredValues;
+    private int[] deferredPositions;
+    private boolean[] deferredFullPrecision;
+    private int deferredCount;
+    private StringBuilder formatted;
+
+    /**
+     * @param decimalPlaces number of decimal places written by appendDouble, or -1 for full precision
+     */
+    public NewickWriter(int decimalPlaces) {
+        this(decimalPlaces, false);
+    }
+
+    /**
+     * @param decimalPlaces number of decimal places written by appendDouble, or -1 for full precision
+     * @param deferred whether to format the doubles when flushing instead of when they are appended
+     */
+    public NewickWriter(int decimalPlaces, boolean deferred) {
+        this.decimalPlaces = decimalPlaces;
+        this.deferred = deferred;
+        if (deferred) {
+            deferredValues = new double[64];
+            deferredPositions = new int[64];
+            deferredFullPrecision = new boolean[64];
+            formatted = new StringBuilder(1024);
+        }
+        if (decimalPlaces < 0) {
+            df = null;
+        } else {
+            // just new DecimalFormat("#.######") (with dp time '#' after the decimal)
+            df = new DecimalFormat("#." + new String(new char[decimalPlaces]).replace('\0', '#'));
+            df.setRoundingMode(RoundingMode.HALF_UP);
+        }
+
+        final DecimalFormatSymbols symbols = df == null ? null : df.getDecimalFormatSymbols();
+        fastFormat = df != null && decimalPlaces >= 1 && decimalPlaces <= MAX_FAST_DECIMAL_PLACES &&
+                symbols.getZeroDigit() == '0' && !df.isGroupingUsed();
+        decimalSeparator = symbols == null ? '.' : symbols.getDecimalSeparator();
+        minusSign = symbols == null ? '-' : symbols.getMinusSign();
+
+        long p = 1;
+        for (int i = 0; i < Math.max(decimalPlaces, 0) && i < MAX_FAST_DECIMAL_PLACES; i++)
+            p *= 10;
+        fractionScale = p;
+        scale = p;
+        fractionDigits = new char[Math.max(decimalPlaces, 0)];
+    }
+
+    public int getDecimalPlaces() {
+        return decimalPlaces;
+    }
+
+    // the DecimalFormat used for decimal places, or null for full precision
+    public DecimalFormat getDecimalFormat() {
+        return df;
+    }
+
+    public NewickWriter append(char c) {
+        buf.append(c);
+        return this;
+    }
+
+    public NewickWriter append(String s) {
+        buf.append(s);
+        return this;
+    }
+
+    public NewickWriter append(int i) {
+        buf.append(i);
+        return this;
+    }
+
+    public NewickWriter append(Object o) {
+        buf.append(o);
+        return this;
+    }
+
+    // always at full precision, like StringBuffer.append(double)
+    public NewickWriter append(double d) {
+        if (deferred)
+            defer(d, true);
+        else
+            buf.append(d);
+        return this;
+    }
+
+    // at the number of decimal places of this writer
+    public NewickWriter appendDouble(double d) {
+        if (deferred)
+            defer(d, df == null);
+        else
+            format(buf, d);
+        return this;
+    }
+
+    private void format(StringBuilder out, double d) {
+        if (df == null) {
+            out.append(d);
+        } else if (!fastFormat || !appendFixed(out, d)) {
+            out.append(df.format(d));
+        }
+    }
+
+    private void defer(double d, boolean fullPrecision) {
+        if (deferredCount == deferredValues.length) {
+            final int capacity = 2 * deferredCount;
+            deferredValues = Arrays.copyOf(deferredValues, capacity);
+            deferredPositions = Arrays.copyOf(deferredPositions, capacity);
+            deferredFullPrecision = Arrays.copyOf(deferredFullPrecision, capacity);
+        }
+        deferredValues[deferredCount] = d;
+        deferredPositions[deferredCount] = buf.length();
+        deferredFullPrecision[deferredCount] = fullPrecision;
+        deferredCount++;
+    }
+
+    /**
+     * Rounds half up like DecimalFormat does, and returns false for values it cannot format exactly the same.
+     * Those are the very large values, and values that are within rounding error of half way between two
+     * results, where DecimalFormat decides from the shortest decimal representation of the value.
+     */
+    private boolean appendFixed(StringBuilder out, double d) {
+        final double a = Math.abs(d);
+        final double x = a * scale;
+        if (!(x < MAX_FAST_VALUE))
+            return false;
+
+        long n = (long) x;
+        final double fraction = x - n;
+        if (Math.abs(fraction - 0.5) <= 2.0 * Math.ulp(x))
+            return false;
+        if (fraction > 0.5)
+            n++;
+
+        // DecimalFormat keeps the sign of negative numbers that round to zero, and of negative zero
+        if (d < 0.0 || (d == 0.0 && 1.0 / d < 0.0))
+            out.append(minusSign);
+
+        out.append(n / fractionScale);
+        long fractionalPart = n % fractionScale;
+        if (fractionalPart == 0)
+            return true;
+
+        // the '#' pattern writes no trailing zeros after the separator
+        int last = decimalPlaces;
+        while (fractionalPart % 10 == 0) {
+            fractionalPart /= 10;
+            last--;
+        }
+        for (int i = last - 1; i >= 0; i--) {
+            fractionDigits[i] = (char) ('0' + fractionalPart % 10);
+            fractionalPart /= 10;
+        }
+        out.append(decimalSeparator);
+        out.append(fractionDigits, 0, last);
+        return true;
+    }
+
+    // the buffer with the deferred doubles formatted in place
+    private CharSequence text() {
+        if (deferredCount == 0)
+            return buf;
+
+        formatted.setLength(0);
+        int start = 0;
+        for (int i = 0; i < deferredCount; i++) {
+            formatted.append(buf, start, deferredPositions[i]);
+            if (deferredFullPrecision[i])
+                formatted.append(deferredValues[i]);
+            else
+                format(formatted, deferredValues[i]);
+            start = deferredPositions[i];
+        }
+        formatted.append(buf, start, buf.length());
+        return formatted;
+    }
+
+    // prints the buffer and empties it for the next tree
+    public void flush(PrintStream out) {
+        out.append(text());
+        clear();
+    }
+
+    // appends the buffer to a line being built by a logger and empties it
+    public void flush(StringBuilder out) {
+        out.append(text());
+        clear();
+    }
+
+    public void clear() {
+        buf.setLength(0);
+        deferredCount = 0;
+    }
+
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    // number of characters appended so far, not counting deferred doubles
+    public int length() {
+        return buf.length();
+    }
+
+    @Override
+    public String toString() {
+        return text().toString();
+    }
+}
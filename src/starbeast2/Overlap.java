@@ -4,9 +4,6 @@ import beast.base.core.Input;
 import beast.base.evolution.tree.Node;
 import beast.base.inference.parameter.RealParameter;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class Overlap extends MigrationModel {
 	
     public Input<RealParameter> effectiveMigrantsInput  = new Input<>("effectiveMigrants","absolute migration rates",Input.Validate.OPTIONAL);
@@ -14,25 +11,11 @@ public class Overlap extends MigrationModel {
 
     public Input<String> excludeInput = new Input<>("exclude", "nodes with no migration");
     
-    private boolean hasExcluded = false;
-    private ArrayList<Integer> exclNode;
     
 	@Override
 	public void initAndValidate() {
-		if (excludeInput.get()!=null){
-			exclNode = new ArrayList<Integer>();
-			String[] splitStr = excludeInput.get().split("\\s+");
-			for (int i = 0; i < splitStr.length; i++){
-//				System.out.println(splitStr[i]);
-				for (int j=0; j < speciesTreeInput.get().getLeafNodeCount(); j++){
-					if(splitStr[i].equals(speciesTreeInput.get().getNode(j).getID() )){
-						exclNode.add(j);
-						break;
-					}
-				}
-			}
-			hasExcluded = true;
-		}
+		if (excludeInput.get()!=null)
+			initExcluded(excludeInput.get());
 	}
 
 	@Override
@@ -41,32 +24,8 @@ public class Overlap extends MigrationModel {
 		Node n2 = speciesTreeInput.get().getNode(sinkNode);
 		
 		// check if some nodes are exluded
-		if(hasExcluded){
-			
-			
-			List<Node> al1 = n1.getAllLeafNodes();
-			List<Node> al2 = n2.getAllLeafNodes();
-						
-			if (al1.size()>0){
-				for (int j = 0; j < al1.size(); j++){
-					if (exclNode.indexOf(al1.get(j).getNr())!=-1){
-						return 0.0;							
-					}
-				}
-			}else{
-				if (exclNode.indexOf(n1.getNr())!=-1){
-					return 0.0;
-				}
-			}
-			
-			if (al2.size()>0)
-				for (int j = 0; j < al2.size(); j++)
-					if (exclNode.indexOf(al2.get(j).getNr())!=-1)
-						return 0.0;
-			if (exclNode.indexOf(n2.getNr())!=-1)
-				return 0.0;
-				
-		}
+		if (hasExcluded() && (isExcluded(sourceNode) || isExcluded(sinkNode)))
+			return 0.0;
 		
 //		System.out.println(n1.getAllLeafNodes());
 			
@@ -0,0 +1,129 @@
+package starbeast2;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.datatype.DataType;
+import beast.base.evolution.distance.Distance;
+
+/**
+ * Jukes-Cantor distances between the taxa of an alignment, the same as JukesCantorDistance but
+ * computed from bit packed site patterns. Every taxon has one bit plane per bit of its states and a
+ * plane of the patterns where its state is not ambiguous, so the patterns that differ between two taxa
+ * are found 64 at a time. Pattern weights are split into bit planes as well, and the weighted number of
+ * differences is the sum over weight bits of the popcount of the differences in that plane, shifted by
+ * the bit. The cost of a pair of taxa therefore scales with the number of unique patterns, not with
+ * the number of sites.
+ *
+ * The patterns are packed the first time a distance is asked for, so that the thread using the
+ * distances does the packing.
+ */
+public class PackedJukesCantorDistance implements Distance {
+    // as JukesCantorDistance
+    private static final double MAX_DISTANCE = 1000.0;
+
+    private final Alignment alignment;
+
+    private int words;
+    private int stateBits;
+    private int weightBits;
+    // for every taxon, stateBits planes of state bits followed by the plane of unambiguous states
+    private long[][] taxonPlanes;
+    // the patterns with each bit of their weight set
+    private long[] weightPlanes;
+    private double totalWeight;
+
+    private double const1, const2;
+
+    public PackedJukesCantorDistance(Alignment alignment) {
+        this.alignment = alignment;
+    }
+
+    private void pack() {
+        final DataType dataType = alignment.getDataType();
+        final int patternCount = alignment.getPatternCount();
+        final int taxonCount = alignment.getTaxonCount();
+        words = (patternCount + 63) >>> 6;
+
+        final int stateCount = dataType.getStateCount();
+        const1 = ((double) stateCount - 1) / stateCount;
+        const2 = 1.0 / const1;
+
+        int maxState = 1;
+        int maxWeight = 1;
+        long sumWeight = 0;
+        for (int i = 0; i < patternCount; i++) {
+            final int[] pattern = alignment.getPattern(i);
+            for (int state: pattern) {
+                if (!dataType.isAmbiguousCode(state))
+                    maxState = Math.max(maxState, state);
+            }
+            final int weight = alignment.getPatternWeight(i);
+            maxWeight = Math.max(maxWeight, weight);
+            sumWeight += weight;
+        }
+        stateBits = 32 - Integer.numberOfLeadingZeros(maxState);
+        weightBits = 32 - Integer.numberOfLeadingZeros(maxWeight);
+        totalWeight = sumWeight;
+
+        taxonPlanes = new long[taxonCount][(stateBits + 1) * words];
+        weightPlanes = new long[weightBits * words];
+        for (int i = 0; i < patternCount; i++) {
+            final int word = i >>> 6;
+            final long bit = 1L << i;
+            final int[] pattern = alignment.getPattern(i);
+            for (int t = 0; t < taxonCount; t++) {
+                final int state = pattern[t];
+                if (dataType.isAmbiguousCode(state))
+                    continue;
+                final long[] planes = taxonPlanes[t];
+                for (int b = 0; b < stateBits; b++) {
+                    if ((state & (1 << b)) != 0)
+                        planes[b * words + word] |= bit;
+                }
+                planes[stateBits * words + word] |= bit;
+            }
+
+            final int weight = alignment.getPatternWeight(i);
+            for (int b = 0; b < weightBits; b++) {
+                if ((weight & (1 << b)) != 0)
+                    weightPlanes[b * words + word] |= bit;
+            }
+        }
+    }
+
+    // weighted number of patterns where both taxa have unambiguous and different states
+    private long countDifferences(final int taxon1, final int taxon2) {
+        final long[] planes1 = taxonPlanes[taxon1];
+        final long[] planes2 = taxonPlanes[taxon2];
+        final int unambiguousOffset = stateBits * words;
+
+        long differences = 0;
+        for (int w = 0; w < words; w++) {
+            long differentStates = 0;
+            for (int b = 0; b < stateBits; b++)
+                differentStates |= planes1[b * words + w] ^ planes2[b * words + w];
+            final long different = differentStates & planes1[unambiguousOffset + w] & planes2[unambiguousOffset + w];
+            if (different == 0)
+                continue;
+
+            for (int b = 0; b < weightBits; b++)
+                differences += (long) Long.bitCount(different & weightPlanes[b * words + w]) << b;
+        }
+
+        return differences;
+    }
+
+    @Override
+    public double pairwiseDistance(final int taxon1, final int taxon2) {
+        if (taxonPlanes == null)
+            pack();
+
+        final double obsDist = countDifferences(taxon1, taxon2) / totalWeight;
+        if (obsDist == 0.0)
+            return 0.0;
+        if (obsDist >= const1)
+            return MAX_DISTANCE;
+
+        final double expDist = -const1 * Math.log(1.0 - (const2 * obsDist));
+        return expDist < MAX_DISTANCE ? expDist : MAX_DISTANCE;
+    }
+}
@@ -7,7 +7,6 @@ import beast.base.core.Input.Validate;
 import beast.base.evolution.tree.Node;
 import beast.base.inference.CalculationNode;
 
-import java.text.DecimalFormat;
 
 /**
 * @author Huw Ogilvie
@@ -29,6 +28,10 @@ public class PassthroughModel extends CalculationNode implements PopulationModel
         return childModel.branchLogP(speciesTreeNodeNumber, speciesTreeNode, ploidy, branchCoalescentTimes, branchLineageCount, branchEventCount);
     }
 
+    public double branchLogP(int speciesTreeNodeNumber, Node speciesTreeNode, double ploidy, double[] coalescentTimes, int timesOffset, int branchLineageCount, int branchEventCount) {
+        return childModel.branchLogP(speciesTreeNodeNumber, speciesTreeNode, ploidy, coalescentTimes, timesOffset, branchLineageCount, branchEventCount);
+    }
+
     // Sets the appropriate dimension size of each population size state node
     // To successfully resume from a saved state, this must be called via an initAndValidate method
     public void initPopSizes(final int nSpeciesBranches) {
@@ -42,8 +45,8 @@ public class PassthroughModel extends CalculationNode implements PopulationModel
     }
 
     // Per-branch population size information which will be added to a Newick string.
-    public void serialize(Node speciesTreeNode, StringBuffer buf, DecimalFormat df) {
-        childModel.serialize(speciesTreeNode, buf, df);
+    public void serialize(Node speciesTreeNode, NewickWriter writer) {
+        childModel.serialize(speciesTreeNode, writer);
     }
 
     public boolean isDirtyBranch(Node speciesTreeNode) {
@@ -3,17 +3,38 @@ package starbeast2;
 import beast.base.evolution.tree.Node;
 
 import java.text.DecimalFormat;
+import java.util.Arrays;
 
 public interface PopulationModel {
     // Calculate the truncated coalescent probability for a single species tree branch and gene
     double branchLogP(int speciesTreeNodeNumber, Node speciesTreeNode, double ploidy, double[] branchCoalescentTimes, int branchLineageCount, int branchEventCount);
 
+    // As above, but the branch coalescent times are the branchEventCount + 2 elements of coalescentTimes beginning at timesOffset
+    // Models should override this to avoid copying the times of every branch
+    default double branchLogP(int speciesTreeNodeNumber, Node speciesTreeNode, double ploidy, double[] coalescentTimes, int timesOffset, int branchLineageCount, int branchEventCount) {
+        final double[] branchCoalescentTimes = Arrays.copyOfRange(coalescentTimes, timesOffset, timesOffset + branchEventCount + 2);
+        return branchLogP(speciesTreeNodeNumber, speciesTreeNode, ploidy, branchCoalescentTimes, branchLineageCount, branchEventCount);
+    }
+
     // Sets model-compatible default population sizes
     // To successfully begin a run, this must be called from a StateNodeInitializer
     void initPopSizes(final double initialPopSizes);
 
     // Per-branch population size information which will be added to a Newick string.
-    void serialize(Node speciesTreeNode, StringBuffer buf, DecimalFormat df);
+    // Models must override either this or the deprecated StringBuffer version, as each calls the other
+    default void serialize(Node speciesTreeNode, NewickWriter writer) {
+        final StringBuffer buf = new StringBuffer();
+        serialize(speciesTreeNode, buf, writer.getDecimalFormat());
+        writer.append(buf.toString());
+    }
+
+    // Kept for models written before NewickWriter, which is faster since it does not build a string for every branch
+    @Deprecated
+    default void serialize(Node speciesTreeNode, StringBuffer buf, DecimalFormat df) {
+        final NewickWriter writer = new NewickWriter(df == null ? -1 : df.getMaximumFractionDigits());
+        serialize(speciesTreeNode, writer);
+        buf.append(writer.toString());
+    }
 
     // Checks if the population function for a given branch has been changed 
     boolean isDirtyBranch(Node speciesTreeNode);
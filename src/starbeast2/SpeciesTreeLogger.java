@@ -8,13 +8,11 @@ import beast.base.inference.StateNode;
 import beast.base.inference.parameter.Parameter;
 
 import java.io.PrintStream;
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
 
 @Description("Based on the TreeWithMetaDataLogger class, but with support for population sizes")
-public class SpeciesTreeLogger extends BEASTObject implements Loggable {
+public class SpeciesTreeLogger extends BEASTObject implements AsyncLoggable {
     final public Input<SpeciesTreeInterface> speciesTreeInput = new Input<>("speciesTree", "The species tree to be logged.", Validate.REQUIRED);
     final public Input<List<GeneTree>> geneTreeInput = new Input<>("geneTree", "Gene tree within the species tree.", new ArrayList<>());
     final public Input<PopulationModel> populationModelInput = new Input<>("populationmodel", "population sizes to be logged with branches of the tree");
@@ -27,12 +25,14 @@ public class SpeciesTreeLogger extends BEASTObject implements Loggable {
     boolean someMetaDataNeedsLogging;
     boolean substitutions = false;
 
-    private DecimalFormat df;
+    // the whole tree is written into this buffer before printing it
+    private NewickWriter writer;
 
     @Override
     public void initAndValidate() {
         if (parameterInput.get().size() == 0 && clockModelInput.get() == null && populationModelInput.get() == null) {
             someMetaDataNeedsLogging = false;
+            writer = new NewickWriter(-1);
             return;
             //throw new IllegalArgumentException("At least one of the metadata and branchratemodel inputs must be defined");
         }
@@ -42,15 +42,7 @@ public class SpeciesTreeLogger extends BEASTObject implements Loggable {
             substitutions = substitutionsInput.get();
         }
 
-        int dp = decimalPlacesInput.get();
-
-        if (dp < 0) {
-            df = null;
-        } else {
-            // just new DecimalFormat("#.######") (with dp time '#' after the decimal)
-            df = new DecimalFormat("#."+new String(new char[dp]).replace('\0', '#'));
-            df.setRoundingMode(RoundingMode.HALF_UP);
-        }
+        writer = new NewickWriter(decimalPlacesInput.get());
     }
 
     @Override
@@ -61,6 +53,17 @@ public class SpeciesTreeLogger extends BEASTObject implements Loggable {
 
     @Override
     public void log(long nSample, PrintStream out) {
+        snapshot(nSample, writer);
+        writer.flush(out);
+    }
+
+    @Override
+    public NewickWriter newSnapshotWriter() {
+        return new NewickWriter(writer.getDecimalPlaces(), true);
+    }
+
+    @Override
+    public void snapshot(long nSample, NewickWriter buf) {
         // make sure we get the current version of the inputs
         SpeciesTreeInterface speciesTree = speciesTreeInput.get();
         SpeciesTreeInterface tree = (SpeciesTreeInterface) speciesTree.getCurrent();
@@ -73,45 +76,29 @@ public class SpeciesTreeLogger extends BEASTObject implements Loggable {
         BranchRateModel branchRateModel = clockModelInput.get();
         PopulationModel populationModel = populationModelInput.get();
         // write out the log tree with meta data
-        out.print("tree STATE_" + nSample + " = ");
-        out.print(toNewick(tree.getRoot(), metadata, branchRateModel, populationModel));
+        buf.append("tree STATE_").append(Long.toString(nSample)).append(" = ");
+        toNewick(tree.getRoot(), metadata, branchRateModel, populationModel, buf);
         //out.print(tree.getRoot().toShortNewick(false));
-        out.print(";");
-    }
-
-    /**
-     * Appends a double to the given StringBuffer, formatting it using
-     * the private DecimalFormat instance, if the input 'dp' has been
-     * given a non-negative integer, otherwise just uses default
-     * formatting.
-     * @param buf
-     * @param d
-     */
-    private void appendDouble(StringBuffer buf, double d) {
-        if (df == null) {
-            buf.append(d);
-        } else {
-            buf.append(df.format(d));
-        }
+        buf.append(';');
     }
 
-    String toNewick(Node node, List<Function> metadataList, BranchRateModel branchRateModel, PopulationModel populationModel) {
-        StringBuffer buf = new StringBuffer();
+    void toNewick(Node node, List<Function> metadataList, BranchRateModel branchRateModel, PopulationModel populationModel, NewickWriter buf) {
         if (node.getLeft() != null) {
-            buf.append("(");
-            buf.append(toNewick(node.getLeft(), metadataList, branchRateModel, populationModel));
+            buf.append('(');
+            toNewick(node.getLeft(), metadataList, branchRateModel, populationModel, buf);
             if (node.getRight() != null) {
                 buf.append(',');
-                buf.append(toNewick(node.getRight(), metadataList, branchRateModel, populationModel));
+                toNewick(node.getRight(), metadataList, branchRateModel, populationModel, buf);
             }
-            buf.append(")");
+            buf.append(')');
         } else {
             buf.append(node.getNr() + 1);
         }
         if (someMetaDataNeedsLogging) {
             buf.append("[&");
             if (metadataList.size() > 0) {
-                for (Function metadata : metadataList) {
+                for (int m = 0; m < metadataList.size(); m++) {
+                    final Function metadata = metadataList.get(m);
                     buf.append(((BEASTObject)metadata).getID());
                     buf.append('=');
                     if (metadata instanceof Parameter<?>) {
@@ -132,29 +119,29 @@ public class SpeciesTreeLogger extends BEASTObject implements Loggable {
                     } else {
                         buf.append(metadata.getArrayValue(node.getNr()));
                     }
-                    if (metadataList.indexOf(metadata) < metadataList.size() - 1) {
-                        buf.append(",");
+                    if (m < metadataList.size() - 1) {
+                        buf.append(',');
                     }
                 }
                 if (branchRateModel != null || populationModel != null) {
-                    buf.append(",");
+                    buf.append(',');
                 }
             }
             if (branchRateModel != null) {
                 buf.append("rate=");
-                appendDouble(buf, branchRateModel.getRateForBranch(node));
+                buf.appendDouble(branchRateModel.getRateForBranch(node));
                 if (populationModel != null) {
-                    buf.append(",");
+                    buf.append(',');
                 }
             }
 
             if (populationModel != null) {
-                populationModel.serialize(node, buf, df);
+                populationModel.serialize(node, buf);
             }
 
             buf.append(']');
         }
-        buf.append(":");
+        buf.append(':');
 
         double nodeLength;
         if (node.isRoot()) {
@@ -164,11 +151,10 @@ public class SpeciesTreeLogger extends BEASTObject implements Loggable {
         }
 
         if (substitutions) {
-            appendDouble(buf, nodeLength * branchRateModel.getRateForBranch(node));
+            buf.appendDouble(nodeLength * branchRateModel.getRateForBranch(node));
         } else {
-            appendDouble(buf, nodeLength);
+            buf.appendDouble(nodeLength);
         }
-        return buf.toString();
     }
 
     // uses the height of the tallest species or gene tree
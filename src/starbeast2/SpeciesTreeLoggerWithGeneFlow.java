@@ -3,15 +3,12 @@ package starbeast2;
 import beast.base.core.Description;
 import beast.base.core.Function;
 import beast.base.core.Input;
-import beast.base.core.Loggable;
 import beast.base.evolution.branchratemodel.BranchRateModel;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.StateNode;
 
 import java.io.PrintStream;
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -20,7 +17,7 @@ import java.util.List;
  * adapted by Nicola Felix Mueller from the tree logger
  */
 @Description("log trees that also contain the node state probabilities")
-public class SpeciesTreeLoggerWithGeneFlow extends Tree implements Loggable {
+public class SpeciesTreeLoggerWithGeneFlow extends Tree implements AsyncLoggable {
     public Input<ConstantWithGeneFlow> popModelInput = new Input<>("populationModel", "Population model used to infer the multispecies coalescent probability for this gene");
     public Input<BranchRateModel.Base> clockModelInput = new Input<BranchRateModel.Base>("branchratemodel", "rate to be logged with branches of the tree");
     public Input<List<Function>> parameterInput = new Input<List<Function>>("metadata", "meta data to be logged with the tree nodes",new ArrayList<>());
@@ -32,13 +29,15 @@ public class SpeciesTreeLoggerWithGeneFlow extends Tree implements Loggable {
     boolean takeMax = true;
     boolean conditionals = true;
 
-    private DecimalFormat df;	
+    // the whole tree is written into this buffer before printing it
+    private NewickWriter writer;
 	
     @Override
     public void initAndValidate() {
     	
         if (parameterInput.get().size() == 0 && clockModelInput.get() == null) {
         	someMetaDataNeedsLogging = false;
+        	writer = new NewickWriter(-1);
         	return;
             //throw new Exception("At least one of the metadata and branchratemodel inputs must be defined");
         }
@@ -48,15 +47,7 @@ public class SpeciesTreeLoggerWithGeneFlow extends Tree implements Loggable {
         	substitutions = substitutionsInput.get();
         }       
 
-        int dp = decimalPlacesInput.get();
-
-        if (dp < 0) {
-            df = null;
-        } else {
-            // just new DecimalFormat("#.######") (with dp time '#' after the decimal)
-            df = new DecimalFormat("#."+new String(new char[dp]).replace('\0', '#'));
-            df.setRoundingMode(RoundingMode.HALF_UP);
-        }       
+        writer = new NewickWriter(decimalPlacesInput.get());
         
     }
 
@@ -67,6 +58,17 @@ public class SpeciesTreeLoggerWithGeneFlow extends Tree implements Loggable {
 
     @Override
     public void log(long nSample, PrintStream out) {
+        snapshot(nSample, writer);
+        writer.flush(out);
+    }
+
+    @Override
+    public NewickWriter newSnapshotWriter() {
+        return new NewickWriter(writer.getDecimalPlaces(), true);
+    }
+
+    @Override
+    public void snapshot(long nSample, NewickWriter buf) {
     	// build migration rate map	
     	popModelInput.get().calculateIntervals();
     	
@@ -80,63 +82,45 @@ public class SpeciesTreeLoggerWithGeneFlow extends Tree implements Loggable {
         }
         BranchRateModel.Base branchRateModel = clockModelInput.get();
         // write out the log tree with meta data
-        out.print("tree STATE_" + nSample + " = ");
+        buf.append("tree STATE_").append(Long.toString(nSample)).append(" = ");
 //        tree.getRoot().sort();
-        out.print(toNewick(tree.getRoot(), metadata, branchRateModel));
+        toNewick(tree.getRoot(), metadata, branchRateModel, buf);
         //out.print(tree.getRoot().toShortNewick(false));
-        out.print(";");
+        buf.append(';');
     }
 
-    /**
-     * Appends a double to the given StringBuffer, formatting it using
-     * the private DecimalFormat instance, if the input 'dp' has been
-     * given a non-negative integer, otherwise just uses default
-     * formatting.
-     * @param buf
-     * @param d
-     */
-    private void appendDouble(StringBuffer buf, double d) {
-        if (df == null) {
-            buf.append(d);
-        } else {
-            buf.append(df.format(d));
-        }
-    }
-
-    String toNewick(Node node, List<Function> metadataList, BranchRateModel.Base branchRateModel) {
-
-    	StringBuffer buf = new StringBuffer();
+    void toNewick(Node node, List<Function> metadataList, BranchRateModel.Base branchRateModel, NewickWriter buf) {
         if (node.getLeft() != null) {
-            buf.append("(");
-            buf.append(toNewick(node.getLeft(), metadataList, branchRateModel));
+            buf.append('(');
+            toNewick(node.getLeft(), metadataList, branchRateModel, buf);
             if (node.getRight() != null) {
                 buf.append(',');
-                buf.append(toNewick(node.getRight(), metadataList, branchRateModel));
+                toNewick(node.getRight(), metadataList, branchRateModel, buf);
             }
-            buf.append(")");
+            buf.append(')');
         } else {
             buf.append(node.getNr() + 1);
         }
 //        if (!node.isLeaf()) {
-	        buf.append("[&species=" + node.getNr() + ",Ne=" +  popModelInput.get().getNodeNe(node.getNr()) + "" + popModelInput.get().getAllMigrationRates(node.getNr()));		
+	        buf.append("[&species=").append(node.getNr()).append(",Ne=").append(popModelInput.get().getNodeNe(node.getNr()));
+	        popModelInput.get().serializeMigrationRates(node.getNr(), buf);
 
 	        if (popModelInput.get().indicatorInput.get()!=null)
-	        	buf.append(",con="+popModelInput.get().getIsNodeConnected(node.getNr()));
+	        	buf.append(",con=").append(popModelInput.get().getIsNodeConnected(node.getNr()));
 	        
 	        
-	        buf.append("]");
+	        buf.append(']');
 //        }else{
 //	        buf.append(String.format("[&Ne=%.3f", speciesTreeInput.get().getNodeNe(node.getNr())));		        
 //	        buf.append(']');
 //        }
         
-        buf.append(":");
+        buf.append(':');
         if (substitutions) {
-            appendDouble(buf, node.getLength() * branchRateModel.getRateForBranch(node));
+            buf.appendDouble(node.getLength() * branchRateModel.getRateForBranch(node));
         } else {
-            appendDouble(buf, node.getLength());
+            buf.appendDouble(node.getLength());
         }
-        return buf.toString();
     }
 
     @Override
@@ -54,16 +54,22 @@ public class StarBeastClock extends BranchRateModel.Base {
     private void update() {
         final double geneTreeRate = meanRate.getValue();
         final double[] speciesTreeRates = speciesTreeRatesX.getRatesArray();
-        final double[] speciesOccupancy = geneTree.getSpeciesOccupancy();
+        // read every array from the same embedding
+        final GeneTree.Embedding embedding = geneTree.getEmbedding();
+        final int[] occupancyCounts = embedding.occupancyCounts;
+        final int[] occupancySpecies = embedding.occupancySpecies;
+        final double[] occupancyLengths = embedding.occupancyLengths;
+        final int occupancyStride = embedding.occupancyStride;
 
-        final int speciesNodeCount = speciesTreeRates.length;
         for (int i = 0; i < geneNodeCount - 1; i++) {
             double weightedSum = 0.0;
             double branchLength = 0.0;
-            for (int j = 0; j < speciesNodeCount; j++) {
-                // System.out.println(String.format("%d, %d: %f, %f", i, j, speciesTreeRates[j], speciesOccupancy[i * speciesNodeCount + j]));
-                weightedSum += speciesTreeRates[j] * speciesOccupancy[i * speciesNodeCount + j];
-                branchLength += speciesOccupancy[i * speciesNodeCount + j];
+            // only visit the species tree branches this gene tree branch passes through
+            final int rowStart = i * occupancyStride;
+            for (int k = rowStart; k < rowStart + occupancyCounts[i]; k++) {
+                // System.out.println(String.format("%d, %d: %f, %f", i, occupancySpecies[k], speciesTreeRates[occupancySpecies[k]], occupancyLengths[k]));
+                weightedSum += speciesTreeRates[occupancySpecies[k]] * occupancyLengths[k];
+                branchLength += occupancyLengths[k];
             }
 
             branchRates[i] = geneTreeRate * weightedSum / branchLength;
@@ -5,7 +5,6 @@ import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.alignment.Taxon;
 import beast.base.evolution.alignment.TaxonSet;
 import beast.base.evolution.distance.Distance;
-import beast.base.evolution.distance.JukesCantorDistance;
 import beast.base.evolution.tree.*;
 import beast.base.evolution.tree.coalescent.ConstantPopulation;
 import beast.base.evolution.tree.coalescent.RandomTree;
@@ -14,6 +13,9 @@ import beast.base.inference.StateNodeInitialiser;
 import beast.base.inference.parameter.RealParameter;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 
 import static java.lang.Math.*;
 
@@ -57,6 +59,9 @@ public class StarBeastInitializer extends Tree implements StateNodeInitialiser {
 
     final public Input<PopulationModel> populationFunctionInput = new Input<>("populationModel", "The species tree population model.");
 
+    final public Input<Integer> threadsInput = new Input<>("threads", "Number of threads used to build the starting gene trees " +
+            "(default is 1, i.e. serial initialisation). The trees do not depend on the number of threads.", 1);
+
     private Map<String, String> tipSpeciesMap;
     private Map<String, Node> speciesNodeMap;
     private Set<String> allSpeciesNames;
@@ -209,41 +214,48 @@ public class StarBeastInitializer extends Tree implements StateNodeInitialiser {
         }
 	}
 
-	private double[] firstMeetings(final Tree gtree, final Map<String, Integer> tipName2Species, final int speciesCount) {
+	// protected for unit testing
+	protected double[] firstMeetings(final Tree gtree, final Map<String, Integer> tipName2Species, final int speciesCount) {
         final Node[] nodes = gtree.listNodesPostOrder(null, null);
-        @SuppressWarnings("unchecked")
-		final Set<Integer>[] tipsSpecies = new Set[nodes.length];
-        for(int k = 0; k < tipsSpecies.length; ++k) {
-            tipsSpecies[k] = new LinkedHashSet<>();
-        }
+        // species of the tips below every node, as a bit set of speciesWords words per node
+        final int speciesWords = (speciesCount + 63) >>> 6;
+        final long[][] tipsSpecies = new long[nodes.length][speciesWords];
+        final long[] onlyLeft = new long[speciesWords];
+        final long[] onlyRight = new long[speciesWords];
         // d[i,j] = minimum height of node which has tips belonging to species i and j
         // d is is upper triangular
         final double[] dmin = new double[(speciesCount*(speciesCount-1))/2];
         Arrays.fill(dmin, Double.MAX_VALUE);
 
         for (final Node n : nodes) {
+            final long[] nodeSpecies = tipsSpecies[n.getNr()];
             if (n.isLeaf()) {
-                tipsSpecies[n.getNr()].add(tipName2Species.get(n.getID()));
+                final int s = tipName2Species.get(n.getID());
+                nodeSpecies[s >>> 6] |= 1L << s;
             } else {
                 assert n.getChildCount() == 2;
-                @SuppressWarnings("unchecked")
-				final Set<Integer>[] sps = new Set[2];
-                sps[0] = tipsSpecies[n.getChild(0).getNr()];
-                sps[1] = tipsSpecies[n.getChild(1).getNr()];
-                final Set<Integer> u = new LinkedHashSet<>(sps[0]);
-                u.retainAll(sps[1]);
-                sps[0].removeAll(u);
-                sps[1].removeAll(u);
-
-                for (final Integer s1 : sps[0]) {
-                    for (final Integer s2 : sps[1]) {
-                        final int i = getDMindex(speciesCount, s1, s2);
-                        dmin[i] = min(dmin[i], n.getHeight());
+                final long[] leftSpecies = tipsSpecies[n.getChild(0).getNr()];
+                final long[] rightSpecies = tipsSpecies[n.getChild(1).getNr()];
+                // species found below both children are not paired at this node
+                for (int w = 0; w < speciesWords; w++) {
+                    onlyLeft[w] = leftSpecies[w] & ~rightSpecies[w];
+                    onlyRight[w] = rightSpecies[w] & ~leftSpecies[w];
+                    nodeSpecies[w] = leftSpecies[w] | rightSpecies[w];
+                }
+
+                final double height = n.getHeight();
+                for (int w1 = 0; w1 < speciesWords; w1++) {
+                    for (long bits1 = onlyLeft[w1]; bits1 != 0; bits1 &= bits1 - 1) {
+                        final int s1 = (w1 << 6) + Long.numberOfTrailingZeros(bits1);
+                        for (int w2 = 0; w2 < speciesWords; w2++) {
+                            for (long bits2 = onlyRight[w2]; bits2 != 0; bits2 &= bits2 - 1) {
+                                final int s2 = (w2 << 6) + Long.numberOfTrailingZeros(bits2);
+                                final int i = getDMindex(speciesCount, s1, s2);
+                                dmin[i] = min(dmin[i], height);
+                            }
+                        }
                     }
                 }
-                u.addAll(sps[0]);
-                u.addAll(sps[1]);
-                tipsSpecies[n.getNr()] = u;
             }
         }
         return dmin;
@@ -267,21 +279,30 @@ public class StarBeastInitializer extends Tree implements StateNodeInitialiser {
         final int speciesCount = speciesNames.size();
 
         final List<Tree> geneTrees = genes.get();
+        final int geneCount = geneTrees.size();
 
-        //final List<Alignment> alignments = genes.get();
-        //final List<Tree> geneTrees = new ArrayList<>(alignments.size());
+        // the inputs of every clusterer are set on this thread, so that workers never add to the outputs of shared objects
+        final ClusterTree[] geneClusterers = new ClusterTree[geneCount];
         double maxNsites = 0;
-        //for( final Alignment alignment : alignments)  {
-        for (final Tree gtree : geneTrees) {
-            //final Tree gtree = new Tree();
+        for (int ng = 0; ng < geneCount; ++ng) {
+            final Tree gtree = geneTrees.get(ng);
             final Alignment alignment = gtree.m_taxonset.get().alignmentInput.get();
 
             final ClusterTree ctree = new ClusterTree();
-            ctree.initByName("initial", gtree, "clusterType", "upgma", "taxa", alignment);
-            gtree.scale(1 / mu);
+            ctree.setInputValue("initial", gtree);
+            ctree.setInputValue("clusterType", "upgma");
+            ctree.setInputValue("taxa", alignment);
+            ctree.setInputValue("distance", new PackedJukesCantorDistance(alignment));
+            geneClusterers[ng] = ctree;
 
             maxNsites = max(maxNsites, alignment.getSiteCount());
         }
+
+        // distances and UPGMA trees for every gene, each worker only changes its own gene tree
+        forEachGene(geneCount, ng -> {
+            geneClusterers[ng].initAndValidate();
+            geneTrees.get(ng).scale(1 / mu);
+        });
         final Map<String, Integer> geneTips2Species = new LinkedHashMap<>();
         final List<Taxon> taxonSets = species.taxonsetInput.get();
 
@@ -294,12 +315,13 @@ public class StarBeastInitializer extends Tree implements StateNodeInitialiser {
         }
         final double[] dg = new double[(speciesCount*(speciesCount-1))/2];
 
-        final double[][] genesDmins = new double[geneTrees.size()][];
+        final double[][] genesDmins = new double[geneCount][];
+        forEachGene(geneCount, ng -> genesDmins[ng] = firstMeetings(geneTrees.get(ng), geneTips2Species, speciesCount));
 
-        for( int ng = 0; ng < geneTrees.size(); ++ng ) {
+        // summed in gene order, so that the species distances do not depend on the number of threads
+        for( int ng = 0; ng < geneCount; ++ng ) {
             final Tree g = geneTrees.get(ng);
-            final double[] dmin = firstMeetings(g, geneTips2Species, speciesCount);
-            genesDmins[ng] = dmin;
+            final double[] dmin = genesDmins[ng];
 
             for(int i = 0; i < dmin.length; ++i) {
                 dg[i] += dmin[i];
@@ -353,7 +375,10 @@ public class StarBeastInitializer extends Tree implements StateNodeInitialiser {
         }
         final double[] spmin = firstMeetings(speciesTree, sptips2SpeciesIndex, speciesCount);
 
-        for( int ng = 0; ng < geneTrees.size(); ++ng ) {
+        // gene trees which are incompatible with the species tree are clustered again, with distances
+        // between species no shorter than twice the species tree first meeting
+        final List<ClusterTree> incompatibleClusterers = new ArrayList<>();
+        for( int ng = 0; ng < geneCount; ++ng ) {
             final double[] dmin = genesDmins[ng];
             boolean compatible = true;
             for(int i = 0; i < spmin.length; ++i) {
@@ -369,18 +394,17 @@ public class StarBeastInitializer extends Tree implements StateNodeInitialiser {
                 final List<String> taxaNames = alignment.getTaxaNames();
                 final int taxonCount =  taxaNames.size();
                 // speedup
-                final Map<Integer,Integer> g2s = new LinkedHashMap<>();
+                final int[] g2s = new int[taxonCount];
                 for(int i = 0; i < taxonCount; ++i) {
-                    g2s.put(i, geneTips2Species.get(taxaNames.get(i)));
+                    g2s[i] = geneTips2Species.get(taxaNames.get(i));
                 }
 
-                final JukesCantorDistance jc = new JukesCantorDistance();
-                jc.setPatterns(alignment);
+                final PackedJukesCantorDistance jc = new PackedJukesCantorDistance(alignment);
                 final Distance gdistance = new Distance() {
                     @Override
                     public double pairwiseDistance(final int t1, final int t2) {
-                        final int s1 = g2s.get(t1);
-                        final int s2 = g2s.get(t2);
+                        final int s1 = g2s[t1];
+                        final int s2 = g2s[t2];
                         double d = jc.pairwiseDistance(t1,t2)/mu;
                         if( s1 != s2 ) {
                             final int i = getDMindex(speciesCount, s1,s2);
@@ -393,10 +417,14 @@ public class StarBeastInitializer extends Tree implements StateNodeInitialiser {
                     }
                 };
                 final ClusterTree gtreec = new ClusterTree();
-                gtreec.initByName("initial", gtree, "taxonset", gtreeTaxa,
-                        "clusterType", "upgma", "distance", gdistance);
+                gtreec.setInputValue("initial", gtree);
+                gtreec.setInputValue("taxonset", gtreeTaxa);
+                gtreec.setInputValue("clusterType", "upgma");
+                gtreec.setInputValue("distance", gdistance);
+                incompatibleClusterers.add(gtreec);
             }
         }
+        forEachGene(incompatibleClusterers.size(), k -> incompatibleClusterers.get(k).initAndValidate());
 
         final RealParameter lambda = birthRate.get();
         if (lambda != null && lambda instanceof StateNode) {
@@ -412,6 +440,49 @@ public class StarBeastInitializer extends Tree implements StateNodeInitialiser {
         }
     }
 
+    // applies the work to genes 0 to geneCount - 1, in parallel when there is more than one thread
+    private void forEachGene(final int geneCount, final IntConsumer work) {
+        final int threads = min(threadsInput.get(), geneCount);
+        if (threads <= 1) {
+            for (int ng = 0; ng < geneCount; ++ng)
+                work.accept(ng);
+            return;
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new GeneRangeTask(work, 0, geneCount));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // recursively splits a range of genes until each task processes a single gene
+    private static class GeneRangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final IntConsumer work;
+        private final int fromGeneI;
+        private final int toGeneI;
+
+        GeneRangeTask(final IntConsumer work, final int fromGeneI, final int toGeneI) {
+            this.work = work;
+            this.fromGeneI = fromGeneI;
+            this.toGeneI = toGeneI;
+        }
+
+        @Override
+        protected void compute() {
+            if (toGeneI - fromGeneI <= 1) {
+                if (toGeneI > fromGeneI)
+                    work.accept(fromGeneI);
+            } else {
+                final int midGeneI = (fromGeneI + toGeneI) >>> 1;
+                invokeAll(new GeneRangeTask(work, fromGeneI, midGeneI), new GeneRangeTask(work, midGeneI, toGeneI));
+            }
+        }
+    }
+
     private void randomInit(final SpeciesTree speciesTree, List<MRCAPrior> calibrations) {
     	final RealParameter birthRateParameter = birthRate.get();
     	final Double lambda = (birthRateParameter == null) ? 1.0 : birthRateParameter.getValue();
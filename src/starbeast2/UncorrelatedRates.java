@@ -13,6 +13,9 @@ import org.apache.commons.math.distribution.ExponentialDistributionImpl;
 import org.apache.commons.math.distribution.NormalDistribution;
 import org.apache.commons.math.distribution.NormalDistributionImpl;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
 public class UncorrelatedRates extends BranchRateModel.Base implements SpeciesTreeRates {
     final public Input<TreeInterface> treeInput = new Input<>("tree", "(Species) tree to apply per-branch rates to.", Input.Validate.REQUIRED);
     final public Input<Integer> nBinsInput = new Input<>("nBins", "Number of discrete branch rate bins (default is equal to the number of estimated branch rates).", -1);
@@ -22,61 +25,78 @@ public class UncorrelatedRates extends BranchRateModel.Base implements SpeciesTr
     final public Input<IntegerParameter> branchRatesInput = new Input<>("rates", "Discrete per-branch rates.", Input.Validate.REQUIRED);
 
     private int nBins;
-    private double currentLogNormalStdev;
-    private double storedLogNormalStdev;
-    private double[] binRates;
-    private double[] storedBinRates;
-    private double[] ratesArray;
-    private double[] storedRatesArray;
-
+    private int speciesNodeCount;
     private int nEstimatedRates;
     private int rootNodeNumber;
     private boolean estimateRoot;
     private boolean noCache;
-    private boolean needsUpdate;
-    private boolean binRatesNeedsUpdate;
     private boolean useLogNormal;
+    private double[] exponentialBinRates;
+
+    // Rates are recomputed once for every version (epoch) of the inputs. Only the MCMC thread changes the epoch,
+    // in requiresRecalculation and restore. Snapshots are never modified once published, so any thread can read
+    // the current rates without locking, and a thread which finds them out of date computes them itself.
+    private volatile int epoch;
+    private int storedEpoch;
+    private final AtomicReference<RatesSnapshot> snapshot = new AtomicReference<>();
+    private volatile RatesSnapshot storedSnapshot;
+    // snapshots replaced during this step may still be read until the step ends, so are only reused after that,
+    // which leaves the current and stored snapshots swapping between two buffers
+    private final ConcurrentLinkedQueue<RatesSnapshot> retiredSnapshots = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<RatesSnapshot> spareSnapshots = new ConcurrentLinkedQueue<>();
+
+    private static final class RatesSnapshot {
+        int epoch;
+        double logNormalStdev;
+        double[] binRates; // shared between snapshots, never modified
+        final double[] ratesArray;
+
+        RatesSnapshot(int speciesNodeCount) {
+            ratesArray = new double[speciesNodeCount];
+        }
+    }
 
     @Override
     public boolean requiresRecalculation() {
+        boolean binRatesNeedsUpdate = false;
         if (useLogNormal) {
             final double proposedLogNormalStdev = stdevInput.get().getValue();
-            if (proposedLogNormalStdev != currentLogNormalStdev) {
-                binRatesNeedsUpdate = true;
-            } else {
-                binRatesNeedsUpdate = false;
-            }
+            final RatesSnapshot current = snapshot.get();
+            binRatesNeedsUpdate = current == null || proposedLogNormalStdev != current.logNormalStdev;
         }
 
-        needsUpdate = binRatesNeedsUpdate || InputUtil.isDirty(branchRatesInput) || InputUtil.isDirty(meanRateInput);
+        final boolean needsUpdate = binRatesNeedsUpdate || InputUtil.isDirty(branchRatesInput) || InputUtil.isDirty(meanRateInput);
+        if (needsUpdate) epoch++; // only the MCMC thread writes the epoch
         return needsUpdate;
     }
 
     @Override
     public void store() {
-        storedLogNormalStdev = currentLogNormalStdev;
-        System.arraycopy(binRates, 0, storedBinRates, 0, binRates.length);
-        System.arraycopy(ratesArray, 0, storedRatesArray, 0, ratesArray.length);
+        // published snapshots are immutable, so storing one only needs a reference
+        storedSnapshot = snapshot.get();
+        storedEpoch = epoch;
+        recycleSnapshots();
         super.store();
     }
 
     @Override
     public void restore() {
-        double tmpLogNormalStdev = currentLogNormalStdev;
-        double[] tmpBinRates = binRates;
-        double[] tmpRatesArray = ratesArray;
-
-        currentLogNormalStdev = storedLogNormalStdev;
-        binRates = storedBinRates;
-        ratesArray = storedRatesArray;
-        
-        storedLogNormalStdev = tmpLogNormalStdev;
-        storedBinRates = tmpBinRates;
-        storedRatesArray = tmpRatesArray;
-
+        final RatesSnapshot discarded = snapshot.getAndSet(storedSnapshot);
+        if (discarded != null && discarded != storedSnapshot) retiredSnapshots.add(discarded);
+        epoch = storedEpoch;
+        recycleSnapshots();
         super.restore();
     }
 
+    // called between steps, when no other thread can be reading a retired snapshot
+    private void recycleSnapshots() {
+        final RatesSnapshot current = snapshot.get();
+        RatesSnapshot retired;
+        while ((retired = retiredSnapshots.poll()) != null) {
+            if (retired != current && retired != storedSnapshot) spareSnapshots.add(retired);
+        }
+    }
+
     @Override
     public void initAndValidate() {
         final IntegerParameter branchRates = branchRatesInput.get();
@@ -85,8 +105,7 @@ public class UncorrelatedRates extends BranchRateModel.Base implements SpeciesTr
         estimateRoot = estimateRootInput.get().booleanValue();
         noCache = noCacheInput.get().booleanValue();
         rootNodeNumber = speciesTree.getRoot().getNr();
-        ratesArray = new double[speciesNodes.length];
-        storedRatesArray = new double[speciesNodes.length];
+        speciesNodeCount = speciesNodes.length;
 
         if (estimateRoot) {
             nEstimatedRates = speciesNodes.length;
@@ -101,46 +120,51 @@ public class UncorrelatedRates extends BranchRateModel.Base implements SpeciesTr
         branchRates.setLower(0);
         branchRates.setUpper(nBins - 1);
 
-        currentLogNormalStdev = -1.0;
-        storedLogNormalStdev = -1.0;
-
-        binRates = new double[nBins];
-        storedBinRates = new double[nBins];
-
         if (stdevInput.get() == null) {
             useLogNormal = false;
 
+            exponentialBinRates = new double[nBins];
             final ExponentialDistribution exponentialDistr = new ExponentialDistributionImpl(1.0);
             try {
                 for (int i = 0; i < nBins; i++) {
-                    binRates[i] = exponentialDistr.inverseCumulativeProbability((i + 0.5) / nBins);
+                    exponentialBinRates[i] = exponentialDistr.inverseCumulativeProbability((i + 0.5) / nBins);
                 }
             } catch (MathException e) {
                 throw new RuntimeException("Failed to compute inverse cumulative probability!");
             }
-
-            binRatesNeedsUpdate = false;
         } else {
             useLogNormal = true;
-            binRatesNeedsUpdate = true;
         }
 
-        needsUpdate = true;
+        snapshot.set(null);
+        storedSnapshot = null;
+        retiredSnapshots.clear();
+        spareSnapshots.clear();
+        epoch = 0;
+        storedEpoch = 0;
     }
 
-    private void update() {
-        if (useLogNormal && (binRatesNeedsUpdate || noCache)) {
-            // set the mean in real space to equal 1
-            currentLogNormalStdev = stdevInput.get().getValue();
-            final double newMean = -(0.5 * currentLogNormalStdev * currentLogNormalStdev);
-            final NormalDistribution normalDistr = new NormalDistributionImpl(newMean, currentLogNormalStdev);
-
-            try {
-                for (int i = 0; i < nBins; i++) {
-                    binRates[i] = Math.exp(normalDistr.inverseCumulativeProbability((i + 0.5) / nBins));
+    // compute the rates for the current inputs into an unpublished snapshot, reusing the bin rates of the previous snapshot when possible
+    private RatesSnapshot update(final int updateEpoch, final RatesSnapshot previous, final RatesSnapshot e) {
+        double logNormalStdev = -1.0;
+        double[] binRates = exponentialBinRates;
+        if (useLogNormal) {
+            logNormalStdev = stdevInput.get().getValue();
+            if (previous != null && previous.logNormalStdev == logNormalStdev && !noCache) {
+                binRates = previous.binRates;
+            } else {
+                // set the mean in real space to equal 1
+                final double newMean = -(0.5 * logNormalStdev * logNormalStdev);
+                final NormalDistribution normalDistr = new NormalDistributionImpl(newMean, logNormalStdev);
+
+                binRates = new double[nBins];
+                try {
+                    for (int i = 0; i < nBins; i++) {
+                        binRates[i] = Math.exp(normalDistr.inverseCumulativeProbability((i + 0.5) / nBins));
+                    }
+                } catch (MathException e) {
+                    throw new RuntimeException("Failed to compute inverse cumulative probability!");
                 }
-            } catch (MathException e) {
-                throw new RuntimeException("Failed to compute inverse cumulative probability!");
             }
         }
 
@@ -152,6 +176,7 @@ public class UncorrelatedRates extends BranchRateModel.Base implements SpeciesTr
             estimatedMean = estimatedMeanParameter.getValue();
         }
 
+        final double[] ratesArray = e.ratesArray;
         final Integer[] branchRatePointers = branchRatesInput.get().getValues();
         for (int i = 0; i < nEstimatedRates; i++) {
             int b = branchRatePointers[i];
@@ -167,28 +192,43 @@ public class UncorrelatedRates extends BranchRateModel.Base implements SpeciesTr
             x.append(ratesArray[i]);
         }
         System.out.println(x); */
+
+        e.epoch = updateEpoch;
+        e.logNormalStdev = logNormalStdev;
+        e.binRates = binRates;
+        return e;
     }
 
-    @Override
-    public double[] getRatesArray() {
-        if (needsUpdate || noCache) {
-            synchronized (this) {
-                update();
-                needsUpdate = false;
-            }
+    // the rates for the current epoch, computed on the calling thread if no other thread has published them yet
+    // concurrent callers may each compute the same rates, but never wait for one another
+    private RatesSnapshot getSnapshot() {
+        final int currentEpoch = epoch;
+        final RatesSnapshot current = snapshot.get();
+        if (noCache) return update(currentEpoch, current, new RatesSnapshot(speciesNodeCount));
+        if (current != null && current.epoch == currentEpoch) return current;
+
+        RatesSnapshot built = spareSnapshots.poll();
+        if (built == null) built = new RatesSnapshot(speciesNodeCount);
+        update(currentEpoch, current, built);
+        if (snapshot.compareAndSet(current, built)) {
+            if (current != null) retiredSnapshots.add(current);
+            return built;
         }
 
-        return ratesArray;
+        // another thread published first, and nothing else has seen the snapshot built by this thread
+        spareSnapshots.add(built);
+        return getSnapshot();
+    }
+
+    // the returned array must not be modified
+    @Override
+    public double[] getRatesArray() {
+        return getSnapshot().ratesArray;
     }
 
     @Override
     public double getRateForBranch(Node node) {
-        if (needsUpdate || noCache) {
-            synchronized (this) {
-                update();
-                needsUpdate = false;
-            }
-        }
+        final double[] ratesArray = getSnapshot().ratesArray;
 
         assert ratesArray[node.getNr()] > 0.0;
         return ratesArray[node.getNr()];
@@ -7,7 +7,6 @@ import beast.base.evolution.tree.Node;
 import beast.base.inference.CalculationNode;
 import beast.base.inference.parameter.RealParameter;
 
-import java.text.DecimalFormat;
 
 /**
 * @author Huw Ogilvie
@@ -36,8 +35,13 @@ public class UniformPopulations extends CalculationNode implements PopulationMod
 
     @Override
     public double branchLogP(int speciesTreeNodeNumber, Node speciesTreeNode, double ploidy, double[] branchCoalescentTimes, int branchLineageCount, int branchEventCount) {
+        return branchLogP(speciesTreeNodeNumber, speciesTreeNode, ploidy, branchCoalescentTimes, 0, branchLineageCount, branchEventCount);
+    }
+
+    @Override
+    public double branchLogP(int speciesTreeNodeNumber, Node speciesTreeNode, double ploidy, double[] coalescentTimes, int timesOffset, int branchLineageCount, int branchEventCount) {
         final double popSize = universalSizeInput.get().getValue();
-        double logP = uniformLogP(popSize, ploidy, branchCoalescentTimes, branchLineageCount, branchEventCount);
+        double logP = uniformLogP(popSize, ploidy, coalescentTimes, timesOffset, branchLineageCount, branchEventCount);
 
         return logP;
     }
@@ -54,16 +58,10 @@ public class UniformPopulations extends CalculationNode implements PopulationMod
     }
 
     @Override
-    public void serialize(Node speciesTreeNode, StringBuffer buf, DecimalFormat df) {
+    public void serialize(Node speciesTreeNode, NewickWriter writer) {
         final double popSize = universalSizeInput.get().getValue();
 
-        buf.append("dmv={");
-        if (df == null) {
-            buf.append(popSize);
-        } else {
-            buf.append(df.format(popSize));
-        }
-        buf.append("}");
+        writer.append("dmv={").appendDouble(popSize).append('}');
     }
 
     @Override
@@ -73,14 +71,14 @@ public class UniformPopulations extends CalculationNode implements PopulationMod
         return universalSize.isDirty(0);
     }
 
-    protected static double uniformLogP(double popSize, double ploidy, double[] geneTimes, int geneN, int geneK) {
+    protected static double uniformLogP(double popSize, double ploidy, double[] geneTimes, int t0, int geneN, int geneK) {
         double partialGamma = 0.0;
         for (int i = 0; i < geneK; i++) {
-            partialGamma += (geneTimes[i + 1] - geneTimes[i]) * (geneN - i) * (geneN - (i + 1.0)) / 2.0;
+            partialGamma += (geneTimes[t0 + i + 1] - geneTimes[t0 + i]) * (geneN - i) * (geneN - (i + 1.0)) / 2.0;
         }
         
         if (geneN - geneK > 1) {
-            partialGamma += (geneTimes[geneK + 1] - geneTimes[geneK]) * (geneN - geneK) * (geneN - (geneK + 1.0)) / 2.0;
+            partialGamma += (geneTimes[t0 + geneK + 1] - geneTimes[t0 + geneK]) * (geneN - geneK) * (geneN - (geneK + 1.0)) / 2.0;
         }
 
         final double branchGamma = partialGamma / ploidy;
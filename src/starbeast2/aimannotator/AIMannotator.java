@@ -33,6 +33,10 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /** 
  * @author Nicola Felix Müller <nicola.felix.mueller@gmail.com>
@@ -49,6 +53,8 @@ public class AIMannotator extends TreeAnnotator {
         double burninPercentage = 10.0;
         double minTreeSupport = 0.0;
         boolean useRank = true;
+        boolean stream = false;
+        int threads = 1;
         SummaryStrategy summaryStrategy = SummaryStrategy.MEAN;
 
         @Override
@@ -59,7 +65,9 @@ public class AIMannotator extends TreeAnnotator {
                     "Burn-in percentage: " + burninPercentage + "\n" +
                     "Minimal tree support for output: " + minTreeSupport + "\n" +
                     "Node height and conv. site summary: " + summaryStrategy + "\n"+
-            		"Whether to consider ranked trees separated: " + useRank + "\n";
+            		"Whether to consider ranked trees separated: " + useRank + "\n" +
+            		"Whether to read the trees twice instead of keeping them in memory: " + stream + "\n" +
+            		"Threads used to decompose the trees into clades: " + threads + "\n";
 
        }
     }
@@ -78,6 +86,11 @@ public class AIMannotator extends TreeAnnotator {
         // Display options:
         System.out.println(options + "\n");
 
+        if (options.stream) {
+        	summariseStreaming(options, attributeNames);
+        	return;
+        }
+
         // Initialise reader
 
         TreeSet treeSet = new FastTreeSet(options.inFile.toString(), (int) options.burninPercentage);
@@ -90,13 +103,9 @@ public class AIMannotator extends TreeAnnotator {
 	        // read in the tree clades
 		        
 	        // build the clades
-	        treeSet.reset();
-	        List<Integer> treeIndex = new ArrayList<>();
-	        int totalTrees = 0;
-	        while(treeSet.hasNext()) {
-	        	treeIndex.add(rankedCladeSystem.add(treeSet.next(), true, attributeNames));
-	        	totalTrees++;
-	        }
+	        List<Integer> treeIndex = addTrees(treeSet, options.threads,
+	        		tree -> rankedCladeSystem.getCurrentRankedTree(tree, true, attributeNames), rankedCladeSystem::add);
+	        int totalTrees = treeIndex.size();
 	        
 	        rankedCladeSystem.calculateCladeCredibilities(1);
 	        int[] treeOrder = rankedCladeSystem.orderRankedTrees();
@@ -164,13 +173,9 @@ public class AIMannotator extends TreeAnnotator {
 	        // read in the tree clades
 		        
 	        // build the clades
-	        treeSet.reset();
-	        List<Integer> treeIndex = new ArrayList<>();
-	        int totalTrees = 0;
-	        while(treeSet.hasNext()) {
-	        	treeIndex.add(unrankedCladeSystem.add(treeSet.next(), true, attributeNames));
-	        	totalTrees++;
-	        }
+	        List<Integer> treeIndex = addTrees(treeSet, options.threads,
+	        		tree -> unrankedCladeSystem.getCurrentRankedTree(tree, true, attributeNames), unrankedCladeSystem::add);
+	        int totalTrees = treeIndex.size();
 	        
 	        unrankedCladeSystem.calculateCladeCredibilities(1);
 	        int[] treeOrder = unrankedCladeSystem.orderRankedTrees();
@@ -235,6 +240,132 @@ public class AIMannotator extends TreeAnnotator {
 	    
     }      
     
+    /**
+     * Summarises the trees without keeping them in memory, reading the log twice: first to count the
+     * topologies, then to collect the statistics of the topologies that are printed.
+     */
+    private void summariseStreaming(AIMAnnotatorOptions options, Set<String> attributeNames) throws IOException {
+        TreeSet treeSet = new MemoryFriendlyTreeSet(options.inFile.toString(), (int) options.burninPercentage);
+        StreamingCladeSystem cladeSystem = new StreamingCladeSystem(options.useRank, attributeNames);
+
+        treeSet.reset();
+        while (treeSet.hasNext()) {
+        	cladeSystem.countTopology(treeSet.next());
+        }
+        cladeSystem.orderTopologies(options.minTreeSupport/100.0, options.outFile.toString());
+
+        // print the tree topologies to file while collecting the statistics
+        File topologyFile = new File(options.outFile + (options.useRank ? ".ranked.log" : ".unranked.log"));
+        try (PrintStream ps = new PrintStream(topologyFile)) {
+        	ps.print(options.useRank ? "Sample\tRankedTree\t\n" : "Sample\tTopology\t\n");
+        	treeSet.reset();
+        	int i = 0;
+        	while (treeSet.hasNext()) {
+        		ps.print(i + "\t" + cladeSystem.addSample(treeSet.next()) + "\t" + "\n");
+        		i++;
+        	}
+        } finally {
+        	cladeSystem.closeGeneFlowLogs();
+        }
+
+        // print the trees to file
+        System.out.println("\nWriting output to " + options.outFile.getCanonicalPath()
+        	+ "...");
+
+        try (PrintStream ps = new PrintStream(options.outFile)) {
+        	ps.println("#NEXUS");
+        	ps.println("Begin trees;");
+        	for (int i = 0; i < cladeSystem.getSummarisedCount(); i++) {
+        		Tree tree = cladeSystem.compactMetaData(i, options.summaryStrategy == SummaryStrategy.MEAN);
+        		ps.println("tree " + cladeSystem.getSummaryName(i) + " = " + tree.getRoot().toNewick() + ";");
+        	}
+        	ps.println("End;");
+        }
+
+        System.out.println("\nDone!");
+        if (cladeSystem.getSummarisedCount() == 0) {
+        	System.err.println("There was no tree that occured more often than " + options.minTreeSupport + " %, no tree was printed");
+        }
+    }
+
+    // number of trees read before decomposing them in parallel, bounds the decomposed trees held at once
+    private static final int TREE_BATCH_SIZE = 1000;
+
+    /**
+     * Adds every tree of the tree set to a clade system. With more than one thread, batches of trees
+     * are decomposed into clades concurrently, and then added to the clade system in the order they
+     * were sampled, so the result is the same as adding them one by one.
+     *
+     * @return index in the clade system of the topology of every tree
+     */
+    private <T> List<Integer> addTrees(TreeSet treeSet, int threads, Function<Tree, T> decompose,
+    		BiFunction<T, Tree, Integer> add) throws IOException {
+        List<Integer> treeIndex = new ArrayList<>();
+        treeSet.reset();
+
+        if (threads <= 1) {
+        	while (treeSet.hasNext()) {
+        		Tree tree = treeSet.next();
+        		treeIndex.add(add.apply(decompose.apply(tree), tree));
+        	}
+        	return treeIndex;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+        	List<Tree> batch = new ArrayList<>(TREE_BATCH_SIZE);
+        	Object[] decomposed = new Object[TREE_BATCH_SIZE];
+        	while (treeSet.hasNext()) {
+        		batch.add(treeSet.next());
+        		if (batch.size() == TREE_BATCH_SIZE || !treeSet.hasNext()) {
+        			pool.invoke(new DecomposeTask<>(batch, decompose, decomposed, 0, batch.size()));
+        			for (int i = 0; i < batch.size(); i++) {
+        				@SuppressWarnings("unchecked")
+        				T decomposedTree = (T) decomposed[i];
+        				treeIndex.add(add.apply(decomposedTree, batch.get(i)));
+        				decomposed[i] = null;
+        			}
+        			batch.clear();
+        		}
+        	}
+        } finally {
+        	pool.shutdown();
+        }
+        return treeIndex;
+    }
+
+    // recursively splits a range of trees until each task decomposes only a few of them
+    private static class DecomposeTask<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int MIN_TREES = 8;
+
+        private final List<Tree> trees;
+        private final Function<Tree, T> decompose;
+        private final Object[] decomposed;
+        private final int from;
+        private final int to;
+
+        DecomposeTask(List<Tree> trees, Function<Tree, T> decompose, Object[] decomposed, int from, int to) {
+        	this.trees = trees;
+        	this.decompose = decompose;
+        	this.decomposed = decomposed;
+        	this.from = from;
+        	this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+        	if (to - from <= MIN_TREES) {
+        		for (int i = from; i < to; i++)
+        			decomposed[i] = decompose.apply(trees.get(i));
+        	} else {
+        		int mid = (from + to) >>> 1;
+        		invokeAll(new DecomposeTask<>(trees, decompose, decomposed, from, mid),
+        				new DecomposeTask<>(trees, decompose, decomposed, mid, to));
+        	}
+        }
+    }
+
     private int arrayIndexOf(int[] array, int val) {
     	for (int i=0;i< array.length;i++)
     		if (array[i]==val)
@@ -546,6 +677,13 @@ public class AIMannotator extends TreeAnnotator {
                     + "                         (Default 10%)\n"
                     + "-minTreeSupport percentage    Choose the minimum support a.\n"
                     + "                         Tree has to have to be included (Default 0%)\n"
+                    + "-userank {true,false}    Summarise trees with different node rankings\n"
+                    + "                         separately (Default true)\n"
+                    + "-stream {true,false}     Read the log twice instead of keeping all trees\n"
+                    + "                         in memory, medians and HPD intervals are then\n"
+                    + "                         approximate for very long logs (Default false)\n"
+                    + "-threads number          Number of threads used to decompose the trees\n"
+                    + "                         into clades when not streaming (Default 1)\n"
                     + "\n"
                     + "If no output file is specified, output is written to a file\n"
                     + "named 'summary.tree'.";
@@ -650,6 +788,32 @@ public class AIMannotator extends TreeAnnotator {
                     i += 1;
                     break;
 
+                case "-threads":
+                    if (args.length<=i+1)
+                        printUsageAndError("-threads must be followed by a number");
+
+                    try {
+                        options.threads = Integer.parseInt(args[i+1]);
+                    } catch (NumberFormatException e) {
+                        printUsageAndError("Error parsing number of threads.");
+                    }
+
+                    if (options.threads < 1) {
+                        printUsageAndError("Number of threads must be at least 1.");
+                    }
+
+                    i += 1;
+                    break;
+
+                case "-stream":
+                    if (args.length<=i+1)
+                        printUsageAndError("-stream must be followed by true or false");
+
+                    options.stream = Boolean.parseBoolean(args[i+1]);
+
+                    i += 1;
+                    break;
+
 
                 default:
                     printUsageAndError("Unrecognised command line option '" + args[i] + "'.");
@@ -0,0 +1,106 @@
+package starbeast2.aimannotator;
+
+import java.util.Arrays;
+
+/**
+ * Bounded memory summary of a stream of values that answers rank queries. Values are kept exactly
+ * until a value is added to a level that already holds capacity values, then that level is sorted
+ * and every other value is promoted to the next level with twice the weight (alternating between
+ * the odd and even values), so memory grows with the logarithm of the number of values. With no
+ * more values than the capacity, every rank query is exact.
+ */
+public class QuantileSketch {
+	private final int capacity;
+
+	private double[][] levels = new double[0][];
+	private int[] sizes = new int[0];
+	private boolean[] oddOffsets = new boolean[0];
+	private long count;
+
+	/**
+	 * @param capacity number of values each level holds before it is compacted, must be even
+	 */
+	public QuantileSketch(int capacity) {
+		if (capacity < 2 || capacity % 2 != 0)
+			throw new IllegalArgumentException("Sketch capacity must be even and at least 2, not " + capacity);
+		this.capacity = capacity;
+	}
+
+	public void add(double value) {
+		insert(0, value);
+		count++;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	private void insert(int level, double value) {
+		if (level == levels.length) {
+			levels = Arrays.copyOf(levels, level + 1);
+			sizes = Arrays.copyOf(sizes, level + 1);
+			oddOffsets = Arrays.copyOf(oddOffsets, level + 1);
+		}
+		if (levels[level] == null) {
+			levels[level] = new double[Math.min(capacity, 16)];
+		} else if (sizes[level] == capacity) {
+			compact(level);
+		} else if (sizes[level] == levels[level].length) {
+			levels[level] = Arrays.copyOf(levels[level], Math.min(capacity, 2 * levels[level].length));
+		}
+
+		levels[level][sizes[level]++] = value;
+	}
+
+	private void compact(int level) {
+		final double[] values = levels[level];
+		Arrays.sort(values, 0, capacity);
+		final int offset = oddOffsets[level] ? 1 : 0;
+		oddOffsets[level] = !oddOffsets[level];
+		sizes[level] = 0;
+		// promoting values only ever writes to higher levels, so this level can be read while doing so
+		for (int i = offset; i < capacity; i += 2)
+			insert(level + 1, values[i]);
+	}
+
+	/**
+	 * @param ranks zero based ranks, each less than the number of values added
+	 * @return the values with these ranks among all values added, approximately once any level was compacted
+	 */
+	public double[] valuesAtRanks(long... ranks) {
+		int retained = 0;
+		for (int level = 0; level < levels.length; level++)
+			retained += sizes[level];
+
+		// every retained value with its level, sorted by value
+		final double[] values = new double[retained];
+		final int[] valueLevels = new int[retained];
+		final Integer[] order = new Integer[retained];
+		int k = 0;
+		for (int level = 0; level < levels.length; level++) {
+			for (int i = 0; i < sizes[level]; i++) {
+				values[k] = levels[level][i];
+				valueLevels[k] = level;
+				order[k] = k;
+				k++;
+			}
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+		final double[] result = new double[ranks.length];
+		for (int r = 0; r < ranks.length; r++) {
+			long cumulativeWeight = 0;
+			result[r] = Double.NaN;
+			for (int i = 0; i < retained; i++) {
+				cumulativeWeight += 1L << valueLevels[order[i]];
+				if (cumulativeWeight > ranks[r]) {
+					result[r] = values[order[i]];
+					break;
+				}
+			}
+			if (Double.isNaN(result[r]) && retained > 0)
+				result[r] = values[order[retained - 1]];
+		}
+		return result;
+	}
+}
@@ -15,6 +15,8 @@ public class RankedCladeSystem {
 	private boolean processSA = true;
 
     protected List<RankedTree> rankedTrees = new ArrayList<>();
+    // position of every tree in rankedTrees, trees with the same clades are equal and hash alike
+    private Map<RankedTree, Integer> rankedTreeIndex = new HashMap<>();
     protected List<RankedTree> orderedRankedTrees = new ArrayList<>();
     protected RankedTree newRankedTree;
 
@@ -28,11 +30,19 @@ public class RankedCladeSystem {
      * adds all the clades in the tree
      */
     public int add(Tree tree, boolean includeTips, Set<String> attributeNames) {
-    	getCurrentRankedTree(tree, includeTips, attributeNames);
+    	return add(getCurrentRankedTree(tree, includeTips, attributeNames), tree);
+    }
+
+    /**
+     * adds the clades of the tree, decomposed by getCurrentRankedTree
+     */
+    public int add(RankedTree decomposedTree, Tree tree) {
+    	newRankedTree = decomposedTree;
     	// get all node heights for ranking the nodes
         // compare the new ranked tree to the current ranked trees
-        int rtIndex = rankedTrees.indexOf(newRankedTree);
-        if (rtIndex==-1) {
+        Integer rtIndex = rankedTreeIndex.get(newRankedTree);
+        if (rtIndex==null) {
+        	rankedTreeIndex.put(newRankedTree, rankedTrees.size());
         	rankedTrees.add(newRankedTree);
         	rankedTrees.get(rankedTrees.size()-1).setCount(1);
         	rankedTrees.get(rankedTrees.size()-1).tree = tree.copy();
@@ -45,7 +55,11 @@ public class RankedCladeSystem {
         }       
     }
     
-    private void getCurrentRankedTree(Tree tree, boolean includeTips, Set<String> attributeNames) {
+    /**
+     * decomposes the tree into its clades and their attributes, without changing this clade system,
+     * so that different trees can be decomposed concurrently
+     */
+    public RankedTree getCurrentRankedTree(Tree tree, boolean includeTips, Set<String> attributeNames) {
     	Node[] nodes = tree.getNodesAsArray();
     	List<Double> nodeHeights = new ArrayList<>();
     	for (Node n : nodes) {
@@ -60,12 +74,12 @@ public class RankedCladeSystem {
         // Recurse over the tree and add all the clades (or increment their
         // frequency if already present). The root clade is added too (for
         // annotation purposes).
-    	newRankedTree = new RankedTree();
-        addClades(tree.getRoot(), includeTips, nodeHeights, attributeNames);
-
+    	RankedTree decomposedTree = new RankedTree();
+        addClades(decomposedTree, tree.getRoot(), includeTips, nodeHeights, attributeNames);
+        return decomposedTree;
     }
 
-    private BitSet addClades(Node node, boolean includeTips, List<Double> nodeHeights, Set<String> attributeNames) {
+    private BitSet addClades(RankedTree decomposedTree, Node node, boolean includeTips, List<Double> nodeHeights, Set<String> attributeNames) {
 
         BitSet bits = new BitSet();
 
@@ -75,7 +89,7 @@ public class RankedCladeSystem {
             bits.set(2*index);
 
             if (includeTips) {
-                addClade(bits, -1, node, attributeNames);
+                addClade(decomposedTree, bits, -1, node, attributeNames);
             }
 
         } else {
@@ -84,7 +98,7 @@ public class RankedCladeSystem {
 
                 Node node1 = node.getChild(i);
 
-                bits.or(addClades(node1, includeTips, nodeHeights, attributeNames));
+                bits.or(addClades(decomposedTree, node1, includeTips, nodeHeights, attributeNames));
             }
 
             for (int i=1; i<bits.length(); i=i+2) {
@@ -95,16 +109,16 @@ public class RankedCladeSystem {
                 bits.set(2 * index + 1);
             }
             int rank = nodeHeights.indexOf(node.getHeight());
-            addClade(bits, rank, node, attributeNames);
+            addClade(decomposedTree, bits, rank, node, attributeNames);
         }
 
         return bits;
     }
 
-    private void addClade(BitSet bits, int rank, Node node, Set<String> attributeNames) {
+    private void addClade(RankedTree decomposedTree, BitSet bits, int rank, Node node, Set<String> attributeNames) {
     	RankedBitSet rbs = new RankedBitSet(bits, rank, node.getNr());
     	collectAttributesForClade(rbs, node, attributeNames);
-    	newRankedTree.addRBS(rbs);
+    	decomposedTree.addRBS(rbs);
 	}   
 
     public void calculateCladeCredibilities(int totalTreesUsed) {
@@ -121,19 +135,16 @@ public class RankedCladeSystem {
     }
     
     public int[] orderRankedTrees() {
-    	int[] order = new int[rankedTrees.size()];
-    	// get the order of trees by rank
-    	for (int i = 0; i < rankedTrees.size(); i++) {
-    		int highestCount = -1;
-    		int highestIndex = -1;
-        	for (int j = 0; j < rankedTrees.size(); j++) {
-	    		if (rankedTrees.get(j).count>highestCount) {
-	    			highestCount = rankedTrees.get(j).count;
-	    			highestIndex = j;
-	    		}
-	    	}
-        	order[i] = highestIndex;
-        	rankedTrees.get(highestIndex).count=-1;
+    	// get the order of trees by count, the sort is stable so equally frequent trees stay in the order they were first sampled
+    	Integer[] sorted = new Integer[rankedTrees.size()];
+    	for (int i = 0; i < sorted.length; i++)
+    		sorted[i] = i;
+    	Arrays.sort(sorted, (a, b) -> Integer.compare(rankedTrees.get(b).count, rankedTrees.get(a).count));
+
+    	int[] order = new int[sorted.length];
+    	for (int i = 0; i < sorted.length; i++) {
+        	order[i] = sorted[i];
+        	rankedTrees.get(sorted[i]).count=-1;
     	}
     	return order;
     }
@@ -171,8 +182,7 @@ public class RankedCladeSystem {
 
     private void addAttributes(int rtIndex) {
     	for (RankedBitSet newRBS : newRankedTree.rankedSet) {
-    		int oldRBSindex = rankedTrees.get(rtIndex).rankedSet.indexOf(newRBS);
-    		RankedBitSet rbs = rankedTrees.get(rtIndex).rankedSet.get(oldRBSindex);
+    		RankedBitSet rbs = rankedTrees.get(rtIndex).getRBS(newRBS);
     		
 	        if (rbs.attributeValues == null) {
 	        	throw new IllegalArgumentException("attributes should not be empty");
@@ -414,7 +424,14 @@ public class RankedCladeSystem {
         }
         
         public void addRBS(RankedBitSet rbs) {
-        	rankedSet.add(rbs);        	
+        	rbsIndex.put(rbs, rankedSet.size());
+        	rankedSet.add(rbs);
+        	hash += rbs.hashCode();
+        }
+
+        // the clade of this tree that equals the given clade
+        public RankedBitSet getRBS(RankedBitSet rbs) {
+        	return rankedSet.get(rbsIndex.get(rbs));
         }
         
         public int getCount() {
@@ -439,20 +456,21 @@ public class RankedCladeSystem {
             if (o == null || getClass() != o.getClass()) return false;
 
             final RankedTree rt = (RankedTree) o;
-            
-            for (RankedBitSet rbs :  rt.rankedSet) {
-            	// compare all vs. all
-            	boolean equal=false;
-            	for (RankedBitSet rbs2 : rankedSet) {
-            		if (rbs.equals(rbs2))
-            			equal=true;
-            	}
-            	if (!equal)
+
+            // every tree has a clade for every node, so trees with the same number of clades are equal if one has all clades of the other
+            if (hash != rt.hash || rankedSet.size() != rt.rankedSet.size())
+            	return false;
+            for (RankedBitSet rbs : rt.rankedSet) {
+            	if (!rbsIndex.containsKey(rbs))
             		return false;
             }
 
             return true;
+        }
 
+        @Override
+        public int hashCode() {
+            return hash;
         }
         
         @Override
@@ -461,6 +479,9 @@ public class RankedCladeSystem {
         }
 
         List<RankedBitSet> rankedSet;
+        // position of every clade in rankedSet, and the sum of the clade hash codes, which does not depend on their order
+        Map<RankedBitSet, Integer> rbsIndex = new HashMap<>();
+        int hash;
         int count;
         double credibility;
         Tree tree;
@@ -499,7 +520,8 @@ public class RankedCladeSystem {
 
         @Override
         public int hashCode() {
-            return (bits != null ? bits.hashCode() : 0);
+            // include the rank, so that trees that only differ in ranking hash differently
+            return 31 * (bits != null ? bits.hashCode() : 0) + rank;
         }
 
         @Override
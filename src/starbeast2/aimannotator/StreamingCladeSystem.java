@@ -0,0 +1,582 @@
+package starbeast2.aimannotator;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Summarises ranked or unranked species tree topologies without keeping the attribute values of every
+ * sampled tree, for logs that do not fit in memory. The trees are read twice: the first pass counts the
+ * topologies, the second accumulates the clade statistics of the topologies that are summarised and
+ * writes their gene flow logs sample by sample. Only the most recently written gene flow logs are kept open,
+ * the others are closed and appended to when their topology is sampled again. Means and rate posteriors are exact, medians and 95%
+ * intervals of heights and population sizes come from quantile sketches.
+ */
+public class StreamingCladeSystem {
+	private boolean processSA = true;
+
+	// values per clade and sketch level kept before the sketch compacts that level
+	public static final int SKETCH_CAPACITY = 4096;
+	// gene flow logs kept open at once, well below the usual limit of 1024 open files per process
+	public static final int MAX_OPEN_GENE_FLOW_LOGS = 64;
+
+	private final boolean useRank;
+	private final String[] attributeNames;
+	private final int toIndex;
+
+	private final Map<Set<Clade>, Topology> topologyMap = new HashMap<>();
+	protected final List<Topology> topologies = new ArrayList<>();
+	protected final List<Topology> summarisedTopologies = new ArrayList<>();
+	private int totalTrees;
+	private String geneFlowPrefix;
+
+	// open gene flow logs, least recently written first
+	private final LinkedHashMap<Topology, PrintStream> openGeneFlowLogs = new LinkedHashMap<Topology, PrintStream>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Topology, PrintStream> eldest) {
+			if (size() <= MAX_OPEN_GENE_FLOW_LOGS)
+				return false;
+			eldest.getValue().close();
+			return true;
+		}
+	};
+
+	// clades and nodes of the tree being added, in traversal order
+	private final List<Clade> treeClades = new ArrayList<>();
+	private final List<Node> treeNodes = new ArrayList<>();
+
+	/**
+	 * @param useRank whether trees with the same topology but different node rankings are summarised separately
+	 * @param attributeNames attributes of the species tree nodes, in the order the summaries and logs use them
+	 */
+	public StreamingCladeSystem(boolean useRank, Set<String> attributeNames) {
+		this.useRank = useRank;
+		this.attributeNames = attributeNames.toArray(new String[0]);
+		toIndex = Arrays.asList(this.attributeNames).indexOf("to");
+	}
+
+	/**
+	 * first pass, counts the topology of the tree
+	 */
+	public void countTopology(Tree tree) {
+		getClades(tree);
+		Topology topology = topologyMap.get(new HashSet<>(treeClades));
+		if (topology == null) {
+			topology = new Topology();
+			topologyMap.put(topology.cladePositions.keySet(), topology);
+			topologies.add(topology);
+		}
+		topology.count++;
+		totalTrees++;
+
+		if (!useRank)
+			topology.intersectToValues(sampleTo(topology, sampleSpecies(topology)));
+	}
+
+	/**
+	 * Orders the topologies by how often they were sampled, and selects those with at least the minimum support for
+	 * the summary. Their gene flow logs are written to files named by the prefix, the summary name and ".log".
+	 */
+	public void orderTopologies(double minTreeSupport, String geneFlowPrefix) {
+		this.geneFlowPrefix = geneFlowPrefix;
+
+		// stable, so topologies sampled equally often stay in order of first occurrence
+		final List<Topology> ordered = new ArrayList<>(topologies);
+		ordered.sort((a, b) -> Integer.compare(b.count, a.count));
+
+		for (int i = 0; i < ordered.size(); i++) {
+			final Topology topology = ordered.get(i);
+			topology.order = i;
+			if (summarisedTopologies.size() == i && ((double) topology.count)/totalTrees >= minTreeSupport) {
+				topology.summaryName = "STATE_" + i + "_occurances_" + topology.count;
+				summarisedTopologies.add(topology);
+			}
+		}
+	}
+
+	/**
+	 * second pass, adds the attributes of the tree to the statistics of its topology if it is summarised
+	 *
+	 * @return position of the topology of the tree in the ordered topologies
+	 */
+	public int addSample(Tree tree) throws IOException {
+		getClades(tree);
+		final Topology topology = topologyMap.get(new HashSet<>(treeClades));
+		if (topology.summaryName != null)
+			topology.addSample(tree);
+
+		return topology.order;
+	}
+
+	public void closeGeneFlowLogs() {
+		for (PrintStream geneFlow : openGeneFlowLogs.values())
+			geneFlow.close();
+		openGeneFlowLogs.clear();
+	}
+
+	public int getSummarisedCount() {
+		return summarisedTopologies.size();
+	}
+
+	public String getSummaryName(int index) {
+		return summarisedTopologies.get(index).summaryName;
+	}
+
+	public int getCount(int index) {
+		return summarisedTopologies.get(index).count;
+	}
+
+	/**
+	 * @param index position of the topology in the ordered topologies
+	 * @return the first sampled tree of the topology, annotated with the clade summaries
+	 */
+	public Tree compactMetaData(int index, boolean useMean) {
+		final Topology topology = summarisedTopologies.get(index);
+		final Tree tree = new Tree(topology.tree.getRoot());
+
+		for (int i = 0; i < topology.nodeNrs.length; i++) {
+			final Node n = tree.getNode(topology.nodeNrs[i]);
+			n.metaDataString = "species=" + topology.firstSpecies[i];
+
+			for (String attributeName : attributeNames) {
+				if (attributeName.contentEquals("height")) {
+					final double[] vals = topology.get95interval(topology.heightSums[i], topology.heightSketches[i]);
+					if (useMean)
+						n.setHeight(vals[0]);
+					else
+						n.setHeight(vals[1]);
+
+					n.metaDataString = n.metaDataString + ",height_mean=" + vals[0];
+					n.metaDataString = n.metaDataString + ",height_median=" + vals[1];
+					n.metaDataString = n.metaDataString + ",height_95%_HPD={" + vals[2] + "," + vals[3] + "}";
+				}
+				if (attributeName.contentEquals("Ne")) {
+					final double[] vals = topology.get95interval(topology.neSums[i], topology.neSketches[i]);
+					n.metaDataString = n.metaDataString + ",Ne_mean=" + vals[0];
+					n.metaDataString = n.metaDataString + ",Ne_median=" + vals[1];
+					n.metaDataString = n.metaDataString + ",Ne_95%_HPD={" + vals[2] + "," + vals[3] + "}";
+				}
+				if (useRank && attributeName.contentEquals("rates") && !n.isRoot() && topology.rateSums[i].length > 0) {
+					final double[] rateSums = topology.rateSums[i];
+					n.metaDataString = n.metaDataString + ",rates_mean={" + rateSums[0]/topology.samples;
+					for (int k = 1; k < rateSums.length; k++)
+						n.metaDataString = n.metaDataString + "," + rateSums[k]/topology.samples;
+					n.metaDataString = n.metaDataString + "}";
+
+					final int[] ratePositives = topology.ratePositives[i];
+					n.metaDataString = n.metaDataString + ",rates_posterior={" + ((double) ratePositives[0])/topology.samples;
+					for (int k = 1; k < ratePositives.length; k++)
+						n.metaDataString = n.metaDataString + "," + ((double) ratePositives[k])/topology.samples;
+					n.metaDataString = n.metaDataString + "}";
+				}
+				if (useRank && attributeName.contentEquals("to") && !n.isRoot() && topology.firstTo[i] != null) {
+					final Double[] to = topology.firstTo[i];
+					n.metaDataString = n.metaDataString + ",rates_to={" + Math.round(to[0]);
+					for (int k = 1; k < to.length; k++)
+						n.metaDataString = n.metaDataString + "," + Math.round(to[k]);
+					n.metaDataString = n.metaDataString + "}";
+				}
+			}
+
+			// unranked rates are summarised by the species they go to, for the species every sample has
+			if (!useRank && !n.isRoot() && topology.toValues[i].length > 0) {
+				final int[] toValues = topology.toValues[i];
+				n.metaDataString = n.metaDataString + ",rates_mean={" + topology.rateSums[i][0]/topology.rateCounts[i][0];
+				for (int k = 1; k < toValues.length; k++)
+					n.metaDataString = n.metaDataString + "," + topology.rateSums[i][k]/topology.rateCounts[i][k];
+				n.metaDataString = n.metaDataString + "}";
+
+				n.metaDataString = n.metaDataString + ",rates_posterior={" + topology.ratePositives[i][0]/((double) topology.rateCounts[i][0]);
+				for (int k = 1; k < toValues.length; k++)
+					n.metaDataString = n.metaDataString + "," + topology.ratePositives[i][k]/((double) topology.rateCounts[i][k]);
+				n.metaDataString = n.metaDataString + "}";
+
+				n.metaDataString = n.metaDataString + ",rates_to={" + toValues[0];
+				for (int k = 1; k < toValues.length; k++)
+					n.metaDataString = n.metaDataString + "," + toValues[k];
+				n.metaDataString = n.metaDataString + "}";
+			}
+		}
+		return tree;
+	}
+
+	private void getClades(Tree tree) {
+		treeClades.clear();
+		treeNodes.clear();
+
+		final List<Double> nodeHeights = new ArrayList<>();
+		for (Node n : tree.getNodesAsArray()) {
+			if (!n.isLeaf()) {
+				nodeHeights.add(n.getHeight());
+			}
+		}
+		// puts the node heights in the correct order, otherwise ordered according to nr
+		Collections.sort(nodeHeights);
+
+		addClades(tree.getRoot(), nodeHeights);
+	}
+
+	private BitSet addClades(Node node, List<Double> nodeHeights) {
+		final BitSet bits = new BitSet();
+
+		if (node.isLeaf()) {
+			bits.set(2*node.getNr());
+			addClade(bits, -1, node);
+		} else {
+			for (int i = 0; i < node.getChildCount(); i++) {
+				bits.or(addClades(node.getChild(i), nodeHeights));
+			}
+
+			for (int i = 1; i < bits.length(); i = i + 2) {
+				bits.set(i, false);
+			}
+			if (node.isFake() && processSA) {
+				bits.set(2*node.getDirectAncestorChild().getNr() + 1);
+			}
+			addClade(bits, useRank ? nodeHeights.indexOf(node.getHeight()) : 0, node);
+		}
+
+		return bits;
+	}
+
+	private void addClade(BitSet bits, int rank, Node node) {
+		treeClades.add(new Clade((BitSet) bits.clone(), rank));
+		treeNodes.add(node);
+	}
+
+	private static Object getAttributeValue(Node node, String attributeName) {
+		switch (attributeName) {
+			case "height":
+				return node.getHeight();
+			case "length":
+				return node.isRoot() ? 0 : node.getParent().getHeight() - node.getHeight();
+			default:
+				Object value = node.getMetaData(attributeName);
+				if (value instanceof String && ((String) value).startsWith("\"")) {
+					value = ((String) value).replaceAll("\"", "");
+				}
+				return value;
+		}
+	}
+
+	// species number of every clade of the current tree, by position in the first tree of the topology
+	private int[] sampleSpecies(Topology topology) {
+		final int[] species = new int[treeClades.size()];
+		for (int c = 0; c < treeClades.size(); c++) {
+			final Double value = (Double) getAttributeValue(treeNodes.get(c), "species");
+			species[topology.cladePositions.get(treeClades.get(c))] = (int) Math.round(value);
+		}
+		return species;
+	}
+
+	// the species each clade of the current tree has rates to, as species numbers of the first tree of the topology
+	private int[][] sampleTo(Topology topology, int[] sampleSpecies) {
+		final int[][] to = new int[treeClades.size()][];
+		for (int c = 0; c < treeClades.size(); c++) {
+			final Object value = toIndex < 0 ? null : getAttributeValue(treeNodes.get(c), "to");
+			final Double[] sampleTo = value instanceof Double[] ? (Double[]) value : new Double[0];
+			final int position = topology.cladePositions.get(treeClades.get(c));
+			to[position] = new int[sampleTo.length];
+			for (int k = 0; k < sampleTo.length; k++)
+				to[position][k] = topology.getOriSpecies(sampleSpecies, (int) Math.round(sampleTo[k]));
+		}
+		return to;
+	}
+
+	public List<String> getChildNames(Node n) {
+		final List<String> names = new ArrayList<>();
+		if (n.isLeaf()) {
+			names.add(n.getID());
+		} else {
+			for (Node child : n.getChildren()) {
+				names.addAll(getChildNames(child));
+			}
+		}
+		return names;
+	}
+
+	private static final class Clade {
+		final BitSet bits;
+		final int rank;
+
+		Clade(BitSet bits, int rank) {
+			this.bits = bits;
+			this.rank = rank;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			final Clade clade = (Clade) o;
+			return rank == clade.rank && bits.equals(clade.bits);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31*bits.hashCode() + rank;
+		}
+	}
+
+	protected class Topology {
+		// position of every clade in the traversal of the first tree of this topology
+		final Map<Clade, Integer> cladePositions = new HashMap<>();
+		final int[] firstSpecies;
+		int count;
+		int order;
+		String summaryName;
+
+		// unranked only, the species every sample of each clade has rates to
+		SortedSet<Integer>[] toIntersections;
+
+		// second pass, summarised topologies only
+		Tree tree;
+		int[] nodeNrs;
+		int samples;
+		double[] heightSums;
+		QuantileSketch[] heightSketches;
+		double[] neSums;
+		QuantileSketch[] neSketches;
+		Double[][] firstTo;
+		int[][] toValues;
+		double[][] rateSums;
+		int[][] ratePositives;
+		int[][] rateCounts;
+		File geneFlowFile;
+		String[] names;
+
+		@SuppressWarnings("unchecked")
+		Topology() {
+			for (int c = 0; c < treeClades.size(); c++)
+				cladePositions.put(treeClades.get(c), c);
+			firstSpecies = sampleSpecies(this);
+			if (!useRank)
+				toIntersections = new SortedSet[treeClades.size()];
+		}
+
+		// the first species of a clade that has the species number in this sample, or -1 if there is none
+		int getOriSpecies(int[] sampleSpecies, int toval) {
+			for (int k = 0; k < sampleSpecies.length; k++) {
+				if (sampleSpecies[k] == toval)
+					return firstSpecies[k];
+			}
+			return -1;
+		}
+
+		void intersectToValues(int[][] to) {
+			for (int i = 0; i < to.length; i++) {
+				final SortedSet<Integer> sampleValues = new TreeSet<>();
+				for (int toval : to[i])
+					sampleValues.add(toval);
+				if (toIntersections[i] == null)
+					toIntersections[i] = sampleValues;
+				else
+					toIntersections[i].retainAll(sampleValues);
+			}
+		}
+
+		void addSample(Tree sampleTree) throws IOException {
+			final int cladeCount = cladePositions.size();
+			final Object[][] values = new Object[cladeCount][attributeNames.length];
+			for (int c = 0; c < cladeCount; c++) {
+				final int position = cladePositions.get(treeClades.get(c));
+				for (int j = 0; j < attributeNames.length; j++)
+					values[position][j] = getAttributeValue(treeNodes.get(c), attributeNames[j]);
+			}
+			int[][] to = null;
+			if (!useRank)
+				to = sampleTo(this, sampleSpecies(this));
+
+			if (samples == 0)
+				initialise(sampleTree, values);
+
+			for (int i = 0; i < cladeCount; i++) {
+				for (int j = 0; j < attributeNames.length; j++) {
+					if (attributeNames[j].contentEquals("height")) {
+						final double value = toDouble(values[i][j]);
+						heightSums[i] += value;
+						heightSketches[i].add(value);
+					}
+					if (attributeNames[j].contentEquals("Ne")) {
+						final double value = toDouble(values[i][j]);
+						neSums[i] += value;
+						neSketches[i].add(value);
+					}
+					if (attributeNames[j].contentEquals("rates") && values[i][j] instanceof Double[]) {
+						final Double[] rates = (Double[]) values[i][j];
+						if (useRank) {
+							for (int k = 0; k < rateSums[i].length; k++) {
+								rateSums[i][k] += rates[k];
+								if (rates[k] > 0)
+									ratePositives[i][k]++;
+							}
+						} else {
+							for (int l = 0; l < to[i].length; l++) {
+								final int k = Arrays.binarySearch(toValues[i], to[i][l]);
+								if (k >= 0) {
+									rateSums[i][k] += rates[l];
+									rateCounts[i][k]++;
+									if (rates[l] > 0)
+										ratePositives[i][k]++;
+								}
+							}
+						}
+					}
+				}
+			}
+
+			printSample(values, to);
+			samples++;
+		}
+
+		// the first sample of this topology in the second pass is also its first sample in the first pass
+		private void initialise(Tree sampleTree, Object[][] values) throws IOException {
+			final int cladeCount = cladePositions.size();
+			tree = sampleTree.copy();
+			nodeNrs = new int[cladeCount];
+			for (int c = 0; c < cladeCount; c++)
+				nodeNrs[cladePositions.get(treeClades.get(c))] = treeNodes.get(c).getNr();
+
+			heightSums = new double[cladeCount];
+			heightSketches = new QuantileSketch[cladeCount];
+			neSums = new double[cladeCount];
+			neSketches = new QuantileSketch[cladeCount];
+			firstTo = new Double[cladeCount][];
+			toValues = new int[cladeCount][];
+			rateSums = new double[cladeCount][];
+			ratePositives = new int[cladeCount][];
+			rateCounts = new int[cladeCount][];
+			for (int i = 0; i < cladeCount; i++) {
+				heightSketches[i] = new QuantileSketch(SKETCH_CAPACITY);
+				neSketches[i] = new QuantileSketch(SKETCH_CAPACITY);
+				if (toIndex >= 0 && values[i][toIndex] instanceof Double[])
+					firstTo[i] = (Double[]) values[i][toIndex];
+
+				if (useRank) {
+					int rateCount = 0;
+					for (int j = 0; j < attributeNames.length; j++)
+						if (attributeNames[j].contentEquals("rates") && values[i][j] instanceof Double[])
+							rateCount = ((Double[]) values[i][j]).length;
+					rateSums[i] = new double[rateCount];
+					ratePositives[i] = new int[rateCount];
+				} else {
+					final SortedSet<Integer> intersection = toIntersections[i];
+					toValues[i] = new int[intersection == null ? 0 : intersection.size()];
+					int k = 0;
+					if (intersection != null)
+						for (int toval : intersection)
+							toValues[i][k++] = toval;
+					rateSums[i] = new double[toValues[i].length];
+					ratePositives[i] = new int[toValues[i].length];
+					rateCounts[i] = new int[toValues[i].length];
+				}
+			}
+
+			// get the species names for tips and ancestral nodes
+			names = new String[cladeCount];
+			final List<Double> species = new ArrayList<>();
+			for (int i = 0; i < cladeCount; i++) {
+				final Node n = tree.getNode(nodeNrs[i]);
+				names[i] = String.join(":", getChildNames(n));
+				species.add((Double) n.getMetaData("species"));
+			}
+
+			geneFlowFile = new File(geneFlowPrefix + "." + summaryName + ".log");
+			System.out.println("\nWriting gene flow to " + geneFlowFile.getCanonicalPath() + "...");
+			final PrintStream geneFlow = openGeneFlowLog(false);
+
+			// print header for the log file
+			geneFlow.print("sample");
+			for (String attributeName : attributeNames) {
+				for (int i = 0; i < cladeCount; i++) {
+					if (attributeName.contentEquals("height")) {
+						geneFlow.print("\theight_" + names[i]);
+					}
+					if (attributeName.contentEquals("Ne")) {
+						geneFlow.print("\tNe_" + names[i]);
+					}
+					if (attributeName.contentEquals("rates") && firstTo[i] != null) {
+						if (useRank) {
+							for (int k = 0; k < firstTo[i].length; k++)
+								geneFlow.print("\tbmig_" + names[i] + "_to_" + speciesName(species, firstTo[i][k]));
+						} else {
+							for (int k = 0; k < toValues[i].length; k++)
+								geneFlow.print("\tbmig_" + names[i] + "_to_" + speciesName(species, (double) toValues[i][k]));
+						}
+					}
+				}
+			}
+		}
+
+		private String speciesName(List<Double> species, Double speciesNr) {
+			final int toInd = species.indexOf(speciesNr);
+			return toInd < 0 ? "NA" : names[toInd];
+		}
+
+		// the gene flow log of this topology, which is reopened to append to it if it was closed
+		private PrintStream openGeneFlowLog(boolean append) throws IOException {
+			PrintStream geneFlow = openGeneFlowLogs.get(this);
+			if (geneFlow == null) {
+				geneFlow = new PrintStream(new BufferedOutputStream(new FileOutputStream(geneFlowFile, append)));
+				openGeneFlowLogs.put(this, geneFlow);
+			}
+			return geneFlow;
+		}
+
+		private void printSample(Object[][] values, int[][] to) throws IOException {
+			final PrintStream geneFlow = openGeneFlowLog(true);
+			geneFlow.print("\n" + samples);
+			for (int j = 0; j < attributeNames.length; j++) {
+				for (int i = 0; i < values.length; i++) {
+					if (attributeNames[j].contentEquals("height")) {
+						geneFlow.print("\t" + values[i][j]);
+					}
+					if (attributeNames[j].contentEquals("Ne")) {
+						geneFlow.print("\t" + values[i][j]);
+					}
+					if (attributeNames[j].contentEquals("rates") && values[i][j] instanceof Double[]) {
+						final Double[] rates = (Double[]) values[i][j];
+						if (useRank) {
+							for (int k = 0; k < rates.length; k++)
+								geneFlow.print("\t" + rates[k]);
+						} else {
+							for (int k = 0; k < toValues[i].length; k++)
+								for (int l = 0; l < to[i].length; l++)
+									if (to[i][l] == toValues[i][k])
+										geneFlow.print("\t" + rates[l]);
+						}
+					}
+				}
+			}
+		}
+
+		private double toDouble(Object value) {
+			try {
+				return (double) value;
+			} catch (Exception e) {
+				System.out.println(value);
+				return 0.0;
+			}
+		}
+
+		// mean, median, and the 2.5% and 97.5% quantiles, using the same ranks as the in memory clade systems
+		double[] get95interval(double sum, QuantileSketch sketch) {
+			final long n = sketch.getCount();
+			final double[] ranked = sketch.valuesAtRanks(n/2 - (n % 2 == 0 ? 1 : 0), n/2, (long) (0.025*n), (long) (0.975*n));
+
+			final double[] vals = new double[4];
+			vals[0] = sum/n;
+			vals[1] = n % 2 == 1 ? ranked[1] : (ranked[0] + ranked[1])/2.0;
+			vals[2] = ranked[2];
+			vals[3] = ranked[3];
+			return vals;
+		}
+	}
+}
@@ -15,6 +15,8 @@ public class UnrankedCladeSystem {
 	private boolean processSA = true;
 
     protected List<UnrankedTree> unrankedTrees = new ArrayList<>();
+    // position of every tree in unrankedTrees, trees with the same clades are equal and hash alike
+    private Map<UnrankedTree, Integer> unrankedTreeIndex = new HashMap<>();
     protected List<UnrankedTree> orderedUnrankedTrees = new ArrayList<>();
     protected UnrankedTree newRankedTree;
 
@@ -28,11 +30,19 @@ public class UnrankedCladeSystem {
      * adds all the clades in the tree
      */
     public int add(Tree tree, boolean includeTips, Set<String> attributeNames) {
-    	getCurrentRankedTree(tree, includeTips, attributeNames);
+    	return add(getCurrentRankedTree(tree, includeTips, attributeNames), tree);
+    }
+
+    /**
+     * adds the clades of the tree, decomposed by getCurrentRankedTree
+     */
+    public int add(UnrankedTree decomposedTree, Tree tree) {
+    	newRankedTree = decomposedTree;
     	// get all node heights for ranking the nodes
         // compare the new ranked tree to the current ranked trees
-        int rtIndex = unrankedTrees.indexOf(newRankedTree);
-        if (rtIndex==-1) {
+        Integer rtIndex = unrankedTreeIndex.get(newRankedTree);
+        if (rtIndex==null) {
+        	unrankedTreeIndex.put(newRankedTree, unrankedTrees.size());
         	unrankedTrees.add(newRankedTree);
         	unrankedTrees.get(unrankedTrees.size()-1).setCount(1);
         	unrankedTrees.get(unrankedTrees.size()-1).tree = tree.copy();
@@ -45,7 +55,11 @@ public class UnrankedCladeSystem {
         }       
     }
     
-    private void getCurrentRankedTree(Tree tree, boolean includeTips, Set<String> attributeNames) {
+    /**
+     * decomposes the tree into its clades and their attributes, without changing this clade system,
+     * so that different trees can be decomposed concurrently
+     */
+    public UnrankedTree getCurrentRankedTree(Tree tree, boolean includeTips, Set<String> attributeNames) {
     	Node[] nodes = tree.getNodesAsArray();
     	List<Double> nodeHeights = new ArrayList<>();
     	for (Node n : nodes) {
@@ -60,12 +74,12 @@ public class UnrankedCladeSystem {
         // Recurse over the tree and add all the clades (or increment their
         // frequency if already present). The root clade is added too (for
         // annotation purposes).
-    	newRankedTree = new UnrankedTree();
-        addClades(tree.getRoot(), includeTips, nodeHeights, attributeNames);
-
+    	UnrankedTree decomposedTree = new UnrankedTree();
+        addClades(decomposedTree, tree.getRoot(), includeTips, nodeHeights, attributeNames);
+        return decomposedTree;
     }
 
-    private BitSet addClades(Node node, boolean includeTips, List<Double> nodeHeights, Set<String> attributeNames) {
+    private BitSet addClades(UnrankedTree decomposedTree, Node node, boolean includeTips, List<Double> nodeHeights, Set<String> attributeNames) {
 
         BitSet bits = new BitSet();
 
@@ -75,7 +89,7 @@ public class UnrankedCladeSystem {
             bits.set(2*index);
 
             if (includeTips) {
-                addClade(bits, -1, node, attributeNames);
+                addClade(decomposedTree, bits, -1, node, attributeNames);
             }
 
         } else {
@@ -84,7 +98,7 @@ public class UnrankedCladeSystem {
 
                 Node node1 = node.getChild(i);
 
-                bits.or(addClades(node1, includeTips, nodeHeights, attributeNames));
+                bits.or(addClades(decomposedTree, node1, includeTips, nodeHeights, attributeNames));
             }
 
             for (int i=1; i<bits.length(); i=i+2) {
@@ -95,16 +109,16 @@ public class UnrankedCladeSystem {
                 bits.set(2 * index + 1);
             }
             int rank = nodeHeights.indexOf(node.getHeight());
-            addClade(bits, rank, node, attributeNames);
+            addClade(decomposedTree, bits, rank, node, attributeNames);
         }
 
         return bits;
     }
 
-    private void addClade(BitSet bits, int rank, Node node, Set<String> attributeNames) {
+    private void addClade(UnrankedTree decomposedTree, BitSet bits, int rank, Node node, Set<String> attributeNames) {
     	UnrankedBitSet rbs = new UnrankedBitSet(bits, node.getNr());
     	collectAttributesForClade(rbs, node, attributeNames);
-    	newRankedTree.addRBS(rbs);
+    	decomposedTree.addRBS(rbs);
 	}   
 
     public void calculateCladeCredibilities(int totalTreesUsed) {
@@ -114,19 +128,16 @@ public class UnrankedCladeSystem {
     }
     
     public int[] orderRankedTrees() {
-    	int[] order = new int[unrankedTrees.size()];
-    	// get the order of trees by rank
-    	for (int i = 0; i < unrankedTrees.size(); i++) {
-    		int highestCount = -1;
-    		int highestIndex = -1;
-        	for (int j = 0; j < unrankedTrees.size(); j++) {
-	    		if (unrankedTrees.get(j).count>highestCount) {
-	    			highestCount = unrankedTrees.get(j).count;
-	    			highestIndex = j;
-	    		}
-	    	}
-        	order[i] = highestIndex;
-        	unrankedTrees.get(highestIndex).count=-1;
+    	// get the order of trees by count, the sort is stable so equally frequent trees stay in the order they were first sampled
+    	Integer[] sorted = new Integer[unrankedTrees.size()];
+    	for (int i = 0; i < sorted.length; i++)
+    		sorted[i] = i;
+    	Arrays.sort(sorted, (a, b) -> Integer.compare(unrankedTrees.get(b).count, unrankedTrees.get(a).count));
+
+    	int[] order = new int[sorted.length];
+    	for (int i = 0; i < sorted.length; i++) {
+        	order[i] = sorted[i];
+        	unrankedTrees.get(sorted[i]).count=-1;
     	}
     	return order;
     }
@@ -164,8 +175,7 @@ public class UnrankedCladeSystem {
 
     private void addAttributes(int rtIndex) {
     	for (UnrankedBitSet newRBS : newRankedTree.rankedSet) {
-    		int oldRBSindex = unrankedTrees.get(rtIndex).rankedSet.indexOf(newRBS);
-    		UnrankedBitSet rbs = unrankedTrees.get(rtIndex).rankedSet.get(oldRBSindex);
+    		UnrankedBitSet rbs = unrankedTrees.get(rtIndex).getRBS(newRBS);
     		
 	        if (rbs.attributeValues == null) {
 	        	throw new IllegalArgumentException("attributes should not be empty");
@@ -530,7 +540,14 @@ public class UnrankedCladeSystem {
         }
         
         public void addRBS(UnrankedBitSet rbs) {
-        	rankedSet.add(rbs);        	
+        	rbsIndex.put(rbs, rankedSet.size());
+        	rankedSet.add(rbs);
+        	hash += rbs.hashCode();
+        }
+
+        // the clade of this tree that equals the given clade
+        public UnrankedBitSet getRBS(UnrankedBitSet rbs) {
+        	return rankedSet.get(rbsIndex.get(rbs));
         }
         
         public int getCount() {
@@ -555,20 +572,21 @@ public class UnrankedCladeSystem {
             if (o == null || getClass() != o.getClass()) return false;
 
             final UnrankedTree rt = (UnrankedTree) o;
-            
-            for (UnrankedBitSet rbs :  rt.rankedSet) {
-            	// compare all vs. all
-            	boolean equal=false;
-            	for (UnrankedBitSet rbs2 : rankedSet) {
-            		if (rbs.equals(rbs2))
-            			equal=true;
-            	}
-            	if (!equal)
+
+            // every tree has a clade for every node, so trees with the same number of clades are equal if one has all clades of the other
+            if (hash != rt.hash || rankedSet.size() != rt.rankedSet.size())
+            	return false;
+            for (UnrankedBitSet rbs : rt.rankedSet) {
+            	if (!rbsIndex.containsKey(rbs))
             		return false;
             }
 
             return true;
+        }
 
+        @Override
+        public int hashCode() {
+            return hash;
         }
         
         @Override
@@ -577,6 +595,9 @@ public class UnrankedCladeSystem {
         }
 
         List<UnrankedBitSet> rankedSet;
+        // position of every clade in rankedSet, and the sum of the clade hash codes, which does not depend on their order
+        Map<UnrankedBitSet, Integer> rbsIndex = new HashMap<>();
+        int hash;
         int count;
         double credibility;
         Tree tree;
@@ -0,0 +1,111 @@
+package starbeast2.utils;
+
+import starbeast2.NewickWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Converts a binary tree trace written by BinaryTreeLogger to a NEXUS tree log, with every column
+ * except the node heights as node metadata.
+ *
+ * Usage: BinaryTraceToNexus traceFile nexusFile
+ */
+public class BinaryTraceToNexus {
+
+    public static void convert(File traceFile, File nexusFile) throws IOException {
+        try (BinaryTreeTrace trace = new BinaryTreeTrace(traceFile);
+             PrintStream out = new PrintStream(nexusFile)) {
+            final String[] taxa = trace.getTaxa();
+            final String[] columnNames = trace.getColumnNames();
+            final int nodeCount = trace.getNodeCount();
+
+            // same header as the NEXUS tree logs of BEAST
+            out.println("#NEXUS\n");
+            out.println("Begin taxa;");
+            out.println("\tDimensions ntax=" + taxa.length + ";");
+            out.println("\t\tTaxlabels");
+            for (String taxon: taxa)
+                out.println("\t\t\t" + taxon + " ");
+            out.println("\t\t\t;");
+            out.println("End;");
+            out.println("Begin trees;");
+            out.println("\tTranslate");
+            for (int i = 0; i < taxa.length; i++)
+                out.println("\t\t" + (i + 1) + " " + taxa[i] + (i < taxa.length - 1 ? "," : ""));
+            out.print(";");
+
+            final NewickWriter writer = new NewickWriter(-1);
+            final int[] firstChild = new int[nodeCount];
+            final int[] secondChild = new int[nodeCount];
+            while (trace.next()) {
+                final int[] parents = trace.getParents(trace.getTopology());
+                Arrays.fill(firstChild, -1);
+                Arrays.fill(secondChild, -1);
+                int root = -1;
+                for (int i = 0; i < nodeCount; i++) {
+                    if (parents[i] < 0)
+                        root = i;
+                    else if (firstChild[parents[i]] < 0)
+                        firstChild[parents[i]] = i;
+                    else
+                        secondChild[parents[i]] = i;
+                }
+
+                out.print("\ntree STATE_" + trace.getSample() + " = ");
+                toNewick(trace, root, parents, firstChild, secondChild, writer);
+                writer.append(';');
+                writer.flush(out);
+            }
+            out.println();
+            out.println("End;");
+        }
+    }
+
+    private static void toNewick(BinaryTreeTrace trace, int node, int[] parents, int[] firstChild, int[] secondChild, NewickWriter buf) {
+        if (firstChild[node] >= 0) {
+            buf.append('(');
+            toNewick(trace, firstChild[node], parents, firstChild, secondChild, buf);
+            if (secondChild[node] >= 0) {
+                buf.append(',');
+                toNewick(trace, secondChild[node], parents, firstChild, secondChild, buf);
+            }
+            buf.append(')');
+        } else {
+            buf.append(node + 1);
+        }
+
+        final String[] columnNames = trace.getColumnNames();
+        if (columnNames.length > 1) {
+            buf.append("[&");
+            for (int c = 1; c < columnNames.length; c++) {
+                if (c > 1)
+                    buf.append(',');
+                buf.append(columnNames[c]).append('=').append(trace.getValue(c, node));
+            }
+            buf.append(']');
+        }
+
+        buf.append(':');
+        if (parents[node] < 0)
+            buf.append(0.0);
+        else
+            buf.append(trace.getHeight(parents[node]) - trace.getHeight(node));
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: BinaryTraceToNexus traceFile nexusFile");
+            System.exit(1);
+        }
+
+        try {
+            convert(new File(args[0]), new File(args[1]));
+        } catch (IOException e) {
+            System.err.println("Error converting " + args[0] + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
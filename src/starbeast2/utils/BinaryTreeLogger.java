@@ -0,0 +1,273 @@
+package starbeast2.utils;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.Logger;
+import beast.base.inference.StateNode;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Logs a tree as a binary trace (see BinaryTreeTrace for the format), which is much smaller than a
+ * NEXUS tree log and can be read without parsing Newick strings. Use BinaryTraceToNexus to convert
+ * a trace for tools that read NEXUS tree logs.
+ */
+@Description("Logs the topology, node heights and per node metadata of a tree to a compact binary trace")
+public class BinaryTreeLogger extends Logger {
+    public Input<TreeInterface> treeInput = new Input<>("tree", "The (species) tree to be logged.", Input.Validate.REQUIRED);
+    public Input<List<Function>> metadataInput = new Input<>("metadata", "Per node values (with one dimension per node, like population sizes) to be logged with the tree nodes.", new ArrayList<>());
+    public Input<BranchRateModel> clockModelInput = new Input<>("branchratemodel", "Rates to be logged with the branches of the tree.");
+
+    private int nodeCount;
+    private int leafCount;
+    private String[] columnNames;
+
+    private final Map<TopologyKey, Integer> topologyIds = new HashMap<>();
+    private DataOutputStream out;
+
+    // the last sample in the trace when resuming, added to every new sample like Logger does, -1 otherwise
+    private long sampleOffset = -1;
+
+    // canonical index of every node (by node number), and the nodes in canonical order
+    private int[] canonicalIndex;
+    private Node[] canonicalNodes;
+    private int[] parents;
+    private int[] minLeafNrs;
+
+    public BinaryTreeLogger() {
+        loggersInput.setRule(Input.Validate.OPTIONAL);
+        loggersInput.setValue(new DummyLoggable(), this);
+        modeInput.setRule(Input.Validate.OPTIONAL);
+        modeInput.setValue("tree", this);
+    }
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+        if (fileNameInput.get() == null)
+            throw new IllegalArgumentException("A binary tree trace needs a fileName");
+
+        final TreeInterface tree = treeInput.get();
+        nodeCount = tree.getNodeCount();
+        leafCount = tree.getLeafNodeCount();
+
+        final List<Function> metadata = metadataInput.get();
+        final List<String> names = new ArrayList<>();
+        names.add("height");
+        for (Function f: metadata) {
+            if (f.getDimension() != nodeCount)
+                throw new IllegalArgumentException("Metadata " + ((BEASTObject) f).getID() + " has dimension " + f.getDimension() + ", but the tree has " + nodeCount + " nodes");
+            names.add(((BEASTObject) f).getID());
+        }
+        if (clockModelInput.get() != null)
+            names.add("rate");
+        columnNames = names.toArray(new String[0]);
+
+        canonicalIndex = new int[nodeCount];
+        canonicalNodes = new Node[nodeCount];
+        parents = new int[nodeCount];
+        minLeafNrs = new int[nodeCount];
+    }
+
+    @Override
+    public void init() throws IOException {
+        final File file = new File(fileNameInput.get());
+        final String[] taxa = new String[leafCount];
+        for (int i = 0; i < leafCount; i++)
+            taxa[i] = treeInput.get().getNode(i).getID();
+
+        topologyIds.clear();
+        sampleOffset = -1;
+        if (Logger.FILE_MODE == LogFileMode.resume && file.exists()) {
+            if (!BinaryTreeTrace.isBinaryTrace(file))
+                throw new IOException("Cannot resume " + file + ", it is not a binary tree trace");
+
+            // keep every complete record, and the topology dictionary written so far
+            long validLength;
+            try (BinaryTreeTrace trace = new BinaryTreeTrace(file)) {
+                if (!Arrays.equals(trace.getTaxa(), taxa) || !Arrays.equals(trace.getColumnNames(), columnNames) || trace.getNodeCount() != nodeCount)
+                    throw new IOException("Cannot resume " + file + ", it was written for different taxa or columns");
+                while (trace.next())
+                    sampleOffset = trace.getSample();
+                for (int t = 0; t < trace.getTopologyCount(); t++)
+                    topologyIds.put(new TopologyKey(trace.getParents(t).clone()), t);
+                validLength = trace.getValidLength();
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16));
+        } else {
+            if (file.exists() && (Logger.FILE_MODE == LogFileMode.only_new || Logger.FILE_MODE == LogFileMode.only_new_or_exit))
+                throw new IOException("Trying to write file " + file + " but the file already exists. Use -overwrite to overwrite it, or -resume to append to it.");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.write(BinaryTreeTrace.MAGIC);
+            out.writeInt(BinaryTreeTrace.VERSION);
+            out.writeInt(leafCount);
+            out.writeInt(nodeCount);
+            out.writeInt(columnNames.length);
+            for (String taxon: taxa)
+                out.writeUTF(taxon);
+            for (String name: columnNames)
+                out.writeUTF(name);
+        }
+    }
+
+    @Override
+    public void log(long sample) {
+        if ((sample < 0) || (sample % everyInput.get() > 0))
+            return;
+        if (sampleOffset >= 0) {
+            // the last sample of the trace is the state the chain resumed from
+            if (sample == 0)
+                return;
+            sample += sampleOffset;
+        }
+
+        // make sure we get the current version of the inputs
+        final TreeInterface tree = treeInput.get() instanceof StateNode ? (TreeInterface) ((StateNode) treeInput.get()).getCurrent() : treeInput.get();
+        final List<Function> metadata = metadataInput.get();
+        for (int i = 0; i < metadata.size(); i++) {
+            if (metadata.get(i) instanceof StateNode) {
+                metadata.set(i, ((StateNode) metadata.get(i)).getCurrent());
+            }
+        }
+        final BranchRateModel branchRateModel = clockModelInput.get();
+
+        for (int i = 0; i < leafCount; i++) {
+            canonicalIndex[i] = i;
+            canonicalNodes[i] = tree.getNode(i);
+        }
+        fillMinLeafNrs(tree.getRoot());
+        numberInternalNodes(tree.getRoot(), leafCount);
+        for (int i = 0; i < nodeCount; i++) {
+            final Node node = canonicalNodes[i];
+            parents[i] = node.isRoot() ? -1 : canonicalIndex[node.getParent().getNr()];
+        }
+
+        try {
+            Integer topologyId = topologyIds.get(new TopologyKey(parents));
+            if (topologyId == null) {
+                topologyId = topologyIds.size();
+                topologyIds.put(new TopologyKey(parents.clone()), topologyId);
+                out.writeByte(BinaryTreeTrace.TOPOLOGY_RECORD);
+                out.writeInt(topologyId);
+                for (int i = 0; i < nodeCount; i++)
+                    out.writeInt(parents[i]);
+            }
+
+            out.writeByte(BinaryTreeTrace.SAMPLE_RECORD);
+            out.writeLong(sample);
+            out.writeInt(topologyId);
+            for (int i = 0; i < nodeCount; i++)
+                out.writeDouble(canonicalNodes[i].getHeight());
+            for (Function f: metadata)
+                for (int i = 0; i < nodeCount; i++)
+                    out.writeDouble(f.getArrayValue(canonicalNodes[i].getNr()));
+            if (branchRateModel != null)
+                for (int i = 0; i < nodeCount; i++)
+                    out.writeDouble(branchRateModel.getRateForBranch(canonicalNodes[i]));
+
+            // complete samples can be read (or resumed from) while the analysis runs
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write to the binary tree trace " + fileNameInput.get(), e);
+        }
+    }
+
+    /**
+     * Numbers the internal nodes below (and including) the node in post-order, visiting the child with the
+     * smaller leaf number first.
+     *
+     * @return the next free index
+     */
+    private int numberInternalNodes(Node node, int nextIndex) {
+        if (node.isLeaf())
+            return nextIndex;
+
+        Node first = node.getLeft();
+        Node second = node.getRight();
+        if (minLeafNrs[second.getNr()] < minLeafNrs[first.getNr()]) {
+            first = node.getRight();
+            second = node.getLeft();
+        }
+        nextIndex = numberInternalNodes(first, nextIndex);
+        nextIndex = numberInternalNodes(second, nextIndex);
+
+        canonicalIndex[node.getNr()] = nextIndex;
+        canonicalNodes[nextIndex] = node;
+        return nextIndex + 1;
+    }
+
+    // smallest leaf number below every node
+    private int fillMinLeafNrs(Node node) {
+        int minLeafNr = node.getNr();
+        if (!node.isLeaf())
+            minLeafNr = Math.min(fillMinLeafNrs(node.getLeft()), fillMinLeafNrs(node.getRight()));
+        minLeafNrs[node.getNr()] = minLeafNr;
+        return minLeafNr;
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not close the binary tree trace " + fileNameInput.get(), e);
+        }
+    }
+
+    private static final class TopologyKey {
+        final int[] parents;
+        final int hash;
+
+        TopologyKey(int[] parents) {
+            this.parents = parents;
+            hash = Arrays.hashCode(parents);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TopologyKey && Arrays.equals(parents, ((TopologyKey) o).parents);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    class DummyLoggable extends BEASTObject implements Loggable {
+
+        public DummyLoggable() { }
+
+        @Override
+        public void init(PrintStream out) { }
+
+        @Override
+        public void log(long sample, PrintStream out) { }
+
+        @Override
+        public void close(PrintStream out) { }
+
+        @Override
+        public void initAndValidate() { }
+    }
+}
@@ -0,0 +1,251 @@
+package starbeast2.utils;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Memory mapped reader for tree traces written by BinaryTreeLogger.
+ *
+ * The file starts with a header (the magic bytes, the format version, the numbers of leaves, nodes and
+ * columns, then the taxon and column names), followed by records. A topology record adds the parent of
+ * every node to the topology dictionary, a sample record gives the sample number, the topology and one
+ * float64 column of nodeCount values per column name. Leaves are numbered as in the species tree, and
+ * internal nodes in post-order with the child holding the smaller leaf number first, so that every
+ * topology has exactly one entry in the dictionary. Column 0 holds the node heights.
+ */
+public class BinaryTreeTrace implements Closeable {
+    static final byte[] MAGIC = {'S', 'B', '2', 'T', 'R', 'A', 'C', 'E'};
+    static final int VERSION = 1;
+    static final byte TOPOLOGY_RECORD = 1;
+    static final byte SAMPLE_RECORD = 2;
+
+    // how much of the file is mapped at once, the window moves forward as records are read
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileLength;
+
+    private final String[] taxa;
+    private final String[] columnNames;
+    private final int nodeCount;
+    private final long firstRecord;
+
+    private final List<int[]> topologies = new ArrayList<>();
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private long validLength;
+
+    private long sample;
+    private int topology;
+    private final double[] values;
+
+    public BinaryTreeTrace(File traceFile) throws IOException {
+        file = new RandomAccessFile(traceFile, "r");
+        channel = file.getChannel();
+        fileLength = channel.size();
+
+        try {
+            final byte[] magic = new byte[MAGIC.length];
+            file.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(traceFile + " is not a binary tree trace");
+            final int version = file.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported binary tree trace version " + version + " in " + traceFile);
+
+            final int leafCount = file.readInt();
+            nodeCount = file.readInt();
+            final int columnCount = file.readInt();
+            taxa = new String[leafCount];
+            for (int i = 0; i < leafCount; i++)
+                taxa[i] = file.readUTF();
+            columnNames = new String[columnCount];
+            for (int c = 0; c < columnCount; c++)
+                columnNames[c] = file.readUTF();
+            firstRecord = file.getFilePointer();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+
+        values = new double[columnNames.length * nodeCount];
+        reset();
+    }
+
+    public static boolean isBinaryTrace(File traceFile) {
+        final byte[] magic = new byte[MAGIC.length];
+        try (RandomAccessFile f = new RandomAccessFile(traceFile, "r")) {
+            if (f.length() < MAGIC.length)
+                return false;
+            f.readFully(magic);
+        } catch (IOException e) {
+            return false;
+        }
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    /**
+     * Goes back to the first sample. Topologies that were already read stay in the dictionary.
+     */
+    public void reset() {
+        position = firstRecord;
+        validLength = firstRecord;
+        window = null;
+        sample = -1;
+        topology = -1;
+    }
+
+    /**
+     * Reads the next sample, adding any new topologies written before it to the dictionary.
+     *
+     * @return false when there are no more complete samples
+     */
+    public boolean next() throws IOException {
+        final int sampleLength = 8 + 4 + 8 * values.length;
+        final int topologyLength = 4 + 4 * nodeCount;
+
+        while (position < fileLength) {
+            if (!map(1))
+                return false;
+            final byte type = window.get((int) (position - windowStart));
+
+            if (type == TOPOLOGY_RECORD) {
+                if (!map(1 + topologyLength))
+                    return false;
+                final ByteBuffer buf = record(1);
+                final int id = buf.getInt();
+                final int[] parents = new int[nodeCount];
+                buf.asIntBuffer().get(parents);
+                if (id == topologies.size())
+                    topologies.add(parents);
+                else if (id > topologies.size())
+                    throw new IOException("Topology " + id + " is out of order in the binary tree trace");
+                position += 1 + topologyLength;
+                validLength = position;
+            } else if (type == SAMPLE_RECORD) {
+                if (!map(1 + sampleLength))
+                    return false;
+                final ByteBuffer buf = record(1);
+                sample = buf.getLong();
+                topology = buf.getInt();
+                buf.asDoubleBuffer().get(values);
+                position += 1 + sampleLength;
+                validLength = position;
+                return true;
+            } else {
+                throw new IOException("Unknown record type " + type + " in the binary tree trace");
+            }
+        }
+        return false;
+    }
+
+    // maps the window so that the next length bytes can be read, false if the file ends before them
+    private boolean map(int length) throws IOException {
+        if (position + length > fileLength)
+            return false;
+        if (window == null || position < windowStart || position + length > windowStart + window.capacity()) {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(fileLength - windowStart, Math.max(WINDOW_SIZE, length)));
+        }
+        return true;
+    }
+
+    private ByteBuffer record(int offset) {
+        final ByteBuffer buf = window.duplicate();
+        buf.position((int) (position - windowStart) + offset);
+        return buf;
+    }
+
+    // length of the header and every complete record read so far, a trace is resumed from here
+    public long getValidLength() {
+        return validLength;
+    }
+
+    public String[] getTaxa() {
+        return taxa;
+    }
+
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getLeafCount() {
+        return taxa.length;
+    }
+
+    public int getTopologyCount() {
+        return topologies.size();
+    }
+
+    // parent of every node in the topology, -1 for the root
+    public int[] getParents(int topologyIndex) {
+        return topologies.get(topologyIndex);
+    }
+
+    public long getSample() {
+        return sample;
+    }
+
+    public int getTopology() {
+        return topology;
+    }
+
+    public double getHeight(int nodeIndex) {
+        return values[nodeIndex];
+    }
+
+    public double getValue(int column, int nodeIndex) {
+        return values[column * nodeCount + nodeIndex];
+    }
+
+    /**
+     * @return the current sample as a tree, with every column except the heights as node metadata
+     */
+    public Tree getTree() {
+        final int[] parents = topologies.get(topology);
+        final Node[] nodes = new Node[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i] = new Node();
+            nodes[i].setNr(i);
+            nodes[i].setHeight(getHeight(i));
+            if (i < taxa.length)
+                nodes[i].setID(taxa[i]);
+            for (int c = 1; c < columnNames.length; c++)
+                nodes[i].setMetaData(columnNames[c], getValue(c, i));
+        }
+
+        Node root = null;
+        for (int i = 0; i < nodeCount; i++) {
+            if (parents[i] < 0)
+                root = nodes[i];
+            else
+                nodes[parents[i]].addChild(nodes[i]);
+        }
+        return new Tree(root);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+        file.close();
+    }
+}
@@ -8,6 +8,8 @@ import sa.app.tools.SATreeTraceAnalysis;
 
 import java.io.File;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by Tim Vaughan <tgvaughan@gmail.com> on 2/05/17.
@@ -16,7 +18,7 @@ public class TreeTopologyDistGenerator extends Runnable {
 
     public Input<String> logFileNameInput = new Input<>(
             "logFileName",
-            "Name of log file from which trees will be read.",
+            "Name of log file from which trees will be read, either a NEXUS tree log or a binary tree trace.",
             Input.Validate.REQUIRED);
 
     public Input<Double> burninFracInput = new Input<>(
@@ -39,18 +41,29 @@ public class TreeTopologyDistGenerator extends Runnable {
     @Override
     public void run() throws Exception {
 
-        NexusParser nexusParser = new NexusParser();
-        nexusParser.parseFile(new File(logFileName));
+        List<Tree> trees;
+        File logFile = new File(logFileName);
+        if (BinaryTreeTrace.isBinaryTrace(logFile)) {
+            trees = new ArrayList<>();
+            try (BinaryTreeTrace trace = new BinaryTreeTrace(logFile)) {
+                while (trace.next())
+                    trees.add(trace.getTree());
+            }
+        } else {
+            NexusParser nexusParser = new NexusParser();
+            nexusParser.parseFile(logFile);
+            trees = nexusParser.trees;
+        }
 
-        int totalTrees = nexusParser.trees.size();
+        int totalTrees = trees.size();
         int burnin = (int)Math.round(burninFracInput.get()*totalTrees);
 
         if (reportFileNameInput.get() != null) {
             try (PrintStream ps = new PrintStream(reportFileNameInput.get())) {
                 SATreeTraceAnalysis analysis = new SATreeTraceAnalysis();
 
-                for (int i=(burnin+1); i<nexusParser.trees.size(); i++)
-                    analysis.addTree(nexusParser.trees.get(i));
+                for (int i=(burnin+1); i<trees.size(); i++)
+                    analysis.addTree(trees.get(i));
 
                 analysis.computeCredibleSet(1.0, null);
                 analysis.report(ps);